@@ -42,7 +42,9 @@ import javax.swing.plaf.metal.MetalLookAndFeel;
 import org.sunflow.Benchmark;
 import org.sunflow.RealtimeBenchmark;
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.AccelerationCache;
 import org.sunflow.core.Display;
+import org.sunflow.core.PhotonMapCache;
 import org.sunflow.core.TextureCache;
 import org.sunflow.core.accel.KDTree;
 import org.sunflow.core.display.FileDisplay;
@@ -133,6 +135,9 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             System.out.println("  -hipri           Set thread priority to high");
             System.out.println("  -smallmesh       Load triangle meshes using triangles optimized for memory use");
             System.out.println("  -dumpkd          Dump KDTree to an obj file for visualization");
+            System.out.println("  -accelcache dir  Store acceleration structures in dir and reuse them across runs");
+            System.out.println("  -photoncache dir Store photon maps in dir and reuse them across frames and runs");
+            System.out.println("  -texturemem mb   Limit the memory used by texture tiles to mb megabytes (default 256)");
             System.out.println("  -buildonly       Do not call render method after loading the scene");
             System.out.println("  -showaa          Display sampling levels per pixel for bucket renderer");
             System.out.println("  -nogi            Disable any global illumination engines in the scene");
@@ -147,7 +152,7 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             System.out.println("  -quick_wire      Renders using a wireframe shader");
             System.out.println("  -resolution w h  Changes the render resolution to the specified width and height (in pixels)");
             System.out.println("  -aa min max      Overrides the image anti-aliasing depths");
-            System.out.println("  -samples n       Overrides the image sample count (affects bucket and multipass samplers)");
+            System.out.println("  -samples n       Overrides the image sample count (affects bucket, multipass and adaptive samplers)");
             System.out.println("  -bucket n order  Changes the default bucket size to n pixels and the default order");
             System.out.println("  -bake name       Bakes a lightmap for the specified instance");
             System.out.println("  -bakedir dir     Selects the type of lightmap baking: dir=view or ortho");
@@ -156,7 +161,11 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             System.out.println("  -rtbench         Run realtime ray-tracing benchmark");
             System.out.println("  -frame n         Set frame number to the specified value");
             System.out.println("  -anim n1 n2      Render all frames between the two specified values (inclusive)");
+            System.out.println("  -reuse           Keep the scene loaded between animation frames, only updating objects that changed");
             System.out.println("  -translate file  Translate input scene to the specified filename");
+            System.out.println("  -maketx file     Convert input image to a tiled, mip-mapped texture file (.stx)");
+            System.out.println("  -txlinear        Treat the image converted by -maketx as linear (for bump and normal maps)");
+            System.out.println("  -txhalf          Store the texels written by -maketx as half floats");
             System.out.println("  -v verbosity     Set the verbosity level: 0=none,1=errors,2=warnings,3=info,4=detailed");
             System.out.println("  -h               Prints this message");
         }
@@ -190,7 +199,11 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
             boolean runBenchmark = false;
             boolean runRTBenchmark = false;
             String translateFilename = null;
+            String textureFilename = null;
+            boolean textureLinear = false;
+            boolean textureHalf = false;
             int frameStart = 1, frameStop = 1;
+            boolean reuseScene = false;
             while (i < args.length) {
                 if (args[i].equals("-o")) {
                     if (i > args.length - 2)
@@ -225,6 +238,21 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 } else if (args[i].equals("-dumpkd")) {
                     KDTree.setDumpMode(true, "kdtree");
                     i++;
+                } else if (args[i].equals("-accelcache")) {
+                    if (i > args.length - 2)
+                        usage(false);
+                    AccelerationCache.setDirectory(args[i + 1]);
+                    i += 2;
+                } else if (args[i].equals("-photoncache")) {
+                    if (i > args.length - 2)
+                        usage(false);
+                    PhotonMapCache.setDirectory(args[i + 1]);
+                    i += 2;
+                } else if (args[i].equals("-texturemem")) {
+                    if (i > args.length - 2)
+                        usage(false);
+                    TextureCache.setMemoryLimit(Integer.parseInt(args[i + 1]));
+                    i += 2;
                 } else if (args[i].equals("-buildonly")) {
                     noRender = true;
                     i++;
@@ -341,6 +369,9 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                     frameStart = Integer.parseInt(args[i + 1]);
                     frameStop = Integer.parseInt(args[i + 2]);
                     i += 3;
+                } else if (args[i].equals("-reuse")) {
+                    reuseScene = true;
+                    i++;
                 } else if (args[i].equals("-v")) {
                     if (i > args.length - 2)
                         usage(false);
@@ -351,6 +382,17 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                         usage(false);
                     translateFilename = args[i + 1];
                     i += 2;
+                } else if (args[i].equals("-maketx")) {
+                    if (i > args.length - 2)
+                        usage(false);
+                    textureFilename = args[i + 1];
+                    i += 2;
+                } else if (args[i].equals("-txlinear")) {
+                    textureLinear = true;
+                    i++;
+                } else if (args[i].equals("-txhalf")) {
+                    textureHalf = true;
+                    i++;
                 } else if (args[i].equals("-h") || args[i].equals("-help")) {
                     usage(true);
                 } else {
@@ -377,6 +419,10 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 SunflowAPI.translate(input, translateFilename);
                 return;
             }
+            if (textureFilename != null) {
+                SunflowAPI.makeTexture(input, textureLinear, textureFilename, textureHalf);
+                return;
+            }
             if (frameStart < frameStop && showFrame) {
                 UI.printWarning(Module.GUI, "Animations should not be rendered without -nogui - forcing GUI off anyway");
                 showFrame = false;
@@ -385,10 +431,16 @@ public class SunflowGUI extends javax.swing.JFrame implements UserInterface {
                 filename = "output.#.png";
                 UI.printWarning(Module.GUI, "Animation output was not specified - defaulting to: \"%s\"", filename);
             }
+            SunflowAPI api = null;
             for (int frameNumber = frameStart; frameNumber <= frameStop; frameNumber++) {
-                SunflowAPI api = SunflowAPI.create(input, frameNumber);
-                if (api == null)
-                    continue;
+                if (reuseScene && api != null) {
+                    if (!api.loadFrame(input, frameNumber))
+                        continue;
+                } else {
+                    api = SunflowAPI.create(input, frameNumber, reuseScene);
+                    if (api == null)
+                        continue;
+                }
                 if (noRender)
                     continue;
                 if (resolutionW > 0 && resolutionH > 0) {
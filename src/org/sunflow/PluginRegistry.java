@@ -15,6 +15,7 @@ import org.sunflow.core.SceneParser;
 import org.sunflow.core.Shader;
 import org.sunflow.core.Tesselatable;
 import org.sunflow.core.accel.BoundingIntervalHierarchy;
+import org.sunflow.core.accel.BoundingVolumeHierarchy;
 import org.sunflow.core.accel.KDTree;
 import org.sunflow.core.accel.NullAccelerator;
 import org.sunflow.core.accel.UniformGrid;
@@ -42,6 +43,7 @@ import org.sunflow.core.gi.FakeGIEngine;
 import org.sunflow.core.gi.InstantGI;
 import org.sunflow.core.gi.IrradianceCacheGIEngine;
 import org.sunflow.core.gi.PathTracingGIEngine;
+import org.sunflow.core.gi.ProgressivePhotonGIEngine;
 import org.sunflow.core.light.DirectionalSpotlight;
 import org.sunflow.core.light.ImageBasedLight;
 import org.sunflow.core.light.PointLight;
@@ -74,6 +76,7 @@ import org.sunflow.core.primitive.Sphere;
 import org.sunflow.core.primitive.SphereFlake;
 import org.sunflow.core.primitive.Torus;
 import org.sunflow.core.primitive.TriangleMesh;
+import org.sunflow.core.renderer.AdaptiveRenderer;
 import org.sunflow.core.renderer.BucketRenderer;
 import org.sunflow.core.renderer.MultipassRenderer;
 import org.sunflow.core.renderer.ProgressiveRenderer;
@@ -113,6 +116,7 @@ import org.sunflow.image.readers.HDRBitmapReader;
 import org.sunflow.image.readers.IGIBitmapReader;
 import org.sunflow.image.readers.JPGBitmapReader;
 import org.sunflow.image.readers.PNGBitmapReader;
+import org.sunflow.image.readers.STXBitmapReader;
 import org.sunflow.image.readers.TGABitmapReader;
 import org.sunflow.image.writers.EXRBitmapWriter;
 import org.sunflow.image.writers.HDRBitmapWriter;
@@ -235,6 +239,7 @@ public final class PluginRegistry {
     static {
         // accels
         accelPlugins.registerPlugin("bih", BoundingIntervalHierarchy.class);
+        accelPlugins.registerPlugin("bvh", BoundingVolumeHierarchy.class);
         accelPlugins.registerPlugin("kdtree", KDTree.class);
         accelPlugins.registerPlugin("null", NullAccelerator.class);
         accelPlugins.registerPlugin("uniformgrid", UniformGrid.class);
@@ -270,6 +275,7 @@ public final class PluginRegistry {
         giEnginePlugins.registerPlugin("igi", InstantGI.class);
         giEnginePlugins.registerPlugin("irr-cache", IrradianceCacheGIEngine.class);
         giEnginePlugins.registerPlugin("path", PathTracingGIEngine.class);
+        giEnginePlugins.registerPlugin("ppm", ProgressivePhotonGIEngine.class);
     }
 
     static {
@@ -289,6 +295,7 @@ public final class PluginRegistry {
         imageSamplerPlugins.registerPlugin("ipr", ProgressiveRenderer.class);
         imageSamplerPlugins.registerPlugin("fast", SimpleRenderer.class);
         imageSamplerPlugins.registerPlugin("multipass", MultipassRenderer.class);
+        imageSamplerPlugins.registerPlugin("adaptive", AdaptiveRenderer.class);
     }
 
     static {
@@ -309,6 +316,7 @@ public final class PluginRegistry {
         bitmapReaderPlugins.registerPlugin("jpg", JPGBitmapReader.class);
         bitmapReaderPlugins.registerPlugin("bmp", BMPBitmapReader.class);
         bitmapReaderPlugins.registerPlugin("igi", IGIBitmapReader.class);
+        bitmapReaderPlugins.registerPlugin("stx", STXBitmapReader.class);
     }
 
     static {
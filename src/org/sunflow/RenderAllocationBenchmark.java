@@ -0,0 +1,121 @@
+package org.sunflow;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.sunflow.core.Display;
+import org.sunflow.image.Color;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Renders a scene with the bucket renderer and reports how many bytes the
+ * render threads allocated while working on buckets. The count for each bucket
+ * starts when the bucket is handed to the display for preparation and ends
+ * when its pixels are sent back, so it covers sampling, shading and filtering
+ * but not scene parsing or acceleration structure builds. A simple shader can
+ * be forced on the whole scene to leave out most of the shading work. This
+ * needs a JVM which can measure per thread allocation.
+ */
+public class RenderAllocationBenchmark implements Display {
+    private final ThreadMXBean bean;
+    private final ThreadLocal<long[]> bucketStart;
+    private long allocated;
+    private int buckets;
+
+    public static void main(String[] args) {
+        int threads = 0, resolutionW = 0, resolutionH = 0;
+        int aaMin = -5, aaMax = -5;
+        String filename = null;
+        String shaderOverride = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-threads") && i + 1 < args.length)
+                threads = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-resolution") && i + 2 < args.length) {
+                resolutionW = Integer.parseInt(args[++i]);
+                resolutionH = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-aa") && i + 2 < args.length) {
+                aaMin = Integer.parseInt(args[++i]);
+                aaMax = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("-shader") && i + 1 < args.length)
+                shaderOverride = args[++i];
+            else
+                filename = args[i];
+        }
+        if (filename == null) {
+            System.out.println("Usage: RenderAllocationBenchmark [-threads n] [-resolution w h] [-aa min max] [-shader type] scene");
+            return;
+        }
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            UI.printError(Module.BENCH, "This JVM can not measure allocated memory per thread");
+            return;
+        }
+        SunflowAPI api = SunflowAPI.create(filename, 0);
+        if (api == null)
+            return;
+        if (resolutionW > 0 && resolutionH > 0) {
+            api.parameter("resolutionX", resolutionW);
+            api.parameter("resolutionY", resolutionH);
+        }
+        if (aaMin != -5 || aaMax != -5) {
+            api.parameter("aa.min", aaMin);
+            api.parameter("aa.max", aaMax);
+        }
+        api.parameter("threads", threads);
+        api.parameter("sampler", "bucket");
+        api.options(SunflowAPI.DEFAULT_OPTIONS);
+        if (shaderOverride != null) {
+            // a cheap shader leaves mostly the allocations of the sampler
+            api.shader("cmdline_override", shaderOverride);
+            api.parameter("override.shader", "cmdline_override");
+            api.parameter("override.photons", true);
+            api.options(SunflowAPI.DEFAULT_OPTIONS);
+        }
+        RenderAllocationBenchmark display = new RenderAllocationBenchmark(bean);
+        api.render(SunflowAPI.DEFAULT_OPTIONS, display);
+        UI.printInfo(Module.BENCH, "Render allocation results:");
+        UI.printInfo(Module.BENCH, "  * Buckets:          %d", display.buckets);
+        UI.printInfo(Module.BENCH, "  * Bytes allocated:  %d (%d MB)", display.allocated, display.allocated >> 20);
+        if (display.buckets > 0)
+            UI.printInfo(Module.BENCH, "  * Bytes per bucket: %d", display.allocated / display.buckets);
+    }
+
+    private RenderAllocationBenchmark(ThreadMXBean bean) {
+        this.bean = bean;
+        bucketStart = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+    }
+
+    private long getAllocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public void imageBegin(int w, int h, int bucketSize) {
+        allocated = 0;
+        buckets = 0;
+    }
+
+    public void imagePrepare(int x, int y, int w, int h, int id) {
+        long[] start = bucketStart.get();
+        start[0] = getAllocatedBytes();
+    }
+
+    public void imageUpdate(int x, int y, int w, int h, Color[] data, float[] alpha) {
+        long bytes = getAllocatedBytes() - bucketStart.get()[0];
+        synchronized (this) {
+            allocated += bytes;
+            buckets++;
+        }
+    }
+
+    public void imageFill(int x, int y, int w, int h, Color c, float alpha) {
+    }
+
+    public void imageEnd() {
+    }
+}
\ No newline at end of file
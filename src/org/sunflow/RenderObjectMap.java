@@ -1,6 +1,10 @@
 package org.sunflow;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Locale;
 
 import org.sunflow.core.Camera;
@@ -10,6 +14,7 @@ import org.sunflow.core.LightSource;
 import org.sunflow.core.Modifier;
 import org.sunflow.core.Options;
 import org.sunflow.core.ParameterList;
+import org.sunflow.core.PhotonMapCache;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.RenderObject;
 import org.sunflow.core.Scene;
@@ -23,6 +28,7 @@ final class RenderObjectMap {
     private FastHashMap<String, RenderObjectHandle> renderObjects;
     private boolean rebuildInstanceList;
     private boolean rebuildLightList;
+    private boolean frameOpen;
 
     private enum RenderObjectType {
         UNKNOWN, SHADER, MODIFIER, GEOMETRY, INSTANCE, LIGHT, CAMERA, OPTIONS
@@ -31,12 +37,75 @@ final class RenderObjectMap {
     RenderObjectMap() {
         renderObjects = new FastHashMap<String, RenderObjectHandle>();
         rebuildInstanceList = rebuildLightList = false;
+        frameOpen = false;
     }
 
     final boolean has(String name) {
         return renderObjects.containsKey(name);
     }
 
+    /**
+     * Start re-declaring the scene for a new animation frame. Objects declared
+     * again with the same type are kept, and updates which repeat the
+     * parameters of the previous frame are skipped. Objects declared again
+     * with a different type are replaced. Objects which are not declared again
+     * are removed by {@link #endFrame()}. The parameters of updates are only
+     * recorded while a frame is open.
+     */
+    final void beginFrame() {
+        // close the previous frame if it was never rendered
+        endFrame();
+        for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects)
+            e.getValue().beginFrame();
+        frameOpen = true;
+    }
+
+    /**
+     * Finish the frame started by {@link #beginFrame()}, removing all objects
+     * which were not declared again. The updates recorded during the frame
+     * replace those of the previous frame. Does nothing if no frame is open.
+     */
+    final void endFrame() {
+        if (!frameOpen)
+            return;
+        frameOpen = false;
+        ArrayList<String> unused = new ArrayList<String>();
+        for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects)
+            if (!e.getValue().declared)
+                unused.add(e.getKey());
+        for (String name : unused)
+            if (has(name))
+                remove(name);
+        for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects)
+            e.getValue().endFrame();
+    }
+
+    /**
+     * Checks if the specified object may be declared again. This is only
+     * allowed while re-declaring a frame, for objects which were previously
+     * declared with the same type. An object of the previous frame which is
+     * declared again with a different type is removed, so it can be declared
+     * anew.
+     * 
+     * @param name object name
+     * @param typeName type the object is being declared with
+     * @return <code>true</code> if the existing object can be kept
+     */
+    final boolean redeclare(String name, String typeName) {
+        if (!frameOpen)
+            return false;
+        RenderObjectHandle obj = renderObjects.get(name);
+        if (obj == null || obj.declared)
+            return false;
+        if (obj.declaredType == null || !obj.declaredType.equals(typeName)) {
+            UI.printDetailed(Module.API, "Replacing %s object \"%s\" of type \"%s\" by type \"%s\"", obj.typeName(), name, obj.declaredType, typeName);
+            remove(name);
+            return false;
+        }
+        obj.declared = true;
+        return true;
+    }
+
     final void remove(String name) {
         RenderObjectHandle obj = renderObjects.get(name);
         if (obj == null) {
@@ -52,9 +121,11 @@ final class RenderObjectMap {
                 Shader s = obj.getShader();
                 for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
                     Instance i = e.getValue().getInstance();
-                    if (i != null) {
+                    if (i != null && i.removeShader(s)) {
                         UI.printWarning(Module.API, "Removing shader \"%s\" from instance \"%s\"", name, e.getKey());
-                        i.removeShader(s);
+                        // the next update must not be skipped so the
+                        // instance can pick up a replacement
+                        e.getValue().changed = true;
                     }
                 }
                 break;
@@ -62,9 +133,9 @@ final class RenderObjectMap {
                 Modifier m = obj.getModifier();
                 for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
                     Instance i = e.getValue().getInstance();
-                    if (i != null) {
+                    if (i != null && i.removeModifier(m)) {
                         UI.printWarning(Module.API, "Removing modifier \"%s\" from instance \"%s\"", name, e.getKey());
-                        i.removeModifier(m);
+                        e.getValue().changed = true;
                     }
                 }
                 break;
@@ -98,8 +169,24 @@ final class RenderObjectMap {
             UI.printError(Module.API, "Unable to update \"%s\" - object was not defined yet", name);
             success = false;
         } else {
+            obj.declared = true;
+            // objects may set counts on the list, so digest the values as
+            // they were before the update
+            byte[] values = frameOpen ? digest(pl, api) : null;
+            if (values != null && obj.isUnchanged(values)) {
+                UI.printDetailed(Module.API, "Skipping unchanged %s object \"%s\"", obj.typeName(), name);
+                obj.record(values, false);
+                pl.clear(false);
+                return true;
+            }
             UI.printDetailed(Module.API, "Updating %s object \"%s\"", obj.typeName(), name);
+            if (obj.affectsPhotons() && PhotonMapCache.isEnabled())
+                obj.updateDigest(pl, api);
             success = obj.update(pl, api);
+            if (frameOpen)
+                obj.record(values, true);
+            else
+                obj.forget();
             if (!success) {
                 UI.printError(Module.API, "Unable to update \"%s\" - removing", name);
                 remove(name);
@@ -166,38 +253,100 @@ final class RenderObjectMap {
             scene.setLightList(lightList.toArray(new LightSource[lightList.size()]));
             rebuildLightList = false;
         }
+        scene.setParameterDigest(PhotonMapCache.isEnabled() ? getParameterDigest() : null);
     }
 
-    final void put(String name, Shader shader) {
-        renderObjects.put(name, new RenderObjectHandle(shader));
+    /**
+     * Combines the parameter digests of all objects which influence how
+     * photons are traced.
+     * 
+     * @return the digest as a hex string, or <code>null</code> if some of these
+     *         objects were updated while the photon map cache was disabled
+     */
+    private String getParameterDigest() {
+        ArrayList<String> names = new ArrayList<String>();
+        for (FastHashMap.Entry<String, RenderObjectHandle> e : renderObjects) {
+            if (e.getValue().affectsPhotons()) {
+                if (e.getValue().digest == null)
+                    return null;
+                names.add(e.getKey());
+            }
+        }
+        Collections.sort(names);
+        MessageDigest md = createDigest();
+        if (md == null)
+            return null;
+        for (String name : names) {
+            md.update(name.getBytes());
+            md.update((byte) 0);
+            md.update(renderObjects.get(name).digest);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : md.digest())
+            hex.append(String.format("%02x", b & 0xFF));
+        return hex.toString();
+    }
+
+    /**
+     * Compute a digest of the values held by a parameter list. Updates are
+     * compared through their digests rather than through the arrays they
+     * hold, so arrays modified in place by the client are still noticed.
+     * 
+     * @return digest of the list, or <code>null</code> if it could not be
+     *         computed
+     */
+    private static byte[] digest(ParameterList pl, SunflowAPI api) {
+        MessageDigest md = createDigest();
+        if (md == null)
+            return null;
+        pl.digest(md, api);
+        return md.digest();
     }
 
-    final void put(String name, Modifier modifier) {
-        renderObjects.put(name, new RenderObjectHandle(modifier));
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
     }
 
-    final void put(String name, PrimitiveList primitives) {
-        renderObjects.put(name, new RenderObjectHandle(primitives));
+    final void put(String name, String typeName, Shader shader) {
+        put(name, typeName, new RenderObjectHandle(shader));
     }
 
-    final void put(String name, Tesselatable tesselatable) {
-        renderObjects.put(name, new RenderObjectHandle(tesselatable));
+    final void put(String name, String typeName, Modifier modifier) {
+        put(name, typeName, new RenderObjectHandle(modifier));
     }
 
-    final void put(String name, Instance instance) {
-        renderObjects.put(name, new RenderObjectHandle(instance));
+    final void put(String name, String typeName, PrimitiveList primitives) {
+        put(name, typeName, new RenderObjectHandle(primitives));
     }
 
-    final void put(String name, LightSource light) {
-        renderObjects.put(name, new RenderObjectHandle(light));
+    final void put(String name, String typeName, Tesselatable tesselatable) {
+        put(name, typeName, new RenderObjectHandle(tesselatable));
     }
 
-    final void put(String name, Camera camera) {
-        renderObjects.put(name, new RenderObjectHandle(camera));
+    final void put(String name, String typeName, Instance instance) {
+        put(name, typeName, new RenderObjectHandle(instance));
+    }
+
+    final void put(String name, String typeName, LightSource light) {
+        put(name, typeName, new RenderObjectHandle(light));
+    }
+
+    final void put(String name, String typeName, Camera camera) {
+        put(name, typeName, new RenderObjectHandle(camera));
     }
 
     final void put(String name, Options options) {
-        renderObjects.put(name, new RenderObjectHandle(options));
+        put(name, null, new RenderObjectHandle(options));
+    }
+
+    private void put(String name, String typeName, RenderObjectHandle handle) {
+        handle.declaredType = typeName;
+        handle.declared = true;
+        renderObjects.put(name, handle);
     }
 
     final Geometry lookupGeometry(String name) {
@@ -252,6 +401,14 @@ final class RenderObjectMap {
     private static final class RenderObjectHandle {
         private final RenderObject obj;
         private final RenderObjectType type;
+        private String declaredType;
+        // bookkeeping for re-declaring objects between animation frames
+        private boolean declared;
+        private boolean changed;
+        private ArrayList<byte[]> updates = null;
+        private ArrayList<byte[]> previousUpdates = null;
+        // digest of every update applied to the object
+        private byte[] digest = null;
 
         private RenderObjectHandle(Shader shader) {
             obj = shader;
@@ -297,6 +454,74 @@ final class RenderObjectMap {
             return obj.update(pl, api);
         }
 
+        private boolean affectsPhotons() {
+            switch (type) {
+                case SHADER:
+                case MODIFIER:
+                case GEOMETRY:
+                case INSTANCE:
+                case LIGHT:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        /**
+         * Chain the parameters of an update onto the digest of the earlier
+         * ones, since parameters left out keep their previous values.
+         */
+        private void updateDigest(ParameterList pl, SunflowAPI api) {
+            MessageDigest md = createDigest();
+            if (md == null)
+                return;
+            if (digest != null)
+                md.update(digest);
+            pl.digest(md, api);
+            digest = md.digest();
+        }
+
+        private void beginFrame() {
+            updates = null;
+            declared = changed = false;
+        }
+
+        /**
+         * Keep the updates of the frame which just ended for comparison with
+         * the next frame, and drop those of the frame before.
+         */
+        private void endFrame() {
+            previousUpdates = updates;
+            updates = null;
+        }
+
+        /**
+         * Called for updates made outside of a frame. These are not recorded,
+         * so the previous frame no longer describes the state of the object.
+         */
+        private void forget() {
+            previousUpdates = updates = null;
+        }
+
+        /**
+         * An update can be skipped if it repeats the update made at the same
+         * point in the previous frame, and no earlier update of the current
+         * frame differed from the previous one.
+         */
+        private boolean isUnchanged(byte[] values) {
+            int n = updates == null ? 0 : updates.size();
+            if (changed || previousUpdates == null || n >= previousUpdates.size())
+                return false;
+            return Arrays.equals(previousUpdates.get(n), values);
+        }
+
+        private void record(byte[] values, boolean applied) {
+            if (updates == null)
+                updates = new ArrayList<byte[]>();
+            updates.add(values);
+            changed |= applied;
+        }
+
         private String typeName() {
             return type.name().toLowerCase(Locale.ENGLISH);
         }
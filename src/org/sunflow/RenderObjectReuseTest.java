@@ -0,0 +1,123 @@
+package org.sunflow;
+
+import org.sunflow.core.Display;
+import org.sunflow.core.shader.ConstantShader;
+import org.sunflow.image.Color;
+import org.sunflow.math.Matrix4;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Checks that re-declaring an animation frame with
+ * {@link SunflowAPI#loadFrame(String, int)} replaces objects whose type
+ * changed. The first frame shades a triangle with an unlit diffuse shader, the
+ * second frame declares the same shader name as a green constant shader. The
+ * center of the second image must be green, which means the instance picked up
+ * the replacement shader. The third frame moves the triangle out of view by
+ * editing its point array in place, which must not be mistaken for an
+ * unchanged update.
+ */
+public class RenderObjectReuseTest extends SunflowAPI implements Display {
+    private static final int RESOLUTION = 16;
+    private final float[] points = { -2, -2, 0, 2, -2, 0, 0, 2, 0 };
+    private Color center;
+
+    public static void main(String[] args) {
+        RenderObjectReuseTest test = new RenderObjectReuseTest();
+        boolean passed = test.run();
+        if (passed)
+            UI.printInfo(Module.API, "Render object reuse test passed!");
+        else
+            UI.printError(Module.API, "Render object reuse test failed!");
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() {
+        // only the extension is looked at, it selects the build method
+        String filename = "RenderObjectReuseTest.java";
+        if (!loadFrame(filename, 1) || !renderFrame())
+            return false;
+        if (!center.isBlack()) {
+            UI.printError(Module.API, "Frame 1 should be black, got %s", center);
+            return false;
+        }
+        if (!loadFrame(filename, 2) || !renderFrame())
+            return false;
+        if (!(lookupShader("surface") instanceof ConstantShader)) {
+            UI.printError(Module.API, "Shader \"surface\" was not replaced");
+            return false;
+        }
+        float[] rgb = center.getRGB();
+        if (rgb[0] > 0.01f || rgb[1] < 0.99f || rgb[2] > 0.01f) {
+            UI.printError(Module.API, "Frame 2 should be green, got %s", center);
+            return false;
+        }
+        for (int i = 0; i < points.length; i += 3)
+            points[i] += 10;
+        if (!loadFrame(filename, 3) || !renderFrame())
+            return false;
+        if (!center.isBlack()) {
+            UI.printError(Module.API, "Frame 3 should be black, got %s", center);
+            return false;
+        }
+        return true;
+    }
+
+    private boolean renderFrame() {
+        center = null;
+        render(SunflowAPI.DEFAULT_OPTIONS, this);
+        if (center == null) {
+            UI.printError(Module.API, "Frame %d was not rendered", currentFrame());
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void build() {
+        parameter("resolutionX", RESOLUTION);
+        parameter("resolutionY", RESOLUTION);
+        parameter("aa.min", 0);
+        parameter("aa.max", 0);
+        parameter("filter", "box");
+        options(SunflowAPI.DEFAULT_OPTIONS);
+        parameter("transform", Matrix4.lookAt(new Point3(0, 0, -5), new Point3(0, 0, 0), new Vector3(0, 1, 0)));
+        parameter("fov", 45.0f);
+        camera("camera", "pinhole");
+        parameter("camera", "camera");
+        options(SunflowAPI.DEFAULT_OPTIONS);
+        if (currentFrame() == 1) {
+            parameter("diffuse", null, 1, 1, 1);
+            shader("surface", "diffuse");
+        } else {
+            parameter("color", null, 0, 1, 0);
+            shader("surface", "constant");
+        }
+        parameter("points", "point", "vertex", points);
+        parameter("triangles", new int[] { 0, 1, 2 });
+        geometry("triangle", "triangle_mesh");
+        parameter("shaders", "surface");
+        instance("triangle.instance", "triangle");
+    }
+
+    public void imageBegin(int w, int h, int bucketSize) {
+    }
+
+    public void imagePrepare(int x, int y, int w, int h, int id) {
+    }
+
+    public synchronized void imageUpdate(int x, int y, int w, int h, Color[] data, float[] alpha) {
+        int cx = RESOLUTION / 2 - x;
+        int cy = RESOLUTION / 2 - y;
+        if (cx >= 0 && cx < w && cy >= 0 && cy < h)
+            center = data[cx + cy * w];
+    }
+
+    public void imageFill(int x, int y, int w, int h, Color c, float alpha) {
+    }
+
+    public void imageEnd() {
+    }
+}
\ No newline at end of file
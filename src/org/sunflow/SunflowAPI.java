@@ -27,8 +27,13 @@ import org.sunflow.core.SceneParser;
 import org.sunflow.core.Shader;
 import org.sunflow.core.Tesselatable;
 import org.sunflow.core.ParameterList.InterpolationType;
+import org.sunflow.core.parser.SCParser;
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.BitmapReader;
 import org.sunflow.image.ColorFactory;
+import org.sunflow.image.BitmapReader.BitmapFormatException;
 import org.sunflow.image.ColorFactory.ColorSpecificationException;
+import org.sunflow.image.formats.BitmapTiled;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.Point2;
@@ -255,7 +260,7 @@ public class SunflowAPI implements SunflowAPIInterface {
     }
 
     public final void shader(String name, String shaderType) {
-        if (!isIncremental(shaderType)) {
+        if (!isIncremental(shaderType) && !renderObjects.redeclare(name, shaderType)) {
             // we are declaring a shader for the first time
             if (renderObjects.has(name)) {
                 UI.printError(Module.API, "Unable to declare shader \"%s\", name is already in use", name);
@@ -267,7 +272,7 @@ public class SunflowAPI implements SunflowAPIInterface {
                 UI.printError(Module.API, "Unable to create shader of type \"%s\"", shaderType);
                 return;
             }
-            renderObjects.put(name, shader);
+            renderObjects.put(name, shaderType, shader);
         }
         // update existing shader (only if it is valid)
         if (lookupShader(name) != null)
@@ -279,7 +284,7 @@ public class SunflowAPI implements SunflowAPIInterface {
     }
 
     public final void modifier(String name, String modifierType) {
-        if (!isIncremental(modifierType)) {
+        if (!isIncremental(modifierType) && !renderObjects.redeclare(name, modifierType)) {
             // we are declaring a shader for the first time
             if (renderObjects.has(name)) {
                 UI.printError(Module.API, "Unable to declare modifier \"%s\", name is already in use", name);
@@ -291,7 +296,7 @@ public class SunflowAPI implements SunflowAPIInterface {
                 UI.printError(Module.API, "Unable to create modifier of type \"%s\"", modifierType);
                 return;
             }
-            renderObjects.put(name, modifier);
+            renderObjects.put(name, modifierType, modifier);
         }
         // update existing shader (only if it is valid)
         if (lookupModifier(name) != null)
@@ -303,7 +308,7 @@ public class SunflowAPI implements SunflowAPIInterface {
     }
 
     public final void geometry(String name, String typeName) {
-        if (!isIncremental(typeName)) {
+        if (!isIncremental(typeName) && !renderObjects.redeclare(name, typeName)) {
             // we are declaring a geometry for the first time
             if (renderObjects.has(name)) {
                 UI.printError(Module.API, "Unable to declare geometry \"%s\", name is already in use", name);
@@ -317,14 +322,14 @@ public class SunflowAPI implements SunflowAPIInterface {
                     UI.printError(Module.API, "Unable to create tesselatable object of type \"%s\"", typeName);
                     return;
                 }
-                renderObjects.put(name, tesselatable);
+                renderObjects.put(name, typeName, tesselatable);
             } else {
                 PrimitiveList primitives = PluginRegistry.primitivePlugins.createObject(typeName);
                 if (primitives == null) {
                     UI.printError(Module.API, "Unable to create primitive of type \"%s\"", typeName);
                     return;
                 }
-                renderObjects.put(name, primitives);
+                renderObjects.put(name, typeName, primitives);
             }
         }
         if (lookupGeometry(name) != null)
@@ -337,14 +342,16 @@ public class SunflowAPI implements SunflowAPIInterface {
 
     public final void instance(String name, String geoname) {
         if (!isIncremental(geoname)) {
-            // we are declaring this instance for the first time
-            if (renderObjects.has(name)) {
-                UI.printError(Module.API, "Unable to declare instance \"%s\", name is already in use", name);
-                parameterList.clear(true);
-                return;
+            if (!renderObjects.redeclare(name, geoname)) {
+                // we are declaring this instance for the first time
+                if (renderObjects.has(name)) {
+                    UI.printError(Module.API, "Unable to declare instance \"%s\", name is already in use", name);
+                    parameterList.clear(true);
+                    return;
+                }
+                renderObjects.put(name, geoname, new Instance());
             }
             parameter("geometry", geoname);
-            renderObjects.put(name, new Instance());
         }
         if (lookupInstance(name) != null)
             update(name);
@@ -355,7 +362,7 @@ public class SunflowAPI implements SunflowAPIInterface {
     }
 
     public final void light(String name, String lightType) {
-        if (!isIncremental(lightType)) {
+        if (!isIncremental(lightType) && !renderObjects.redeclare(name, lightType)) {
             // we are declaring this light for the first time
             if (renderObjects.has(name)) {
                 UI.printError(Module.API, "Unable to declare light \"%s\", name is already in use", name);
@@ -367,7 +374,7 @@ public class SunflowAPI implements SunflowAPIInterface {
                 UI.printError(Module.API, "Unable to create light source of type \"%s\"", lightType);
                 return;
             }
-            renderObjects.put(name, light);
+            renderObjects.put(name, lightType, light);
         }
         if (lookupLight(name) != null)
             update(name);
@@ -378,7 +385,7 @@ public class SunflowAPI implements SunflowAPIInterface {
     }
 
     public final void camera(String name, String lensType) {
-        if (!isIncremental(lensType)) {
+        if (!isIncremental(lensType) && !renderObjects.redeclare(name, lensType)) {
             // we are declaring this camera for the first time
             if (renderObjects.has(name)) {
                 UI.printError(Module.API, "Unable to declare camera \"%s\", name is already in use", name);
@@ -390,7 +397,7 @@ public class SunflowAPI implements SunflowAPIInterface {
                 UI.printError(Module.API, "Unable to create a camera lens of type \"%s\"", lensType);
                 return;
             }
-            renderObjects.put(name, new Camera(lens));
+            renderObjects.put(name, lensType, new Camera(lens));
         }
         // update existing shader (only if it is valid)
         if (lookupCamera(name) != null)
@@ -489,6 +496,7 @@ public class SunflowAPI implements SunflowAPIInterface {
     }
 
     public final void render(String optionsName, Display display) {
+        renderObjects.endFrame();
         renderObjects.updateScene(scene);
         Options opt = lookupOptions(optionsName);
         if (opt == null)
@@ -565,8 +573,25 @@ public class SunflowAPI implements SunflowAPIInterface {
      * @return a valid SunflowAPI object or <code>null</code> on failure
      */
     public static SunflowAPI create(String filename, int frameNumber) {
+        return create(filename, frameNumber, false);
+    }
+
+    /**
+     * Create an API object from the specified file, see
+     * {@link #create(String, int)}. If <code>reuse</code> is set, the scene is
+     * loaded as the first frame of an animation, so later frames loaded with
+     * {@link #loadFrame(String, int)} can skip the updates which repeat it.
+     * 
+     * @param filename filename to load
+     * @param frameNumber frame to load
+     * @param reuse record the scene for later calls to
+     *            {@link #loadFrame(String, int)}
+     * @return a valid SunflowAPI object or <code>null</code> on failure
+     */
+    public static SunflowAPI create(String filename, int frameNumber, boolean reuse) {
         if (filename == null)
             return new SunflowAPI();
+        SCParser.resetInstanceCounter();
         SunflowAPI api = null;
         if (filename.endsWith(".java")) {
             Timer t = new Timer();
@@ -601,17 +626,52 @@ public class SunflowAPI implements SunflowAPIInterface {
             api.textureSearchPath.addSearchPath(currentFolder);
             UI.printInfo(Module.API, "Build script running ...");
             t.start();
+            if (reuse)
+                api.renderObjects.beginFrame();
             api.currentFrame(frameNumber);
             api.build();
             t.end();
             UI.printInfo(Module.API, "Build script time: %s", t.toString());
         } else {
             api = new SunflowAPI();
+            if (reuse)
+                api.renderObjects.beginFrame();
             api = api.include(filename) ? api : null;
         }
         return api;
     }
 
+    /**
+     * Load the specified frame of an animation on top of the scene already held
+     * by this object. The scene description is run again (the file is parsed,
+     * or the build method is called for Java scenes), but objects declared
+     * again with the same type are kept and updates identical to the previous
+     * frame are skipped. This means unchanged geometry keeps its tesselation
+     * and acceleration structure. Objects are updated in place, so parameters
+     * omitted in a later frame keep their previous values. Objects which are
+     * not declared again are removed when {@link #render(String, Display)} is
+     * next called.
+     * 
+     * @param filename scene file this object was created from
+     * @param frameNumber frame to load
+     * @return <code>true</code> upon success, <code>false</code> otherwise
+     */
+    public final boolean loadFrame(String filename, int frameNumber) {
+        renderObjects.beginFrame();
+        SCParser.resetInstanceCounter();
+        currentFrame(frameNumber);
+        if (filename.endsWith(".java")) {
+            Timer t = new Timer();
+            UI.printInfo(Module.API, "Build script running ...");
+            t.start();
+            build();
+            t.end();
+            UI.printInfo(Module.API, "Build script time: %s", t.toString());
+            return true;
+        }
+        return include(filename);
+    }
+
     /**
      * Translate specfied file into the native sunflow scene file format.
      * 
@@ -651,6 +711,44 @@ public class SunflowAPI implements SunflowAPIInterface {
         }
     }
 
+    /**
+     * Convert the specified image into a tiled, mip-mapped texture file which
+     * can be read without decoding the whole image. Gamma corrected images are
+     * converted to linear space first, so the resulting file should be used in
+     * the same way as the original image (color map or bump map).
+     * 
+     * @param filename input image filename
+     * @param isLinear is the input image linear already?
+     * @param outputFilename output texture filename
+     * @param half store texels as half floats instead of floats
+     * @return <code>true</code> upon success, <code>false</code> otherwise
+     * @see BitmapTiled
+     */
+    public static boolean makeTexture(String filename, boolean isLinear, String outputFilename, boolean half) {
+        String extension = FileUtils.getExtension(filename);
+        BitmapReader reader = PluginRegistry.bitmapReaderPlugins.createObject(extension);
+        if (reader == null) {
+            UI.printError(Module.TEX, "Unable to find a suitable reader for: \"%s\"", filename);
+            return false;
+        }
+        try {
+            Timer t = new Timer();
+            t.start();
+            UI.printInfo(Module.TEX, "Reading image \"%s\" ...", filename);
+            Bitmap b = reader.load(filename, isLinear);
+            UI.printInfo(Module.TEX, "Writing %dx%d texture \"%s\" (%s) ...", b.getWidth(), b.getHeight(), outputFilename, half ? "half" : "float");
+            BitmapTiled.save(b, outputFilename, half);
+            t.end();
+            UI.printInfo(Module.TEX, "Texture conversion took %s", t.toString());
+            return true;
+        } catch (IOException e) {
+            UI.printError(Module.TEX, "Unable to convert \"%s\" - %s", filename, e.getMessage());
+        } catch (BitmapFormatException e) {
+            UI.printError(Module.TEX, "%s format error: %s", extension, e.getMessage());
+        }
+        return false;
+    }
+
     /**
      * Compile the specified code string via Janino. The code must implement a
      * build method as described above. The build method is not called on the
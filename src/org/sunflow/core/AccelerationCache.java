@@ -0,0 +1,259 @@
+package org.sunflow.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Stores built acceleration structures in a directory so they can be reused
+ * across runs. Entries are keyed by a hash of the accelerator type and of the
+ * bounds of every primitive, which is all the supported structures depend on.
+ * The cache is disabled until a directory is set. Each file starts with a
+ * header holding the length and a CRC32 checksum of the data which follows, so
+ * truncated or damaged files are detected and the structure is rebuilt.
+ */
+public final class AccelerationCache {
+    private static final int MAGIC = 0x53464143; // "SFAC"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 24; // magic, version, count, length, crc
+    private static final int MIN_PRIMITIVES = 1000;
+
+    private static File directory = null;
+
+    private AccelerationCache() {
+    }
+
+    /**
+     * Sets the directory used to store acceleration structures. Passing
+     * <code>null</code> disables the cache.
+     * 
+     * @param dir cache directory, created if it does not exist
+     */
+    public static synchronized void setDirectory(String dir) {
+        if (dir == null) {
+            directory = null;
+            UI.printInfo(Module.ACCEL, "Acceleration structure cache: disabled");
+            return;
+        }
+        File f = new File(dir);
+        if (!f.isDirectory() && !f.mkdirs()) {
+            UI.printError(Module.ACCEL, "Unable to create acceleration structure cache directory \"%s\"", dir);
+            directory = null;
+            return;
+        }
+        directory = f;
+        UI.printInfo(Module.ACCEL, "Acceleration structure cache: %s", f.getAbsolutePath());
+    }
+
+    private static synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Computes the cache key for the specified structure and primitives.
+     * 
+     * @return the key, or <code>null</code> if the cache is disabled or does
+     *         not apply to this structure
+     */
+    static String getKey(AccelerationStructure accel, PrimitiveList primitives) {
+        if (getDirectory() == null || !(accel instanceof CacheableAccelerationStructure))
+            return null;
+        int n = primitives.getNumPrimitives();
+        if (n < MIN_PRIMITIVES)
+            return null;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            UI.printWarning(Module.ACCEL, "Unable to hash primitives - acceleration structure cache disabled");
+            return null;
+        }
+        md.update(accel.getClass().getName().getBytes());
+        md.update(primitives.getClass().getName().getBytes());
+        ByteBuffer buf = ByteBuffer.allocate(6 * 4 * 1024);
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < 6; j++)
+                buf.putFloat(primitives.getPrimitiveBound(i, j));
+            if (!buf.hasRemaining()) {
+                md.update(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+        }
+        md.update(buf.array(), 0, buf.position());
+        StringBuilder key = new StringBuilder();
+        for (byte b : md.digest())
+            key.append(String.format("%02x", b & 0xFF));
+        return key.toString();
+    }
+
+    /**
+     * Try to restore the specified structure from the cache.
+     * 
+     * @return <code>true</code> if the structure was loaded, <code>false</code>
+     *         if it still needs to be built
+     */
+    static boolean load(String key, AccelerationStructure accel, PrimitiveList primitives) {
+        File dir = getDirectory();
+        if (dir == null)
+            return false;
+        File file = new File(dir, key + ".accel");
+        if (!file.isFile())
+            return false;
+        Timer t = new Timer();
+        t.start();
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            FileChannel channel = stream.getChannel();
+            MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            IntBuffer in = data.asIntBuffer();
+            if (channel.size() < HEADER_SIZE || in.get() != MAGIC || in.get() != VERSION || in.get() != primitives.getNumPrimitives()) {
+                UI.printWarning(Module.ACCEL, "Ignoring invalid acceleration structure cache file \"%s\"", file.getName());
+                return false;
+            }
+            long length = ((long) in.get() << 32) | (in.get() & 0xFFFFFFFFL);
+            int crc = in.get();
+            if (length != channel.size() - HEADER_SIZE || crc != checksum(data)) {
+                UI.printWarning(Module.ACCEL, "Ignoring damaged acceleration structure cache file \"%s\"", file.getName());
+                return false;
+            }
+            ((CacheableAccelerationStructure) accel).load(primitives, in);
+        } catch (IOException e) {
+            UI.printWarning(Module.ACCEL, "Unable to read acceleration structure cache file \"%s\": %s", file.getName(), e.getMessage());
+            return false;
+        } catch (RuntimeException e) {
+            UI.printWarning(Module.ACCEL, "Ignoring corrupt acceleration structure cache file \"%s\"", file.getName());
+            return false;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        t.end();
+        UI.printDetailed(Module.ACCEL, "Loaded acceleration structure from cache in %s", t);
+        return true;
+    }
+
+    /**
+     * Save a freshly built structure into the cache. Failures are reported but
+     * otherwise ignored.
+     */
+    static void save(String key, AccelerationStructure accel, PrimitiveList primitives) {
+        File dir = getDirectory();
+        if (dir == null)
+            return;
+        File file = new File(dir, key + ".accel");
+        File temp = null;
+        DataOutputStream out = null;
+        try {
+            // write to a temporary file first so concurrent readers never see
+            // a partial entry
+            temp = File.createTempFile(key, ".tmp", dir);
+            // the length and checksum are filled in once the data is written
+            FileOutputStream stream = new FileOutputStream(temp);
+            CRC32 crc = new CRC32();
+            out = new DataOutputStream(new BufferedOutputStream(new CheckedOutputStream(stream, crc)));
+            stream.write(new byte[HEADER_SIZE]);
+            ((CacheableAccelerationStructure) accel).save(out);
+            out.close();
+            out = null;
+            RandomAccessFile header = new RandomAccessFile(temp, "rw");
+            try {
+                header.writeInt(MAGIC);
+                header.writeInt(VERSION);
+                header.writeInt(primitives.getNumPrimitives());
+                header.writeLong(header.length() - HEADER_SIZE);
+                header.writeInt((int) crc.getValue());
+            } finally {
+                header.close();
+            }
+            if (!temp.renameTo(file))
+                temp.delete();
+            else
+                UI.printDetailed(Module.ACCEL, "Saved acceleration structure to cache: %s", file.getName());
+        } catch (IOException e) {
+            UI.printWarning(Module.ACCEL, "Unable to write acceleration structure cache file \"%s\": %s", file.getName(), e.getMessage());
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e1) {
+                }
+            }
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    /**
+     * Computes the CRC32 checksum of everything after the header.
+     */
+    private static int checksum(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[1 << 16];
+        ByteBuffer buf = data.duplicate();
+        buf.position(HEADER_SIZE);
+        while (buf.hasRemaining()) {
+            int n = Math.min(chunk.length, buf.remaining());
+            buf.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Write an array in the format expected by {@link #readIntArray(IntBuffer)}.
+     */
+    public static void writeArray(DataOutputStream out, int[] array) throws IOException {
+        out.writeInt(array.length);
+        for (int i = 0; i < array.length; i++)
+            out.writeInt(array[i]);
+    }
+
+    /**
+     * Write an array in the format expected by
+     * {@link #readFloatArray(IntBuffer)}.
+     */
+    public static void writeArray(DataOutputStream out, float[] array) throws IOException {
+        out.writeInt(array.length);
+        for (int i = 0; i < array.length; i++)
+            out.writeFloat(array[i]);
+    }
+
+    public static int[] readIntArray(IntBuffer in) {
+        int n = in.get();
+        if (n < 0 || n > in.remaining())
+            throw new IllegalStateException("invalid array length");
+        int[] array = new int[n];
+        in.get(array);
+        return array;
+    }
+
+    public static float[] readFloatArray(IntBuffer in) {
+        int n = in.get();
+        if (n < 0 || n > in.remaining())
+            throw new IllegalStateException("invalid array length");
+        float[] array = new float[n];
+        for (int i = 0; i < n; i++)
+            array[i] = Float.intBitsToFloat(in.get());
+        return array;
+    }
+}
\ No newline at end of file
@@ -16,4 +16,17 @@ public interface AccelerationStructure {
      * @param istate state to store the intersection into
      */
     public void intersect(Ray r, IntersectionState istate);
+
+    /**
+     * Checks if the specified ray is blocked by any of the geometry in local
+     * space. Traversal stops as soon as an intersection is found, so the
+     * recorded hit is not necessarily the closest one. This is meant for
+     * shadow rays where only occlusion matters.
+     * 
+     * @param r ray in local space
+     * @param istate state to store the intersection into
+     * @return <code>true</code> if the ray is blocked, <code>false</code>
+     *         otherwise
+     */
+    public boolean intersectShadow(Ray r, IntersectionState istate);
 }
\ No newline at end of file
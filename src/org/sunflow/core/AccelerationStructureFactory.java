@@ -18,7 +18,7 @@ class AccelerationStructureFactory {
                     name = "null";
             } else {
                 if (n > 2)
-                    name = "bih";
+                    name = "bvh";
                 else
                     name = "null";
             }
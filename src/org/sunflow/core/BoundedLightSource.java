@@ -0,0 +1,17 @@
+package org.sunflow.core;
+
+import org.sunflow.math.BoundingBox;
+
+/**
+ * A light source whose emission is confined to a finite region of space.
+ * Bounded lights can be organized in a {@link LightTree} so that only a few
+ * of them need to be sampled at each shading point.
+ */
+public interface BoundedLightSource extends LightSource {
+    /**
+     * Get the world space bounds of the emitting region of this light.
+     * 
+     * @return light bounds
+     */
+    public BoundingBox getBounds();
+}
\ No newline at end of file
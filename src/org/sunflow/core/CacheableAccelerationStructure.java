@@ -0,0 +1,31 @@
+package org.sunflow.core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+/**
+ * An acceleration structure whose built state can be stored on disk by the
+ * {@link AccelerationCache}. Since the structures only depend on the bounds of
+ * the primitives, a saved structure can be reused by any primitive list with
+ * identical primitive bounds.
+ */
+public interface CacheableAccelerationStructure extends AccelerationStructure {
+    /**
+     * Write the internal arrays of a built structure to the specified stream.
+     * 
+     * @param out stream to write to
+     * @throws IOException if the data could not be written
+     */
+    public void save(DataOutputStream out) throws IOException;
+
+    /**
+     * Restore the structure from data written by
+     * {@link #save(DataOutputStream)}. This replaces the call to
+     * {@link #build(PrimitiveList)}.
+     * 
+     * @param primitives primitive list the structure was built for
+     * @param in buffer positioned at the start of the saved data
+     */
+    public void load(PrimitiveList primitives, IntBuffer in);
+}
\ No newline at end of file
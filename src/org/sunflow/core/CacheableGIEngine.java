@@ -0,0 +1,15 @@
+package org.sunflow.core;
+
+/**
+ * A GI engine which keeps what it computed during a render for later frames or
+ * runs, for example in a file. The engine is told when the image is done so
+ * it can store the results gathered by the final render, and not only those
+ * computed in {@link #init(Options, Scene)}.
+ */
+public interface CacheableGIEngine extends GIEngine {
+    /**
+     * Called once the image has been rendered, including when the render was
+     * canceled.
+     */
+    public void renderEnd();
+}
\ No newline at end of file
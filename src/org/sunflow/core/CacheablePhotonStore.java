@@ -0,0 +1,33 @@
+package org.sunflow.core;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A photon map whose initialized state can be stored on disk by the
+ * {@link PhotonMapCache}. This lets scenes with static lights and geometry
+ * skip photon tracing on every frame or run after the first one.
+ */
+public interface CacheablePhotonStore extends PhotonStore {
+    /**
+     * Write the arrays of an initialized map to the specified stream. This is
+     * only called after {@link #init()}.
+     * 
+     * @param out stream to write to
+     * @throws IOException if the data could not be written
+     */
+    public void save(DataOutputStream out) throws IOException;
+
+    /**
+     * Restore the map from data written by {@link #save(DataOutputStream)}.
+     * This replaces storing the photons and the call to {@link #init()}. The
+     * map has already been prepared with the current options.
+     * 
+     * @param in buffer positioned at the start of the saved data
+     * @return <code>true</code> if the map was restored, <code>false</code>
+     *         if the data was saved with settings that do not match the
+     *         current ones
+     */
+    public boolean load(ByteBuffer in);
+}
\ No newline at end of file
@@ -4,6 +4,7 @@ import org.sunflow.SunflowAPI;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.MovingMatrix4;
 import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
@@ -79,10 +80,31 @@ public class Camera implements RenderObject {
      * @return a ray passing through the specified pixel, or <code>null</code>
      */
     public Ray getRay(float x, float y, int imageWidth, int imageHeight, double lensX, double lensY, float time) {
+        return getRay(x, y, imageWidth, imageHeight, lensX, lensY, time, 1);
+    }
+
+    /**
+     * Generate a ray passing though the specified point on the image plane, see
+     * {@link #getRay(float, float, int, int, double, double, float)}. The ray
+     * differentials describe a step of <code>spacing</code> pixels, the
+     * distance between neighboring samples. They are computed the first time
+     * they are asked for, from the rays through the neighboring samples.
+     * 
+     * @param spacing distance between image samples in pixels
+     * @return a ray passing through the specified pixel, or <code>null</code>
+     */
+    Ray getRay(float x, float y, int imageWidth, int imageHeight, double lensX, double lensY, float time, float spacing) {
+        Ray r = getRay(x, y, imageWidth, imageHeight, lensX, lensY, time, c2w.sample(time));
+        if (r != null)
+            r.setCameraSample(new Sample(x, y, imageWidth, imageHeight, lensX, lensY, time, spacing));
+        return r;
+    }
+
+    private Ray getRay(float x, float y, int imageWidth, int imageHeight, double lensX, double lensY, float time, Matrix4 m) {
         Ray r = lens.getRay(x, y, imageWidth, imageHeight, lensX, lensY, time);
         if (r != null) {
             // transform from camera space to world space
-            r = r.transform(c2w.sample(time));
+            r = r.transform(m);
             // renormalize to account for scale factors embeded in the transform
             r.normalize();
         }
@@ -117,4 +139,42 @@ public class Camera implements RenderObject {
     Matrix4 getWorldToCamera(float time) {
         return w2c == null ? Matrix4.IDENTITY : w2c.sample(time);
     }
+
+    /**
+     * The image plane sample an eye ray was generated from. Most eye rays never
+     * need differentials, so they are only computed from this sample when a
+     * texture lookup or a specular bounce asks for them.
+     */
+    final class Sample {
+        private final float x, y;
+        private final int imageWidth, imageHeight;
+        private final double lensX, lensY;
+        private final float time;
+        private final float spacing;
+
+        private Sample(float x, float y, int imageWidth, int imageHeight, double lensX, double lensY, float time, float spacing) {
+            this.x = x;
+            this.y = y;
+            this.imageWidth = imageWidth;
+            this.imageHeight = imageHeight;
+            this.lensX = lensX;
+            this.lensY = lensY;
+            this.time = time;
+            this.spacing = spacing;
+        }
+
+        /**
+         * Sets the differentials of the specified eye ray from the rays through
+         * the neighboring samples, using the same lens and time samples.
+         * 
+         * @param r ray generated from this sample
+         */
+        void setDifferentials(Ray r) {
+            Matrix4 m = c2w.sample(time);
+            Ray rx = getRay(x + spacing, y, imageWidth, imageHeight, lensX, lensY, time, m);
+            Ray ry = getRay(x, y + spacing, imageWidth, imageHeight, lensX, lensY, time, m);
+            if (rx != null && ry != null)
+                r.setDifferentials(new Vector3(rx.ox - r.ox, rx.oy - r.oy, rx.oz - r.oz), new Vector3(rx.dx - r.dx, rx.dy - r.dy, rx.dz - r.dz), new Vector3(ry.ox - r.ox, ry.oy - r.oy, ry.oz - r.oz), new Vector3(ry.dx - r.dx, ry.dy - r.dy, ry.dz - r.dz));
+        }
+    }
 }
\ No newline at end of file
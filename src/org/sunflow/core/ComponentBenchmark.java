@@ -0,0 +1,476 @@
+package org.sunflow.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.sunflow.core.photonmap.GlobalPhotonMap;
+import org.sunflow.core.photonmap.GridPhotonMap;
+import org.sunflow.core.primitive.TriangleMesh;
+import org.sunflow.image.Color;
+import org.sunflow.image.writers.PNGBitmapWriter;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Matrix4;
+import org.sunflow.math.Point3;
+import org.sunflow.math.QMC;
+import org.sunflow.math.Vector3;
+import org.sunflow.system.BenchmarkFramework;
+import org.sunflow.system.BenchmarkTest;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Measures the hot paths of the renderer one component at a time, so that a
+ * slowdown can be traced back to the code which caused it. Every component
+ * works on the same generated scene: a bumpy sphere tesselated into a triangle
+ * mesh, shot at by rays from all around. Each component is run a few times
+ * before it is timed to let the JIT compiler settle. The components to run can
+ * be listed on the command line, all of them are run by default. The
+ * checksums printed with the results should not change unless the output of a
+ * component changes.
+ */
+public class ComponentBenchmark {
+    private static final int NUM_RAYS = 1 << 18;
+    private static final int NUM_CHECK_RAYS = 1 << 12;
+    private static final int TRIANGLES_PER_RAY = 16;
+    private static final int NUM_HALTON = 1 << 22;
+    private static final int NUM_LOOKUPS = 1 << 21;
+    private static final int TEXTURE_SIZE = 1024;
+    private static final int NUM_PHOTONS = 1 << 18;
+    private static final int NUM_GATHERS = 1 << 16;
+    private static final int NUM_COLORS = 1 << 22;
+
+    private final TriangleMesh mesh;
+    private final Instance instance;
+    private final int numTriangles;
+
+    public static void main(String[] args) {
+        int size = 256;
+        ArrayList<String> names = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-size") && i + 1 < args.length)
+                size = Integer.parseInt(args[++i]);
+            else
+                names.add(args[i]);
+        }
+        ComponentBenchmark benchmark = new ComponentBenchmark(size);
+        ArrayList<ComponentKernel> kernels = new ArrayList<ComponentKernel>();
+        if (names.isEmpty()) {
+            for (String name : getComponentNames())
+                kernels.add(benchmark.createKernel(name));
+        } else {
+            for (String name : names) {
+                ComponentKernel kernel = benchmark.createKernel(name);
+                if (kernel == null) {
+                    UI.printError(Module.BENCH, "Unknown component \"%s\"", name);
+                    UI.printInfo(Module.BENCH, "Valid components are:");
+                    for (String n : getComponentNames())
+                        UI.printInfo(Module.BENCH, "  * %s", n);
+                    System.exit(1);
+                }
+                kernels.add(kernel);
+            }
+        }
+        BenchmarkFramework framework = new BenchmarkFramework(3, 10, 60);
+        double[] rates = new double[kernels.size()];
+        for (int i = 0; i < kernels.size(); i++) {
+            ComponentKernel kernel = kernels.get(i);
+            UI.printInfo(Module.BENCH, "Component: %s", kernel.name);
+            framework.execute(kernel);
+            rates[i] = kernel.ops / framework.getAverage();
+        }
+        UI.printInfo(Module.BENCH, "Component results:");
+        for (int i = 0; i < kernels.size(); i++) {
+            ComponentKernel kernel = kernels.get(i);
+            UI.printInfo(Module.BENCH, "  * %-17s %12.0f %-13s (checksum %d)", kernel.name, rates[i], kernel.unit + "/sec", kernel.checksum);
+        }
+    }
+
+    private static String[] getComponentNames() {
+        return new String[] { "triangle", "kdtree-build",
+                "bih-build", "uniformgrid-build", "kdtree", "bih",
+                "uniformgrid", "halton", "texture", "texture-mip",
+                "photon-global", "photon-grid", "color" };
+    }
+
+    private ComponentBenchmark(int size) {
+        UI.printInfo(Module.BENCH, "Component benchmark");
+        mesh = createMesh(size, size / 2);
+        instance = Instance.createTemporary(mesh, (Matrix4) null, null);
+        numTriangles = mesh.getNumPrimitives();
+        UI.printInfo(Module.BENCH, "  * Triangles: %d", numTriangles);
+    }
+
+    private ComponentKernel createKernel(String name) {
+        if (name.equals("triangle"))
+            return new TriangleKernel();
+        if (name.endsWith("-build"))
+            return new BuildKernel(name.substring(0, name.length() - 6));
+        if (name.equals("kdtree") || name.equals("bih") || name.equals("uniformgrid"))
+            return new TraversalKernel(name);
+        if (name.equals("halton"))
+            return new HaltonKernel();
+        if (name.equals("texture"))
+            return new TextureKernel(false);
+        if (name.equals("texture-mip"))
+            return new TextureKernel(true);
+        if (name.equals("photon-global"))
+            return new PhotonKernel(name, new GlobalPhotonMap());
+        if (name.equals("photon-grid"))
+            return new PhotonKernel(name, new GridPhotonMap());
+        if (name.equals("color"))
+            return new ColorKernel();
+        return null;
+    }
+
+    /**
+     * Creates a unit sphere with bumps on it, with uv coordinates. The sphere
+     * is split into the specified number of segments around and from pole to
+     * pole, which gives twice as many triangles.
+     */
+    private static TriangleMesh createMesh(int nu, int nv) {
+        float[] points = new float[3 * (nu + 1) * (nv + 1)];
+        float[] uvs = new float[2 * (nu + 1) * (nv + 1)];
+        for (int v = 0, i = 0; v <= nv; v++) {
+            double theta = Math.PI * v / nv;
+            for (int u = 0; u <= nu; u++, i++) {
+                double phi = 2 * Math.PI * u / nu;
+                double r = 1 + 0.1 * Math.sin(8 * phi) * Math.sin(8 * theta);
+                points[3 * i + 0] = (float) (r * Math.sin(theta) * Math.cos(phi));
+                points[3 * i + 1] = (float) (r * Math.sin(theta) * Math.sin(phi));
+                points[3 * i + 2] = (float) (r * Math.cos(theta));
+                uvs[2 * i + 0] = (float) u / nu;
+                uvs[2 * i + 1] = (float) v / nv;
+            }
+        }
+        int[] triangles = new int[6 * nu * nv];
+        for (int v = 0, i = 0; v < nv; v++) {
+            for (int u = 0; u < nu; u++, i += 6) {
+                int v00 = v * (nu + 1) + u;
+                int v10 = v00 + 1;
+                int v01 = v00 + nu + 1;
+                int v11 = v01 + 1;
+                triangles[i + 0] = v00;
+                triangles[i + 1] = v01;
+                triangles[i + 2] = v10;
+                triangles[i + 3] = v10;
+                triangles[i + 4] = v01;
+                triangles[i + 5] = v11;
+            }
+        }
+        ParameterList pl = new ParameterList();
+        pl.addIntegerArray("triangles", triangles);
+        pl.addPoints("points", ParameterList.InterpolationType.VERTEX, points);
+        pl.addTexCoords("uvs", ParameterList.InterpolationType.VERTEX, uvs);
+        TriangleMesh mesh = new TriangleMesh();
+        mesh.update(pl, null);
+        return mesh;
+    }
+
+    /**
+     * Creates rays starting outside the sphere, aimed at points scattered
+     * around its center. The dimensions of the sequence used are offset by
+     * the specified amount so different sets of rays can be created.
+     */
+    private static Ray[] createRays(int n, int d) {
+        Ray[] rays = new Ray[n];
+        for (int i = 0; i < n; i++) {
+            double z = 1 - 2 * QMC.halton(d + 0, i);
+            double phi = 2 * Math.PI * QMC.halton(d + 1, i);
+            double s = Math.sqrt(1 - z * z);
+            float ox = (float) (3 * s * Math.cos(phi));
+            float oy = (float) (3 * s * Math.sin(phi));
+            float oz = (float) (3 * z);
+            float tx = (float) (QMC.halton(d + 2, i) - 0.5);
+            float ty = (float) (QMC.halton(d + 3, i) - 0.5);
+            float tz = (float) (QMC.halton(d + 4, i) - 0.5);
+            rays[i] = new Ray(ox, oy, oz, tx - ox, ty - oy, tz - oz);
+        }
+        return rays;
+    }
+
+    /**
+     * Traces a ray against the specified acceleration structure built over the
+     * mesh and returns <code>true</code> if it hit anything.
+     */
+    private boolean trace(AccelerationStructure accel, Ray r, IntersectionState state) {
+        state.instance = null;
+        state.current = instance;
+        accel.intersect(r, state);
+        return state.hit();
+    }
+
+    private AccelerationStructure build(String name) {
+        AccelerationStructure accel = AccelerationStructureFactory.create(name, numTriangles, true);
+        accel.build(mesh);
+        return accel;
+    }
+
+    private static abstract class ComponentKernel implements BenchmarkTest {
+        final String name;
+        final String unit;
+        final long ops;
+        long checksum;
+
+        ComponentKernel(String name, String unit, long ops) {
+            this.name = name;
+            this.unit = unit;
+            this.ops = ops;
+        }
+
+        public void kernelBegin() {
+        }
+
+        public void kernelEnd() {
+        }
+    }
+
+    private final class TriangleKernel extends ComponentKernel {
+        private Ray[] rays;
+        private final IntersectionState state = new IntersectionState();
+
+        TriangleKernel() {
+            super("triangle", "tests", (long) NUM_RAYS * TRIANGLES_PER_RAY);
+        }
+
+        @Override
+        public void kernelBegin() {
+            rays = createRays(NUM_RAYS, 0);
+        }
+
+        public void kernelMain() {
+            long hits = 0;
+            for (int i = 0; i < NUM_RAYS; i++) {
+                // test each ray against a small patch of triangles
+                int first = (int) ((long) i * 7919 % numTriangles);
+                state.instance = null;
+                state.current = instance;
+                for (int j = 0; j < TRIANGLES_PER_RAY; j++)
+                    mesh.intersectPrimitive(rays[i], (first + j) % numTriangles, state);
+                if (state.hit())
+                    hits++;
+            }
+            checksum = hits;
+        }
+    }
+
+    /**
+     * Times the build of an acceleration structure. The checksum is taken
+     * from a fixed set of rays traced through the result after the timer has
+     * stopped, so it matches for all structures which find the same hits.
+     */
+    private final class BuildKernel extends ComponentKernel {
+        private final String accelName;
+        private final IntersectionState state = new IntersectionState();
+        private AccelerationStructure accel;
+
+        BuildKernel(String accelName) {
+            super(accelName + "-build", "triangles", numTriangles);
+            this.accelName = accelName;
+        }
+
+        public void kernelMain() {
+            accel = build(accelName);
+        }
+
+        @Override
+        public void kernelEnd() {
+            Ray[] rays = createRays(NUM_CHECK_RAYS, 0);
+            long hits = 0;
+            for (int i = 0; i < NUM_CHECK_RAYS; i++)
+                if (trace(accel, rays[i], state))
+                    hits += state.id;
+            checksum = hits;
+            accel = null;
+        }
+    }
+
+    private final class TraversalKernel extends ComponentKernel {
+        private final AccelerationStructure accel;
+        private Ray[] rays;
+        private final IntersectionState state = new IntersectionState();
+
+        TraversalKernel(String accelName) {
+            super(accelName, "rays", NUM_RAYS);
+            accel = build(accelName);
+        }
+
+        @Override
+        public void kernelBegin() {
+            rays = createRays(NUM_RAYS, 0);
+        }
+
+        public void kernelMain() {
+            long hits = 0;
+            for (int i = 0; i < NUM_RAYS; i++)
+                if (trace(accel, rays[i], state))
+                    hits += state.id;
+            checksum = hits;
+        }
+    }
+
+    private static final class HaltonKernel extends ComponentKernel {
+        HaltonKernel() {
+            super("halton", "samples", NUM_HALTON);
+        }
+
+        public void kernelMain() {
+            double sum = 0;
+            for (int i = 0; i < NUM_HALTON / 8; i++)
+                for (int d = 0; d < 8; d++)
+                    sum += QMC.halton(d, i);
+            checksum = (long) sum;
+        }
+    }
+
+    private static final class TextureKernel extends ComponentKernel {
+        private final Texture texture;
+        private final boolean mip;
+
+        TextureKernel(boolean mip) {
+            super(mip ? "texture-mip" : "texture", "lookups", NUM_LOOKUPS);
+            this.mip = mip;
+            texture = new Texture(createTexture(), false);
+        }
+
+        /**
+         * Writes a checkerboard with some color noise to a temporary file, so
+         * the texture goes through the regular loading and tiling path.
+         */
+        private static String createTexture() {
+            try {
+                File file = File.createTempFile("sunflow_bench", ".png");
+                file.deleteOnExit();
+                PNGBitmapWriter writer = new PNGBitmapWriter();
+                writer.openFile(file.getAbsolutePath());
+                writer.writeHeader(TEXTURE_SIZE, TEXTURE_SIZE, 0);
+                Color[] row = new Color[TEXTURE_SIZE];
+                float[] alpha = new float[TEXTURE_SIZE];
+                for (int y = 0; y < TEXTURE_SIZE; y++) {
+                    for (int x = 0; x < TEXTURE_SIZE; x++) {
+                        float c = ((x >> 5) + (y >> 5)) % 2 == 0 ? 0.8f : 0.2f;
+                        float n = (float) QMC.halton(0, x + y * TEXTURE_SIZE) * 0.2f;
+                        row[x] = new Color(c + n, c, c - n);
+                        alpha[x] = 1;
+                    }
+                    writer.writeTile(0, y, TEXTURE_SIZE, 1, row, alpha);
+                }
+                writer.closeFile();
+                return file.getAbsolutePath();
+            } catch (IOException e) {
+                UI.printError(Module.BENCH, "Unable to write benchmark texture: %s", e.getMessage());
+                return null;
+            }
+        }
+
+        public void kernelMain() {
+            Color sum = new Color();
+            for (int i = 0; i < NUM_LOOKUPS; i++) {
+                float u = (float) QMC.halton(0, i);
+                float v = (float) QMC.halton(1, i);
+                if (mip)
+                    sum.add(texture.getPixel(u, v, (i & 15) * 0.5f));
+                else
+                    sum.add(texture.getPixel(u, v));
+            }
+            checksum = (long) sum.getLuminance();
+        }
+    }
+
+    private final class PhotonKernel extends ComponentKernel {
+        private final GlobalPhotonMapInterface map;
+        private final Point3[] points;
+        private final Vector3[] normals;
+
+        PhotonKernel(String name, GlobalPhotonMapInterface map) {
+            super(name, "gathers", NUM_GATHERS);
+            this.map = map;
+            Options options = new Options();
+            options.addInteger("gi.irr-cache.gmap.emit", NUM_PHOTONS);
+            options.addInteger("gi.irr-cache.gmap.gather", 50);
+            options.addFloat("gi.irr-cache.gmap.radius", 0.1f);
+            BoundingBox bounds = mesh.getWorldBounds(null);
+            map.prepare(options, bounds);
+            // store photons where rays hit the sphere, with a varying color
+            AccelerationStructure accel = build("kdtree");
+            IntersectionState state = new IntersectionState();
+            Ray[] rays = createRays(NUM_PHOTONS, 5);
+            Color power = new Color();
+            Color diffuse = new Color(0.7f);
+            for (int i = 0; i < NUM_PHOTONS; i++) {
+                if (!trace(accel, rays[i], state))
+                    continue;
+                ShadingState s = ShadingState.createPhotonState(rays[i], state, i, map, null);
+                instance.prepareShadingState(s);
+                float k = (float) QMC.halton(10, i);
+                power.set(k, 0.5f, 1 - k).mul(1.0f / NUM_PHOTONS);
+                map.store(s, rays[i].getDirection(), power, diffuse);
+            }
+            map.init();
+            // look up the radiance at a different set of points
+            rays = createRays(NUM_GATHERS, 11);
+            points = new Point3[NUM_GATHERS];
+            normals = new Vector3[NUM_GATHERS];
+            for (int i = 0; i < NUM_GATHERS; i++) {
+                if (trace(accel, rays[i], state)) {
+                    ShadingState s = ShadingState.createPhotonState(rays[i], state, i, map, null);
+                    instance.prepareShadingState(s);
+                    points[i] = new Point3(s.getPoint());
+                    normals[i] = new Vector3(s.getNormal());
+                } else {
+                    // gather around the center of the sphere, which finds
+                    // nothing
+                    points[i] = new Point3();
+                    normals[i] = new Vector3(0, 0, 1);
+                }
+            }
+        }
+
+        public void kernelMain() {
+            Color sum = new Color();
+            for (int i = 0; i < NUM_GATHERS; i++)
+                sum.add(map.getRadiance(points[i], normals[i]));
+            checksum = (long) (sum.getLuminance() * NUM_GATHERS);
+        }
+    }
+
+    /**
+     * Runs the kind of color math done while shading: products, weighted sums,
+     * blends and the RGBE packing used by the photon maps.
+     */
+    private static final class ColorKernel extends ComponentKernel {
+        private final Color[] colors;
+
+        ColorKernel() {
+            super("color", "ops", NUM_COLORS);
+            colors = new Color[1024];
+            for (int i = 0; i < colors.length; i++)
+                colors[i] = new Color((float) QMC.halton(0, i), (float) QMC.halton(1, i), (float) QMC.halton(2, i));
+        }
+
+        public void kernelMain() {
+            Color sum = new Color();
+            Color tmp = new Color();
+            int mask = colors.length - 1;
+            for (int i = 0; i < NUM_COLORS; i++) {
+                Color a = colors[i & mask];
+                Color b = colors[(i * 7) & mask];
+                switch (i & 3) {
+                    case 0:
+                        sum.add(Color.mul(a, b, tmp));
+                        break;
+                    case 1:
+                        sum.madd(0.25f, a);
+                        break;
+                    case 2:
+                        sum.add(Color.blend(a, b, 0.5f, tmp));
+                        break;
+                    default:
+                        sum.add(tmp.setRGBE(a.toRGBE()));
+                        break;
+                }
+            }
+            checksum = (long) sum.getLuminance();
+        }
+    }
+}
\ No newline at end of file
@@ -93,6 +93,14 @@ public class Geometry implements RenderObject {
         accel.intersect(r, state);
     }
 
+    boolean intersectShadow(Ray r, IntersectionState state) {
+        if (builtTess == 0)
+            tesselate();
+        if (builtAccel == 0)
+            build();
+        return accel.intersectShadow(r, state);
+    }
+
     private synchronized void tesselate() {
         // double check flag
         if (builtTess != 0)
@@ -117,7 +125,12 @@ public class Geometry implements RenderObject {
             if (n >= 1000)
                 UI.printInfo(Module.GEOM, "Building acceleration structure for %d primitives ...", n);
             accel = AccelerationStructureFactory.create(acceltype, n, true);
-            accel.build(primitives);
+            String key = AccelerationCache.getKey(accel, primitives);
+            if (key == null || !AccelerationCache.load(key, accel, primitives)) {
+                accel.build(primitives);
+                if (key != null)
+                    AccelerationCache.save(key, accel, primitives);
+            }
         } else {
             // create an empty accelerator to avoid having to check for null
             // pointers in the intersect method
@@ -30,8 +30,12 @@ public class Instance implements RenderObject {
     }
 
     public static Instance createTemporary(PrimitiveList primitives, Matrix4 transform, Shader shader) {
+        return createTemporary(primitives, new MovingMatrix4(transform), shader);
+    }
+
+    static Instance createTemporary(PrimitiveList primitives, MovingMatrix4 transform, Shader shader) {
         Instance i = new Instance();
-        i.o2w = new MovingMatrix4(transform);
+        i.o2w = transform;
         i.w2o = i.o2w.inverse();
         if (i.w2o == null) {
             UI.printError(Module.GEOM, "Unable to compute transform inverse");
@@ -111,13 +115,19 @@ public class Instance implements RenderObject {
      * Remove the specified shader from the instance's list if it is being used.
      * 
      * @param s shader to remove
+     * @return <code>true</code> if the shader was used by this instance
      */
-    public void removeShader(Shader s) {
+    public boolean removeShader(Shader s) {
+        boolean removed = false;
         if (shaders != null) {
-            for (int i = 0; i < shaders.length; i++)
-                if (shaders[i] == s)
+            for (int i = 0; i < shaders.length; i++) {
+                if (shaders[i] == s) {
                     shaders[i] = null;
+                    removed = true;
+                }
+            }
         }
+        return removed;
     }
 
     /**
@@ -125,13 +135,19 @@ public class Instance implements RenderObject {
      * used.
      * 
      * @param m modifier to remove
+     * @return <code>true</code> if the modifier was used by this instance
      */
-    public void removeModifier(Modifier m) {
+    public boolean removeModifier(Modifier m) {
+        boolean removed = false;
         if (modifiers != null) {
-            for (int i = 0; i < modifiers.length; i++)
-                if (modifiers[i] == m)
+            for (int i = 0; i < modifiers.length; i++) {
+                if (modifiers[i] == m) {
                     modifiers[i] = null;
+                    removed = true;
+                }
+            }
         }
+        return removed;
     }
 
     /**
@@ -148,13 +164,19 @@ public class Instance implements RenderObject {
     }
 
     void intersect(Ray r, IntersectionState state) {
-        Ray localRay = r.transform(w2o.sample(state.time));
+        Ray localRay = r.transform(state.sample(w2o), state.localRay);
         state.current = this;
         geometry.intersect(localRay, state);
         // FIXME: transfer max distance to current ray
         r.setMax(localRay.getMax());
     }
 
+    boolean intersectShadow(Ray r, IntersectionState state) {
+        Ray localRay = r.transform(state.sample(w2o), state.localRay);
+        state.current = this;
+        return geometry.intersectShadow(localRay, state);
+    }
+
     /**
      * Prepare the shading state for shader invocation. This also runs the
      * currently attached surface modifier.
@@ -4,7 +4,7 @@ import org.sunflow.SunflowAPI;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Matrix4;
 
-final class InstanceList implements PrimitiveList {
+final class InstanceList implements ShadowPrimitiveList {
     private Instance[] instances;
     private Instance[] lights;
 
@@ -49,6 +49,13 @@ final class InstanceList implements PrimitiveList {
             lights[primID - instances.length].intersect(r, state);
     }
 
+    public final boolean intersectPrimitiveShadow(Ray r, int primID, IntersectionState state) {
+        if (primID < instances.length)
+            return instances[primID].intersectShadow(r, state);
+        else
+            return lights[primID - instances.length].intersectShadow(r, state);
+    }
+
     public final int getNumPrimitives() {
         return instances.length + lights.length;
     }
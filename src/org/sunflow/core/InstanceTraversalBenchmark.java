@@ -0,0 +1,120 @@
+package org.sunflow.core;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import org.sunflow.core.primitive.Sphere;
+import org.sunflow.math.Matrix4;
+import org.sunflow.math.MovingMatrix4;
+import org.sunflow.math.QMC;
+import org.sunflow.system.BenchmarkFramework;
+import org.sunflow.system.BenchmarkTest;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Measures ray traversal through a scene made of thousands of small instances,
+ * half of which are motion blurred, and reports the number of bytes allocated
+ * per ray on JVMs which can measure it. Rays are traced in groups sharing the
+ * same time, like the rays spawned by a single camera sample.
+ */
+public class InstanceTraversalBenchmark implements BenchmarkTest {
+    private static final int NUM_RAYS = 1 << 19;
+    private static final int RAYS_PER_TIME = 4;
+
+    private final int size;
+    private final AccelerationStructure accel;
+    private final Ray[] rays;
+    private final float[] times;
+    private final IntersectionState state;
+    private Timer timer;
+    private int hits;
+    private long bytes;
+
+    public static void main(String[] args) {
+        int size = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        InstanceTraversalBenchmark test = new InstanceTraversalBenchmark(size);
+        UI.printInfo(Module.BENCH, "Instance traversal benchmark");
+        UI.printInfo(Module.BENCH, "  * Instances: %d (%d moving)", 4 * size * size, 2 * size * size);
+        UI.printInfo(Module.BENCH, "  * Rays:      %d per iteration", NUM_RAYS);
+        new BenchmarkFramework(10, 60).execute(test);
+    }
+
+    private InstanceTraversalBenchmark(int size) {
+        this.size = size;
+        // a grid of spheres in 4 layers, every other one moving along x
+        Sphere sphere = new Sphere();
+        Instance[] instances = new Instance[4 * size * size];
+        for (int z = 0, i = 0; z < 4; z++) {
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++, i++) {
+                    Matrix4 m = Matrix4.translation(x, y, -2 * z).multiply(Matrix4.scale(0.4f));
+                    MovingMatrix4 o2w = new MovingMatrix4(m);
+                    if ((i & 1) != 0) {
+                        o2w.setSteps(2);
+                        o2w.updateData(0, m);
+                        o2w.updateData(1, Matrix4.translation(0.3f, 0, 0).multiply(m));
+                        o2w.updateTimes(0, 1);
+                    }
+                    instances[i] = Instance.createTemporary(sphere, o2w, null);
+                }
+            }
+        }
+        InstanceList list = new InstanceList(instances);
+        accel = AccelerationStructureFactory.create("auto", list.getNumPrimitives(), false);
+        accel.build(list);
+        rays = new Ray[NUM_RAYS];
+        times = new float[NUM_RAYS / RAYS_PER_TIME];
+        state = new IntersectionState();
+    }
+
+    public void kernelBegin() {
+        // rays from in front of the grid towards random points on its back
+        for (int i = 0; i < NUM_RAYS; i++) {
+            float ox = (float) QMC.halton(0, i) * size;
+            float oy = (float) QMC.halton(1, i) * size;
+            float tx = (float) QMC.halton(2, i) * size;
+            float ty = (float) QMC.halton(3, i) * size;
+            rays[i] = new Ray(ox, oy, 10, tx - ox, ty - oy, -20);
+        }
+        for (int i = 0; i < times.length; i++)
+            times[i] = (float) QMC.halton(4, i);
+        timer = new Timer();
+        timer.start();
+    }
+
+    public void kernelMain() {
+        long start = getAllocatedBytes();
+        int n = 0;
+        for (int i = 0; i < NUM_RAYS; i++) {
+            state.time = times[i / RAYS_PER_TIME];
+            state.instance = null;
+            state.current = null;
+            accel.intersect(rays[i], state);
+            if (state.hit())
+                n++;
+        }
+        hits = n;
+        bytes = getAllocatedBytes() - start;
+    }
+
+    public void kernelEnd() {
+        timer.end();
+        UI.printInfo(Module.BENCH, "  * Rays/sec:      %.0f", NUM_RAYS / timer.seconds());
+        UI.printInfo(Module.BENCH, "  * Hits:          %d", hits);
+        if (bytes >= 0)
+            UI.printInfo(Module.BENCH, "  * Bytes per ray: %.1f", (double) bytes / NUM_RAYS);
+    }
+
+    /**
+     * @return number of bytes allocated by the current thread so far, or
+     *         <code>-1</code> if the JVM does not track it
+     */
+    private static long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean)
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        return -1;
+    }
+}
\ No newline at end of file
@@ -1,5 +1,8 @@
 package org.sunflow.core;
 
+import org.sunflow.math.Matrix4;
+import org.sunflow.math.MovingMatrix4;
+
 /**
  * This class is used to store ray/object intersections. It also provides
  * additional data to assist {@link AccelerationStructure} objects with
@@ -7,18 +10,30 @@ package org.sunflow.core;
  */
 public final class IntersectionState {
     private static final int MAX_STACK_SIZE = 64;
+    private static final int MATRIX_CACHE_SIZE = 256;
     float time;
     float u, v, w;
     Instance instance;
     int id;
     private final StackNode[][] stacks = new StackNode[2][MAX_STACK_SIZE];
     Instance current;
+    // scratch ray for instance traversal, instances are never nested
+    final Ray localRay = new Ray();
+    // scratch probability for picking a light from the light tree
+    final float[] lightPdf = new float[1];
+    // matrices of moving transforms at recently used times
+    private final MovingMatrix4[] cachedTransforms = new MovingMatrix4[MATRIX_CACHE_SIZE];
+    private final float[] cachedTimes = new float[MATRIX_CACHE_SIZE];
+    private final Matrix4[] cachedMatrices = new Matrix4[MATRIX_CACHE_SIZE];
     long numEyeRays;
     long numShadowRays;
     long numReflectionRays;
     long numGlossyRays;
     long numRefractionRays;
     long numRays;
+    long numIrrCacheLookups;
+    long numIrrCacheHits;
+    long numIrrCacheRetries;
 
     /**
      * Traversal stack node, helps with tree-based {@link AccelerationStructure}
@@ -31,12 +46,14 @@ public final class IntersectionState {
     }
 
     /**
-     * Initializes all traversal stacks.
+     * Initializes all traversal stacks and the transform cache.
      */
     public IntersectionState() {
         for (int i = 0; i < stacks.length; i++)
             for (int j = 0; j < stacks[i].length; j++)
                 stacks[i][j] = new StackNode();
+        for (int i = 0; i < MATRIX_CACHE_SIZE; i++)
+            cachedMatrices[i] = new Matrix4(1, 0, 0, 0, 0, 1, 0, 0, 0, 0, 1, 0);
     }
 
     /**
@@ -50,6 +67,29 @@ public final class IntersectionState {
         return time;
     }
 
+    /**
+     * Gets the value of the specified transform at the current time for use
+     * during traversal. The blended matrices of moving transforms are cached
+     * in matrices owned by this object, so the instances a ray tree visits
+     * over and over only blend their matrices once and never allocate. The
+     * returned matrix may be overwritten by the next call and must not be
+     * kept.
+     * 
+     * @param m transform to sample
+     * @return matrix at the current time
+     */
+    final Matrix4 sample(MovingMatrix4 m) {
+        if (m.numSegments() == 1)
+            return m.sample(time);
+        int h = (System.identityHashCode(m) ^ Float.floatToIntBits(time)) & (MATRIX_CACHE_SIZE - 1);
+        if (cachedTransforms[h] != m || cachedTimes[h] != time) {
+            cachedTransforms[h] = m;
+            cachedTimes[h] = time;
+            m.sample(time, cachedMatrices[h]);
+        }
+        return cachedMatrices[h];
+    }
+
     /**
      * Get stack object for tree based {@link AccelerationStructure}s.
      * 
@@ -90,6 +90,16 @@ public class LightSample {
         lspec = s.copy();
     }
 
+    /**
+     * Scale the diffuse and specular radiance of this sample.
+     * 
+     * @param s scale factor
+     */
+    final void scale(float s) {
+        ldiff.mul(s);
+        lspec.mul(s);
+    }
+
     /**
      * Compute a dot product between the current shadow ray direction and the
      * specified vector.
@@ -1,5 +1,7 @@
 package org.sunflow.core;
 
+import java.util.ArrayList;
+
 import org.sunflow.PluginRegistry;
 import org.sunflow.image.Color;
 import org.sunflow.math.Point3;
@@ -16,9 +18,15 @@ class LightServer {
     // lighting
     LightSource[] lights;
 
+    // light selection
+    private int lightSelect;
+    private LightTree lightTree;
+    private LightSource[] unboundedLights;
+
     // shading override
     private Shader shaderOverride;
     private boolean shaderOverridePhotons;
+    private String parameterDigest;
 
     // direct illumination
     private int maxDiffuseDepth;
@@ -37,11 +45,16 @@ class LightServer {
 
         shaderOverride = null;
         shaderOverridePhotons = false;
+        parameterDigest = null;
 
         maxDiffuseDepth = 1;
         maxReflectionDepth = 4;
         maxRefractionDepth = 4;
 
+        lightSelect = 0;
+        lightTree = null;
+        unboundedLights = null;
+
         causticPhotonMap = null;
         giEngine = null;
     }
@@ -59,11 +72,16 @@ class LightServer {
         shaderOverridePhotons = photonOverride;
     }
 
+    void setParameterDigest(String digest) {
+        parameterDigest = digest;
+    }
+
     boolean build(Options options) {
         // read options
         maxDiffuseDepth = options.getInt("depths.diffuse", maxDiffuseDepth);
         maxReflectionDepth = options.getInt("depths.reflection", maxReflectionDepth);
         maxRefractionDepth = options.getInt("depths.refraction", maxRefractionDepth);
+        lightSelect = options.getInt("lights.select", 0);
         String giEngineType = options.getString("gi.engine", null);
         giEngine = PluginRegistry.giEnginePlugins.createObject(giEngineType);
         String caustics = options.getString("caustics", null);
@@ -73,6 +91,7 @@ class LightServer {
         maxDiffuseDepth = Math.max(0, maxDiffuseDepth);
         maxReflectionDepth = Math.max(0, maxReflectionDepth);
         maxRefractionDepth = Math.max(0, maxRefractionDepth);
+        lightSelect = Math.max(0, lightSelect);
 
         Timer t = new Timer();
         t.start();
@@ -80,18 +99,24 @@ class LightServer {
         int numLightSamples = 0;
         for (int i = 0; i < lights.length; i++)
             numLightSamples += lights[i].getNumSamples();
+        buildLightTree();
+        // caustics are traced first so the gi engine may already shade the
+        // scene during its own initialization
+        if (!calculatePhotons(causticPhotonMap, "caustic", 0, options))
+            return false;
         // initialize gi engine
         if (giEngine != null) {
             if (!giEngine.init(options, scene))
                 return false;
         }
-
-        if (!calculatePhotons(causticPhotonMap, "caustic", 0, options))
-            return false;
         t.end();
         UI.printInfo(Module.LIGHT, "Light Server stats:");
         UI.printInfo(Module.LIGHT, "  * Light sources found: %d", lights.length);
         UI.printInfo(Module.LIGHT, "  * Light samples:       %d", numLightSamples);
+        if (lightTree != null)
+            UI.printInfo(Module.LIGHT, "  * Light selection:     %d of %d lights", lightSelect, lightTree.getNumLights());
+        else
+            UI.printInfo(Module.LIGHT, "  * Light selection:     off");
         UI.printInfo(Module.LIGHT, "  * Max raytrace depth:");
         UI.printInfo(Module.LIGHT, "      - Diffuse          %d", maxDiffuseDepth);
         UI.printInfo(Module.LIGHT, "      - Reflection       %d", maxReflectionDepth);
@@ -107,6 +132,38 @@ class LightServer {
     void showStats() {
     }
 
+    /**
+     * Let the GI engine store what it computed once the image is done.
+     */
+    void renderEnd() {
+        if (giEngine instanceof CacheableGIEngine)
+            ((CacheableGIEngine) giEngine).renderEnd();
+    }
+
+    /**
+     * Organize the bounded lights in a tree if there are more of them than the
+     * number of lights to pick per shading point. Lights without bounds or
+     * power are always sampled.
+     */
+    private void buildLightTree() {
+        lightTree = null;
+        unboundedLights = null;
+        if (lightSelect <= 0)
+            return;
+        ArrayList<BoundedLightSource> bounded = new ArrayList<BoundedLightSource>();
+        ArrayList<LightSource> unbounded = new ArrayList<LightSource>();
+        for (LightSource l : lights) {
+            if (l instanceof BoundedLightSource && l.getPower() > 0)
+                bounded.add((BoundedLightSource) l);
+            else
+                unbounded.add(l);
+        }
+        if (bounded.size() <= lightSelect)
+            return;
+        lightTree = new LightTree(bounded.toArray(new BoundedLightSource[bounded.size()]));
+        unboundedLights = unbounded.toArray(new LightSource[unbounded.size()]);
+    }
+
     boolean calculatePhotons(final PhotonStore map, String type, final int seed, Options options) {
         if (map == null)
             return true;
@@ -118,13 +175,19 @@ class LightServer {
         histogram[0] = lights[0].getPower();
         for (int i = 1; i < lights.length; i++)
             histogram[i] = histogram[i - 1] + lights[i].getPower();
-        UI.printInfo(Module.LIGHT, "Tracing %s photons ...", type);
         map.prepare(options, scene.getBounds());
         int numEmittedPhotons = map.numEmit();
         if (numEmittedPhotons <= 0 || histogram[histogram.length - 1] <= 0) {
             UI.printError(Module.LIGHT, "Photon mapping enabled, but no %s photons to emit", type);
             return false;
         }
+        // photons only depend on the lights, geometry, shaders and trace
+        // settings, so a map traced by an earlier frame or run may be reused
+        String settings = String.format("%d %d %d %s %b %s", maxDiffuseDepth, maxReflectionDepth, maxRefractionDepth, shaderOverride == null ? null : shaderOverride.getClass().getName(), shaderOverridePhotons, parameterDigest);
+        String key = parameterDigest == null ? null : PhotonMapCache.getKey(map, type, seed, settings, lights, scene.getInstances());
+        if (key != null && PhotonMapCache.load(key, map, type))
+            return true;
+        UI.printInfo(Module.LIGHT, "Tracing %s photons ...", type);
         UI.taskStart("Tracing " + type + " photons", 0, numEmittedPhotons);
         Thread[] photonThreads = new Thread[scene.getThreads()];
         final float scale = 1.0f / numEmittedPhotons;
@@ -192,6 +255,8 @@ class LightServer {
         UI.taskStop();
         UI.printInfo(Module.LIGHT, "Tracing time for %s photons: %s", type, photonTimer.toString());
         map.init();
+        if (key != null)
+            PhotonMapCache.save(key, map);
         return true;
     }
 
@@ -349,8 +414,22 @@ class LightServer {
     }
 
     void initLightSamples(ShadingState state) {
-        for (LightSource l : lights)
+        if (lightTree == null) {
+            for (LightSource l : lights)
+                l.getSamples(state);
+            return;
+        }
+        for (LightSource l : unboundedLights)
+            l.getSamples(state);
+        // pick a few of the bounded lights and weight their samples by the
+        // inverse of the probability of picking them
+        float[] pdf = state.getIntersectionState().lightPdf;
+        for (int i = 0; i < lightSelect; i++) {
+            LightSource l = lightTree.sample(state.getPoint(), state.getRandom(i, 2, lightSelect), pdf);
+            LightSample last = state.getLightSamples();
             l.getSamples(state);
+            state.scaleLightSamples(last, 1 / (lightSelect * pdf[0]));
+        }
     }
 
     void initCausticSamples(ShadingState state) {
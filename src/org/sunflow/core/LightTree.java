@@ -0,0 +1,143 @@
+package org.sunflow.core;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Point3;
+
+/**
+ * Binary tree over a set of bounded light sources, used to pick lights in
+ * proportion to their estimated contribution to a shading point. Each node
+ * stores the total power and the bounds of the lights below it. The
+ * importance of a node is its power divided by the squared distance to its
+ * center, clamped to the size of the node so that nearby lights are never
+ * favored too strongly.
+ */
+final class LightTree {
+    private final LightSource[] lights;
+    private final int[] tree;
+    private final float[] boxes;
+    private final float[] power;
+    private final float[] radius2;
+    private int numNodes;
+
+    LightTree(BoundedLightSource[] sources) {
+        int n = sources.length;
+        lights = new LightSource[n];
+        tree = new int[2 * n - 1];
+        boxes = new float[6 * (2 * n - 1)];
+        power = new float[2 * n - 1];
+        radius2 = new float[2 * n - 1];
+        float[] bounds = new float[6 * n];
+        int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            BoundingBox b = sources[i].getBounds();
+            for (int j = 0; j < 6; j++)
+                bounds[6 * i + j] = b.getBound(j);
+            order[i] = i;
+        }
+        numNodes = 1;
+        buildNode(0, sources, bounds, order, 0, n);
+    }
+
+    /**
+     * Recursively build the node covering the specified range of lights. The
+     * lights are split at the median of the longest axis of their centers.
+     */
+    private void buildNode(int node, BoundedLightSource[] sources, float[] bounds, int[] order, int begin, int end) {
+        int b = 6 * node;
+        for (int i = 0; i < 6; i += 2) {
+            boxes[b + i] = Float.POSITIVE_INFINITY;
+            boxes[b + i + 1] = Float.NEGATIVE_INFINITY;
+        }
+        float p = 0;
+        for (int i = begin; i < end; i++) {
+            int l = order[i];
+            for (int j = 0; j < 6; j += 2) {
+                boxes[b + j] = Math.min(boxes[b + j], bounds[6 * l + j]);
+                boxes[b + j + 1] = Math.max(boxes[b + j + 1], bounds[6 * l + j + 1]);
+            }
+            p += sources[l].getPower();
+        }
+        power[node] = p;
+        float dx = boxes[b + 1] - boxes[b + 0];
+        float dy = boxes[b + 3] - boxes[b + 2];
+        float dz = boxes[b + 5] - boxes[b + 4];
+        radius2[node] = 0.25f * (dx * dx + dy * dy + dz * dz);
+        if (end - begin == 1) {
+            // leaf - stored as the bitwise complement of the light index
+            lights[begin] = sources[order[begin]];
+            tree[node] = ~begin;
+            return;
+        }
+        int axis = (dx >= dy && dx >= dz) ? 0 : (dy >= dz ? 1 : 2);
+        sortByCenter(bounds, order, begin, end, axis);
+        int mid = (begin + end) >>> 1;
+        int left = numNodes;
+        numNodes += 2;
+        tree[node] = left;
+        buildNode(left, sources, bounds, order, begin, mid);
+        buildNode(left + 1, sources, bounds, order, mid, end);
+    }
+
+    private static void sortByCenter(float[] bounds, int[] order, int begin, int end, int axis) {
+        // in-place shell sort on the center coordinate
+        for (int gap = (end - begin) / 2; gap > 0; gap /= 2) {
+            for (int i = begin + gap; i < end; i++) {
+                int l = order[i];
+                float c = bounds[6 * l + 2 * axis] + bounds[6 * l + 2 * axis + 1];
+                int j = i;
+                for (; j >= begin + gap; j -= gap) {
+                    int k = order[j - gap];
+                    if (bounds[6 * k + 2 * axis] + bounds[6 * k + 2 * axis + 1] <= c)
+                        break;
+                    order[j] = k;
+                }
+                order[j] = l;
+            }
+        }
+    }
+
+    private float importance(int node, Point3 p) {
+        int b = 6 * node;
+        float dx = 0.5f * (boxes[b + 0] + boxes[b + 1]) - p.x;
+        float dy = 0.5f * (boxes[b + 2] + boxes[b + 3]) - p.y;
+        float dz = 0.5f * (boxes[b + 4] + boxes[b + 5]) - p.z;
+        float d2 = dx * dx + dy * dy + dz * dz;
+        return power[node] / Math.max(d2, Math.max(radius2[node], 1e-6f));
+    }
+
+    int getNumLights() {
+        return lights.length;
+    }
+
+    /**
+     * Pick a light for the specified point.
+     * 
+     * @param p point being shaded
+     * @param rand random number in [0,1)
+     * @param pdf receives the probability of picking the returned light
+     * @return selected light
+     */
+    LightSource sample(Point3 p, double rand, float[] pdf) {
+        int node = 0;
+        double prob = 1;
+        while (tree[node] >= 0) {
+            int left = tree[node];
+            float wl = importance(left, p);
+            float wr = importance(left + 1, p);
+            double pl = (wl + wr > 0) ? (double) wl / ((double) wl + wr) : 0.5;
+            if (rand < pl) {
+                rand /= pl;
+                prob *= pl;
+                node = left;
+            } else {
+                rand = (rand - pl) / (1 - pl);
+                prob *= 1 - pl;
+                node = left + 1;
+            }
+            // guard against round-off pushing the value out of range
+            rand = Math.min(rand, 1 - 1e-9);
+        }
+        pdf[0] = (float) prob;
+        return lights[~tree[node]];
+    }
+}
\ No newline at end of file
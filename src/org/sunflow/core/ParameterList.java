@@ -1,7 +1,13 @@
 package org.sunflow.core;
 
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Locale;
 
+import org.sunflow.SunflowAPI;
 import org.sunflow.image.Color;
 import org.sunflow.math.Matrix4;
 import org.sunflow.math.MovingMatrix4;
@@ -52,6 +58,30 @@ public class ParameterList {
         numVerts = numFaces = numFaceVerts = 0;
     }
 
+    /**
+     * Adds the names and values of all parameters to the specified digest.
+     * Parameters are added in name order, so equal lists always produce the
+     * same digest. Texture parameters also add the size and modification time
+     * of the file they name, so edited images are noticed.
+     * 
+     * @param md digest to update
+     * @param api used to resolve texture filenames
+     */
+    public void digest(MessageDigest md, SunflowAPI api) {
+        ArrayList<String> names = new ArrayList<String>();
+        for (FastHashMap.Entry<String, Parameter> e : list)
+            names.add(e.getKey());
+        Collections.sort(names);
+        ByteBuffer counts = ByteBuffer.allocate(12);
+        counts.putInt(numVerts).putInt(numFaces).putInt(numFaceVerts);
+        md.update(counts.array());
+        for (String name : names) {
+            md.update(name.getBytes());
+            md.update((byte) 0);
+            list.get(name).digest(md, name.endsWith("texture") ? api : null);
+        }
+    }
+
     /**
      * Setup how many faces should be used to check member count on "face"
      * interpolated parameters.
@@ -669,6 +699,50 @@ public class ParameterList {
             checked = true;
         }
 
+        private void digest(MessageDigest md, SunflowAPI textures) {
+            md.update((byte) type.ordinal());
+            md.update((byte) interp.ordinal());
+            ByteBuffer buf;
+            switch (type) {
+                case STRING:
+                    for (String s : (String[]) obj) {
+                        md.update(s.getBytes());
+                        md.update((byte) 0);
+                        if (textures == null)
+                            continue;
+                        File f = new File(textures.resolveTextureFilename(s));
+                        if (f.isFile()) {
+                            buf = ByteBuffer.allocate(16);
+                            buf.putLong(f.length()).putLong(f.lastModified());
+                            md.update(buf.array());
+                        }
+                    }
+                    return;
+                case INT: {
+                    int[] data = (int[]) obj;
+                    buf = ByteBuffer.allocate(4 * data.length);
+                    buf.asIntBuffer().put(data);
+                    break;
+                }
+                case BOOL:
+                    md.update((byte) (getBoolValue() ? 1 : 0));
+                    return;
+                case COLOR: {
+                    Color c = (Color) obj;
+                    buf = ByteBuffer.allocate(12);
+                    buf.putFloat(c.getR()).putFloat(c.getG()).putFloat(c.getB());
+                    break;
+                }
+                default: {
+                    float[] data = (float[]) obj;
+                    buf = ByteBuffer.allocate(4 * data.length);
+                    buf.asFloatBuffer().put(data);
+                    break;
+                }
+            }
+            md.update(buf.array());
+        }
+
         @Override
         public String toString() {
             return String.format("%s%s[%d]", interp == InterpolationType.NONE ? "" : interp.name().toLowerCase() + " ", type.name().toLowerCase(), size());
@@ -0,0 +1,293 @@
+package org.sunflow.core;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.sunflow.math.BoundingBox;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Stores initialized photon maps in a directory so they can be reused across
+ * frames and runs. Entries are keyed by a fingerprint of the photon map
+ * settings, the parameters of all shaders, modifiers, geometry, instances and
+ * lights, and the world bounds of every instance. Geometry generated from
+ * outside data the parameters do not name, such as Janino code or files read
+ * by a plugin, is not covered and requires the cache entries to be deleted
+ * when it changes. The cache is disabled until a directory is set.
+ */
+public final class PhotonMapCache {
+    private static final int MAGIC = 0x5346504d; // "SFPM"
+    private static final int VERSION = 1;
+
+    private static File directory = null;
+
+    private PhotonMapCache() {
+    }
+
+    /**
+     * Sets the directory used to store photon maps. Passing <code>null</code>
+     * disables the cache.
+     * 
+     * @param dir cache directory, created if it does not exist
+     */
+    public static synchronized void setDirectory(String dir) {
+        if (dir == null) {
+            directory = null;
+            UI.printInfo(Module.LIGHT, "Photon map cache: disabled");
+            return;
+        }
+        File f = new File(dir);
+        if (!f.isDirectory() && !f.mkdirs()) {
+            UI.printError(Module.LIGHT, "Unable to create photon map cache directory \"%s\"", dir);
+            directory = null;
+            return;
+        }
+        directory = f;
+        UI.printInfo(Module.LIGHT, "Photon map cache: %s", f.getAbsolutePath());
+    }
+
+    private static synchronized File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Checks if photon maps are being cached. Object parameters only need to
+     * be fingerprinted while this is the case.
+     * 
+     * @return <code>true</code> if a cache directory is set
+     */
+    public static synchronized boolean isEnabled() {
+        return directory != null;
+    }
+
+    /**
+     * Computes the cache key for the specified photon map.
+     * 
+     * @param map prepared photon map
+     * @param type type of photons being shot
+     * @param seed QMC seed parameter
+     * @param settings description of the light server settings photons
+     *            depend on, such as the trace depths
+     * @param lights scene lights
+     * @param instances finite scene instances
+     * @return the key, or <code>null</code> if the cache is disabled or does
+     *         not apply to this map
+     */
+    static String getKey(PhotonStore map, String type, int seed, String settings, LightSource[] lights, PrimitiveList instances) {
+        if (getDirectory() == null || !(map instanceof CacheablePhotonStore))
+            return null;
+        MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            UI.printWarning(Module.LIGHT, "Unable to hash scene - photon map cache disabled");
+            return null;
+        }
+        md.update(String.format("%s %s %d %d %s", map.getClass().getName(), type, seed, map.numEmit(), settings).getBytes());
+        ByteBuffer buf = ByteBuffer.allocate(6 * 4 * 1024);
+        for (LightSource l : lights) {
+            md.update(l.getClass().getName().getBytes());
+            buf.putFloat(l.getPower());
+            if (l instanceof BoundedLightSource) {
+                BoundingBox b = ((BoundedLightSource) l).getBounds();
+                if (b != null)
+                    for (int j = 0; j < 6; j++)
+                        buf.putFloat(b.getBound(j));
+            }
+            md.update(buf.array(), 0, buf.position());
+            buf.clear();
+        }
+        int n = instances.getNumPrimitives();
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < 6; j++)
+                buf.putFloat(instances.getPrimitiveBound(i, j));
+            if (!buf.hasRemaining()) {
+                md.update(buf.array(), 0, buf.position());
+                buf.clear();
+            }
+        }
+        md.update(buf.array(), 0, buf.position());
+        StringBuilder key = new StringBuilder();
+        for (byte b : md.digest())
+            key.append(String.format("%02x", b & 0xFF));
+        return key.toString();
+    }
+
+    /**
+     * Try to restore the specified photon map from the cache.
+     * 
+     * @return <code>true</code> if the map was loaded, <code>false</code> if
+     *         photons still need to be traced
+     */
+    static boolean load(String key, PhotonStore map, String type) {
+        File dir = getDirectory();
+        if (dir == null)
+            return false;
+        File file = new File(dir, key + ".photons");
+        if (!file.isFile())
+            return false;
+        UI.printInfo(Module.LIGHT, "Loading %s photons from cache ...", type);
+        Timer t = new Timer();
+        t.start();
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            FileChannel channel = stream.getChannel();
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+                UI.printWarning(Module.LIGHT, "Ignoring invalid photon map cache file \"%s\"", file.getName());
+                return false;
+            }
+            if (!((CacheablePhotonStore) map).load(in)) {
+                UI.printInfo(Module.LIGHT, "Cached %s photons were saved with different settings", type);
+                return false;
+            }
+        } catch (IOException e) {
+            UI.printWarning(Module.LIGHT, "Unable to read photon map cache file \"%s\": %s", file.getName(), e.getMessage());
+            return false;
+        } catch (RuntimeException e) {
+            UI.printWarning(Module.LIGHT, "Ignoring corrupt photon map cache file \"%s\"", file.getName());
+            return false;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        t.end();
+        UI.printInfo(Module.LIGHT, "Loading time for %s photons: %s", type, t.toString());
+        return true;
+    }
+
+    /**
+     * Save an initialized photon map into the cache. Failures are reported but
+     * otherwise ignored.
+     */
+    static void save(String key, PhotonStore map) {
+        File dir = getDirectory();
+        if (dir == null)
+            return;
+        File file = new File(dir, key + ".photons");
+        File temp = null;
+        DataOutputStream out = null;
+        try {
+            // write to a temporary file first so concurrent readers never see
+            // a partial entry
+            temp = File.createTempFile(key, ".tmp", dir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            ((CacheablePhotonStore) map).save(out);
+            out.close();
+            out = null;
+            if (!temp.renameTo(file))
+                temp.delete();
+            else
+                UI.printDetailed(Module.LIGHT, "Saved photon map to cache: %s", file.getName());
+        } catch (IOException e) {
+            UI.printWarning(Module.LIGHT, "Unable to write photon map cache file \"%s\": %s", file.getName(), e.getMessage());
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e1) {
+                }
+            }
+            if (temp != null)
+                temp.delete();
+        }
+    }
+
+    /**
+     * Write an array in the format expected by
+     * {@link #readFloatArray(ByteBuffer)}. A <code>null</code> array is
+     * written as an empty one.
+     */
+    public static void writeArray(DataOutputStream out, float[] array) throws IOException {
+        int n = array == null ? 0 : array.length;
+        out.writeInt(n);
+        for (int i = 0; i < n; i++)
+            out.writeFloat(array[i]);
+    }
+
+    /**
+     * Write an array in the format expected by
+     * {@link #readIntArray(ByteBuffer)}. A <code>null</code> array is written
+     * as an empty one.
+     */
+    public static void writeArray(DataOutputStream out, int[] array) throws IOException {
+        int n = array == null ? 0 : array.length;
+        out.writeInt(n);
+        for (int i = 0; i < n; i++)
+            out.writeInt(array[i]);
+    }
+
+    /**
+     * Write an array in the format expected by
+     * {@link #readShortArray(ByteBuffer)}. A <code>null</code> array is
+     * written as an empty one.
+     */
+    public static void writeArray(DataOutputStream out, short[] array) throws IOException {
+        int n = array == null ? 0 : array.length;
+        out.writeInt(n);
+        for (int i = 0; i < n; i++)
+            out.writeShort(array[i]);
+    }
+
+    /**
+     * Write an array in the format expected by
+     * {@link #readByteArray(ByteBuffer)}. A <code>null</code> array is written
+     * as an empty one.
+     */
+    public static void writeArray(DataOutputStream out, byte[] array) throws IOException {
+        int n = array == null ? 0 : array.length;
+        out.writeInt(n);
+        if (n > 0)
+            out.write(array);
+    }
+
+    public static float[] readFloatArray(ByteBuffer in) {
+        float[] array = new float[readLength(in, 4)];
+        in.asFloatBuffer().get(array);
+        in.position(in.position() + 4 * array.length);
+        return array;
+    }
+
+    public static int[] readIntArray(ByteBuffer in) {
+        int[] array = new int[readLength(in, 4)];
+        in.asIntBuffer().get(array);
+        in.position(in.position() + 4 * array.length);
+        return array;
+    }
+
+    public static short[] readShortArray(ByteBuffer in) {
+        short[] array = new short[readLength(in, 2)];
+        in.asShortBuffer().get(array);
+        in.position(in.position() + 2 * array.length);
+        return array;
+    }
+
+    public static byte[] readByteArray(ByteBuffer in) {
+        byte[] array = new byte[readLength(in, 1)];
+        in.get(array);
+        return array;
+    }
+
+    private static int readLength(ByteBuffer in, int elementSize) {
+        int n = in.getInt();
+        if (n < 0 || n > in.remaining() / elementSize)
+            throw new IllegalStateException("invalid array length");
+        return n;
+    }
+}
\ No newline at end of file
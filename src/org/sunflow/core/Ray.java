@@ -14,9 +14,12 @@ public final class Ray {
     public float dx, dy, dz;
     private float tMin;
     private float tMax;
+    private Vector3 dOdx, dDdx, dOdy, dDdy;
+    // eye rays compute their differentials from this on first use
+    private Camera.Sample cameraSample;
     private static final float EPSILON = 0;// 0.01f;
 
-    private Ray() {
+    Ray() {
     }
 
     /**
@@ -96,14 +99,29 @@ public final class Ray {
 
     /**
      * Create a new ray by transforming the supplied one by the given matrix. If
-     * the matrix is <code>null</code>, the original ray is returned.
+     * the matrix is <code>null</code>, the original ray is returned. Ray
+     * differentials are not transformed, as transformed rays are only used for
+     * intersection tests.
      * 
      * @param m matrix to transform the ray by
      */
     public Ray transform(Matrix4 m) {
+        return transform(m, new Ray());
+    }
+
+    /**
+     * Transform this ray by the given matrix, storing the result into the
+     * specified ray. This avoids creating a new ray object for every
+     * transformation. If the matrix is <code>null</code>, the original ray is
+     * returned and <code>r</code> is left untouched.
+     * 
+     * @param m matrix to transform the ray by
+     * @param r ray receiving the transformed ray
+     * @return <code>r</code>, or this ray if the matrix is <code>null</code>
+     */
+    public Ray transform(Matrix4 m, Ray r) {
         if (m == null)
             return this;
-        Ray r = new Ray();
         r.ox = m.transformPX(ox, oy, oz);
         r.oy = m.transformPY(ox, oy, oz);
         r.oz = m.transformPZ(ox, oy, oz);
@@ -125,6 +143,87 @@ public final class Ray {
         dz *= in;
     }
 
+    /**
+     * Attach ray differentials to this ray. They describe how the origin and
+     * the direction of the ray change when moving by one pixel in x and y on
+     * the image plane, and are used to estimate the footprint of the ray for
+     * texture filtering.
+     * 
+     * @param dOdx change of the origin along x
+     * @param dDdx change of the direction along x
+     * @param dOdy change of the origin along y
+     * @param dDdy change of the direction along y
+     */
+    public final void setDifferentials(Vector3 dOdx, Vector3 dDdx, Vector3 dOdy, Vector3 dDdy) {
+        this.dOdx = dOdx;
+        this.dDdx = dDdx;
+        this.dOdy = dOdy;
+        this.dDdy = dDdy;
+        cameraSample = null;
+    }
+
+    /**
+     * Defer the differentials of an eye ray until they are first asked for.
+     * 
+     * @param sample camera sample this ray was generated from
+     */
+    final void setCameraSample(Camera.Sample sample) {
+        cameraSample = sample;
+    }
+
+    private void computeDifferentials() {
+        Camera.Sample sample = cameraSample;
+        cameraSample = null;
+        sample.setDifferentials(this);
+    }
+
+    /**
+     * Checks to see if this ray carries differentials.
+     * 
+     * @return <code>true</code> if differentials were set on this ray
+     */
+    public final boolean hasDifferentials() {
+        if (cameraSample != null)
+            computeDifferentials();
+        return dOdx != null;
+    }
+
+    /**
+     * @return change of the ray origin along image x, or <code>null</code>
+     */
+    public final Vector3 getOriginDifferentialX() {
+        if (cameraSample != null)
+            computeDifferentials();
+        return dOdx;
+    }
+
+    /**
+     * @return change of the ray direction along image x, or <code>null</code>
+     */
+    public final Vector3 getDirectionDifferentialX() {
+        if (cameraSample != null)
+            computeDifferentials();
+        return dDdx;
+    }
+
+    /**
+     * @return change of the ray origin along image y, or <code>null</code>
+     */
+    public final Vector3 getOriginDifferentialY() {
+        if (cameraSample != null)
+            computeDifferentials();
+        return dOdy;
+    }
+
+    /**
+     * @return change of the ray direction along image y, or <code>null</code>
+     */
+    public final Vector3 getDirectionDifferentialY() {
+        if (cameraSample != null)
+            computeDifferentials();
+        return dDdy;
+    }
+
     /**
      * Gets the minimum distance along the ray - usually 0.
      * 
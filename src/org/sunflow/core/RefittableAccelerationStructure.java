@@ -0,0 +1,21 @@
+package org.sunflow.core;
+
+/**
+ * An acceleration structure which can be updated in place when the bounds of
+ * its primitives change, without rebuilding the hierarchy. This is used for
+ * the top-level instance list so that moving a few instances between frames
+ * does not require a full rebuild.
+ */
+public interface RefittableAccelerationStructure extends AccelerationStructure {
+    /**
+     * Update the structure for a list of primitives whose bounds may have
+     * changed since it was built. The list must contain the same number of
+     * primitives as the list the structure was built for.
+     * 
+     * @param primitives primitive list to update the structure for
+     * @return <code>true</code> if the structure was updated,
+     *         <code>false</code> if it could not be updated or if its quality
+     *         degraded enough that it should be rebuilt
+     */
+    public boolean refit(PrimitiveList primitives);
+}
\ No newline at end of file
@@ -2,6 +2,7 @@ package org.sunflow.core;
 
 import java.util.ArrayList;
 
+import org.sunflow.core.accel.BuildThreads;
 import org.sunflow.core.display.FrameDisplay;
 import org.sunflow.image.Color;
 import org.sunflow.math.BoundingBox;
@@ -36,6 +37,8 @@ public class Scene {
     // image size
     private int imageWidth;
     private int imageHeight;
+    // distance between image samples in pixels
+    private float sampleSpacing;
 
     // global options
     private int threads;
@@ -59,6 +62,7 @@ public class Scene {
         camera = null;
         imageWidth = 640;
         imageHeight = 480;
+        sampleSpacing = 1;
         threads = 0;
         lowPriority = true;
 
@@ -105,7 +109,6 @@ public class Scene {
     public void setInstanceLists(Instance[] instances, Instance[] infinite) {
         infiniteInstanceList = new InstanceList(infinite);
         instanceList = new InstanceList(instances);
-        rebuildAccel = true;
     }
 
     /**
@@ -131,6 +134,17 @@ public class Scene {
         lightServer.setShaderOverride(shader, photonOverride);
     }
 
+    /**
+     * Sets a digest of the parameters of all shaders, modifiers, geometry,
+     * instances and lights in the scene. Photon maps are only cached when it
+     * is known.
+     * 
+     * @param digest parameter digest, or <code>null</code> if unknown
+     */
+    public void setParameterDigest(String digest) {
+        lightServer.setParameterDigest(digest);
+    }
+
     /**
      * The provided instance will be considered for lightmap baking. If the
      * specified instance is <code>null</code>, lightmap baking will be
@@ -142,6 +156,19 @@ public class Scene {
         bakingInstance = instance;
     }
 
+    /**
+     * Tells the scene how many samples the image sampler takes in each pixel.
+     * As in pbrt, the ray differentials of eye rays are scaled by the spacing
+     * of the samples, <code>1/sqrt(samples)</code>, so textures are filtered
+     * over the area each sample stands for. The spacing is kept above 1/8 of a
+     * pixel. Samplers which do not call this use one sample per pixel.
+     * 
+     * @param samples number of samples per pixel
+     */
+    public void setSamplesPerPixel(int samples) {
+        sampleSpacing = Math.max(0.125f, (float) (1 / Math.sqrt(Math.max(1, samples))));
+    }
+
     /**
      * Get the radiance seen through a particular pixel
      * 
@@ -160,7 +187,7 @@ public class Scene {
         istate.numEyeRays++;
         float sceneTime = camera.getTime((float) time);
         if (bakingPrimitives == null) {
-            Ray r = camera.getRay(rx, ry, imageWidth, imageHeight, lensU, lensV, sceneTime);
+            Ray r = camera.getRay(rx, ry, imageWidth, imageHeight, lensU, lensV, sceneTime, sampleSpacing);
             return r != null ? lightServer.getRadiance(rx, ry, sceneTime, instance, dim, r, istate, cache) : null;
         } else {
             Ray r = new Ray(rx / imageWidth, ry / imageHeight, -1, 0, 0, 1);
@@ -194,6 +221,16 @@ public class Scene {
         return instanceList.getWorldBounds(null);
     }
 
+    /**
+     * Get the list of finite instances in the scene. While rendering, this
+     * includes the instances created for area lights.
+     * 
+     * @return list of instances
+     */
+    PrimitiveList getInstances() {
+        return instanceList;
+    }
+
     public void accumulateStats(IntersectionState state) {
         stats.accumulate(state);
     }
@@ -216,9 +253,19 @@ public class Scene {
     }
 
     Color traceShadow(Ray r, IntersectionState state) {
+        // stats
         state.numShadowRays++;
-        trace(r, state);
-        return state.hit() ? Color.WHITE : Color.BLACK;
+        state.numRays++;
+        // reset object
+        state.instance = null;
+        state.current = null;
+        // any hit is enough to block the ray, stop as soon as one is found
+        for (int i = 0; i < infiniteInstanceList.getNumPrimitives(); i++)
+            if (infiniteInstanceList.intersectPrimitiveShadow(r, i, state))
+                return Color.WHITE;
+        // reset for next accel structure
+        state.current = null;
+        return intAccel.intersectShadow(r, state) ? Color.WHITE : Color.BLACK;
     }
 
     void traceBake(Ray r, IntersectionState state) {
@@ -256,9 +303,6 @@ public class Scene {
             instanceList.addLightSourceInstances(areaLights.toArray(new Instance[areaLights.size()]));
         else
             instanceList.clearLightSources();
-        // FIXME: this _could_ be done incrementally to avoid top-level rebuilds
-        // each frame
-        rebuildAccel = true;
     }
 
     private void removeAreaLightInstances() {
@@ -278,6 +322,10 @@ public class Scene {
         stats.reset();
         if (display == null)
             display = new FrameDisplay();
+        // the thread limit also applies to acceleration structure builds
+        threads = options.getInt("threads", 0);
+        lowPriority = options.getBoolean("threads.lowPriority", true);
+        BuildThreads.setThreads(threads);
 
         if (bakingInstance != null) {
             UI.printDetailed(Module.SCENE, "Creating primitives for lightmapping ...");
@@ -302,8 +350,6 @@ public class Scene {
         }
 
         // read from options
-        threads = options.getInt("threads", 0);
-        lowPriority = options.getBoolean("threads.lowPriority", true);
         imageWidth = options.getInt("resolutionX", 640);
         imageHeight = options.getInt("resolutionY", 480);
         // limit resolution to 16k
@@ -328,6 +374,12 @@ public class Scene {
             acceltype = accelName;
         }
         UI.printInfo(Module.SCENE, "  * Instance accel:      %s", acceltype);
+        // instances may have moved since the last frame, try to update the
+        // existing structure before falling back to a full rebuild
+        if (!rebuildAccel && intAccel instanceof RefittableAccelerationStructure)
+            rebuildAccel = !((RefittableAccelerationStructure) intAccel).refit(instanceList);
+        else
+            rebuildAccel = true;
         if (rebuildAccel) {
             intAccel = AccelerationStructureFactory.create(acceltype, instanceList.getNumPrimitives(), false);
             intAccel.build(instanceList);
@@ -344,11 +396,15 @@ public class Scene {
         // render
         UI.printInfo(Module.SCENE, "Rendering ...");
         stats.setResolution(imageWidth, imageHeight);
+        TextureCache.resetStats();
+        sampleSpacing = 1;
         sampler.prepare(options, this, imageWidth, imageHeight);
         sampler.render(display);
+        lightServer.renderEnd();
         // show statistics
         stats.displayStats();
         lightServer.showStats();
+        TextureCache.showStats();
         // discard area lights
         removeAreaLightInstances();
         // discard baking tesselation/accel structure
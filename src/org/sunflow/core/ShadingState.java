@@ -25,6 +25,10 @@ public final class ShadingState implements Iterable<LightSample> {
     private Point2 tex;
     private Vector3 ng;
     private OrthoNormalBasis basis;
+    private Vector3 dpdu, dpdv;
+    private Vector3 dpdx, dpdy;
+    private float[] duv;
+    private boolean differentials;
     private float cosND;
     private float bias;
     private boolean behind;
@@ -151,6 +155,10 @@ public final class ShadingState implements Iterable<LightSample> {
         tex = new Point2();
         ng = new Vector3();
         basis = null;
+        dpdu = dpdv = null;
+        dpdx = dpdy = null;
+        duv = null;
+        differentials = false;
     }
 
     /**
@@ -242,6 +250,22 @@ public final class ShadingState implements Iterable<LightSample> {
         return istate;
     }
 
+    /**
+     * Record the outcome of an irradiance cache lookup in the statistics of
+     * the current thread.
+     * 
+     * @param hit <code>true</code> if the irradiance could be interpolated
+     *            from existing samples
+     * @param retries number of times adding a new sample had to be retried
+     *            because of concurrent updates
+     */
+    public final void updateIrradianceCacheStats(boolean hit, int retries) {
+        istate.numIrrCacheLookups++;
+        if (hit)
+            istate.numIrrCacheHits++;
+        istate.numIrrCacheRetries += retries;
+    }
+
     /**
      * Get u barycentric coordinate of the intersection point.
      * 
@@ -381,6 +405,28 @@ public final class ShadingState implements Iterable<LightSample> {
         lightSample = sample;
     }
 
+    /**
+     * Get the most recently added light sample.
+     * 
+     * @return head of the light sample list, or <code>null</code> if there
+     *         are no samples yet
+     */
+    final LightSample getLightSamples() {
+        return lightSample;
+    }
+
+    /**
+     * Scale the radiance of all light samples added after the specified one.
+     * 
+     * @param last sample which was at the head of the list before the new
+     *            samples were added
+     * @param s scale factor
+     */
+    final void scaleLightSamples(LightSample last, float s) {
+        for (LightSample sample = lightSample; sample != last; sample = sample.next)
+            sample.scale(s);
+    }
+
     /**
      * Get a QMC sample from an infinite sequence.
      * 
@@ -567,6 +613,136 @@ public final class ShadingState implements Iterable<LightSample> {
         this.basis = basis;
     }
 
+    /**
+     * Define the partial derivatives of the hit point with respect to the
+     * texture coordinates. Primitives which provide them allow texture lookups
+     * to be filtered over the footprint of the ray.
+     * 
+     * @param dpdu change of the point along u, in world space
+     * @param dpdv change of the point along v, in world space
+     */
+    public final void setSurfaceDerivatives(Vector3 dpdu, Vector3 dpdv) {
+        this.dpdu = dpdu;
+        this.dpdv = dpdv;
+    }
+
+    /**
+     * Gets the change of the texture coordinates when moving by one pixel in x
+     * and y on the image plane. This is only known if the ray carries
+     * differentials and the primitive defined its surface derivatives. The
+     * returned array must not be modified.
+     * 
+     * @return array holding du/dx, dv/dx, du/dy and dv/dy, or
+     *         <code>null</code> if unknown
+     */
+    public final float[] getUVDifferentials() {
+        if (!differentials)
+            computeDifferentials();
+        return duv;
+    }
+
+    private void computeDifferentials() {
+        differentials = true;
+        if (r == null || !r.hasDifferentials())
+            return;
+        // intersect the offset rays with the tangent plane
+        float d = ng.x * p.x + ng.y * p.y + ng.z * p.z;
+        dpdx = getPlaneOffset(r.getOriginDifferentialX(), r.getDirectionDifferentialX(), d);
+        dpdy = getPlaneOffset(r.getOriginDifferentialY(), r.getDirectionDifferentialY(), d);
+        if (dpdx == null || dpdy == null) {
+            dpdx = dpdy = null;
+            return;
+        }
+        if (dpdu == null || dpdv == null)
+            return;
+        // least squares solution of dp = du * dpdu + dv * dpdv
+        float uu = Vector3.dot(dpdu, dpdu);
+        float uv = Vector3.dot(dpdu, dpdv);
+        float vv = Vector3.dot(dpdv, dpdv);
+        float det = uu * vv - uv * uv;
+        if (!(Math.abs(det) > 1e-12f * uu * vv))
+            return;
+        float invDet = 1 / det;
+        float ux = Vector3.dot(dpdu, dpdx);
+        float vx = Vector3.dot(dpdv, dpdx);
+        float uy = Vector3.dot(dpdu, dpdy);
+        float vy = Vector3.dot(dpdv, dpdy);
+        duv = new float[4];
+        duv[0] = (vv * ux - uv * vx) * invDet;
+        duv[1] = (uu * vx - uv * ux) * invDet;
+        duv[2] = (vv * uy - uv * vy) * invDet;
+        duv[3] = (uu * vy - uv * uy) * invDet;
+        for (float f : duv) {
+            if (Float.isNaN(f) || Float.isInfinite(f)) {
+                duv = null;
+                return;
+            }
+        }
+    }
+
+    private Vector3 getPlaneOffset(Vector3 dO, Vector3 dD, float d) {
+        float ox = r.ox + dO.x;
+        float oy = r.oy + dO.y;
+        float oz = r.oz + dO.z;
+        float dx = r.dx + dD.x;
+        float dy = r.dy + dD.y;
+        float dz = r.dz + dD.z;
+        float dn = ng.x * dx + ng.y * dy + ng.z * dz;
+        if (dn == 0)
+            return null;
+        float t = (d - (ng.x * ox + ng.y * oy + ng.z * oz)) / dn;
+        return new Vector3(ox + t * dx - p.x, oy + t * dy - p.y, oz + t * dz - p.z);
+    }
+
+    /**
+     * Attach differentials to a ray leaving this point in the mirror
+     * direction. The surface is assumed to be locally flat.
+     * 
+     * @param ref reflected ray
+     */
+    private void setReflectionDifferentials(Ray ref) {
+        if (!differentials)
+            computeDifferentials();
+        if (dpdx == null)
+            return;
+        Vector3 ddx = r.getDirectionDifferentialX();
+        Vector3 ddy = r.getDirectionDifferentialY();
+        float dnx = 2 * Vector3.dot(ddx, n);
+        float dny = 2 * Vector3.dot(ddy, n);
+        ref.setDifferentials(dpdx, new Vector3(ddx.x - dnx * n.x, ddx.y - dnx * n.y, ddx.z - dnx * n.z), dpdy, new Vector3(ddy.x - dny * n.x, ddy.y - dny * n.y, ddy.z - dny * n.z));
+    }
+
+    /**
+     * Attach differentials to a ray refracted at this point. The relative
+     * index of refraction is recovered from the incoming and refracted
+     * directions and the surface is assumed to be locally flat.
+     * 
+     * @param ref refracted ray
+     */
+    private void setRefractionDifferentials(Ray ref) {
+        if (!differentials)
+            computeDifferentials();
+        if (dpdx == null)
+            return;
+        // work with the normal facing the incoming ray
+        float s = r.dot(n) > 0 ? -1 : 1;
+        float nx = s * n.x, ny = s * n.y, nz = s * n.z;
+        float c = r.dot(nx, ny, nz);
+        float cosT = -ref.dot(nx, ny, nz);
+        if (cosT < 1e-4f)
+            return;
+        float ix = r.dx - c * nx, iy = r.dy - c * ny, iz = r.dz - c * nz;
+        float tx = ref.dx + cosT * nx, ty = ref.dy + cosT * ny, tz = ref.dz + cosT * nz;
+        float is = ix * ix + iy * iy + iz * iz;
+        float eta = is > 1e-8f ? (float) Math.sqrt((tx * tx + ty * ty + tz * tz) / is) : 1;
+        float dmu = -(eta + eta * eta * c / cosT);
+        Vector3 ddx = r.getDirectionDifferentialX();
+        Vector3 ddy = r.getDirectionDifferentialY();
+        float mx = dmu * (ddx.x * nx + ddx.y * ny + ddx.z * nz);
+        float my = dmu * (ddy.x * nx + ddy.y * ny + ddy.z * nz);
+        ref.setDifferentials(dpdx, new Vector3(eta * ddx.x + mx * nx, eta * ddx.y + mx * ny, eta * ddx.z + mx * nz), dpdy, new Vector3(eta * ddy.x + my * nx, eta * ddy.y + my * ny, eta * ddy.z + my * nz));
+    }
+
     /**
      * Gets the ray that is associated with this state.
      * 
@@ -655,6 +831,7 @@ public final class ShadingState implements Iterable<LightSample> {
      * @return color observed along specified ray.
      */
     public final Color traceReflection(Ray r, int i) {
+        setReflectionDifferentials(r);
         return server.traceReflection(this, r, i);
     }
 
@@ -670,6 +847,7 @@ public final class ShadingState implements Iterable<LightSample> {
         r.ox -= 2 * bias * ng.x;
         r.oy -= 2 * bias * ng.y;
         r.oz -= 2 * bias * ng.z;
+        setRefractionDifferentials(r);
         return server.traceRefraction(this, r, i);
     }
 
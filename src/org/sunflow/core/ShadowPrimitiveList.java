@@ -0,0 +1,24 @@
+package org.sunflow.core;
+
+/**
+ * A primitive list which can test its primitives for occlusion faster than
+ * by finding the closest hit. Shadow rays through lists which do not
+ * implement this interface fall back on
+ * {@link PrimitiveList#intersectPrimitive(Ray, int, IntersectionState)}.
+ */
+public interface ShadowPrimitiveList extends PrimitiveList {
+    /**
+     * Test the specified primitive for occlusion in local space. Unlike
+     * {@link #intersectPrimitive(Ray, int, IntersectionState)}, the closest
+     * hit is not required: the method should return as soon as any
+     * intersection inside the valid range of the ray is found. Neither the
+     * ray nor the intersection state need to be updated.
+     * 
+     * @param r ray in the object's local space
+     * @param primID primitive index to test
+     * @param state intersection state
+     * @return <code>true</code> if the primitive blocks the ray,
+     *         <code>false</code> otherwise
+     */
+    public boolean intersectPrimitiveShadow(Ray r, int primID, IntersectionState state);
+}
\ No newline at end of file
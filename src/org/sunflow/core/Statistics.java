@@ -17,6 +17,10 @@ public class Statistics {
     private long cacheMisses;
     private long cacheSumDepth;
     private long cacheNumCaches;
+    // irradiance cache
+    private long irrCacheLookups;
+    private long irrCacheHits;
+    private long irrCacheRetries;
 
     Statistics() {
         reset();
@@ -34,6 +38,9 @@ public class Statistics {
         cacheMisses = 0;
         cacheSumDepth = 0;
         cacheNumCaches = 0;
+        irrCacheLookups = 0;
+        irrCacheHits = 0;
+        irrCacheRetries = 0;
     }
 
     void accumulate(IntersectionState state) {
@@ -43,6 +50,9 @@ public class Statistics {
         numGlossyRays += state.numGlossyRays;
         numRefractionRays += state.numRefractionRays;
         numRays += state.numRays;
+        irrCacheLookups += state.numIrrCacheLookups;
+        irrCacheHits += state.numIrrCacheHits;
+        irrCacheRetries += state.numIrrCacheRetries;
     }
 
     void accumulate(ShadingCache cache) {
@@ -74,6 +84,14 @@ public class Statistics {
             UI.printInfo(Module.LIGHT, "  * Hit rate:            %d%%", (100 * cacheHits) / (cacheHits + cacheMisses));
             UI.printInfo(Module.LIGHT, "  * Average cache depth: %.2f", (double) cacheSumDepth / (double) cacheNumCaches);
         }
+        if (irrCacheLookups > 0) {
+            UI.printInfo(Module.LIGHT, "Irradiance cache stats:");
+            UI.printInfo(Module.LIGHT, "  * Lookups:             %d", irrCacheLookups);
+            UI.printInfo(Module.LIGHT, "  * Hits:                %d", irrCacheHits);
+            UI.printInfo(Module.LIGHT, "  * Hit rate:            %d%%", (100 * irrCacheHits) / irrCacheLookups);
+            UI.printInfo(Module.LIGHT, "  * Samples added:       %d", irrCacheLookups - irrCacheHits);
+            UI.printInfo(Module.LIGHT, "  * Insert retries:      %d", irrCacheRetries);
+        }
     }
 
     private void printRayTypeStats(String name, long n) {
@@ -1,6 +1,8 @@
 package org.sunflow.core;
 
 import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import org.sunflow.PluginRegistry;
 import org.sunflow.image.Bitmap;
@@ -8,21 +10,54 @@ import org.sunflow.image.BitmapReader;
 import org.sunflow.image.Color;
 import org.sunflow.image.BitmapReader.BitmapFormatException;
 import org.sunflow.image.formats.BitmapBlack;
+import org.sunflow.image.formats.BitmapG8;
+import org.sunflow.image.formats.BitmapGA8;
+import org.sunflow.image.formats.BitmapRGB8;
+import org.sunflow.image.formats.BitmapRGBA8;
+import org.sunflow.image.formats.BitmapTiled;
+import org.sunflow.image.formats.BitmapXYZ;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.ByteUtil;
 import org.sunflow.system.FileUtils;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 /**
- * Represents a 2D texture, typically used by {@link Shader shaders}.
+ * Represents a 2D texture, typically used by {@link Shader shaders}. Texels
+ * are read through a pyramid of mip levels which are split into square tiles.
+ * Tiles are created on demand and kept in the {@link TextureCache}, which
+ * evicts them once its memory limit is reached. Level 0 tiles are read from the
+ * decoded bitmap, coarser levels are box filtered from the level below. Tiled
+ * texture files (see {@link BitmapTiled}) provide all levels themselves and
+ * are read straight from a memory mapping, without decoding the whole image.
+ * Tiles keep the precision of the source image: 8 bit images are stored as
+ * bytes, tiled files as they are stored on disk and other high dynamic range
+ * images as half floats.
  */
 public class Texture {
+    static final int TILE_SIZE = 64;
+    private static final int TILE_SHIFT = 6;
+    private static final int MAX_ANISOTROPY = 8;
+    private static final float INV255 = 1.0f / 255;
+    private static final float MAX_HALF = 65504;
+    // storage of tile texels
+    private static final int TEXELS_BYTE = 0;
+    private static final int TEXELS_HALF = 1;
+    private static final int TEXELS_FLOAT = 2;
+
     private String filename;
     private boolean isLinear;
-    private Bitmap bitmap;
+    private SoftReference<Bitmap> bitmap;
     private int loaded;
+    private boolean pretiled;
+    private int texels;
+    private int[] levelWidth;
+    private int[] levelHeight;
+    private int[] levelTilesX;
+    private int[] levelOffset;
+    private AtomicReferenceArray<Tile> tiles;
 
     /**
      * Creates a new texture from the specfied file.
@@ -33,38 +68,117 @@ public class Texture {
     Texture(String filename, boolean isLinear) {
         this.filename = filename;
         this.isLinear = isLinear;
+        bitmap = null;
         loaded = 0;
     }
 
     private synchronized void load() {
         if (loaded != 0)
             return;
+        Bitmap b = getBitmap();
+        pretiled = b instanceof BitmapTiled;
+        if (pretiled)
+            texels = ((BitmapTiled) b).isHalf() ? TEXELS_HALF : TEXELS_FLOAT;
+        else if (b instanceof BitmapRGB8 || b instanceof BitmapRGBA8 || b instanceof BitmapG8 || b instanceof BitmapGA8 || b instanceof BitmapBlack)
+            texels = TEXELS_BYTE;
+        else
+            texels = TEXELS_HALF;
+        int w = b.getWidth();
+        int h = b.getHeight();
+        int numLevels = 1;
+        while ((w >> numLevels) > 0 || (h >> numLevels) > 0)
+            numLevels++;
+        levelWidth = new int[numLevels];
+        levelHeight = new int[numLevels];
+        levelTilesX = new int[numLevels];
+        levelOffset = new int[numLevels];
+        // the tiles of all levels share one array
+        int numTiles = 0;
+        for (int i = 0; i < numLevels; i++) {
+            levelWidth[i] = Math.max(1, w >> i);
+            levelHeight[i] = Math.max(1, h >> i);
+            levelTilesX[i] = (levelWidth[i] + TILE_SIZE - 1) >> TILE_SHIFT;
+            int tilesY = (levelHeight[i] + TILE_SIZE - 1) >> TILE_SHIFT;
+            levelOffset[i] = numTiles;
+            numTiles += levelTilesX[i] * tilesY;
+        }
+        tiles = new AtomicReferenceArray<Tile>(numTiles);
+        UI.printDetailed(Module.TEX, "Texture \"%s\" has %d mip levels", filename, numLevels);
+        loaded = 1;
+    }
+
+    private Bitmap readBitmap() {
+        Bitmap b = null;
         String extension = FileUtils.getExtension(filename);
         try {
             UI.printInfo(Module.TEX, "Reading texture bitmap from: \"%s\" ...", filename);
             BitmapReader reader = PluginRegistry.bitmapReaderPlugins.createObject(extension);
             if (reader != null) {
-                bitmap = reader.load(filename, isLinear);
-                if (bitmap.getWidth() == 0 || bitmap.getHeight() == 0)
-                    bitmap = null;
+                b = reader.load(filename, isLinear);
+                if (b.getWidth() == 0 || b.getHeight() == 0)
+                    b = null;
             }
-            if (bitmap == null) {
+            if (b == null)
                 UI.printError(Module.TEX, "Bitmap reading failed");
-                bitmap = new BitmapBlack();
-            } else
-                UI.printDetailed(Module.TEX, "Texture bitmap reading complete: %dx%d pixels found", bitmap.getWidth(), bitmap.getHeight());
+            else
+                UI.printDetailed(Module.TEX, "Texture bitmap reading complete: %dx%d pixels found", b.getWidth(), b.getHeight());
         } catch (IOException e) {
             UI.printError(Module.TEX, "%s", e.getMessage());
         } catch (BitmapFormatException e) {
             UI.printError(Module.TEX, "%s format error: %s", extension, e.getMessage());
         }
-        loaded = 1;
+        return b == null ? new BitmapBlack() : b;
+    }
+
+    /**
+     * Gets the decoded image of this texture. The bitmap is only softly
+     * referenced once its tiles have been created, so it may be read again from
+     * disk if memory runs low. Its size is charged against the memory budget of
+     * the {@link TextureCache} until it is released.
+     * 
+     * @return decoded bitmap
+     */
+    public synchronized Bitmap getBitmap() {
+        Bitmap b = bitmap == null ? null : bitmap.get();
+        if (b == null) {
+            if (bitmap != null)
+                UI.printDetailed(Module.TEX, "Texture bitmap \"%s\" was released, reading it again", filename);
+            b = readBitmap();
+            bitmap = new SoftReference<Bitmap>(b);
+            TextureCache.addBitmap(bitmap, getMemory(b));
+        }
+        return b;
+    }
+
+    /**
+     * Estimates the heap memory used by a decoded bitmap. Tiled files are
+     * memory mapped and do not count.
+     */
+    private static long getMemory(Bitmap b) {
+        if (b instanceof BitmapTiled)
+            return 0;
+        long pixels = (long) b.getWidth() * b.getHeight();
+        if (b instanceof BitmapG8)
+            return pixels;
+        if (b instanceof BitmapGA8)
+            return 2 * pixels;
+        if (b instanceof BitmapRGB8)
+            return 3 * pixels;
+        if (b instanceof BitmapXYZ)
+            return 12 * pixels;
+        return 4 * pixels;
     }
 
-    public Bitmap getBitmap() {
+    /**
+     * Gets the number of mip levels of this texture. Level 0 is the full
+     * resolution image, the last level is a single pixel.
+     * 
+     * @return number of mip levels
+     */
+    public int getNumLevels() {
         if (loaded == 0)
             load();
-        return bitmap;
+        return levelWidth.length;
     }
 
     /**
@@ -78,32 +192,230 @@ public class Texture {
      * @return filtered color at location (x,y)
      */
     public Color getPixel(float x, float y) {
-        Bitmap bitmap = getBitmap();
+        if (loaded == 0)
+            load();
+        TextureCache.countLookup();
+        return getLevelPixel(0, x, y);
+    }
+
+    /**
+     * Gets the color of the texture at the texture coordinates of the
+     * specified shading point, filtered over the footprint of the pixel being
+     * shaded. The mip level is chosen from the shorter axis of the footprint,
+     * and several lookups are averaged along the longer axis for anisotropic
+     * footprints. If the footprint is unknown, this is equivalent to
+     * {@link #getPixel(float, float)}.
+     * 
+     * @param state shading point
+     * @return filtered color at the shading point
+     */
+    public Color getPixel(ShadingState state) {
+        float u = state.getUV().x;
+        float v = state.getUV().y;
+        float[] duv = state.getUVDifferentials();
+        if (duv == null)
+            return getPixel(u, v);
+        if (loaded == 0)
+            load();
+        TextureCache.countLookup();
+        // footprint axes in texels
+        float w = levelWidth[0];
+        float h = levelHeight[0];
+        float lx = (float) Math.sqrt(duv[0] * duv[0] * w * w + duv[1] * duv[1] * h * h);
+        float ly = (float) Math.sqrt(duv[2] * duv[2] * w * w + duv[3] * duv[3] * h * h);
+        float major = Math.max(lx, ly);
+        float minor = Math.min(lx, ly);
+        if (major <= 1)
+            return getLevelPixel(0, u, v);
+        int n = minor > 0 ? (int) Math.min(Math.ceil(major / minor), MAX_ANISOTROPY) : MAX_ANISOTROPY;
+        float lod = (float) (Math.log(Math.max(minor, major / n)) / Math.log(2));
+        if (n == 1)
+            return getMipPixel(u, v, lod);
+        float du = lx > ly ? duv[0] : duv[2];
+        float dv = lx > ly ? duv[1] : duv[3];
+        Color c = new Color();
+        for (int i = 0; i < n; i++) {
+            float t = (i + 0.5f) / n - 0.5f;
+            c.add(getMipPixel(u + t * du, v + t * dv, lod));
+        }
+        return c.mul(1.0f / n);
+    }
+
+    /**
+     * Gets the color at location (x,y) in the texture, blending between the
+     * two mip levels nearest to the specified level of detail.
+     * 
+     * @param x x coordinate into the texture
+     * @param y y coordinate into the texture
+     * @param lod level of detail, 0 is the full resolution image
+     * @return filtered color at location (x,y)
+     */
+    public Color getPixel(float x, float y, float lod) {
+        if (loaded == 0)
+            load();
+        TextureCache.countLookup();
+        return getMipPixel(x, y, lod);
+    }
+
+    private Color getMipPixel(float x, float y, float lod) {
+        int last = levelWidth.length - 1;
+        if (!(lod > 0))
+            return getLevelPixel(0, x, y);
+        if (lod >= last)
+            return getLevelPixel(last, x, y);
+        int l0 = (int) lod;
+        float t = lod - l0;
+        Color c = getLevelPixel(l0, x, y).mul(1 - t);
+        return t > 0 ? c.madd(t, getLevelPixel(l0 + 1, x, y)) : c;
+    }
+
+    private Color getLevelPixel(int level, float x, float y) {
+        int w = levelWidth[level];
+        int h = levelHeight[level];
         x = MathUtils.frac(x);
         y = MathUtils.frac(y);
-        float dx = x * (bitmap.getWidth() - 1);
-        float dy = y * (bitmap.getHeight() - 1);
+        float dx = x * (w - 1);
+        float dy = y * (h - 1);
         int ix0 = (int) dx;
         int iy0 = (int) dy;
-        int ix1 = (ix0 + 1) % bitmap.getWidth();
-        int iy1 = (iy0 + 1) % bitmap.getHeight();
+        int ix1 = (ix0 + 1) % w;
+        int iy1 = (iy0 + 1) % h;
         float u = dx - ix0;
         float v = dy - iy0;
         u = u * u * (3.0f - (2.0f * u));
         v = v * v * (3.0f - (2.0f * v));
         float k00 = (1.0f - u) * (1.0f - v);
-        Color c00 = bitmap.readColor(ix0, iy0);
         float k01 = (1.0f - u) * v;
-        Color c01 = bitmap.readColor(ix0, iy1);
         float k10 = u * (1.0f - v);
-        Color c10 = bitmap.readColor(ix1, iy0);
         float k11 = u * v;
-        Color c11 = bitmap.readColor(ix1, iy1);
-        Color c = Color.mul(k00, c00);
-        c.madd(k01, c01);
-        c.madd(k10, c10);
-        c.madd(k11, c11);
-        return c;
+        float[] rgb = new float[3];
+        addTexel(level, ix0, iy0, k00, rgb);
+        addTexel(level, ix0, iy1, k01, rgb);
+        addTexel(level, ix1, iy0, k10, rgb);
+        addTexel(level, ix1, iy1, k11, rgb);
+        return new Color(rgb[0], rgb[1], rgb[2]);
+    }
+
+    private void addTexel(int level, int x, int y, float k, float[] rgb) {
+        addTexel(level, x, y, k, rgb, null);
+    }
+
+    private void addTexel(int level, int x, int y, float k, float[] rgb, Bitmap source) {
+        Tile tile = getTile(level, x >> TILE_SHIFT, y >> TILE_SHIFT);
+        Object data = tile.getData(source);
+        int i = 3 * (((y & (TILE_SIZE - 1)) * tile.width) + (x & (TILE_SIZE - 1)));
+        switch (texels) {
+            case TEXELS_BYTE: {
+                byte[] d = (byte[]) data;
+                k *= INV255;
+                rgb[0] += k * (d[i + 0] & 0xFF);
+                rgb[1] += k * (d[i + 1] & 0xFF);
+                rgb[2] += k * (d[i + 2] & 0xFF);
+                break;
+            }
+            case TEXELS_HALF: {
+                short[] d = (short[]) data;
+                rgb[0] += k * ByteUtil.halfToFloat(d[i + 0]);
+                rgb[1] += k * ByteUtil.halfToFloat(d[i + 1]);
+                rgb[2] += k * ByteUtil.halfToFloat(d[i + 2]);
+                break;
+            }
+            default: {
+                float[] d = (float[]) data;
+                rgb[0] += k * d[i + 0];
+                rgb[1] += k * d[i + 1];
+                rgb[2] += k * d[i + 2];
+                break;
+            }
+        }
+    }
+
+    private Tile getTile(int level, int tx, int ty) {
+        int index = levelOffset[level] + ty * levelTilesX[level] + tx;
+        for (;;) {
+            Tile tile = tiles.get(index);
+            if (tile != null)
+                return tile;
+            tile = new Tile(this, level, tx, ty);
+            if (tiles.compareAndSet(index, null, tile))
+                return tile;
+        }
+    }
+
+    /**
+     * Forget about the specified tile so it will be created again on the next
+     * access. Called by the cache when the tile gets evicted.
+     * 
+     * @param tile tile to remove
+     */
+    void evict(Tile tile) {
+        tiles.compareAndSet(levelOffset[tile.level] + tile.ty * levelTilesX[tile.level] + tile.tx, tile, null);
+    }
+
+    /**
+     * Reads the texels of a tile in the storage format of this texture.
+     */
+    private Object readTile(int level, int x0, int y0, int w, int h, Bitmap source) {
+        float[] data = new float[3 * w * h];
+        if (source instanceof BitmapTiled) {
+            // pretiled files store all levels, read them directly
+            BitmapTiled tiled = (BitmapTiled) source;
+            if (level < tiled.getNumLevels() && tiled.getWidth(level) == levelWidth[level] && tiled.getHeight(level) == levelHeight[level]) {
+                tiled.readTexels(level, x0, y0, w, h, data);
+                return pack(data);
+            }
+        }
+        if (level == 0) {
+            Bitmap b = source;
+            for (int y = 0, i = 0; y < h; y++) {
+                for (int x = 0; x < w; x++, i += 3) {
+                    Color c = b.readColor(x0 + x, y0 + y);
+                    data[i + 0] = c.getR();
+                    data[i + 1] = c.getG();
+                    data[i + 2] = c.getB();
+                }
+            }
+        } else {
+            // box filter the finer level, clamping at its edges
+            int fw = levelWidth[level - 1];
+            int fh = levelHeight[level - 1];
+            for (int y = 0, i = 0; y < h; y++) {
+                int fy0 = Math.min(2 * (y0 + y), fh - 1);
+                int fy1 = Math.min(fy0 + 1, fh - 1);
+                for (int x = 0; x < w; x++, i += 3) {
+                    int fx0 = Math.min(2 * (x0 + x), fw - 1);
+                    int fx1 = Math.min(fx0 + 1, fw - 1);
+                    float[] rgb = new float[3];
+                    addTexel(level - 1, fx0, fy0, 0.25f, rgb, source);
+                    addTexel(level - 1, fx1, fy0, 0.25f, rgb, source);
+                    addTexel(level - 1, fx0, fy1, 0.25f, rgb, source);
+                    addTexel(level - 1, fx1, fy1, 0.25f, rgb, source);
+                    data[i + 0] = rgb[0];
+                    data[i + 1] = rgb[1];
+                    data[i + 2] = rgb[2];
+                }
+            }
+        }
+        return pack(data);
+    }
+
+    private Object pack(float[] data) {
+        switch (texels) {
+            case TEXELS_BYTE: {
+                byte[] d = new byte[data.length];
+                for (int i = 0; i < data.length; i++)
+                    d[i] = (byte) MathUtils.clamp((int) (data[i] * 255 + 0.5f), 0, 255);
+                return d;
+            }
+            case TEXELS_HALF: {
+                short[] d = new short[data.length];
+                for (int i = 0; i < data.length; i++)
+                    d[i] = (short) ByteUtil.floatToHalf(Math.min(data[i], MAX_HALF));
+                return d;
+            }
+            default:
+                return data;
+        }
     }
 
     public Vector3 getNormal(float x, float y, OrthoNormalBasis basis) {
@@ -112,12 +424,75 @@ public class Texture {
     }
 
     public Vector3 getBump(float x, float y, OrthoNormalBasis basis, float scale) {
-        Bitmap bitmap = getBitmap();
-        float dx = 1.0f / bitmap.getWidth();
-        float dy = 1.0f / bitmap.getHeight();
+        if (loaded == 0)
+            load();
+        float dx = 1.0f / levelWidth[0];
+        float dy = 1.0f / levelHeight[0];
         float b0 = getPixel(x, y).getLuminance();
         float bx = getPixel(x + dx, y).getLuminance();
         float by = getPixel(x, y + dy).getLuminance();
         return basis.transform(new Vector3(scale * (b0 - bx), scale * (b0 - by), 1)).normalize();
     }
+
+    /**
+     * A square block of texels from one mip level, stored as consecutive rgb
+     * triplets in the storage format of the texture. Texels are read the first
+     * time the tile is accessed, only threads touching the same tile wait on
+     * each other.
+     */
+    static final class Tile {
+        final Texture texture;
+        final int level;
+        final int tx, ty;
+        final int width, height;
+        private volatile Object data;
+        volatile boolean referenced;
+
+        private Tile(Texture texture, int level, int tx, int ty) {
+            this.texture = texture;
+            this.level = level;
+            this.tx = tx;
+            this.ty = ty;
+            width = Math.min(TILE_SIZE, texture.levelWidth[level] - (tx << TILE_SHIFT));
+            height = Math.min(TILE_SIZE, texture.levelHeight[level] - (ty << TILE_SHIFT));
+            data = null;
+            referenced = true;
+        }
+
+        /**
+         * Gets the texels of this tile, reading them if needed.
+         * 
+         * @param source decoded bitmap of the texture, or <code>null</code>
+         *            to fetch it when the tile is read
+         * @return texels of this tile
+         */
+        Object getData(Bitmap source) {
+            Object d = data;
+            if (d != null) {
+                referenced = true;
+                return d;
+            }
+            // the bitmap may have to be read again, do it before locking the
+            // tile. Coarser levels pass it down to the finer tiles they filter,
+            // so no tile lock is held while decoding and the bitmap cannot be
+            // released halfway through.
+            if (source == null)
+                source = texture.getBitmap();
+            synchronized (this) {
+                if (data == null) {
+                    data = texture.readTile(level, tx << TILE_SHIFT, ty << TILE_SHIFT, width, height, source);
+                    TextureCache.addTile(this);
+                }
+                return data;
+            }
+        }
+
+        /**
+         * @return number of bytes used by the texels of this tile
+         */
+        long getMemory() {
+            int size = texture.texels == TEXELS_BYTE ? 1 : texture.texels == TEXELS_HALF ? 2 : 4;
+            return 3L * size * width * height;
+        }
+    }
 }
\ No newline at end of file
@@ -1,16 +1,49 @@
 package org.sunflow.core;
 
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
 import java.util.HashMap;
 
+import org.sunflow.image.Bitmap;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
 /**
  * Maintains a cache of all loaded texture maps. This is usefull if the same
- * texture might be used more than once in your scene.
+ * texture might be used more than once in your scene. The texels of all
+ * textures and their decoded bitmaps are shared among a fixed memory budget.
+ * Once it is exhausted, tiles which have not been accessed recently are evicted
+ * using the clock algorithm. Bitmaps are only softly referenced and stay
+ * charged until the garbage collector releases them, but never take more than
+ * half of the budget away from the tiles. Looking up a resident tile never
+ * takes a lock.
  */
 public final class TextureCache {
+    private static final long MB = 1024 * 1024;
+
     private static HashMap<String, Texture> textures = new HashMap<String, Texture>();
+    // resident tiles, swept by the clock hand
+    private static Texture.Tile[] tiles = new Texture.Tile[256];
+    private static int numTiles = 0;
+    private static int hand = 0;
+    // decoded bitmaps charged against the budget
+    private static ArrayList<ChargedBitmap> bitmaps = new ArrayList<ChargedBitmap>();
+    private static long memoryLimit = 256 * MB;
+    private static long memory = 0;
+    private static long bitmapMemory = 0;
+    private static long peakMemory = 0;
+    private static long evictions = 0;
+    private static final ArrayList<Counters> counters = new ArrayList<Counters>();
+    private static final ThreadLocal<Counters> threadCounters = new ThreadLocal<Counters>() {
+        @Override
+        protected Counters initialValue() {
+            Counters c = new Counters();
+            synchronized (counters) {
+                counters.add(c);
+            }
+            return c;
+        }
+    };
 
     private TextureCache() {
     }
@@ -43,5 +76,182 @@ public final class TextureCache {
     public synchronized static void flush() {
         UI.printInfo(Module.TEX, "Flushing texture cache");
         textures.clear();
+        for (int i = 0; i < numTiles; i++) {
+            tiles[i].texture.evict(tiles[i]);
+            tiles[i] = null;
+        }
+        numTiles = hand = 0;
+        bitmaps.clear();
+        memory = bitmapMemory = 0;
+    }
+
+    /**
+     * Sets the amount of memory texture tiles may use. Tiles are evicted as
+     * soon as the total exceeds this limit.
+     * 
+     * @param mb memory limit in megabytes
+     */
+    public synchronized static void setMemoryLimit(int mb) {
+        memoryLimit = Math.max(1, mb) * MB;
+        UI.printInfo(Module.TEX, "Texture cache size: %d MB", mb);
+        releaseBitmaps();
+        evictTiles();
+    }
+
+    /**
+     * Register a newly read tile, evicting old tiles until it fits in the
+     * memory budget.
+     * 
+     * @param tile tile which was just read
+     */
+    synchronized static void addTile(Texture.Tile tile) {
+        threadCounters.get().misses++;
+        releaseBitmaps();
+        memory += tile.getMemory();
+        evictTiles();
+        if (numTiles == tiles.length) {
+            Texture.Tile[] old = tiles;
+            tiles = new Texture.Tile[2 * old.length];
+            System.arraycopy(old, 0, tiles, 0, numTiles);
+        }
+        tiles[numTiles++] = tile;
+        peakMemory = Math.max(peakMemory, memory);
+    }
+
+    /**
+     * Charge a newly decoded bitmap against the memory budget, evicting tiles
+     * to make room for it.
+     * 
+     * @param bitmap soft reference through which the texture holds the bitmap
+     * @param bytes estimated size of the bitmap
+     */
+    synchronized static void addBitmap(SoftReference<Bitmap> bitmap, long bytes) {
+        releaseBitmaps();
+        if (bytes == 0)
+            return;
+        bitmaps.add(new ChargedBitmap(bitmap, bytes));
+        bitmapMemory += bytes;
+        memory += bytes;
+        if (bitmapMemory > memoryLimit / 2 && bitmapMemory - bytes <= memoryLimit / 2)
+            UI.printWarning(Module.TEX, "Decoded texture bitmaps use %.2f MB, more than half of the cache - consider using tiled textures", (double) bitmapMemory / MB);
+        evictTiles();
+        peakMemory = Math.max(peakMemory, memory);
+    }
+
+    /**
+     * Drop the charge of bitmaps released by the garbage collector.
+     */
+    private static void releaseBitmaps() {
+        for (int i = bitmaps.size() - 1; i >= 0; i--) {
+            ChargedBitmap b = bitmaps.get(i);
+            if (b.bitmap.get() == null) {
+                bitmapMemory -= b.bytes;
+                memory -= b.bytes;
+                bitmaps.set(i, bitmaps.get(bitmaps.size() - 1));
+                bitmaps.remove(bitmaps.size() - 1);
+            }
+        }
+    }
+
+    /**
+     * Evict tiles until the total fits in the budget. Bitmaps cannot be
+     * evicted, so tiles always keep at least half of the budget for
+     * themselves.
+     */
+    private static void evictTiles() {
+        long limit = memoryLimit + Math.max(0, bitmapMemory - memoryLimit / 2);
+        while (memory > limit && numTiles > 0)
+            evictTile();
+    }
+
+    private static void evictTile() {
+        for (;; hand++) {
+            if (hand >= numTiles)
+                hand = 0;
+            Texture.Tile tile = tiles[hand];
+            if (tile.referenced) {
+                // give recently used tiles a second chance
+                tile.referenced = false;
+                continue;
+            }
+            tile.texture.evict(tile);
+            memory -= tile.getMemory();
+            evictions++;
+            tiles[hand] = tiles[--numTiles];
+            tiles[numTiles] = null;
+            return;
+        }
+    }
+
+    /**
+     * Count a texture lookup. Each lookup reads texels from one or more tiles,
+     * misses are counted per tile read.
+     */
+    static void countLookup() {
+        threadCounters.get().lookups++;
+    }
+
+    /**
+     * Reset the lookup and miss counters before a new render.
+     */
+    public static void resetStats() {
+        synchronized (counters) {
+            for (int i = counters.size() - 1; i >= 0; i--) {
+                Counters c = counters.get(i);
+                c.lookups = c.misses = 0;
+                if (!c.thread.isAlive())
+                    counters.remove(i);
+            }
+        }
+        synchronized (TextureCache.class) {
+            evictions = 0;
+            peakMemory = memory;
+        }
+    }
+
+    /**
+     * Print texture tile cache statistics gathered since the last call to
+     * {@link #resetStats()}.
+     */
+    public static void showStats() {
+        long lookups = 0, misses = 0;
+        synchronized (counters) {
+            for (Counters c : counters) {
+                lookups += c.lookups;
+                misses += c.misses;
+            }
+        }
+        if (lookups == 0)
+            return;
+        synchronized (TextureCache.class) {
+            UI.printInfo(Module.TEX, "Texture cache stats:");
+            UI.printInfo(Module.TEX, "  * Lookups:        %d", lookups);
+            UI.printInfo(Module.TEX, "  * Tile misses:    %d (%.2f per 1000 lookups)", misses, (1000.0 * misses) / lookups);
+            UI.printInfo(Module.TEX, "  * Evictions:      %d", evictions);
+            UI.printInfo(Module.TEX, "  * Resident tiles: %d", numTiles);
+            UI.printInfo(Module.TEX, "  * Peak memory:    %.2f MB of %d MB", (double) peakMemory / MB, memoryLimit / MB);
+        }
+    }
+
+    /**
+     * Lookup counters of a single thread, so counting never needs a lock.
+     */
+    private static final class Counters {
+        final Thread thread = Thread.currentThread();
+        long lookups;
+        long misses;
+    }
+
+    /**
+     * A decoded bitmap and the number of bytes it is charged for.
+     */
+    private static final class ChargedBitmap {
+        final SoftReference<Bitmap> bitmap;
+        final long bytes;
+
+        ChargedBitmap(SoftReference<Bitmap> bitmap, long bytes) {
+            this.bitmap = bitmap;
+            this.bytes = bytes;
+        }
     }
 }
\ No newline at end of file
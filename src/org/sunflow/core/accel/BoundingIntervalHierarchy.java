@@ -1,6 +1,11 @@
 package org.sunflow.core.accel;
 
-import org.sunflow.core.AccelerationStructure;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+import org.sunflow.core.AccelerationCache;
+import org.sunflow.core.CacheableAccelerationStructure;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
@@ -11,7 +16,7 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 import org.sunflow.util.IntArray;
 
-public class BoundingIntervalHierarchy implements AccelerationStructure {
+public class BoundingIntervalHierarchy implements CacheableAccelerationStructure {
     private int[] tree;
     private int[] objects;
     private PrimitiveList primitives;
@@ -370,7 +375,27 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
             stats.updateLeaf(depth + 1, 0);
     }
 
+    public void save(DataOutputStream out) throws IOException {
+        AccelerationCache.writeArray(out, tree);
+        AccelerationCache.writeArray(out, objects);
+    }
+
+    public void load(PrimitiveList primitives, IntBuffer in) {
+        this.primitives = primitives;
+        bounds = primitives.getWorldBounds(null);
+        tree = AccelerationCache.readIntArray(in);
+        objects = AccelerationCache.readIntArray(in);
+    }
+
     public void intersect(Ray r, IntersectionState state) {
+        traverse(r, state, false);
+    }
+
+    public boolean intersectShadow(Ray r, IntersectionState state) {
+        return traverse(r, state, true);
+    }
+
+    private boolean traverse(Ray r, IntersectionState state, boolean shadow) {
         float intervalMin = r.getMin();
         float intervalMax = r.getMax();
         float orgX = r.ox;
@@ -390,7 +415,7 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                 intervalMax = t1;
         }
         if (intervalMin > intervalMax)
-            return;
+            return false;
         float orgY = r.oy;
         float dirY = r.dy, invDirY = 1 / dirY;
         t1 = (bounds.getMinimum().y - orgY) * invDirY;
@@ -407,7 +432,7 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                 intervalMax = t1;
         }
         if (intervalMin > intervalMax)
-            return;
+            return false;
         float orgZ = r.oz;
         float dirZ = r.dz, invDirZ = 1 / dirZ;
         t1 = (bounds.getMinimum().z - orgZ) * invDirZ;
@@ -424,7 +449,7 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                 intervalMax = t1;
         }
         if (intervalMin > intervalMax)
-            return;
+            return false;
 
         // compute custom offsets from direction sign bit
 
@@ -554,10 +579,20 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                     case 3 << 30: {
                         // leaf - test some objects
                         int n = tree[node + 1];
-                        while (n > 0) {
-                            primitives.intersectPrimitive(r, objects[offset], state);
-                            n--;
-                            offset++;
+                        if (shadow) {
+                            // any hit will do - stop right away
+                            while (n > 0) {
+                                if (Occlusion.intersect(primitives, r, objects[offset], state))
+                                    return true;
+                                n--;
+                                offset++;
+                            }
+                        } else {
+                            while (n > 0) {
+                                primitives.intersectPrimitive(r, objects[offset], state);
+                                n--;
+                                offset++;
+                            }
                         }
                         break pushloop;
                     }
@@ -592,13 +627,13 @@ public class BoundingIntervalHierarchy implements AccelerationStructure {
                         continue;
                     }
                     default:
-                        return; // should not happen
+                        return false; // should not happen
                 } // switch
             } // traversal loop
             do {
                 // stack is empty?
                 if (stackPos == 0)
-                    return;
+                    return false;
                 // move back up the stack
                 stackPos--;
                 intervalMin = stack[stackPos].near;
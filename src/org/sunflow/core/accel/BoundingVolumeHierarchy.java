@@ -0,0 +1,654 @@
+package org.sunflow.core.accel;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
+
+import org.sunflow.core.AccelerationCache;
+import org.sunflow.core.CacheableAccelerationStructure;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PrimitiveList;
+import org.sunflow.core.Ray;
+import org.sunflow.core.RefittableAccelerationStructure;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+import org.sunflow.util.FloatArray;
+import org.sunflow.util.IntArray;
+
+/**
+ * Binary bounding volume hierarchy built with the binned surface area
+ * heuristic. Nodes are stored in flat arrays: two integers per node (child or
+ * object offset and object count) and six floats per node for its bounding
+ * box. The children of an inner node are always stored next to each other.
+ * The hierarchy can be refit when its primitives move, which is much cheaper
+ * than a rebuild as long as the motion is small.
+ */
+public class BoundingVolumeHierarchy implements CacheableAccelerationStructure, RefittableAccelerationStructure {
+    private int[] tree;
+    private float[] boxes;
+    private int[] objects;
+    private PrimitiveList primitives;
+    private int maxPrims;
+    private float builtCost;
+
+    private static final int NUM_BINS = 16;
+    private static final int MAX_LEAF_SIZE = 16;
+    private static final int MAX_DEPTH = 64;
+    private static final float INTERSECT_COST = 0.5f;
+    private static final float TRAVERSAL_COST = 1;
+    private static final int PARALLEL_BUILD_THRESHOLD = 8192;
+    // rebuild once refitting made the tree this much more expensive to trace
+    private static final float MAX_REFIT_COST_INCREASE = 1.5f;
+
+    // temporary data, only valid during the build
+    private float[] primBounds;
+    private float[] centroids;
+
+    public BoundingVolumeHierarchy() {
+        maxPrims = 2;
+    }
+
+    private static class BuildStats {
+        private int numNodes;
+        private int numLeaves;
+        private int sumObjects;
+        private int minObjects;
+        private int maxObjects;
+        private int sumDepth;
+        private int minDepth;
+        private int maxDepth;
+        private int numSubtrees;
+
+        BuildStats() {
+            numNodes = numLeaves = 0;
+            sumObjects = 0;
+            minObjects = Integer.MAX_VALUE;
+            maxObjects = Integer.MIN_VALUE;
+            sumDepth = 0;
+            minDepth = Integer.MAX_VALUE;
+            maxDepth = Integer.MIN_VALUE;
+            numSubtrees = 0;
+        }
+
+        void updateInner() {
+            numNodes++;
+        }
+
+        void updateLeaf(int depth, int n) {
+            numLeaves++;
+            minDepth = Math.min(depth, minDepth);
+            maxDepth = Math.max(depth, maxDepth);
+            sumDepth += depth;
+            minObjects = Math.min(n, minObjects);
+            maxObjects = Math.max(n, maxObjects);
+            sumObjects += n;
+        }
+
+        void updateSubtrees(BuildStats s) {
+            numNodes += s.numNodes;
+            numLeaves += s.numLeaves;
+            sumObjects += s.sumObjects;
+            minObjects = Math.min(s.minObjects, minObjects);
+            maxObjects = Math.max(s.maxObjects, maxObjects);
+            sumDepth += s.sumDepth;
+            minDepth = Math.min(s.minDepth, minDepth);
+            maxDepth = Math.max(s.maxDepth, maxDepth);
+            numSubtrees += s.numSubtrees + 1;
+        }
+
+        void printStats() {
+            UI.printDetailed(Module.ACCEL, "BVH stats:");
+            UI.printDetailed(Module.ACCEL, "  * Nodes:          %d", numNodes);
+            UI.printDetailed(Module.ACCEL, "  * Leaves:         %d", numLeaves);
+            UI.printDetailed(Module.ACCEL, "  * Objects: min    %d", minObjects);
+            UI.printDetailed(Module.ACCEL, "             avg    %.2f", (float) sumObjects / numLeaves);
+            UI.printDetailed(Module.ACCEL, "             max    %d", maxObjects);
+            UI.printDetailed(Module.ACCEL, "  * Depth:   min    %d", minDepth);
+            UI.printDetailed(Module.ACCEL, "             avg    %.2f", (float) sumDepth / numLeaves);
+            UI.printDetailed(Module.ACCEL, "             max    %d", maxDepth);
+            UI.printDetailed(Module.ACCEL, "  * Subtree tasks:  %d", numSubtrees);
+        }
+    }
+
+    /**
+     * Scratch space used to bin primitives. Each build thread owns one.
+     */
+    private static final class Bins {
+        private final int[] count = new int[NUM_BINS];
+        private final float[] bounds = new float[6 * NUM_BINS];
+        private final float[] rightArea = new float[NUM_BINS];
+        private final int[] rightCount = new int[NUM_BINS];
+
+        void reset() {
+            for (int i = 0; i < NUM_BINS; i++) {
+                count[i] = 0;
+                bounds[6 * i + 0] = bounds[6 * i + 2] = bounds[6 * i + 4] = Float.POSITIVE_INFINITY;
+                bounds[6 * i + 1] = bounds[6 * i + 3] = bounds[6 * i + 5] = Float.NEGATIVE_INFINITY;
+            }
+        }
+    }
+
+    public void build(PrimitiveList primitives) {
+        UI.printDetailed(Module.ACCEL, "BVH settings");
+        UI.printDetailed(Module.ACCEL, "  * Max Leaf Size:  %d", maxPrims);
+        UI.printDetailed(Module.ACCEL, "  * Max Depth:      %d", MAX_DEPTH);
+        UI.printDetailed(Module.ACCEL, "  * SAH bins:       %d", NUM_BINS);
+        UI.printDetailed(Module.ACCEL, "  * Traversal cost: %.2f", TRAVERSAL_COST);
+        UI.printDetailed(Module.ACCEL, "  * Intersect cost: %.2f", INTERSECT_COST);
+        UI.printDetailed(Module.ACCEL, "  * Build threads:  %d", BuildThreads.getThreads());
+        Timer total = new Timer();
+        total.start();
+        this.primitives = primitives;
+        int n = primitives.getNumPrimitives();
+        // cache primitive bounds and centroids
+        Timer prepare = new Timer();
+        prepare.start();
+        primBounds = new float[6 * n];
+        centroids = new float[3 * n];
+        objects = new int[n];
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < 6; j++)
+                primBounds[6 * i + j] = primitives.getPrimitiveBound(i, j);
+            for (int axis = 0; axis < 3; axis++)
+                centroids[3 * i + axis] = 0.5f * (primBounds[6 * i + 2 * axis + 0] + primBounds[6 * i + 2 * axis + 1]);
+            objects[i] = i;
+        }
+        prepare.end();
+        Timer t = new Timer();
+        t.start();
+        IntArray tempTree = new IntArray();
+        FloatArray tempBoxes = new FloatArray();
+        allocateNodes(tempTree, tempBoxes, 1);
+        BuildStats stats = new BuildStats();
+        BuildThreads.enter();
+        try {
+            buildNode(0, 0, n, 1, tempTree, tempBoxes, new Bins(), stats);
+        } finally {
+            BuildThreads.release();
+        }
+        t.end();
+        // write out final arrays
+        tree = tempTree.trim();
+        boxes = tempBoxes.trim();
+        primBounds = centroids = null;
+        builtCost = computeCost();
+        total.end();
+        stats.printStats();
+        UI.printDetailed(Module.ACCEL, "  * SAH cost:       %.2f", builtCost);
+        UI.printDetailed(Module.ACCEL, "  * Node memory:    %s", Memory.bytesToString(4L * (tree.length + boxes.length)));
+        UI.printDetailed(Module.ACCEL, "  * Indices memory: %s", Memory.sizeof(objects));
+        UI.printDetailed(Module.ACCEL, "  * Prepare time:   %s", prepare);
+        UI.printDetailed(Module.ACCEL, "  * Tree creation:  %s", t);
+        UI.printDetailed(Module.ACCEL, "  * Build time:     %s", total);
+    }
+
+    private static void allocateNodes(IntArray tempTree, FloatArray tempBoxes, int n) {
+        for (int i = 0; i < n; i++) {
+            tempTree.add(0);
+            tempTree.add(0);
+            // empty box
+            for (int j = 0; j < 3; j++) {
+                tempBoxes.add(Float.POSITIVE_INFINITY);
+                tempBoxes.add(Float.NEGATIVE_INFINITY);
+            }
+        }
+    }
+
+    private void buildNode(int node, int begin, int end, int depth, IntArray tempTree, FloatArray tempBoxes, Bins bins, BuildStats stats) {
+        int n = end - begin;
+        if (n == 0) {
+            stats.updateLeaf(depth, 0);
+            return;
+        }
+        // compute node bounds and centroid bounds
+        float[] nodeBox = new float[6];
+        float[] centroidBox = new float[6];
+        for (int axis = 0; axis < 3; axis++) {
+            nodeBox[2 * axis + 0] = centroidBox[2 * axis + 0] = Float.POSITIVE_INFINITY;
+            nodeBox[2 * axis + 1] = centroidBox[2 * axis + 1] = Float.NEGATIVE_INFINITY;
+        }
+        for (int i = begin; i < end; i++) {
+            int obj = objects[i];
+            for (int axis = 0; axis < 3; axis++) {
+                float minb = primBounds[6 * obj + 2 * axis + 0];
+                float maxb = primBounds[6 * obj + 2 * axis + 1];
+                float c = centroids[3 * obj + axis];
+                if (minb < nodeBox[2 * axis + 0])
+                    nodeBox[2 * axis + 0] = minb;
+                if (maxb > nodeBox[2 * axis + 1])
+                    nodeBox[2 * axis + 1] = maxb;
+                if (c < centroidBox[2 * axis + 0])
+                    centroidBox[2 * axis + 0] = c;
+                if (c > centroidBox[2 * axis + 1])
+                    centroidBox[2 * axis + 1] = c;
+            }
+        }
+        for (int i = 0; i < 6; i++)
+            tempBoxes.set(6 * node + i, nodeBox[i]);
+        if (n <= maxPrims || depth >= MAX_DEPTH) {
+            createLeaf(node, begin, n, depth, tempTree, stats);
+            return;
+        }
+        // evaluate the binned SAH along each axis
+        float bestCost = Float.POSITIVE_INFINITY;
+        int bestAxis = -1;
+        int bestBin = -1;
+        for (int axis = 0; axis < 3; axis++) {
+            float cmin = centroidBox[2 * axis + 0];
+            float cmax = centroidBox[2 * axis + 1];
+            if (cmax <= cmin)
+                continue;
+            float scale = NUM_BINS / (cmax - cmin);
+            bins.reset();
+            for (int i = begin; i < end; i++) {
+                int obj = objects[i];
+                int b = binIndex(centroids[3 * obj + axis], cmin, scale);
+                bins.count[b]++;
+                for (int j = 0; j < 3; j++) {
+                    float minb = primBounds[6 * obj + 2 * j + 0];
+                    float maxb = primBounds[6 * obj + 2 * j + 1];
+                    if (minb < bins.bounds[6 * b + 2 * j + 0])
+                        bins.bounds[6 * b + 2 * j + 0] = minb;
+                    if (maxb > bins.bounds[6 * b + 2 * j + 1])
+                        bins.bounds[6 * b + 2 * j + 1] = maxb;
+                }
+            }
+            // sweep from the right to get the area and count of each suffix
+            float[] box = { Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                    Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY,
+                    Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY };
+            int count = 0;
+            for (int b = NUM_BINS - 1; b > 0; b--) {
+                count += bins.count[b];
+                growBox(box, bins.bounds, 6 * b);
+                bins.rightCount[b] = count;
+                bins.rightArea[b] = halfArea(box);
+            }
+            // sweep from the left and evaluate each split plane
+            box[0] = box[2] = box[4] = Float.POSITIVE_INFINITY;
+            box[1] = box[3] = box[5] = Float.NEGATIVE_INFINITY;
+            count = 0;
+            for (int b = 1; b < NUM_BINS; b++) {
+                count += bins.count[b - 1];
+                growBox(box, bins.bounds, 6 * (b - 1));
+                if (count == 0 || bins.rightCount[b] == 0)
+                    continue;
+                float cost = halfArea(box) * count + bins.rightArea[b] * bins.rightCount[b];
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = b;
+                }
+            }
+        }
+        int mid;
+        if (bestAxis == -1) {
+            // all centroids are in the same spot, no split plane can separate
+            // them
+            if (n <= MAX_LEAF_SIZE) {
+                createLeaf(node, begin, n, depth, tempTree, stats);
+                return;
+            }
+            // just cut the list in half to keep leaves small
+            mid = (begin + end) >>> 1;
+        } else {
+            float splitCost = TRAVERSAL_COST + INTERSECT_COST * bestCost / halfArea(nodeBox);
+            if (splitCost >= INTERSECT_COST * n && n <= MAX_LEAF_SIZE) {
+                createLeaf(node, begin, n, depth, tempTree, stats);
+                return;
+            }
+            // partition objects around the chosen bin
+            float cmin = centroidBox[2 * bestAxis + 0];
+            float scale = NUM_BINS / (centroidBox[2 * bestAxis + 1] - cmin);
+            int i = begin, j = end - 1;
+            while (i <= j) {
+                if (binIndex(centroids[3 * objects[i] + bestAxis], cmin, scale) < bestBin)
+                    i++;
+                else {
+                    int tmp = objects[i];
+                    objects[i] = objects[j];
+                    objects[j] = tmp;
+                    j--;
+                }
+            }
+            mid = i;
+        }
+        // allocate both children next to each other
+        int left = tempTree.getSize() / 2;
+        allocateNodes(tempTree, tempBoxes, 2);
+        tempTree.set(2 * node + 0, left);
+        tempTree.set(2 * node + 1, -1);
+        stats.updateInner();
+        SubtreeBuilder leftBuilder = startSubtree(begin, mid, depth + 1);
+        if (leftBuilder == null)
+            buildNode(left, begin, mid, depth + 1, tempTree, tempBoxes, bins, stats);
+        buildNode(left + 1, mid, end, depth + 1, tempTree, tempBoxes, bins, stats);
+        if (leftBuilder != null)
+            leftBuilder.merge(tempTree, tempBoxes, left, stats);
+    }
+
+    private static void createLeaf(int node, int begin, int n, int depth, IntArray tempTree, BuildStats stats) {
+        tempTree.set(2 * node + 0, begin);
+        tempTree.set(2 * node + 1, n);
+        stats.updateLeaf(depth, n);
+    }
+
+    private static int binIndex(float c, float cmin, float scale) {
+        int b = (int) ((c - cmin) * scale);
+        return b < NUM_BINS ? b : NUM_BINS - 1;
+    }
+
+    private static void growBox(float[] box, float[] src, int offset) {
+        for (int i = 0; i < 6; i += 2) {
+            if (src[offset + i] < box[i])
+                box[i] = src[offset + i];
+            if (src[offset + i + 1] > box[i + 1])
+                box[i + 1] = src[offset + i + 1];
+        }
+    }
+
+    private static float halfArea(float[] box) {
+        return halfArea(box, 0);
+    }
+
+    private static float halfArea(float[] box, int offset) {
+        float dx = box[offset + 1] - box[offset + 0];
+        float dy = box[offset + 3] - box[offset + 2];
+        float dz = box[offset + 5] - box[offset + 4];
+        return dx * dy + dy * dz + dz * dx;
+    }
+
+    /**
+     * Estimate the cost of tracing a ray through the tree with the surface
+     * area heuristic, relative to the area of the root node.
+     */
+    private float computeCost() {
+        float rootArea = halfArea(boxes, 0);
+        if (!(rootArea > 0))
+            return 0;
+        float cost = 0;
+        for (int node = 0; node < tree.length / 2; node++) {
+            int count = tree[2 * node + 1];
+            if (count < 0)
+                cost += TRAVERSAL_COST * halfArea(boxes, 6 * node);
+            else if (count > 0)
+                cost += INTERSECT_COST * count * halfArea(boxes, 6 * node);
+        }
+        return cost / rootArea;
+    }
+
+    /**
+     * Start building the specified subtree on a separate thread if it is big
+     * enough and a build thread is available.
+     * 
+     * @return the thread building the subtree, or <code>null</code> if the
+     *         subtree should be built by the caller
+     */
+    private SubtreeBuilder startSubtree(int begin, int end, int depth) {
+        if (end - begin < PARALLEL_BUILD_THRESHOLD)
+            return null;
+        if (!BuildThreads.acquire())
+            return null;
+        SubtreeBuilder builder = new SubtreeBuilder(begin, end, depth);
+        builder.start();
+        return builder;
+    }
+
+    /**
+     * Builds a subtree into its own node lists, which are appended to the
+     * parent's lists once the thread is done. Subtrees work on disjoint ranges
+     * of the object list, so leaf offsets never need to be relocated.
+     */
+    private final class SubtreeBuilder extends Thread {
+        private final int begin, end, depth;
+        private IntArray tempTree;
+        private FloatArray tempBoxes;
+        private BuildStats stats;
+        private Throwable failure;
+
+        SubtreeBuilder(int begin, int end, int depth) {
+            this.begin = begin;
+            this.end = end;
+            this.depth = depth;
+            tempTree = new IntArray();
+            tempBoxes = new FloatArray();
+            stats = new BuildStats();
+        }
+
+        @Override
+        public void run() {
+            try {
+                allocateNodes(tempTree, tempBoxes, 1);
+                buildNode(0, begin, end, depth, tempTree, tempBoxes, new Bins(), stats);
+            } catch (Throwable t) {
+                // reported to the parent build when it merges the subtree
+                failure = t;
+            } finally {
+                BuildThreads.release();
+            }
+        }
+
+        /**
+         * Wait for the subtree to be complete and copy it into the specified
+         * lists. The root of the subtree is written at the specified node and
+         * all other nodes are appended, with their child offsets relocated.
+         * If the subtree could not be built, the error which stopped the
+         * build thread is rethrown here.
+         */
+        void merge(IntArray parentTree, FloatArray parentBoxes, int node, BuildStats parentStats) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.ACCEL, "BVH subtree build was interrupted");
+            }
+            if (failure instanceof Error)
+                throw (Error) failure;
+            if (failure != null)
+                throw (RuntimeException) failure;
+            int[] nodes = tempTree.trim();
+            float[] bounds = tempBoxes.trim();
+            tempTree = null;
+            tempBoxes = null;
+            // local node indices start at 1 since the root is stored apart
+            int nodeBase = parentTree.getSize() / 2 - 1;
+            for (int i = 0; i < nodes.length / 2; i++) {
+                int offset = nodes[2 * i + 0];
+                int count = nodes[2 * i + 1];
+                if (count < 0)
+                    offset += nodeBase;
+                if (i == 0) {
+                    parentTree.set(2 * node + 0, offset);
+                    parentTree.set(2 * node + 1, count);
+                    for (int j = 0; j < 6; j++)
+                        parentBoxes.set(6 * node + j, bounds[j]);
+                } else {
+                    parentTree.add(offset);
+                    parentTree.add(count);
+                    for (int j = 0; j < 6; j++)
+                        parentBoxes.add(bounds[6 * i + j]);
+                }
+            }
+            parentStats.updateSubtrees(stats);
+        }
+    }
+
+    public void save(DataOutputStream out) throws IOException {
+        AccelerationCache.writeArray(out, tree);
+        AccelerationCache.writeArray(out, boxes);
+        AccelerationCache.writeArray(out, objects);
+    }
+
+    public void load(PrimitiveList primitives, IntBuffer in) {
+        this.primitives = primitives;
+        tree = AccelerationCache.readIntArray(in);
+        boxes = AccelerationCache.readFloatArray(in);
+        objects = AccelerationCache.readIntArray(in);
+        builtCost = computeCost();
+    }
+
+    public boolean refit(PrimitiveList primitives) {
+        if (tree == null || primitives.getNumPrimitives() != objects.length)
+            return false;
+        Timer t = new Timer();
+        t.start();
+        this.primitives = primitives;
+        // children are always stored after their parent, so walking the nodes
+        // backwards updates them bottom-up
+        for (int node = tree.length / 2 - 1; node >= 0; node--) {
+            int b = 6 * node;
+            int count = tree[2 * node + 1];
+            if (count < 0) {
+                int c = 6 * tree[2 * node + 0];
+                for (int i = 0; i < 6; i += 2) {
+                    boxes[b + i] = Math.min(boxes[c + i], boxes[c + 6 + i]);
+                    boxes[b + i + 1] = Math.max(boxes[c + i + 1], boxes[c + 6 + i + 1]);
+                }
+            } else {
+                for (int i = 0; i < 6; i += 2) {
+                    boxes[b + i] = Float.POSITIVE_INFINITY;
+                    boxes[b + i + 1] = Float.NEGATIVE_INFINITY;
+                }
+                int offset = tree[2 * node + 0];
+                for (int j = offset; j < offset + count; j++) {
+                    int obj = objects[j];
+                    for (int i = 0; i < 6; i += 2) {
+                        boxes[b + i] = Math.min(boxes[b + i], primitives.getPrimitiveBound(obj, i));
+                        boxes[b + i + 1] = Math.max(boxes[b + i + 1], primitives.getPrimitiveBound(obj, i + 1));
+                    }
+                }
+            }
+        }
+        float cost = computeCost();
+        t.end();
+        UI.printDetailed(Module.ACCEL, "BVH refit:");
+        UI.printDetailed(Module.ACCEL, "  * SAH cost:       %.2f (built: %.2f)", cost, builtCost);
+        UI.printDetailed(Module.ACCEL, "  * Refit time:     %s", t);
+        return cost <= MAX_REFIT_COST_INCREASE * builtCost;
+    }
+
+    public void intersect(Ray r, IntersectionState state) {
+        traverse(r, state, false);
+    }
+
+    public boolean intersectShadow(Ray r, IntersectionState state) {
+        return traverse(r, state, true);
+    }
+
+    private boolean traverse(Ray r, IntersectionState state, boolean shadow) {
+        float orgX = r.ox, invDirX = 1 / r.dx;
+        float orgY = r.oy, invDirY = 1 / r.dy;
+        float orgZ = r.oz, invDirZ = 1 / r.dz;
+        if (intersectBox(0, r.getMin(), r.getMax(), orgX, orgY, orgZ, invDirX, invDirY, invDirZ) == Float.POSITIVE_INFINITY)
+            return false;
+        IntersectionState.StackNode[] stack = state.getStack();
+        int stackPos = 0;
+        int node = 0;
+        while (true) {
+            int count = tree[2 * node + 1];
+            if (count >= 0) {
+                // leaf - test all objects
+                int offset = tree[2 * node + 0];
+                for (int i = offset; i < offset + count; i++) {
+                    if (shadow) {
+                        if (Occlusion.intersect(primitives, r, objects[i], state))
+                            return true;
+                    } else
+                        primitives.intersectPrimitive(r, objects[i], state);
+                }
+            } else {
+                // inner node - visit the closest child first
+                int left = tree[2 * node + 0];
+                float tmin = r.getMin();
+                float tmax = r.getMax();
+                float nearL = intersectBox(left, tmin, tmax, orgX, orgY, orgZ, invDirX, invDirY, invDirZ);
+                float nearR = intersectBox(left + 1, tmin, tmax, orgX, orgY, orgZ, invDirX, invDirY, invDirZ);
+                if (nearL != Float.POSITIVE_INFINITY) {
+                    if (nearR != Float.POSITIVE_INFINITY) {
+                        // both children are hit - push the far one
+                        if (nearL <= nearR) {
+                            stack[stackPos].node = left + 1;
+                            stack[stackPos].near = nearR;
+                            node = left;
+                        } else {
+                            stack[stackPos].node = left;
+                            stack[stackPos].near = nearL;
+                            node = left + 1;
+                        }
+                        stackPos++;
+                    } else
+                        node = left;
+                    continue;
+                } else if (nearR != Float.POSITIVE_INFINITY) {
+                    node = left + 1;
+                    continue;
+                }
+            }
+            // pop the next node, skipping those beyond the closest hit so far
+            do {
+                if (stackPos == 0)
+                    return false;
+                stackPos--;
+            } while (stack[stackPos].near > r.getMax());
+            node = stack[stackPos].node;
+        }
+    }
+
+    /**
+     * Clip the ray interval against the bounding box of the specified node.
+     * 
+     * @return entry distance of the ray into the box, or
+     *         {@link Float#POSITIVE_INFINITY} if the box is missed
+     */
+    private float intersectBox(int node, float intervalMin, float intervalMax, float orgX, float orgY, float orgZ, float invDirX, float invDirY, float invDirZ) {
+        int b = 6 * node;
+        float t1, t2;
+        t1 = (boxes[b + 0] - orgX) * invDirX;
+        t2 = (boxes[b + 1] - orgX) * invDirX;
+        if (invDirX > 0) {
+            if (t1 > intervalMin)
+                intervalMin = t1;
+            if (t2 < intervalMax)
+                intervalMax = t2;
+        } else {
+            if (t2 > intervalMin)
+                intervalMin = t2;
+            if (t1 < intervalMax)
+                intervalMax = t1;
+        }
+        if (intervalMin > intervalMax)
+            return Float.POSITIVE_INFINITY;
+        t1 = (boxes[b + 2] - orgY) * invDirY;
+        t2 = (boxes[b + 3] - orgY) * invDirY;
+        if (invDirY > 0) {
+            if (t1 > intervalMin)
+                intervalMin = t1;
+            if (t2 < intervalMax)
+                intervalMax = t2;
+        } else {
+            if (t2 > intervalMin)
+                intervalMin = t2;
+            if (t1 < intervalMax)
+                intervalMax = t1;
+        }
+        if (intervalMin > intervalMax)
+            return Float.POSITIVE_INFINITY;
+        t1 = (boxes[b + 4] - orgZ) * invDirZ;
+        t2 = (boxes[b + 5] - orgZ) * invDirZ;
+        if (invDirZ > 0) {
+            if (t1 > intervalMin)
+                intervalMin = t1;
+            if (t2 < intervalMax)
+                intervalMax = t2;
+        } else {
+            if (t2 > intervalMin)
+                intervalMin = t2;
+            if (t1 < intervalMax)
+                intervalMax = t1;
+        }
+        if (intervalMin > intervalMax)
+            return Float.POSITIVE_INFINITY;
+        return intervalMin;
+    }
+}
\ No newline at end of file
@@ -0,0 +1,65 @@
+package org.sunflow.core.accel;
+
+/**
+ * Hands out the extra threads used to build large acceleration structures in
+ * parallel. The budget is shared by all builds and each thread starting a
+ * build is charged against it, so extra threads are only started while fewer
+ * threads than configured are building. Structures built lazily from more
+ * render threads than the budget allows still run on those threads, but get
+ * no extra threads.
+ */
+public final class BuildThreads {
+    private static int threads = 0;
+    private static int busy = 0;
+
+    private BuildThreads() {
+    }
+
+    /**
+     * Sets the number of threads builds may use, including the calling
+     * thread.
+     * 
+     * @param threads number of threads, or 0 to use all processors
+     */
+    public static synchronized void setThreads(int threads) {
+        BuildThreads.threads = threads;
+    }
+
+    /**
+     * @return number of threads a build may use, including the calling thread
+     */
+    static synchronized int getThreads() {
+        return threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+    }
+
+    /**
+     * Charges the calling thread against the budget for the duration of a
+     * build. The calling thread always does its share of the work, so this
+     * never fails. The call must be matched by a call to {@link #release()}
+     * once the build is done.
+     */
+    static synchronized void enter() {
+        busy++;
+    }
+
+    /**
+     * Reserves an extra build thread if one is available. A successful call
+     * must be matched by a call to {@link #release()} once the thread is done.
+     * 
+     * @return <code>true</code> if a thread was reserved
+     */
+    static synchronized boolean acquire() {
+        if (busy >= getThreads())
+            return false;
+        busy++;
+        return true;
+    }
+
+    /**
+     * Gives back a thread charged by {@link #enter()} or reserved by
+     * {@link #acquire()}.
+     */
+    static synchronized void release() {
+        busy--;
+    }
+}
\ No newline at end of file
@@ -1,9 +1,12 @@
 package org.sunflow.core.accel;
 
+import java.io.DataOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.IntBuffer;
 
-import org.sunflow.core.AccelerationStructure;
+import org.sunflow.core.AccelerationCache;
+import org.sunflow.core.CacheableAccelerationStructure;
 import org.sunflow.core.IntersectionState;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
@@ -16,7 +19,7 @@ import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 import org.sunflow.util.IntArray;
 
-public class KDTree implements AccelerationStructure {
+public class KDTree implements CacheableAccelerationStructure {
     private int[] tree;
     private int[] primitives;
     private PrimitiveList primitiveList;
@@ -28,6 +31,7 @@ public class KDTree implements AccelerationStructure {
     private static final float TRAVERSAL_COST = 1;
     private static final float EMPTY_BONUS = 0.2f;
     private static final int MAX_DEPTH = 64;
+    private static final int PARALLEL_BUILD_THRESHOLD = 8192;
 
     private static boolean dump = false;
     private static String dumpPrefix = "kdtree";
@@ -55,6 +59,7 @@ public class KDTree implements AccelerationStructure {
         private int numLeaves3;
         private int numLeaves4;
         private int numLeaves4p;
+        private int numSubtrees;
 
         BuildStats() {
             numNodes = numLeaves = 0;
@@ -70,6 +75,7 @@ public class KDTree implements AccelerationStructure {
             numLeaves3 = 0;
             numLeaves4 = 0;
             numLeaves4p = 0;
+            numSubtrees = 0;
         }
 
         void updateInner() {
@@ -106,6 +112,24 @@ public class KDTree implements AccelerationStructure {
             }
         }
 
+        void updateSubtrees(BuildStats s) {
+            numNodes += s.numNodes;
+            numLeaves += s.numLeaves;
+            sumObjects += s.sumObjects;
+            minObjects = Math.min(s.minObjects, minObjects);
+            maxObjects = Math.max(s.maxObjects, maxObjects);
+            sumDepth += s.sumDepth;
+            minDepth = Math.min(s.minDepth, minDepth);
+            maxDepth = Math.max(s.maxDepth, maxDepth);
+            numLeaves0 += s.numLeaves0;
+            numLeaves1 += s.numLeaves1;
+            numLeaves2 += s.numLeaves2;
+            numLeaves3 += s.numLeaves3;
+            numLeaves4 += s.numLeaves4;
+            numLeaves4p += s.numLeaves4p;
+            numSubtrees += s.numSubtrees + 1;
+        }
+
         void printStats() {
             UI.printDetailed(Module.ACCEL, "KDTree stats:");
             UI.printDetailed(Module.ACCEL, "  * Nodes:          %d", numNodes);
@@ -123,6 +147,7 @@ public class KDTree implements AccelerationStructure {
             UI.printDetailed(Module.ACCEL, "               N=3  %3d%%", 100 * numLeaves3 / numLeaves);
             UI.printDetailed(Module.ACCEL, "               N=4  %3d%%", 100 * numLeaves4 / numLeaves);
             UI.printDetailed(Module.ACCEL, "               N>4  %3d%%", 100 * numLeaves4p / numLeaves);
+            UI.printDetailed(Module.ACCEL, "  * Subtree tasks:  %d", numSubtrees);
         }
     }
 
@@ -139,6 +164,7 @@ public class KDTree implements AccelerationStructure {
         UI.printDetailed(Module.ACCEL, "  * Intersect cost: %.2f", INTERSECT_COST);
         UI.printDetailed(Module.ACCEL, "  * Empty bonus:    %.2f", EMPTY_BONUS);
         UI.printDetailed(Module.ACCEL, "  * Dump leaves:    %s", dump ? "enabled" : "disabled");
+        UI.printDetailed(Module.ACCEL, "  * Build threads:  %d", BuildThreads.getThreads());
         Timer total = new Timer();
         total.start();
         primitiveList = primitives;
@@ -178,7 +204,12 @@ public class KDTree implements AccelerationStructure {
         sorting.end();
         // build the actual tree
         BuildStats stats = new BuildStats();
-        buildTree(bounds.getMinimum().x, bounds.getMaximum().x, bounds.getMinimum().y, bounds.getMaximum().y, bounds.getMinimum().z, bounds.getMaximum().z, task, 1, tempTree, 0, tempList, stats);
+        BuildThreads.enter();
+        try {
+            buildTree(bounds.getMinimum().x, bounds.getMaximum().x, bounds.getMinimum().y, bounds.getMaximum().y, bounds.getMinimum().z, bounds.getMaximum().z, task, 1, tempTree, 0, tempList, stats);
+        } finally {
+            BuildThreads.release();
+        }
         t.end();
         // write out final arrays
         // free some memory
@@ -596,29 +627,41 @@ public class KDTree implements AccelerationStructure {
                 tempTree.set(offset + 0, (bestAxis << 30) | nextOffset);
                 tempTree.set(offset + 1, Float.floatToRawIntBits(bestSplit));
                 // recurse for child nodes - free object arrays after each step
+                // large left children are handed to a separate thread while
+                // this one keeps going with the right child
                 stats.updateInner();
+                SubtreeBuilder left = null;
                 switch (bestAxis) {
                     case 0:
-                        buildTree(minx, bestSplit, miny, maxy, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
+                        left = startSubtree(minx, bestSplit, miny, maxy, minz, maxz, taskL, depth + 1);
+                        if (left == null)
+                            buildTree(minx, bestSplit, miny, maxy, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
                         taskL = null;
                         buildTree(bestSplit, maxx, miny, maxy, minz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
                         taskR = null;
-                        return;
+                        break;
                     case 1:
-                        buildTree(minx, maxx, miny, bestSplit, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
+                        left = startSubtree(minx, maxx, miny, bestSplit, minz, maxz, taskL, depth + 1);
+                        if (left == null)
+                            buildTree(minx, maxx, miny, bestSplit, minz, maxz, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
                         taskL = null;
                         buildTree(minx, maxx, bestSplit, maxy, minz, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
                         taskR = null;
-                        return;
+                        break;
                     case 2:
-                        buildTree(minx, maxx, miny, maxy, minz, bestSplit, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
+                        left = startSubtree(minx, maxx, miny, maxy, minz, bestSplit, taskL, depth + 1);
+                        if (left == null)
+                            buildTree(minx, maxx, miny, maxy, minz, bestSplit, taskL, depth + 1, tempTree, nextOffset, tempList, stats);
                         taskL = null;
                         buildTree(minx, maxx, miny, maxy, bestSplit, maxz, taskR, depth + 1, tempTree, nextOffset + 2, tempList, stats);
                         taskR = null;
-                        return;
+                        break;
                     default:
                         assert false;
                 }
+                if (left != null)
+                    left.merge(tempTree, nextOffset, tempList, stats);
+                return;
             }
         }
         // create leaf node
@@ -640,7 +683,131 @@ public class KDTree implements AccelerationStructure {
         task.splits = null;
     }
 
+    /**
+     * Start building the specified subtree on a separate thread if it is big
+     * enough and a build thread is available.
+     * 
+     * @return the thread building the subtree, or <code>null</code> if the
+     *         subtree should be built by the caller
+     */
+    private SubtreeBuilder startSubtree(float minx, float maxx, float miny, float maxy, float minz, float maxz, BuildTask task, int depth) {
+        if (task.numObjects < PARALLEL_BUILD_THRESHOLD)
+            return null;
+        if (!BuildThreads.acquire())
+            return null;
+        SubtreeBuilder builder = new SubtreeBuilder(minx, maxx, miny, maxy, minz, maxz, task, depth);
+        builder.start();
+        return builder;
+    }
+
+    /**
+     * Builds a subtree into its own node and object lists, which are appended
+     * to the parent's lists once the thread is done.
+     */
+    private final class SubtreeBuilder extends Thread {
+        private final float minx, maxx, miny, maxy, minz, maxz;
+        private final int depth;
+        private BuildTask task;
+        private IntArray tempTree;
+        private IntArray tempList;
+        private BuildStats stats;
+        private Throwable failure;
+
+        SubtreeBuilder(float minx, float maxx, float miny, float maxy, float minz, float maxz, BuildTask task, int depth) {
+            this.minx = minx;
+            this.maxx = maxx;
+            this.miny = miny;
+            this.maxy = maxy;
+            this.minz = minz;
+            this.maxz = maxz;
+            this.depth = depth;
+            // the left/right table is shared by all tasks on one thread
+            this.task = task;
+            task.leftRightTable = new byte[task.leftRightTable.length];
+            tempTree = new IntArray();
+            tempList = new IntArray();
+            stats = new BuildStats();
+        }
+
+        @Override
+        public void run() {
+            try {
+                tempTree.add(0);
+                tempTree.add(1);
+                buildTree(minx, maxx, miny, maxy, minz, maxz, task, depth, tempTree, 0, tempList, stats);
+            } catch (Throwable t) {
+                // reported to the parent build when it merges the subtree
+                failure = t;
+            } finally {
+                task = null;
+                BuildThreads.release();
+            }
+        }
+
+        /**
+         * Wait for the subtree to be complete and copy it into the specified
+         * lists. The root of the subtree is written at the specified offset
+         * and all other nodes are appended, with their child and object
+         * offsets relocated. If the subtree could not be built, the error
+         * which stopped the build thread is rethrown here.
+         */
+        void merge(IntArray parentTree, int offset, IntArray parentList, BuildStats parentStats) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.ACCEL, "KDTree subtree build was interrupted");
+            }
+            if (failure instanceof Error)
+                throw (Error) failure;
+            if (failure != null)
+                throw (RuntimeException) failure;
+            int[] nodes = tempTree.trim();
+            int[] objects = tempList.trim();
+            tempTree = tempList = null;
+            // local node offsets start at 2 since the root is stored apart
+            int treeBase = parentTree.getSize() - 2;
+            int listBase = parentList.getSize();
+            for (int i = 0; i < nodes.length; i += 2) {
+                int tn = nodes[i];
+                if ((tn & (3 << 30)) == (3 << 30))
+                    tn = (3 << 30) | ((tn & ~(3 << 30)) + listBase);
+                else
+                    tn = (tn & (3 << 30)) | ((tn & ~(3 << 30)) + treeBase);
+                if (i == 0) {
+                    parentTree.set(offset + 0, tn);
+                    parentTree.set(offset + 1, nodes[1]);
+                } else {
+                    parentTree.add(tn);
+                    parentTree.add(nodes[i + 1]);
+                }
+            }
+            for (int i = 0; i < objects.length; i++)
+                parentList.add(objects[i]);
+            parentStats.updateSubtrees(stats);
+        }
+    }
+
+    public void save(DataOutputStream out) throws IOException {
+        AccelerationCache.writeArray(out, tree);
+        AccelerationCache.writeArray(out, primitives);
+    }
+
+    public void load(PrimitiveList primitives, IntBuffer in) {
+        primitiveList = primitives;
+        bounds = primitives.getWorldBounds(null);
+        tree = AccelerationCache.readIntArray(in);
+        this.primitives = AccelerationCache.readIntArray(in);
+    }
+
     public void intersect(Ray r, IntersectionState state) {
+        traverse(r, state, false);
+    }
+
+    public boolean intersectShadow(Ray r, IntersectionState state) {
+        return traverse(r, state, true);
+    }
+
+    private boolean traverse(Ray r, IntersectionState state, boolean shadow) {
         float intervalMin = r.getMin();
         float intervalMax = r.getMax();
         float orgX = r.ox;
@@ -660,7 +827,7 @@ public class KDTree implements AccelerationStructure {
                 intervalMax = t1;
         }
         if (intervalMin > intervalMax)
-            return;
+            return false;
         float orgY = r.oy;
         float dirY = r.dy, invDirY = 1 / dirY;
         t1 = (bounds.getMinimum().y - orgY) * invDirY;
@@ -677,7 +844,7 @@ public class KDTree implements AccelerationStructure {
                 intervalMax = t1;
         }
         if (intervalMin > intervalMax)
-            return;
+            return false;
         float orgZ = r.oz;
         float dirZ = r.dz, invDirZ = 1 / dirZ;
         t1 = (bounds.getMinimum().z - orgZ) * invDirZ;
@@ -694,7 +861,7 @@ public class KDTree implements AccelerationStructure {
                 intervalMax = t1;
         }
         if (intervalMin > intervalMax)
-            return;
+            return false;
 
         // compute custom offsets from direction sign bit
         int offsetXFront = (Float.floatToRawIntBits(dirX) & (1 << 31)) >>> 30;
@@ -773,17 +940,27 @@ public class KDTree implements AccelerationStructure {
                 default: {
                     // leaf - test some objects
                     int n = tree[node + 1];
-                    while (n > 0) {
-                        primitiveList.intersectPrimitive(r, primitives[offset], state);
-                        n--;
-                        offset++;
+                    if (shadow) {
+                        // any hit will do - stop right away
+                        while (n > 0) {
+                            if (Occlusion.intersect(primitiveList, r, primitives[offset], state))
+                                return true;
+                            n--;
+                            offset++;
+                        }
+                    } else {
+                        while (n > 0) {
+                            primitiveList.intersectPrimitive(r, primitives[offset], state);
+                            n--;
+                            offset++;
+                        }
                     }
                     if (r.getMax() < intervalMax)
-                        return;
+                        return false;
                     do {
                         // stack is empty?
                         if (stackPos == 0)
-                            return;
+                            return false;
                         // move back up the stack
                         stackPos--;
                         intervalMin = stack[stackPos].near;
@@ -23,4 +23,11 @@ public class NullAccelerator implements AccelerationStructure {
         for (int i = 0; i < n; i++)
             primitives.intersectPrimitive(r, i, state);
     }
+
+    public boolean intersectShadow(Ray r, IntersectionState state) {
+        for (int i = 0; i < n; i++)
+            if (Occlusion.intersect(primitives, r, i, state))
+                return true;
+        return false;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,32 @@
+package org.sunflow.core.accel;
+
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.PrimitiveList;
+import org.sunflow.core.Ray;
+import org.sunflow.core.ShadowPrimitiveList;
+
+/**
+ * Shared occlusion test used by the acceleration structures when tracing
+ * shadow rays.
+ */
+final class Occlusion {
+    private Occlusion() {
+    }
+
+    /**
+     * Test a single primitive for occlusion. Lists which provide an early
+     * exit test use it, the others are intersected normally.
+     * 
+     * @param primitives primitive list
+     * @param r ray in the object's local space
+     * @param primID primitive index to test
+     * @param state intersection state
+     * @return <code>true</code> if the primitive blocks the ray
+     */
+    static boolean intersect(PrimitiveList primitives, Ray r, int primID, IntersectionState state) {
+        if (primitives instanceof ShadowPrimitiveList)
+            return ((ShadowPrimitiveList) primitives).intersectPrimitiveShadow(r, primID, state);
+        primitives.intersectPrimitive(r, primID, state);
+        return state.hit();
+    }
+}
\ No newline at end of file
@@ -100,6 +100,14 @@ public final class UniformGrid implements AccelerationStructure {
     }
 
     public void intersect(Ray r, IntersectionState state) {
+        traverse(r, state, false);
+    }
+
+    public boolean intersectShadow(Ray r, IntersectionState state) {
+        return traverse(r, state, true);
+    }
+
+    private boolean traverse(Ray r, IntersectionState state, boolean shadow) {
         float intervalMin = r.getMin();
         float intervalMax = r.getMax();
         float orgX = r.ox;
@@ -119,7 +127,7 @@ public final class UniformGrid implements AccelerationStructure {
                 intervalMax = t1;
         }
         if (intervalMin > intervalMax)
-            return;
+            return false;
         float orgY = r.oy;
         float dirY = r.dy, invDirY = 1 / dirY;
         t1 = (bounds.getMinimum().y - orgY) * invDirY;
@@ -136,7 +144,7 @@ public final class UniformGrid implements AccelerationStructure {
                 intervalMax = t1;
         }
         if (intervalMin > intervalMax)
-            return;
+            return false;
         float orgZ = r.oz;
         float dirZ = r.dz, invDirZ = 1 / dirZ;
         t1 = (bounds.getMinimum().z - orgZ) * invDirZ;
@@ -153,7 +161,7 @@ public final class UniformGrid implements AccelerationStructure {
                 intervalMax = t1;
         }
         if (intervalMin > intervalMax)
-            return;
+            return false;
         // box is hit at [intervalMin, intervalMax]
         orgX += intervalMin * dirX;
         orgY += intervalMin * dirY;
@@ -239,47 +247,68 @@ public final class UniformGrid implements AccelerationStructure {
         for (;;) {
             if (tnextX < tnextY && tnextX < tnextZ) {
                 if (cells[cell] != null) {
-                    for (int i : cells[cell])
-                        primitives.intersectPrimitive(r, i, state);
+                    if (shadow) {
+                        // any hit will do - stop right away
+                        for (int i : cells[cell])
+                            if (Occlusion.intersect(primitives, r, i, state))
+                                return true;
+                    } else {
+                        for (int i : cells[cell])
+                            primitives.intersectPrimitive(r, i, state);
+                    }
                     if (state.hit() && (r.getMax() < tnextX && r.getMax() < intervalMax))
-                        return;
+                        return false;
                 }
                 intervalMin = tnextX;
                 if (intervalMin > intervalMax)
-                    return;
+                    return false;
                 indxX += stepX;
                 if (indxX == stopX)
-                    return;
+                    return false;
                 tnextX += deltaX;
                 cell += cellstepX;
             } else if (tnextY < tnextZ) {
                 if (cells[cell] != null) {
-                    for (int i : cells[cell])
-                        primitives.intersectPrimitive(r, i, state);
+                    if (shadow) {
+                        // any hit will do - stop right away
+                        for (int i : cells[cell])
+                            if (Occlusion.intersect(primitives, r, i, state))
+                                return true;
+                    } else {
+                        for (int i : cells[cell])
+                            primitives.intersectPrimitive(r, i, state);
+                    }
                     if (state.hit() && (r.getMax() < tnextY && r.getMax() < intervalMax))
-                        return;
+                        return false;
                 }
                 intervalMin = tnextY;
                 if (intervalMin > intervalMax)
-                    return;
+                    return false;
                 indxY += stepY;
                 if (indxY == stopY)
-                    return;
+                    return false;
                 tnextY += deltaY;
                 cell += cellstepY;
             } else {
                 if (cells[cell] != null) {
-                    for (int i : cells[cell])
-                        primitives.intersectPrimitive(r, i, state);
+                    if (shadow) {
+                        // any hit will do - stop right away
+                        for (int i : cells[cell])
+                            if (Occlusion.intersect(primitives, r, i, state))
+                                return true;
+                    } else {
+                        for (int i : cells[cell])
+                            primitives.intersectPrimitive(r, i, state);
+                    }
                     if (state.hit() && (r.getMax() < tnextZ && r.getMax() < intervalMax))
-                        return;
+                        return false;
                 }
                 intervalMin = tnextZ;
                 if (intervalMin > intervalMax)
-                    return;
+                    return false;
                 indxZ += stepZ;
                 if (indxZ == stopZ)
-                    return;
+                    return false;
                 tnextZ += deltaZ;
                 cell += cellstepZ;
             }
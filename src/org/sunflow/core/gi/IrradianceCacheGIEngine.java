@@ -1,31 +1,62 @@
 package org.sunflow.core.gi;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 import org.sunflow.PluginRegistry;
-import org.sunflow.core.GIEngine;
+import org.sunflow.core.CacheableGIEngine;
 import org.sunflow.core.GlobalPhotonMapInterface;
+import org.sunflow.core.IntersectionState;
 import org.sunflow.core.Options;
 import org.sunflow.core.Ray;
 import org.sunflow.core.Scene;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public class IrradianceCacheGIEngine implements GIEngine {
+/**
+ * Irradiance caching with an octree that can be searched and grown by all
+ * render threads at once. Child nodes and samples are published with
+ * compare-and-set operations, so lookups never block and inserts only retry
+ * when another thread modified the same node at the same time.
+ * <p>
+ * The cache can optionally be filled by a low resolution prepass before
+ * rendering starts, and saved to a file once the image is done so that the
+ * next frame or run can start from the same samples. The file records the
+ * scene bounds and cache settings, and is ignored if they no longer match.
+ */
+public class IrradianceCacheGIEngine implements CacheableGIEngine {
+    private static final AtomicReferenceFieldUpdater<Node, Sample> firstUpdater = AtomicReferenceFieldUpdater.newUpdater(Node.class, Sample.class, "first");
+    private static final int FILE_MAGIC = 0x53464943; // "SFIC"
+    private static final int FILE_VERSION = 2;
+
     private int samples;
     private float tolerance;
     private float invTolerance;
     private float minSpacing;
     private float maxSpacing;
     private Node root;
-    private ReentrantReadWriteLock rwl;
     private GlobalPhotonMapInterface globalPhotonMap;
+    private int prepass;
+    private String filename;
+    private int prepassRow;
+    private BoundingBox bounds;
+    private int savedSamples;
 
     public boolean init(Options options, Scene scene) {
         // get settings
@@ -35,10 +66,12 @@ public class IrradianceCacheGIEngine implements GIEngine {
         minSpacing = options.getFloat("gi.irr-cache.min_spacing", 0.05f);
         maxSpacing = options.getFloat("gi.irr-cache.max_spacing", 5.00f);
         root = null;
-        rwl = new ReentrantReadWriteLock();
         globalPhotonMap = PluginRegistry.globalPhotonMapPlugins.createObject(options.getString("gi.irr-cache.gmap", null));
+        prepass = options.getInt("gi.irr-cache.prepass", 0);
+        filename = options.getString("gi.irr-cache.file", null);
         // check settings
         samples = Math.max(0, samples);
+        prepass = Math.max(0, prepass);
         minSpacing = Math.max(0.001f, minSpacing);
         maxSpacing = Math.max(0.001f, maxSpacing);
         // display settings
@@ -49,11 +82,214 @@ public class IrradianceCacheGIEngine implements GIEngine {
         else
             UI.printInfo(Module.LIGHT, "  * Tolerance: %.3f", tolerance);
         UI.printInfo(Module.LIGHT, "  * Spacing: %.3f to %.3f", minSpacing, maxSpacing);
+        if (prepass > 0)
+            UI.printInfo(Module.LIGHT, "  * Prepass: 1/%d resolution", prepass);
+        else
+            UI.printInfo(Module.LIGHT, "  * Prepass: off");
+        UI.printInfo(Module.LIGHT, "  * File: %s", filename == null ? "none" : filename);
         // prepare root node
-        Vector3 ext = scene.getBounds().getExtents();
-        root = new Node(scene.getBounds().getCenter(), 1.0001f * MathUtils.max(ext.x, ext.y, ext.z));
+        bounds = scene.getBounds();
+        savedSamples = 0;
+        Vector3 ext = bounds.getExtents();
+        root = new Node(bounds.getCenter(), 1.0001f * MathUtils.max(ext.x, ext.y, ext.z));
         // init global photon map
-        return (globalPhotonMap != null) ? scene.calculatePhotons(globalPhotonMap, "global", 0, options) : true;
+        if (globalPhotonMap != null && !scene.calculatePhotons(globalPhotonMap, "global", 0, options))
+            return false;
+        if (tolerance <= 0 || samples <= 0)
+            return true;
+        if (filename != null && new File(filename).exists())
+            load(filename);
+        if (prepass > 0 && !renderPrepass(options, scene))
+            return false;
+        return true;
+    }
+
+    public void renderEnd() {
+        // only write the file if the render added samples to it
+        if (filename != null && root != null && root.count() > savedSamples)
+            save(filename);
+    }
+
+    /**
+     * Shade a subset of the image pixels to fill the cache before the final
+     * render starts, so that the final pass mostly interpolates.
+     */
+    private boolean renderPrepass(Options options, final Scene scene) {
+        final int imageWidth = MathUtils.clamp(options.getInt("resolutionX", 640), 1, 1 << 14);
+        final int imageHeight = MathUtils.clamp(options.getInt("resolutionY", 480), 1, 1 << 14);
+        UI.printInfo(Module.LIGHT, "Running irradiance cache prepass ...");
+        UI.taskStart("Irradiance cache prepass", 0, imageHeight);
+        Timer t = new Timer();
+        t.start();
+        prepassRow = 0;
+        Thread[] threads = new Thread[scene.getThreads()];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    IntersectionState istate = new IntersectionState();
+                    for (int y = nextPrepassRow(); y >= 0 && y < imageHeight; y = nextPrepassRow()) {
+                        for (int x = 0; x < imageWidth; x += prepass) {
+                            // shade the center of each block of pixels
+                            float rx = Math.min(x + 0.5f * prepass, imageWidth - 0.5f);
+                            float ry = Math.min(y + 0.5f * prepass, imageHeight - 0.5f);
+                            scene.getRadiance(istate, rx, ry, 0.5, 0.5, 0.5, y * imageWidth + x, 4, null);
+                        }
+                    }
+                }
+            });
+            threads[i].setPriority(scene.getThreadPriority());
+            threads[i].start();
+        }
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.LIGHT, "Prepass thread %d of %d was interrupted", i + 1, threads.length);
+                return false;
+            }
+        }
+        if (UI.taskCanceled()) {
+            UI.taskStop();
+            return false;
+        }
+        t.end();
+        UI.taskStop();
+        UI.printInfo(Module.LIGHT, "Irradiance cache prepass time: %s", t.toString());
+        return true;
+    }
+
+    /**
+     * Get the next image row to be shaded by the prepass.
+     * 
+     * @return row index, or -1 if the task was canceled
+     */
+    private synchronized int nextPrepassRow() {
+        if (UI.taskCanceled())
+            return -1;
+        UI.taskUpdate(prepassRow);
+        int y = prepassRow;
+        prepassRow += prepass;
+        return y;
+    }
+
+    private void load(String filename) {
+        UI.printInfo(Module.LIGHT, "Loading irradiance cache from \"%s\" ...", filename);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename)));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION) {
+                UI.printWarning(Module.LIGHT, "Ignoring invalid irradiance cache file \"%s\"", filename);
+                return;
+            }
+            if (!readSettings(in)) {
+                UI.printWarning(Module.LIGHT, "Ignoring irradiance cache file \"%s\" - it was saved for different scene bounds or cache settings", filename);
+                return;
+            }
+            int n = in.readInt();
+            Point3 p = new Point3();
+            Vector3 normal = new Vector3();
+            for (int i = 0; i < n; i++) {
+                p.x = in.readFloat();
+                p.y = in.readFloat();
+                p.z = in.readFloat();
+                normal.x = in.readFloat();
+                normal.y = in.readFloat();
+                normal.z = in.readFloat();
+                float r0 = in.readFloat();
+                float r = in.readFloat();
+                float g = in.readFloat();
+                float b = in.readFloat();
+                insert(p, normal, r0, new Color(r, g, b));
+            }
+            savedSamples = root.count();
+            UI.printInfo(Module.LIGHT, "  * Loaded %d samples", n);
+        } catch (IOException e) {
+            UI.printWarning(Module.LIGHT, "Unable to read irradiance cache file \"%s\": %s", filename, e.getMessage());
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * Write the values a cache file must match to be reused: the scene bounds,
+     * which place the octree, and the settings controlling sample placement.
+     */
+    private void writeSettings(DataOutputStream out) throws IOException {
+        Point3 min = bounds.getMinimum();
+        Point3 max = bounds.getMaximum();
+        out.writeFloat(min.x);
+        out.writeFloat(min.y);
+        out.writeFloat(min.z);
+        out.writeFloat(max.x);
+        out.writeFloat(max.y);
+        out.writeFloat(max.z);
+        out.writeFloat(tolerance);
+        out.writeFloat(minSpacing);
+        out.writeFloat(maxSpacing);
+    }
+
+    /**
+     * Read the values written by {@link #writeSettings(DataOutputStream)}.
+     * 
+     * @return <code>true</code> if they match the current scene and settings
+     */
+    private boolean readSettings(DataInputStream in) throws IOException {
+        Point3 min = bounds.getMinimum();
+        Point3 max = bounds.getMaximum();
+        boolean match = true;
+        match &= in.readFloat() == min.x;
+        match &= in.readFloat() == min.y;
+        match &= in.readFloat() == min.z;
+        match &= in.readFloat() == max.x;
+        match &= in.readFloat() == max.y;
+        match &= in.readFloat() == max.z;
+        match &= in.readFloat() == tolerance;
+        match &= in.readFloat() == minSpacing;
+        match &= in.readFloat() == maxSpacing;
+        return match;
+    }
+
+    private void save(String filename) {
+        UI.printInfo(Module.LIGHT, "Saving irradiance cache to \"%s\" ...", filename);
+        File file = new File(filename).getAbsoluteFile();
+        File temp = null;
+        DataOutputStream out = null;
+        try {
+            // write to a temporary file first so an interrupted save never
+            // leaves a partial cache behind
+            temp = File.createTempFile("irradiance", ".tmp", file.getParentFile());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            writeSettings(out);
+            out.writeInt(root.count());
+            int n = root.write(out);
+            out.close();
+            out = null;
+            // renaming over an existing file fails on some platforms
+            if (!temp.renameTo(file) && !(file.delete() && temp.renameTo(file))) {
+                UI.printWarning(Module.LIGHT, "Unable to write irradiance cache file \"%s\"", filename);
+                temp.delete();
+            } else {
+                savedSamples = n;
+                UI.printInfo(Module.LIGHT, "  * Saved %d samples", n);
+            }
+        } catch (IOException e) {
+            UI.printWarning(Module.LIGHT, "Unable to write irradiance cache file \"%s\": %s", filename, e.getMessage());
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e1) {
+                }
+            }
+            if (temp != null)
+                temp.delete();
+        }
     }
 
     public Color getGlobalRadiance(ShadingState state) {
@@ -88,10 +324,10 @@ public class IrradianceCacheGIEngine implements GIEngine {
             ShadingState temp = state.traceFinalGather(r, 0);
             return temp != null ? getGlobalRadiance(temp).copy().mul((float) Math.PI) : Color.BLACK;
         }
-        rwl.readLock().lock();
         Color irr = getIrradiance(state.getPoint(), state.getNormal());
-        rwl.readLock().unlock();
-        if (irr == null) {
+        if (irr != null)
+            state.updateIrradianceCacheStats(true, 0);
+        else {
             // compute new sample
             irr = Color.black();
             OrthoNormalBasis onb = state.getBasis();
@@ -121,18 +357,24 @@ public class IrradianceCacheGIEngine implements GIEngine {
             }
             irr.mul((float) Math.PI / samples);
             invR = samples / invR;
-            rwl.writeLock().lock();
-            insert(state.getPoint(), state.getNormal(), invR, irr);
-            rwl.writeLock().unlock();
+            int retries = insert(state.getPoint(), state.getNormal(), invR, irr);
+            state.updateIrradianceCacheStats(false, retries);
             // view irr-cache points
             // irr = Color.YELLOW.copy().mul(1e6f);
         }
         return irr;
     }
 
-    private void insert(Point3 p, Vector3 n, float r0, Color irr) {
+    /**
+     * Add a new sample to the octree.
+     * 
+     * @return number of times the insertion had to be retried because another
+     *         thread was modifying the same node
+     */
+    private int insert(Point3 p, Vector3 n, float r0, Color irr) {
         if (tolerance <= 0)
-            return;
+            return 0;
+        int retries = 0;
         Node node = root;
         r0 = MathUtils.clamp(r0 * tolerance, minSpacing, maxSpacing) * invTolerance;
         if (root.isInside(p)) {
@@ -141,19 +383,30 @@ public class IrradianceCacheGIEngine implements GIEngine {
                 k |= (p.x > node.center.x) ? 1 : 0;
                 k |= (p.y > node.center.y) ? 2 : 0;
                 k |= (p.z > node.center.z) ? 4 : 0;
-                if (node.children[k] == null) {
+                Node child = node.children.get(k);
+                if (child == null) {
                     Point3 c = new Point3(node.center);
                     c.x += ((k & 1) == 0) ? -node.quadSideLength : node.quadSideLength;
                     c.y += ((k & 2) == 0) ? -node.quadSideLength : node.quadSideLength;
                     c.z += ((k & 4) == 0) ? -node.quadSideLength : node.quadSideLength;
-                    node.children[k] = new Node(c, node.halfSideLength);
+                    child = new Node(c, node.halfSideLength);
+                    if (!node.children.compareAndSet(k, null, child)) {
+                        // another thread created this node first, use theirs
+                        child = node.children.get(k);
+                        retries++;
+                    }
                 }
-                node = node.children[k];
+                node = child;
             }
         }
         Sample s = new Sample(p, n, r0, irr);
-        s.next = node.first;
-        node.first = s;
+        while (true) {
+            Sample head = node.first;
+            s.next = head;
+            if (firstUpdater.compareAndSet(node, head, s))
+                return retries;
+            retries++;
+        }
     }
 
     private Color getIrradiance(Point3 p, Vector3 n) {
@@ -165,17 +418,15 @@ public class IrradianceCacheGIEngine implements GIEngine {
     }
 
     private final class Node {
-        Node[] children;
-        Sample first;
+        final AtomicReferenceArray<Node> children;
+        volatile Sample first;
         Point3 center;
         float sideLength;
         float halfSideLength;
         float quadSideLength;
 
         Node(Point3 center, float sideLength) {
-            children = new Node[8];
-            for (int i = 0; i < 8; i++)
-                children[i] = null;
+            children = new AtomicReferenceArray<Node>(8);
             this.center = new Point3(center);
             this.sideLength = sideLength;
             halfSideLength = 0.5f * sideLength;
@@ -204,11 +455,47 @@ public class IrradianceCacheGIEngine implements GIEngine {
                     weight += wi;
                 }
             }
-            for (int i = 0; i < 8; i++)
-                if ((children[i] != null) && (Math.abs(children[i].center.x - x.pix) <= halfSideLength) && (Math.abs(children[i].center.y - x.piy) <= halfSideLength) && (Math.abs(children[i].center.z - x.piz) <= halfSideLength))
-                    weight += children[i].find(x);
+            for (int i = 0; i < 8; i++) {
+                Node child = children.get(i);
+                if ((child != null) && (Math.abs(child.center.x - x.pix) <= halfSideLength) && (Math.abs(child.center.y - x.piy) <= halfSideLength) && (Math.abs(child.center.z - x.piz) <= halfSideLength))
+                    weight += child.find(x);
+            }
             return weight;
         }
+
+        final int count() {
+            int n = 0;
+            for (Sample s = first; s != null; s = s.next)
+                n++;
+            for (int i = 0; i < 8; i++) {
+                Node child = children.get(i);
+                if (child != null)
+                    n += child.count();
+            }
+            return n;
+        }
+
+        final int write(DataOutputStream out) throws IOException {
+            int n = 0;
+            for (Sample s = first; s != null; s = s.next, n++) {
+                out.writeFloat(s.pix);
+                out.writeFloat(s.piy);
+                out.writeFloat(s.piz);
+                out.writeFloat(s.nix);
+                out.writeFloat(s.niy);
+                out.writeFloat(s.niz);
+                out.writeFloat(1.0f / s.invR0);
+                out.writeFloat(s.irr.getR());
+                out.writeFloat(s.irr.getG());
+                out.writeFloat(s.irr.getB());
+            }
+            for (int i = 0; i < 8; i++) {
+                Node child = children.get(i);
+                if (child != null)
+                    n += child.write(out);
+            }
+            return n;
+        }
     }
 
     private static final class Sample {
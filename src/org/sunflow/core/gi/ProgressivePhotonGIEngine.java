@@ -0,0 +1,406 @@
+package org.sunflow.core.gi;
+
+import org.sunflow.core.GIEngine;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.Options;
+import org.sunflow.core.PhotonStore;
+import org.sunflow.core.Scene;
+import org.sunflow.core.ShadingState;
+import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.MathUtils;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+import org.sunflow.system.Memory;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+import org.sunflow.util.FloatArray;
+
+/**
+ * Progressive photon mapping. A prepass records the first diffuse hit point
+ * seen through every pixel. Photons are then traced in several passes and
+ * splatted directly into the statistics of the hit points around them, so no
+ * photons are ever stored. After each pass the gather radius of every hit
+ * point shrinks according to the number of photons it received, which makes
+ * the estimate converge as more passes are traced while memory only depends
+ * on the image resolution.
+ * <p>
+ * Photons arriving straight from the lights are ignored since direct lighting
+ * is sampled by the shaders. Caustic paths are included unless a caustic
+ * photon map is enabled.
+ */
+public class ProgressivePhotonGIEngine implements GIEngine {
+    private static final int NUM_LOCKS = 64;
+    private static final int MAX_SEARCH_STEPS = 4;
+
+    private int numEmit;
+    private int numPasses;
+    private float initialRadius;
+    private float alpha;
+    private boolean skipCaustics;
+
+    private volatile boolean collecting;
+    private FloatArray hitPointList;
+    private int collectRow;
+
+    private int numHitPoints;
+    private float[] positions;
+    private float[] normals;
+    private float[] radius2;
+    private float[] numPhotons;
+    private float[] flux;
+    private int[] passPhotons;
+    private float[] passFlux;
+    private int passesDone;
+    private Object[] locks;
+
+    // spatial hash of the hit points
+    private BoundingBox bounds;
+    private float invCellSize;
+    private int hashMask;
+    private int[] cellStart;
+    private int[] cellHitPoints;
+
+    public boolean init(Options options, Scene scene) {
+        // get settings
+        numEmit = options.getInt("gi.ppm.emit", 100000);
+        numPasses = options.getInt("gi.ppm.passes", 16);
+        Vector3 ext = scene.getBounds().getExtents();
+        initialRadius = options.getFloat("gi.ppm.radius", 0.01f * MathUtils.max(ext.x, ext.y, ext.z));
+        alpha = options.getFloat("gi.ppm.alpha", 0.7f);
+        skipCaustics = options.getString("caustics", null) != null;
+        // check settings
+        numEmit = Math.max(0, numEmit);
+        numPasses = Math.max(0, numPasses);
+        alpha = MathUtils.clamp(alpha, 0.01f, 1.0f);
+        // display settings
+        UI.printInfo(Module.LIGHT, "Progressive photon mapping settings:");
+        UI.printInfo(Module.LIGHT, "  * Photons/pass:   %d", numEmit);
+        UI.printInfo(Module.LIGHT, "  * Passes:         %d", numPasses);
+        UI.printInfo(Module.LIGHT, "  * Initial radius: %.3f", initialRadius);
+        UI.printInfo(Module.LIGHT, "  * Alpha:          %.3f", alpha);
+        UI.printInfo(Module.LIGHT, "  * Caustics:       %s", skipCaustics ? "from caustic map" : "included");
+        numHitPoints = 0;
+        passesDone = 0;
+        if (numEmit <= 0 || numPasses <= 0 || initialRadius <= 0)
+            return true;
+        if (!collectHitPoints(options, scene))
+            return false;
+        buildHash(scene.getBounds());
+        Timer t = new Timer();
+        t.start();
+        PassStore store = new PassStore();
+        for (int i = 0; i < numPasses; i++) {
+            if (!scene.calculatePhotons(store, "progressive", i * numEmit, options))
+                return false;
+        }
+        t.end();
+        float avgRadius = 0;
+        for (int i = 0; i < numHitPoints; i++)
+            avgRadius += (float) Math.sqrt(radius2[i]);
+        if (numHitPoints > 0)
+            avgRadius /= numHitPoints;
+        UI.printInfo(Module.LIGHT, "Progressive photon map:");
+        UI.printInfo(Module.LIGHT, "  * Hit points:     %d", numHitPoints);
+        UI.printInfo(Module.LIGHT, "  * Hit point mem:  %s", Memory.bytesToString(4L * 15 * numHitPoints));
+        UI.printInfo(Module.LIGHT, "  * Photons traced: %d", (long) numEmit * numPasses);
+        UI.printInfo(Module.LIGHT, "  * Average radius: %.4f", avgRadius);
+        UI.printInfo(Module.LIGHT, "  * Photon passes:  %s", t.toString());
+        return true;
+    }
+
+    /**
+     * Shade every pixel once to record the diffuse surfaces seen through it.
+     * The shaders call {@link #getIrradiance(ShadingState, Color)} for each of
+     * them, which stores the hit point instead of computing anything.
+     */
+    private boolean collectHitPoints(Options options, final Scene scene) {
+        final int imageWidth = MathUtils.clamp(options.getInt("resolutionX", 640), 1, 1 << 14);
+        final int imageHeight = MathUtils.clamp(options.getInt("resolutionY", 480), 1, 1 << 14);
+        UI.printInfo(Module.LIGHT, "Collecting progressive photon map hit points ...");
+        UI.taskStart("Collecting hit points", 0, imageHeight);
+        Timer t = new Timer();
+        t.start();
+        hitPointList = new FloatArray();
+        collectRow = 0;
+        collecting = true;
+        Thread[] threads = new Thread[scene.getThreads()];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    IntersectionState istate = new IntersectionState();
+                    for (int y = nextCollectRow(); y >= 0 && y < imageHeight; y = nextCollectRow()) {
+                        for (int x = 0; x < imageWidth; x++)
+                            scene.getRadiance(istate, x + 0.5f, y + 0.5f, 0.5, 0.5, 0.5, y * imageWidth + x, 4, null);
+                    }
+                }
+            });
+            threads[i].setPriority(scene.getThreadPriority());
+            threads[i].start();
+        }
+        boolean interrupted = false;
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.LIGHT, "Hit point thread %d of %d was interrupted", i + 1, threads.length);
+                interrupted = true;
+            }
+        }
+        collecting = false;
+        if (interrupted || UI.taskCanceled()) {
+            UI.taskStop();
+            hitPointList = null;
+            return false;
+        }
+        // unpack the hit points
+        float[] data = hitPointList.trim();
+        hitPointList = null;
+        numHitPoints = data.length / 6;
+        positions = new float[3 * numHitPoints];
+        normals = new float[3 * numHitPoints];
+        for (int i = 0; i < numHitPoints; i++) {
+            System.arraycopy(data, 6 * i + 0, positions, 3 * i, 3);
+            System.arraycopy(data, 6 * i + 3, normals, 3 * i, 3);
+        }
+        radius2 = new float[numHitPoints];
+        numPhotons = new float[numHitPoints];
+        flux = new float[3 * numHitPoints];
+        passPhotons = new int[numHitPoints];
+        passFlux = new float[3 * numHitPoints];
+        for (int i = 0; i < numHitPoints; i++)
+            radius2[i] = initialRadius * initialRadius;
+        locks = new Object[NUM_LOCKS];
+        for (int i = 0; i < NUM_LOCKS; i++)
+            locks[i] = new Object();
+        t.end();
+        UI.taskStop();
+        UI.printInfo(Module.LIGHT, "Hit point collection time: %s", t.toString());
+        return true;
+    }
+
+    private synchronized int nextCollectRow() {
+        if (UI.taskCanceled())
+            return -1;
+        UI.taskUpdate(collectRow);
+        return collectRow++;
+    }
+
+    private synchronized void addHitPoint(Point3 p, Vector3 n) {
+        hitPointList.add(p.x);
+        hitPointList.add(p.y);
+        hitPointList.add(p.z);
+        hitPointList.add(n.x);
+        hitPointList.add(n.y);
+        hitPointList.add(n.z);
+    }
+
+    /**
+     * Sorts the hit points into a hashed grid with cells as big as the
+     * initial radius. Radii only ever shrink, so the grid stays valid for all
+     * passes.
+     */
+    private void buildHash(BoundingBox sceneBounds) {
+        bounds = new BoundingBox(sceneBounds);
+        invCellSize = 1.0f / initialRadius;
+        int hashSize = 1;
+        while (hashSize < numHitPoints)
+            hashSize <<= 1;
+        hashMask = hashSize - 1;
+        cellStart = new int[hashSize + 1];
+        cellHitPoints = new int[numHitPoints];
+        for (int i = 0; i < numHitPoints; i++)
+            cellStart[hash(cellX(positions[3 * i + 0]), cellY(positions[3 * i + 1]), cellZ(positions[3 * i + 2])) + 1]++;
+        for (int i = 0; i < hashSize; i++)
+            cellStart[i + 1] += cellStart[i];
+        int[] offsets = new int[hashSize];
+        System.arraycopy(cellStart, 0, offsets, 0, hashSize);
+        for (int i = 0; i < numHitPoints; i++)
+            cellHitPoints[offsets[hash(cellX(positions[3 * i + 0]), cellY(positions[3 * i + 1]), cellZ(positions[3 * i + 2]))]++] = i;
+    }
+
+    private int cellX(float x) {
+        return (int) Math.floor((x - bounds.getMinimum().x) * invCellSize);
+    }
+
+    private int cellY(float y) {
+        return (int) Math.floor((y - bounds.getMinimum().y) * invCellSize);
+    }
+
+    private int cellZ(float z) {
+        return (int) Math.floor((z - bounds.getMinimum().z) * invCellSize);
+    }
+
+    private int hash(int x, int y, int z) {
+        return ((x * 73856093) ^ (y * 19349663) ^ (z * 83492791)) & hashMask;
+    }
+
+    /**
+     * Checks if the specified hit point lies in the specified cell. Several
+     * cells share the same hash entry, this keeps a hit point from being
+     * visited once per cell.
+     */
+    private boolean inCell(int i, int x, int y, int z) {
+        return cellX(positions[3 * i + 0]) == x && cellY(positions[3 * i + 1]) == y && cellZ(positions[3 * i + 2]) == z;
+    }
+
+    public Color getGlobalRadiance(ShadingState state) {
+        return Color.BLACK;
+    }
+
+    public Color getIrradiance(ShadingState state, Color diffuseReflectance) {
+        if (collecting) {
+            if (state.getDiffuseDepth() == 0)
+                addHitPoint(state.getPoint(), state.getNormal());
+            return Color.BLACK;
+        }
+        if (numHitPoints == 0 || passesDone == 0)
+            return Color.BLACK;
+        // find the nearest hit point facing the same way, widening the search
+        // if the shading point falls in between hit points
+        int nearest = -1;
+        float r = initialRadius;
+        for (int i = 0; i < MAX_SEARCH_STEPS && nearest < 0; i++, r *= 2)
+            nearest = findNearest(state.getPoint(), state.getNormal(), r);
+        if (nearest < 0)
+            return Color.BLACK;
+        float scale = 1.0f / ((float) Math.PI * radius2[nearest] * passesDone);
+        return new Color(flux[3 * nearest + 0], flux[3 * nearest + 1], flux[3 * nearest + 2]).mul(scale);
+    }
+
+    /**
+     * Find the closest hit point within the specified distance whose normal
+     * is close to the specified one.
+     * 
+     * @return index of the hit point, or -1 if there is none
+     */
+    private int findNearest(Point3 p, Vector3 n, float radius) {
+        int nearest = -1;
+        float nearestDist2 = radius * radius;
+        int x0 = cellX(p.x - radius), x1 = cellX(p.x + radius);
+        int y0 = cellY(p.y - radius), y1 = cellY(p.y + radius);
+        int z0 = cellZ(p.z - radius), z1 = cellZ(p.z + radius);
+        for (int z = z0; z <= z1; z++) {
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    int h = hash(x, y, z);
+                    for (int j = cellStart[h]; j < cellStart[h + 1]; j++) {
+                        int i = cellHitPoints[j];
+                        if (!inCell(i, x, y, z))
+                            continue;
+                        float dx = positions[3 * i + 0] - p.x;
+                        float dy = positions[3 * i + 1] - p.y;
+                        float dz = positions[3 * i + 2] - p.z;
+                        float d2 = dx * dx + dy * dy + dz * dz;
+                        if (d2 < nearestDist2 && normals[3 * i + 0] * n.x + normals[3 * i + 1] * n.y + normals[3 * i + 2] * n.z > 0.9f) {
+                            nearest = i;
+                            nearestDist2 = d2;
+                        }
+                    }
+                }
+            }
+        }
+        return nearest;
+    }
+
+    /**
+     * Splat a photon into all hit points whose radius contains it.
+     */
+    private void splat(Point3 p, Vector3 n, Vector3 dir, Color power) {
+        float[] rgb = power.getRGB();
+        int x0 = cellX(p.x - initialRadius), x1 = cellX(p.x + initialRadius);
+        int y0 = cellY(p.y - initialRadius), y1 = cellY(p.y + initialRadius);
+        int z0 = cellZ(p.z - initialRadius), z1 = cellZ(p.z + initialRadius);
+        for (int z = z0; z <= z1; z++) {
+            for (int y = y0; y <= y1; y++) {
+                for (int x = x0; x <= x1; x++) {
+                    int h = hash(x, y, z);
+                    for (int j = cellStart[h]; j < cellStart[h + 1]; j++) {
+                        int i = cellHitPoints[j];
+                        if (!inCell(i, x, y, z))
+                            continue;
+                        float nx = normals[3 * i + 0];
+                        float ny = normals[3 * i + 1];
+                        float nz = normals[3 * i + 2];
+                        // photon must arrive from the front of a similar surface
+                        if (nx * dir.x + ny * dir.y + nz * dir.z >= 0 || nx * n.x + ny * n.y + nz * n.z < 0.9f)
+                            continue;
+                        float dx = positions[3 * i + 0] - p.x;
+                        float dy = positions[3 * i + 1] - p.y;
+                        float dz = positions[3 * i + 2] - p.z;
+                        if (dx * dx + dy * dy + dz * dz >= radius2[i])
+                            continue;
+                        synchronized (locks[i & (NUM_LOCKS - 1)]) {
+                            passPhotons[i]++;
+                            passFlux[3 * i + 0] += rgb[0];
+                            passFlux[3 * i + 1] += rgb[1];
+                            passFlux[3 * i + 2] += rgb[2];
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Shrink the radius of every hit point that received photons during the
+     * last pass and fold the new photons into its accumulated flux.
+     */
+    private void finishPass() {
+        for (int i = 0; i < numHitPoints; i++) {
+            int m = passPhotons[i];
+            if (m == 0)
+                continue;
+            float n = numPhotons[i] + alpha * m;
+            float ratio = n / (numPhotons[i] + m);
+            radius2[i] *= ratio;
+            for (int k = 0; k < 3; k++) {
+                flux[3 * i + k] = (flux[3 * i + k] + passFlux[3 * i + k]) * ratio;
+                passFlux[3 * i + k] = 0;
+            }
+            numPhotons[i] = n;
+            passPhotons[i] = 0;
+        }
+        passesDone++;
+    }
+
+    /**
+     * Receives the photons of one pass. Nothing is stored, the photons are
+     * splatted into the hit points right away.
+     */
+    private final class PassStore implements PhotonStore {
+        public int numEmit() {
+            return numEmit;
+        }
+
+        public void prepare(Options options, BoundingBox sceneBounds) {
+        }
+
+        public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
+            if (state.getDiffuseDepth() == 0) {
+                // direct lighting is computed by the shaders, pure specular
+                // paths are left to the caustic map if there is one
+                if (skipCaustics || (state.getReflectionDepth() == 0 && state.getRefractionDepth() == 0))
+                    return;
+            }
+            splat(state.getPoint(), state.getNormal(), dir, power);
+        }
+
+        public void init() {
+            finishPass();
+        }
+
+        public boolean allowDiffuseBounced() {
+            return true;
+        }
+
+        public boolean allowReflectionBounced() {
+            return true;
+        }
+
+        public boolean allowRefractionBounced() {
+            return true;
+        }
+    }
+}
\ No newline at end of file
@@ -27,8 +27,7 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
     private int numSamples;
     private int numLowSamples;
     private float jacobian;
-    private float[] colHistogram;
-    private float[][] imageHistogram;
+    private ImageHistogram histogram;
     private Vector3[] samples;
     private Vector3[] lowSamples;
     private Color[] colors;
@@ -66,27 +65,18 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
 
         // rebuild histograms if this is a new texture
         if (filename != null) {
-            imageHistogram = new float[b.getWidth()][b.getHeight()];
-            colHistogram = new float[b.getWidth()];
+            float[] weights = new float[b.getWidth() * b.getHeight()];
             float du = 1.0f / b.getWidth();
             float dv = 1.0f / b.getHeight();
-            for (int x = 0; x < b.getWidth(); x++) {
-                for (int y = 0; y < b.getHeight(); y++) {
+            for (int x = 0, i = 0; x < b.getWidth(); x++) {
+                for (int y = 0; y < b.getHeight(); y++, i++) {
                     float u = (x + 0.5f) * du;
                     float v = (y + 0.5f) * dv;
                     Color c = texture.getPixel(u, v);
-                    imageHistogram[x][y] = c.getLuminance() * (float) Math.sin(Math.PI * v);
-                    if (y > 0)
-                        imageHistogram[x][y] += imageHistogram[x][y - 1];
+                    weights[i] = c.getLuminance() * (float) Math.sin(Math.PI * v);
                 }
-                colHistogram[x] = imageHistogram[x][b.getHeight() - 1];
-                if (x > 0)
-                    colHistogram[x] += colHistogram[x - 1];
-                for (int y = 0; y < b.getHeight(); y++)
-                    imageHistogram[x][y] /= imageHistogram[x][b.getHeight() - 1];
             }
-            for (int x = 0; x < b.getWidth(); x++)
-                colHistogram[x] /= colHistogram[b.getWidth() - 1];
+            histogram = new ImageHistogram(weights, b.getWidth(), b.getHeight());
             jacobian = (float) (2 * Math.PI * Math.PI) / (b.getWidth() * b.getHeight());
         }
         // take fixed samples
@@ -111,22 +101,17 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
         for (int i = 0; i < samples.length; i++) {
             double randX = (double) i / (double) samples.length;
             double randY = QMC.halton(0, i);
-            int x = 0;
-            while (randX >= colHistogram[x] && x < colHistogram.length - 1)
-                x++;
-            float[] rowHistogram = imageHistogram[x];
-            int y = 0;
-            while (randY >= rowHistogram[y] && y < rowHistogram.length - 1)
-                y++;
+            int x = histogram.sampleColumn(randX);
+            int y = histogram.sampleRow(x, randY);
             // sample from (x, y)
-            float u = (float) ((x == 0) ? (randX / colHistogram[0]) : ((randX - colHistogram[x - 1]) / (colHistogram[x] - colHistogram[x - 1])));
-            float v = (float) ((y == 0) ? (randY / rowHistogram[0]) : ((randY - rowHistogram[y - 1]) / (rowHistogram[y] - rowHistogram[y - 1])));
+            float u = histogram.getColumnOffset(x, randX);
+            float v = histogram.getRowOffset(x, y, randY);
 
-            float px = ((x == 0) ? colHistogram[0] : (colHistogram[x] - colHistogram[x - 1]));
-            float py = ((y == 0) ? rowHistogram[0] : (rowHistogram[y] - rowHistogram[y - 1]));
+            float px = histogram.getColumnProbability(x);
+            float py = histogram.getRowProbability(x, y);
 
-            float su = (x + u) / colHistogram.length;
-            float sv = (y + v) / rowHistogram.length;
+            float su = (x + u) / histogram.getWidth();
+            float sv = (y + v) / histogram.getHeight();
 
             float invP = (float) Math.sin(sv * Math.PI) * jacobian / (numSamples * px * py);
             samples[i] = getDirection(su, sv);
@@ -173,22 +158,17 @@ public class ImageBasedLight implements PrimitiveList, LightSource, Shader {
                 // getRandom because the light sampling is adaptive
                 double randX = state.getRandom(i, 0, n);
                 double randY = state.getRandom(i, 1, n);
-                int x = 0;
-                while (randX >= colHistogram[x] && x < colHistogram.length - 1)
-                    x++;
-                float[] rowHistogram = imageHistogram[x];
-                int y = 0;
-                while (randY >= rowHistogram[y] && y < rowHistogram.length - 1)
-                    y++;
+                int x = histogram.sampleColumn(randX);
+                int y = histogram.sampleRow(x, randY);
                 // sample from (x, y)
-                float u = (float) ((x == 0) ? (randX / colHistogram[0]) : ((randX - colHistogram[x - 1]) / (colHistogram[x] - colHistogram[x - 1])));
-                float v = (float) ((y == 0) ? (randY / rowHistogram[0]) : ((randY - rowHistogram[y - 1]) / (rowHistogram[y] - rowHistogram[y - 1])));
+                float u = histogram.getColumnOffset(x, randX);
+                float v = histogram.getRowOffset(x, y, randY);
 
-                float px = ((x == 0) ? colHistogram[0] : (colHistogram[x] - colHistogram[x - 1]));
-                float py = ((y == 0) ? rowHistogram[0] : (rowHistogram[y] - rowHistogram[y - 1]));
+                float px = histogram.getColumnProbability(x);
+                float py = histogram.getRowProbability(x, y);
 
-                float su = (x + u) / colHistogram.length;
-                float sv = (y + v) / rowHistogram.length;
+                float su = (x + u) / histogram.getWidth();
+                float sv = (y + v) / histogram.getHeight();
                 float invP = (float) Math.sin(sv * Math.PI) * jacobian / (n * px * py);
                 Vector3 dir = getDirection(su, sv);
                 basis.transform(dir);
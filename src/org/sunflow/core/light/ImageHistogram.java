@@ -0,0 +1,133 @@
+package org.sunflow.core.light;
+
+/**
+ * Piecewise constant distribution over the pixels of an image, used to
+ * importance sample environment maps. A column is picked from the cumulative
+ * distribution of the column totals, then a row from the cumulative
+ * distribution of that column. Both lookups are binary searches, and the
+ * per-column tables share a single flat array.
+ */
+final class ImageHistogram {
+    private final int width;
+    private final int height;
+    private final float[] colHistogram;
+    private final float[] imageHistogram;
+
+    /**
+     * Creates the distribution from per-pixel weights. The array is stored
+     * column by column (<code>x * height + y</code>) and is converted in
+     * place, so it must not be used by the caller afterwards.
+     * 
+     * @param weights non-negative pixel weights
+     * @param width number of columns
+     * @param height number of rows
+     */
+    ImageHistogram(float[] weights, int width, int height) {
+        this.width = width;
+        this.height = height;
+        imageHistogram = weights;
+        colHistogram = new float[width];
+        for (int x = 0, offset = 0; x < width; x++, offset += height) {
+            for (int y = 1; y < height; y++)
+                imageHistogram[offset + y] += imageHistogram[offset + y - 1];
+            float total = imageHistogram[offset + height - 1];
+            colHistogram[x] = total;
+            if (x > 0)
+                colHistogram[x] += colHistogram[x - 1];
+            if (total > 0) {
+                for (int y = 0; y < height; y++)
+                    imageHistogram[offset + y] /= total;
+            } else {
+                // empty column, will never be picked
+                for (int y = 0; y < height; y++)
+                    imageHistogram[offset + y] = (float) (y + 1) / height;
+            }
+        }
+        float total = colHistogram[width - 1];
+        for (int x = 0; x < width; x++)
+            colHistogram[x] = total > 0 ? colHistogram[x] / total : (float) (x + 1) / width;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * Find the first entry of a cumulative table which is larger than the
+     * specified value, or the last entry if there are none.
+     */
+    private static int search(float[] cdf, int offset, int n, double rand) {
+        int lo = 0;
+        int hi = n - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (rand < cdf[offset + mid])
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
+    }
+
+    /**
+     * Pick a column of the image.
+     * 
+     * @param randX random number in [0,1)
+     * @return column index
+     */
+    int sampleColumn(double randX) {
+        return search(colHistogram, 0, width, randX);
+    }
+
+    /**
+     * Pick a row within the specified column.
+     * 
+     * @param x column index
+     * @param randY random number in [0,1)
+     * @return row index
+     */
+    int sampleRow(int x, double randY) {
+        return search(imageHistogram, x * height, height, randY);
+    }
+
+    /**
+     * Get the probability of picking the specified column.
+     */
+    float getColumnProbability(int x) {
+        return x == 0 ? colHistogram[0] : colHistogram[x] - colHistogram[x - 1];
+    }
+
+    /**
+     * Get the probability of picking the specified row once its column has
+     * been picked.
+     */
+    float getRowProbability(int x, int y) {
+        int offset = x * height;
+        return y == 0 ? imageHistogram[offset] : imageHistogram[offset + y] - imageHistogram[offset + y - 1];
+    }
+
+    /**
+     * Get the position of the random number within the picked column, used to
+     * place the sample inside the pixel.
+     * 
+     * @return offset in [0,1)
+     */
+    float getColumnOffset(int x, double randX) {
+        return (float) ((x == 0) ? (randX / colHistogram[0]) : ((randX - colHistogram[x - 1]) / (colHistogram[x] - colHistogram[x - 1])));
+    }
+
+    /**
+     * Get the position of the random number within the picked row, used to
+     * place the sample inside the pixel.
+     * 
+     * @return offset in [0,1)
+     */
+    float getRowOffset(int x, int y, double randY) {
+        int offset = x * height;
+        return (float) ((y == 0) ? (randY / imageHistogram[offset]) : ((randY - imageHistogram[offset + y - 1]) / (imageHistogram[offset + y] - imageHistogram[offset + y - 1])));
+    }
+}
\ No newline at end of file
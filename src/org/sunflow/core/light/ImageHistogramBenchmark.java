@@ -0,0 +1,133 @@
+package org.sunflow.core.light;
+
+import org.sunflow.math.QMC;
+import org.sunflow.system.BenchmarkFramework;
+import org.sunflow.system.BenchmarkTest;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Measures the speed of environment map importance sampling. The binary
+ * searches of {@link ImageHistogram} are compared to the linear scans over
+ * per-column tables that {@link ImageBasedLight} used before. A synthetic
+ * lat/long map is used so that no image file is needed.
+ */
+public class ImageHistogramBenchmark {
+    private static final int NUM_SAMPLES = 1 << 20;
+
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        UI.printInfo(Module.BENCH, "Environment sampling benchmark");
+        UI.printInfo(Module.BENCH, "  * Resolution: %dx%d", width, height);
+        UI.printInfo(Module.BENCH, "  * Samples:    %d per iteration", NUM_SAMPLES);
+        float[] weights = createWeights(width, height);
+        LinearScanKernel linear = new LinearScanKernel(weights, width, height);
+        BinarySearchKernel binary = new BinarySearchKernel(weights.clone(), width, height);
+        BenchmarkFramework framework = new BenchmarkFramework(10, 60);
+        UI.printInfo(Module.BENCH, "Linear scan:");
+        framework.execute(linear);
+        UI.printInfo(Module.BENCH, "Binary search:");
+        framework.execute(binary);
+        if (linear.checksum != binary.checksum)
+            UI.printError(Module.BENCH, "Sampling methods picked different pixels");
+        else
+            UI.printInfo(Module.BENCH, "Both methods picked the same pixels");
+    }
+
+    /**
+     * Build the pixel weights of a sky with a small bright sun, scaled by the
+     * solid angle of each row like {@link ImageBasedLight} does.
+     */
+    private static float[] createWeights(int width, int height) {
+        float[] weights = new float[width * height];
+        for (int x = 0, i = 0; x < width; x++) {
+            for (int y = 0; y < height; y++, i++) {
+                float u = (x + 0.5f) / width;
+                float v = (y + 0.5f) / height;
+                float du = u - 0.3f;
+                float dv = v - 0.25f;
+                float lum = 0.2f + 0.8f * (1 - v) + 5000.0f * (float) Math.exp(-(du * du + dv * dv) * 20000);
+                weights[i] = lum * (float) Math.sin(Math.PI * v);
+            }
+        }
+        return weights;
+    }
+
+    private static abstract class SamplingKernel implements BenchmarkTest {
+        private Timer timer = new Timer();
+        long checksum;
+
+        abstract long sample(double randX, double randY);
+
+        public void kernelBegin() {
+            timer.start();
+        }
+
+        public void kernelMain() {
+            long sum = 0;
+            for (int i = 0; i < NUM_SAMPLES; i++)
+                sum += sample((double) i / NUM_SAMPLES, QMC.halton(0, i));
+            checksum = sum;
+        }
+
+        public void kernelEnd() {
+            timer.end();
+            UI.printInfo(Module.BENCH, "  * Samples/sec: %.0f", NUM_SAMPLES / timer.seconds());
+        }
+    }
+
+    /**
+     * The previous sampling code: one cumulative table per column, searched
+     * linearly.
+     */
+    private static final class LinearScanKernel extends SamplingKernel {
+        private final float[] colHistogram;
+        private final float[][] imageHistogram;
+
+        LinearScanKernel(float[] weights, int width, int height) {
+            imageHistogram = new float[width][height];
+            colHistogram = new float[width];
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    imageHistogram[x][y] = weights[x * height + y];
+                    if (y > 0)
+                        imageHistogram[x][y] += imageHistogram[x][y - 1];
+                }
+                colHistogram[x] = imageHistogram[x][height - 1];
+                if (x > 0)
+                    colHistogram[x] += colHistogram[x - 1];
+                for (int y = 0; y < height; y++)
+                    imageHistogram[x][y] /= imageHistogram[x][height - 1];
+            }
+            for (int x = 0; x < width; x++)
+                colHistogram[x] /= colHistogram[width - 1];
+        }
+
+        long sample(double randX, double randY) {
+            int x = 0;
+            while (randX >= colHistogram[x] && x < colHistogram.length - 1)
+                x++;
+            float[] rowHistogram = imageHistogram[x];
+            int y = 0;
+            while (randY >= rowHistogram[y] && y < rowHistogram.length - 1)
+                y++;
+            return ((long) x << 32) + y;
+        }
+    }
+
+    private static final class BinarySearchKernel extends SamplingKernel {
+        private final ImageHistogram histogram;
+
+        BinarySearchKernel(float[] weights, int width, int height) {
+            histogram = new ImageHistogram(weights, width, height);
+        }
+
+        long sample(double randX, double randY) {
+            int x = histogram.sampleColumn(randX);
+            int y = histogram.sampleRow(x, randY);
+            return ((long) x << 32) + y;
+        }
+    }
+}
\ No newline at end of file
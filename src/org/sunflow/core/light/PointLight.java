@@ -1,17 +1,18 @@
 package org.sunflow.core.light;
 
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.BoundedLightSource;
 import org.sunflow.core.Instance;
 import org.sunflow.core.LightSample;
-import org.sunflow.core.LightSource;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
-public class PointLight implements LightSource {
+public class PointLight implements BoundedLightSource {
     private Point3 lightPoint;
     private Color power;
 
@@ -59,6 +60,10 @@ public class PointLight implements LightSource {
         return power.getLuminance();
     }
 
+    public BoundingBox getBounds() {
+        return new BoundingBox(lightPoint);
+    }
+
     public Instance createInstance() {
         return null;
     }
@@ -1,39 +1,45 @@
 package org.sunflow.core.light;
 
 import org.sunflow.SunflowAPI;
+import org.sunflow.core.BoundedLightSource;
 import org.sunflow.core.Instance;
 import org.sunflow.core.LightSample;
-import org.sunflow.core.LightSource;
 import org.sunflow.core.ParameterList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
 import org.sunflow.core.primitive.TriangleMesh;
 import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.OrthoNormalBasis;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
 
-public class TriangleMeshLight extends TriangleMesh implements Shader, LightSource {
+public class TriangleMeshLight extends TriangleMesh implements Shader, BoundedLightSource {
     private Color radiance;
     private int numSamples;
+    private int budget;
     private float[] areas;
+    private float[] areaCDF;
     private float totalArea;
     private Vector3[] ngs;
 
     public TriangleMeshLight() {
         radiance = Color.WHITE;
         numSamples = 4;
+        budget = 0;
     }
 
     @Override
     public boolean update(ParameterList pl, SunflowAPI api) {
         radiance = pl.getColor("radiance", radiance);
         numSamples = pl.getInt("samples", numSamples);
+        budget = pl.getInt("budget", budget);
         if (super.update(pl, api)) {
             // precompute triangle areas and normals
             areas = new float[getNumPrimitives()];
+            areaCDF = new float[getNumPrimitives()];
             ngs = new Vector3[getNumPrimitives()];
             totalArea = 0;
             for (int tri3 = 0, i = 0; tri3 < triangles.length; tri3 += 3, i++) {
@@ -47,6 +53,7 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
                 areas[i] = 0.5f * ngs[i].length();
                 ngs[i].normalize();
                 totalArea += areas[i];
+                areaCDF[i] = totalArea;
             }
         } else
             return false;
@@ -105,24 +112,46 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
         // do not scatter photons
     }
 
+    public BoundingBox getBounds() {
+        return getWorldBounds(null);
+    }
+
     public Instance createInstance() {
         return Instance.createTemporary(this, null, this);
     }
 
     public int getNumSamples() {
-        return numSamples * getNumPrimitives();
+        // must match the path taken by getSamples
+        if (numSamples == 0)
+            return 0;
+        int n = getNumPrimitives();
+        return budget > 0 && budget < n ? budget : numSamples * n;
+    }
+
+    /**
+     * Find the triangle covering the specified position in the cumulative
+     * area table.
+     * 
+     * @param rnd value between 0 and the total area of the mesh
+     * @return triangle index
+     */
+    private int findTriangle(double rnd) {
+        int lo = 0;
+        int hi = areaCDF.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (rnd < areaCDF[mid])
+                hi = mid;
+            else
+                lo = mid + 1;
+        }
+        return lo;
     }
 
     public void getPhoton(double randX1, double randY1, double randX2, double randY2, Point3 p, Vector3 dir, Color power) {
         double rnd = randX1 * totalArea;
-        int j = areas.length - 1;
-        for (int i = 0; i < areas.length; i++) {
-            if (rnd < areas[i]) {
-                j = i;
-                break;
-            }
-            rnd -= areas[i]; // try next triangle
-        }
+        int j = findTriangle(rnd);
+        rnd -= areaCDF[j] - areas[j];
         rnd /= areas[j];
         randX1 = rnd;
         double s = Math.sqrt(1 - randX2);
@@ -153,119 +182,145 @@ public class TriangleMeshLight extends TriangleMesh implements Shader, LightSour
     public void getSamples(ShadingState state) {
         if (numSamples == 0)
             return;
+        if (budget > 0 && budget < getNumPrimitives()) {
+            // spread a fixed number of samples over the triangles in
+            // proportion to their area instead of visiting all of them
+            int samples = state.getDiffuseDepth() > 0 ? 1 : budget;
+            for (int j = 0; j < samples; j++) {
+                double rnd = state.getRandom(j, 3, samples) * totalArea;
+                int i = findTriangle(rnd);
+                addTriangleSamples(state, i, j, 1, samples, totalArea / (samples * areas[i]));
+            }
+            return;
+        }
+        // use lower sampling depth for diffuse bounces
+        int samples = state.getDiffuseDepth() > 0 ? 1 : numSamples;
+        for (int i = 0; i < areas.length; i++)
+            addTriangleSamples(state, i, 0, samples, samples, 1.0f / samples);
+    }
+
+    /**
+     * Sample the solid angle subtended by a single triangle.
+     * 
+     * @param state current state
+     * @param i triangle index
+     * @param first index of the first sample to take
+     * @param count number of samples to take
+     * @param total total number of samples in the sequence
+     * @param scale weight of each sample, relative to the solid angle of the
+     *            triangle
+     */
+    private void addTriangleSamples(ShadingState state, int i, int first, int count, int total, float scale) {
         Vector3 n = state.getNormal();
         Point3 p = state.getPoint();
-        for (int tri3 = 0, i = 0; tri3 < triangles.length; tri3 += 3, i++) {
-            // vector towards each vertex of the light source
-            Vector3 p0 = Point3.sub(getPoint(triangles[tri3 + 0]), p, new Vector3());
-            // cull triangle if it is facing the wrong way
-            if (Vector3.dot(p0, ngs[i]) >= 0)
-                continue;
-            Vector3 p1 = Point3.sub(getPoint(triangles[tri3 + 1]), p, new Vector3());
-            Vector3 p2 = Point3.sub(getPoint(triangles[tri3 + 2]), p, new Vector3());
-            // if all three vertices are below the hemisphere, stop
-            if (Vector3.dot(p0, n) <= 0 && Vector3.dot(p1, n) <= 0 && Vector3.dot(p2, n) <= 0)
-                continue;
-            p0.normalize();
-            p1.normalize();
-            p2.normalize();
-            float dot = Vector3.dot(p2, p0);
-            Vector3 h = new Vector3();
-            h.x = p2.x - dot * p0.x;
-            h.y = p2.y - dot * p0.y;
-            h.z = p2.z - dot * p0.z;
-            float hlen = h.length();
-            if (hlen > 1e-6f)
-                h.div(hlen);
-            else
-                continue;
-            Vector3 n0 = Vector3.cross(p0, p1, new Vector3());
-            float len0 = n0.length();
-            if (len0 > 1e-6f)
-                n0.div(len0);
-            else
-                continue;
-            Vector3 n1 = Vector3.cross(p1, p2, new Vector3());
-            float len1 = n1.length();
-            if (len1 > 1e-6f)
-                n1.div(len1);
-            else
-                continue;
-            Vector3 n2 = Vector3.cross(p2, p0, new Vector3());
-            float len2 = n2.length();
-            if (len2 > 1e-6f)
-                n2.div(len2);
-            else
-                continue;
+        int tri3 = 3 * i;
+        // vector towards each vertex of the light source
+        Vector3 p0 = Point3.sub(getPoint(triangles[tri3 + 0]), p, new Vector3());
+        // cull triangle if it is facing the wrong way
+        if (Vector3.dot(p0, ngs[i]) >= 0)
+            return;
+        Vector3 p1 = Point3.sub(getPoint(triangles[tri3 + 1]), p, new Vector3());
+        Vector3 p2 = Point3.sub(getPoint(triangles[tri3 + 2]), p, new Vector3());
+        // if all three vertices are below the hemisphere, stop
+        if (Vector3.dot(p0, n) <= 0 && Vector3.dot(p1, n) <= 0 && Vector3.dot(p2, n) <= 0)
+            return;
+        p0.normalize();
+        p1.normalize();
+        p2.normalize();
+        float dot = Vector3.dot(p2, p0);
+        Vector3 h = new Vector3();
+        h.x = p2.x - dot * p0.x;
+        h.y = p2.y - dot * p0.y;
+        h.z = p2.z - dot * p0.z;
+        float hlen = h.length();
+        if (hlen > 1e-6f)
+            h.div(hlen);
+        else
+            return;
+        Vector3 n0 = Vector3.cross(p0, p1, new Vector3());
+        float len0 = n0.length();
+        if (len0 > 1e-6f)
+            n0.div(len0);
+        else
+            return;
+        Vector3 n1 = Vector3.cross(p1, p2, new Vector3());
+        float len1 = n1.length();
+        if (len1 > 1e-6f)
+            n1.div(len1);
+        else
+            return;
+        Vector3 n2 = Vector3.cross(p2, p0, new Vector3());
+        float len2 = n2.length();
+        if (len2 > 1e-6f)
+            n2.div(len2);
+        else
+            return;
 
-            float cosAlpha = MathUtils.clamp(-Vector3.dot(n2, n0), -1.0f, 1.0f);
-            float cosBeta = MathUtils.clamp(-Vector3.dot(n0, n1), -1.0f, 1.0f);
-            float cosGamma = MathUtils.clamp(-Vector3.dot(n1, n2), -1.0f, 1.0f);
+        float cosAlpha = MathUtils.clamp(-Vector3.dot(n2, n0), -1.0f, 1.0f);
+        float cosBeta = MathUtils.clamp(-Vector3.dot(n0, n1), -1.0f, 1.0f);
+        float cosGamma = MathUtils.clamp(-Vector3.dot(n1, n2), -1.0f, 1.0f);
 
-            float alpha = (float) Math.acos(cosAlpha);
-            float beta = (float) Math.acos(cosBeta);
-            float gamma = (float) Math.acos(cosGamma);
+        float alpha = (float) Math.acos(cosAlpha);
+        float beta = (float) Math.acos(cosBeta);
+        float gamma = (float) Math.acos(cosGamma);
 
-            float area = alpha + beta + gamma - (float) Math.PI;
+        float area = alpha + beta + gamma - (float) Math.PI;
 
-            float cosC = MathUtils.clamp(Vector3.dot(p0, p1), -1.0f, 1.0f);
-            float salpha = (float) Math.sin(alpha);
-            float product = salpha * cosC;
+        float cosC = MathUtils.clamp(Vector3.dot(p0, p1), -1.0f, 1.0f);
+        float salpha = (float) Math.sin(alpha);
+        float product = salpha * cosC;
 
-            // use lower sampling depth for diffuse bounces
-            int samples = state.getDiffuseDepth() > 0 ? 1 : numSamples;
-            Color c = Color.mul(area / samples, radiance);
-            for (int j = 0; j < samples; j++) {
-                // random offset on unit square
-                double randX = state.getRandom(j, 0, samples);
-                double randY = state.getRandom(j, 1, samples);
+        Color c = Color.mul(area * scale, radiance);
+        for (int j = first; j < first + count; j++) {
+            // random offset on unit square
+            double randX = state.getRandom(j, 0, total);
+            double randY = state.getRandom(j, 1, total);
 
-                float phi = (float) randX * area - alpha + (float) Math.PI;
-                float sinPhi = (float) Math.sin(phi);
-                float cosPhi = (float) Math.cos(phi);
+            float phi = (float) randX * area - alpha + (float) Math.PI;
+            float sinPhi = (float) Math.sin(phi);
+            float cosPhi = (float) Math.cos(phi);
 
-                float u = cosPhi + cosAlpha;
-                float v = sinPhi - product;
+            float u = cosPhi + cosAlpha;
+            float v = sinPhi - product;
 
-                float q = (-v + cosAlpha * (cosPhi * -v + sinPhi * u)) / (salpha * (sinPhi * -v - cosPhi * u));
-                float q1 = 1.0f - q * q;
-                if (q1 < 0.0f)
-                    q1 = 0.0f;
+            float q = (-v + cosAlpha * (cosPhi * -v + sinPhi * u)) / (salpha * (sinPhi * -v - cosPhi * u));
+            float q1 = 1.0f - q * q;
+            if (q1 < 0.0f)
+                q1 = 0.0f;
 
-                float sqrtq1 = (float) Math.sqrt(q1);
-                float ncx = q * p0.x + sqrtq1 * h.x;
-                float ncy = q * p0.y + sqrtq1 * h.y;
-                float ncz = q * p0.z + sqrtq1 * h.z;
-                dot = p1.dot(ncx, ncy, ncz);
-                float z = 1.0f - (float) randY * (1.0f - dot);
-                float z1 = 1.0f - z * z;
-                if (z1 < 0.0f)
-                    z1 = 0.0f;
-                Vector3 nd = new Vector3();
-                nd.x = ncx - dot * p1.x;
-                nd.y = ncy - dot * p1.y;
-                nd.z = ncz - dot * p1.z;
-                nd.normalize();
-                float sqrtz1 = (float) Math.sqrt(z1);
-                Vector3 result = new Vector3();
-                result.x = z * p1.x + sqrtz1 * nd.x;
-                result.y = z * p1.y + sqrtz1 * nd.y;
-                result.z = z * p1.z + sqrtz1 * nd.z;
+            float sqrtq1 = (float) Math.sqrt(q1);
+            float ncx = q * p0.x + sqrtq1 * h.x;
+            float ncy = q * p0.y + sqrtq1 * h.y;
+            float ncz = q * p0.z + sqrtq1 * h.z;
+            dot = p1.dot(ncx, ncy, ncz);
+            float z = 1.0f - (float) randY * (1.0f - dot);
+            float z1 = 1.0f - z * z;
+            if (z1 < 0.0f)
+                z1 = 0.0f;
+            Vector3 nd = new Vector3();
+            nd.x = ncx - dot * p1.x;
+            nd.y = ncy - dot * p1.y;
+            nd.z = ncz - dot * p1.z;
+            nd.normalize();
+            float sqrtz1 = (float) Math.sqrt(z1);
+            Vector3 result = new Vector3();
+            result.x = z * p1.x + sqrtz1 * nd.x;
+            result.y = z * p1.y + sqrtz1 * nd.y;
+            result.z = z * p1.z + sqrtz1 * nd.z;
 
-                // make sure the sample is in the right hemisphere - facing in
-                // the right direction
-                if (Vector3.dot(result, n) > 0 && Vector3.dot(result, state.getGeoNormal()) > 0 && Vector3.dot(result, ngs[i]) < 0) {
-                    // compute intersection with triangle (if any)
-                    Ray shadowRay = new Ray(state.getPoint(), result);
-                    if (!intersectTriangleKensler(tri3, shadowRay))
-                        continue;
-                    LightSample dest = new LightSample();
-                    dest.setShadowRay(shadowRay);
-                    // prepare sample
-                    dest.setRadiance(c, c);
-                    dest.traceShadow(state);
-                    state.addSample(dest);
-                }
+            // make sure the sample is in the right hemisphere - facing in
+            // the right direction
+            if (Vector3.dot(result, n) > 0 && Vector3.dot(result, state.getGeoNormal()) > 0 && Vector3.dot(result, ngs[i]) < 0) {
+                // compute intersection with triangle (if any)
+                Ray shadowRay = new Ray(state.getPoint(), result);
+                if (!intersectTriangleKensler(tri3, shadowRay))
+                    continue;
+                LightSample dest = new LightSample();
+                dest.setShadowRay(shadowRay);
+                // prepare sample
+                dest.setRadiance(c, c);
+                dest.traceShadow(state);
+                state.addSample(dest);
             }
         }
     }
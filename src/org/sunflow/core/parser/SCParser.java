@@ -44,6 +44,16 @@ public class SCParser implements SceneParser {
         instanceNumber = instanceCounter;
     }
 
+    /**
+     * Restart the numbering used to name unnamed objects. This should only be
+     * called before loading a scene into an empty API object, or before loading
+     * another frame of the same scene, so that generated names match the ones
+     * of the previous frame.
+     */
+    public static void resetInstanceCounter() {
+        instanceCounter = 0;
+    }
+
     private String generateUniqueName(String prefix) {
         // generate a unique name for this class:
         int index = 1;
@@ -79,6 +89,10 @@ public class SCParser implements SceneParser {
                     UI.printInfo(Module.API, "Reading accelerator type ...");
                     p.getNextToken();
                     UI.printWarning(Module.API, "Setting accelerator type is not recommended - ignoring");
+                } else if (token.equals("light-select")) {
+                    UI.printInfo(Module.API, "Reading light selection settings ...");
+                    api.parameter("lights.select", p.getNextInt());
+                    api.options(SunflowAPI.DEFAULT_OPTIONS);
                 } else if (token.equals("filter")) {
                     UI.printInfo(Module.API, "Reading image filter type ...");
                     parseFilter(api);
@@ -181,6 +195,14 @@ public class SCParser implements SceneParser {
         }
         if (p.peekNextToken("cache"))
             api.parameter("aa.cache", p.getNextBoolean());
+        if (p.peekNextToken("threshold"))
+            api.parameter("aa.threshold", p.getNextFloat());
+        if (p.peekNextToken("error"))
+            api.parameter("aa.error", p.getNextFloat());
+        if (p.peekNextToken("max-samples"))
+            api.parameter("aa.maxsamples", p.getNextInt());
+        if (p.peekNextToken("time"))
+            api.parameter("aa.time", p.getNextFloat());
         if (p.peekNextToken("output")) {
             UI.printWarning(Module.API, "Deprecated: output statement ignored");
             p.getNextToken();
@@ -259,6 +281,10 @@ public class SCParser implements SceneParser {
                 api.parameter("gi.irr-cache.gmap.gather", p.getNextInt());
                 api.parameter("gi.irr-cache.gmap.radius", p.getNextFloat());
             }
+            if (p.peekNextToken("prepass"))
+                api.parameter("gi.irr-cache.prepass", p.getNextInt());
+            if (p.peekNextToken("file"))
+                api.parameter("gi.irr-cache.file", p.getNextToken());
         } else if (p.peekNextToken("path")) {
             api.parameter("gi.engine", "path");
             p.checkNextToken("samples");
@@ -286,6 +312,16 @@ public class SCParser implements SceneParser {
             api.parameter("gi.igi.c", p.getNextFloat());
             p.checkNextToken("bias-samples");
             api.parameter("gi.igi.bias_samples", p.getNextInt());
+        } else if (p.peekNextToken("ppm")) {
+            api.parameter("gi.engine", "ppm");
+            p.checkNextToken("emit");
+            api.parameter("gi.ppm.emit", p.getNextInt());
+            p.checkNextToken("passes");
+            api.parameter("gi.ppm.passes", p.getNextInt());
+            if (p.peekNextToken("radius"))
+                api.parameter("gi.ppm.radius", p.getNextFloat());
+            if (p.peekNextToken("alpha"))
+                api.parameter("gi.ppm.alpha", p.getNextFloat());
         } else if (p.peekNextToken("ambocc")) {
             api.parameter("gi.engine", "ambocc");
             p.checkNextToken("bright");
@@ -1134,6 +1170,8 @@ public class SCParser implements SceneParser {
             else
                 UI.printWarning(Module.API, "Samples keyword not found - defaulting to %d", samples);
             api.parameter("samples", samples);
+            if (p.peekNextToken("budget"))
+                api.parameter("budget", p.getNextInt());
             // parse vertices
             p.checkNextToken("points");
             int np = p.getNextInt();
@@ -1,23 +1,31 @@
 package org.sunflow.core.photonmap;
 
-import java.util.ArrayList;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import org.sunflow.core.CacheablePhotonStore;
 import org.sunflow.core.CausticPhotonMapInterface;
 import org.sunflow.core.LightSample;
 import org.sunflow.core.Options;
+import org.sunflow.core.PhotonMapCache;
 import org.sunflow.core.Ray;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public final class CausticPhotonMap implements CausticPhotonMapInterface {
-    private ArrayList<Photon> photonList;
-    private Photon[] photons;
+public final class CausticPhotonMap implements CausticPhotonMapInterface, CacheablePhotonStore {
+    private PhotonBuffer.ThreadBuffers photonBuffers;
+    private float[] positions;
+    private byte[] axes;
+    private short[] dirs;
+    private int[] powers;
     private int storedPhotons;
     private int halfStoredPhotons;
     private int log2n;
@@ -29,6 +37,10 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
     private float maxRadius;
     private int numEmit;
 
+    private static final int SPLIT_X = 0;
+    private static final int SPLIT_Y = 1;
+    private static final int SPLIT_Z = 2;
+
     public void prepare(Options options, BoundingBox sceneBounds) {
         // get options
         numEmit = options.getInt("caustics.emit", 10000);
@@ -39,9 +51,11 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         bounds = new BoundingBox();
         maxPower = 0;
         maxRadius = 0;
-        photonList = new ArrayList<Photon>();
-        photonList.add(null);
-        photons = null;
+        photonBuffers = new PhotonBuffer.ThreadBuffers(false);
+        positions = null;
+        axes = null;
+        dirs = null;
+        powers = null;
         storedPhotons = halfStoredPhotons = 0;
     }
 
@@ -53,14 +67,14 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         int cameFrom;
         while (true) {
             while (i < halfStoredPhotons) {
-                float dist1d = photons[i].getDist1(np.px, np.py, np.pz);
+                float dist1d = getDist1(i, np.px, np.py, np.pz);
                 dist1d2[level] = dist1d * dist1d;
                 i += i;
                 if (dist1d > 0.0f)
                     i++;
                 chosen[level++] = i;
             }
-            np.checkAddNearest(photons[i]);
+            np.checkAddNearest(i, getDist2(i, np.px, np.py, np.pz));
             do {
                 cameFrom = i;
                 i >>= 1;
@@ -68,24 +82,43 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
                 if (i == 0)
                     return;
             } while ((dist1d2[level] >= np.dist2[0]) || (cameFrom != chosen[level]));
-            np.checkAddNearest(photons[i]);
+            np.checkAddNearest(i, getDist2(i, np.px, np.py, np.pz));
             i = chosen[level++] ^ 1;
         }
     }
 
     private void balance() {
+        PhotonBuffer photons = photonBuffers.merge();
+        photonBuffers = null;
+        storedPhotons = photons.size;
+        bounds = photons.bounds;
+        maxPower = photons.maxPower;
         if (storedPhotons == 0)
             return;
-        photons = photonList.toArray(new Photon[photonList.size()]);
-        photonList = null;
-        Photon[] temp = new Photon[storedPhotons + 1];
-        balanceSegment(temp, 1, 1, storedPhotons);
-        photons = temp;
+        // balance a list of photon indices, the photons are only copied
+        // into tree order at the end
+        int[] order = new int[storedPhotons];
+        for (int i = 0; i < storedPhotons; i++)
+            order[i] = i;
+        int[] temp = new int[storedPhotons + 1];
+        axes = new byte[storedPhotons + 1];
+        balanceSegment(photons.positions, order, temp, 1, 0, storedPhotons - 1);
+        positions = new float[3 * (storedPhotons + 1)];
+        dirs = new short[storedPhotons + 1];
+        powers = new int[storedPhotons + 1];
+        for (int i = 1; i <= storedPhotons; i++) {
+            int j = temp[i];
+            positions[3 * i + 0] = photons.positions[3 * j + 0];
+            positions[3 * i + 1] = photons.positions[3 * j + 1];
+            positions[3 * i + 2] = photons.positions[3 * j + 2];
+            dirs[i] = photons.dirs[j];
+            powers[i] = photons.powers[j];
+        }
         halfStoredPhotons = storedPhotons / 2;
         log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
     }
 
-    private void balanceSegment(Photon[] temp, int index, int start, int end) {
+    private void balanceSegment(float[] coords, int[] photons, int[] temp, int index, int start, int end) {
         int median = 1;
         while ((4 * median) <= (end - start + 1))
             median += median;
@@ -94,55 +127,56 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
             median += (start - 1);
         } else
             median = end - median + 1;
-        int axis = Photon.SPLIT_Z;
+        int axis = SPLIT_Z;
         Vector3 extents = bounds.getExtents();
         if ((extents.x > extents.y) && (extents.x > extents.z))
-            axis = Photon.SPLIT_X;
+            axis = SPLIT_X;
         else if (extents.y > extents.z)
-            axis = Photon.SPLIT_Y;
+            axis = SPLIT_Y;
         int left = start;
         int right = end;
         while (right > left) {
-            double v = photons[right].getCoord(axis);
+            double v = coords[3 * photons[right] + axis];
             int i = left - 1;
             int j = right;
             while (true) {
-                while (photons[++i].getCoord(axis) < v) {
+                while (coords[3 * photons[++i] + axis] < v) {
                 }
-                while ((photons[--j].getCoord(axis) > v) && (j > left)) {
+                while ((coords[3 * photons[--j] + axis] > v) && (j > left)) {
                 }
                 if (i >= j)
                     break;
-                swap(i, j);
+                swap(photons, i, j);
             }
-            swap(i, right);
+            swap(photons, i, right);
             if (i >= median)
                 right = i - 1;
             if (i <= median)
                 left = i + 1;
         }
         temp[index] = photons[median];
-        temp[index].setSplitAxis(axis);
+        axes[index] = (byte) axis;
+        float split = coords[3 * photons[median] + axis];
         if (median > start) {
             if (start < (median - 1)) {
                 float tmp;
                 switch (axis) {
-                    case Photon.SPLIT_X:
+                    case SPLIT_X:
                         tmp = bounds.getMaximum().x;
-                        bounds.getMaximum().x = temp[index].x;
-                        balanceSegment(temp, 2 * index, start, median - 1);
+                        bounds.getMaximum().x = split;
+                        balanceSegment(coords, photons, temp, 2 * index, start, median - 1);
                         bounds.getMaximum().x = tmp;
                         break;
-                    case Photon.SPLIT_Y:
+                    case SPLIT_Y:
                         tmp = bounds.getMaximum().y;
-                        bounds.getMaximum().y = temp[index].y;
-                        balanceSegment(temp, 2 * index, start, median - 1);
+                        bounds.getMaximum().y = split;
+                        balanceSegment(coords, photons, temp, 2 * index, start, median - 1);
                         bounds.getMaximum().y = tmp;
                         break;
                     default:
                         tmp = bounds.getMaximum().z;
-                        bounds.getMaximum().z = temp[index].z;
-                        balanceSegment(temp, 2 * index, start, median - 1);
+                        bounds.getMaximum().z = split;
+                        balanceSegment(coords, photons, temp, 2 * index, start, median - 1);
                         bounds.getMaximum().z = tmp;
                 }
             } else
@@ -152,22 +186,22 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
             if ((median + 1) < end) {
                 float tmp;
                 switch (axis) {
-                    case Photon.SPLIT_X:
+                    case SPLIT_X:
                         tmp = bounds.getMinimum().x;
-                        bounds.getMinimum().x = temp[index].x;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
+                        bounds.getMinimum().x = split;
+                        balanceSegment(coords, photons, temp, (2 * index) + 1, median + 1, end);
                         bounds.getMinimum().x = tmp;
                         break;
-                    case Photon.SPLIT_Y:
+                    case SPLIT_Y:
                         tmp = bounds.getMinimum().y;
-                        bounds.getMinimum().y = temp[index].y;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
+                        bounds.getMinimum().y = split;
+                        balanceSegment(coords, photons, temp, (2 * index) + 1, median + 1, end);
                         bounds.getMinimum().y = tmp;
                         break;
                     default:
                         tmp = bounds.getMinimum().z;
-                        bounds.getMinimum().z = temp[index].z;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
+                        bounds.getMinimum().z = split;
+                        balanceSegment(coords, photons, temp, (2 * index) + 1, median + 1, end);
                         bounds.getMinimum().z = tmp;
                 }
             } else
@@ -175,22 +209,34 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         }
     }
 
-    private void swap(int i, int j) {
-        Photon tmp = photons[i];
+    private static void swap(int[] photons, int i, int j) {
+        int tmp = photons[i];
         photons[i] = photons[j];
         photons[j] = tmp;
     }
 
+    private float getDist1(int i, float px, float py, float pz) {
+        switch (axes[i]) {
+            case SPLIT_X:
+                return px - positions[3 * i + 0];
+            case SPLIT_Y:
+                return py - positions[3 * i + 1];
+            default:
+                return pz - positions[3 * i + 2];
+        }
+    }
+
+    private float getDist2(int i, float px, float py, float pz) {
+        float dx = positions[3 * i + 0] - px;
+        float dy = positions[3 * i + 1] - py;
+        float dz = positions[3 * i + 2] - pz;
+        return (dx * dx) + (dy * dy) + (dz * dz);
+    }
+
     public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
         if (((state.getDiffuseDepth() == 0) && (state.getReflectionDepth() > 0 || state.getRefractionDepth() > 0))) {
             // this is a caustic photon
-            Photon p = new Photon(state.getPoint(), dir, power);
-            synchronized (this) {
-                storedPhotons++;
-                photonList.add(p);
-                bounds.include(new Point3(p.x, p.y, p.z));
-                maxPower = Math.max(maxPower, power.getMax());
-            }
+            photonBuffers.get().add(state.getPoint(), null, dir, power, null);
         }
     }
 
@@ -200,15 +246,54 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         t.start();
         balance();
         t.end();
+        maxRadius = 1.4f * (float) Math.sqrt(maxPower * gatherNum);
+        printStats();
+        UI.printInfo(Module.LIGHT, "  * Balancing time:   %s", t.toString());
+        if (gatherRadius > maxRadius)
+            gatherRadius = maxRadius;
+    }
+
+    private void printStats() {
         UI.printInfo(Module.LIGHT, "Caustic photon map:");
         UI.printInfo(Module.LIGHT, "  * Photons stored:   %d", storedPhotons);
         UI.printInfo(Module.LIGHT, "  * Photons/estimate: %d", gatherNum);
-        maxRadius = 1.4f * (float) Math.sqrt(maxPower * gatherNum);
         UI.printInfo(Module.LIGHT, "  * Estimate radius:  %.3f", gatherRadius);
         UI.printInfo(Module.LIGHT, "  * Maximum radius:   %.3f", maxRadius);
-        UI.printInfo(Module.LIGHT, "  * Balancing time:   %s", t.toString());
+        UI.printInfo(Module.LIGHT, "  * Photon memory:    %s", Memory.bytesToString(19L * storedPhotons));
+    }
+
+    public void save(DataOutputStream out) throws IOException {
+        out.writeInt(storedPhotons);
+        out.writeFloat(maxPower);
+        PhotonMapCache.writeArray(out, positions);
+        PhotonMapCache.writeArray(out, axes);
+        PhotonMapCache.writeArray(out, dirs);
+        PhotonMapCache.writeArray(out, powers);
+    }
+
+    public boolean load(ByteBuffer in) {
+        int n = in.getInt();
+        float power = in.getFloat();
+        float[] p = PhotonMapCache.readFloatArray(in);
+        byte[] a = PhotonMapCache.readByteArray(in);
+        short[] d = PhotonMapCache.readShortArray(in);
+        int[] pw = PhotonMapCache.readIntArray(in);
+        if (n > 0 && (p.length != 3 * (n + 1) || a.length != n + 1 || d.length != n + 1 || pw.length != n + 1))
+            throw new IllegalStateException("invalid photon count");
+        storedPhotons = n;
+        maxPower = power;
+        positions = p;
+        axes = a;
+        dirs = d;
+        powers = pw;
+        halfStoredPhotons = storedPhotons / 2;
+        log2n = storedPhotons > 0 ? (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0)) : 0;
+        // the gather settings are only used by lookups and can change freely
+        maxRadius = 1.4f * (float) Math.sqrt(maxPower * gatherNum);
+        printStats();
         if (gatherRadius > maxRadius)
             gatherRadius = maxRadius;
+        return true;
     }
 
     public void getSamples(ShadingState state) {
@@ -226,17 +311,17 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         float f2r2 = 1.0f / (filterValue * filterValue * np.dist2[0]);
         float fInv = 1.0f / (1.0f - 2.0f / (3.0f * filterValue));
         for (int i = 1; i <= np.found; i++) {
-            Photon phot = np.index[i];
-            Vector3.decode(phot.dir, pdir);
+            int phot = np.index[i];
+            Vector3.decode(dirs[phot], pdir);
             float cos = -Vector3.dot(pdir, state.getNormal());
             if (cos > 0.001) {
-                ppos.set(phot.x, phot.y, phot.z);
+                ppos.set(positions[3 * phot + 0], positions[3 * phot + 1], positions[3 * phot + 2]);
                 Point3.sub(ppos, state.getPoint(), pvec);
                 float pcos = Vector3.dot(pvec, state.getNormal());
                 if ((pcos < maxNDist) && (pcos > -maxNDist)) {
                     LightSample sample = new LightSample();
                     sample.setShadowRay(new Ray(state.getPoint(), pdir.negate()));
-                    sample.setRadiance(new Color().setRGBE(np.index[i].power).mul(invArea / cos), Color.BLACK);
+                    sample.setRadiance(new Color().setRGBE(powers[phot]).mul(invArea / cos), Color.BLACK);
                     sample.getDiffuseRadiance().mul((1.0f - (float) Math.sqrt(np.dist2[i] * f2r2)) * fInv);
                     state.addSample(sample);
                 }
@@ -250,7 +335,7 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         private int max;
         private boolean gotHeap;
         protected float[] dist2;
-        protected Photon[] index;
+        protected int[] index;
 
         NearestPhotons(Point3 p, int n, float maxDist2) {
             max = n;
@@ -260,7 +345,7 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
             py = p.y;
             pz = p.z;
             dist2 = new float[n + 1];
-            index = new Photon[n + 1];
+            index = new int[n + 1];
             dist2[0] = maxDist2;
         }
 
@@ -273,8 +358,7 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
             dist2[0] = maxDist2;
         }
 
-        void checkAddNearest(Photon p) {
-            float fdist2 = p.getDist2(px, py, pz);
+        void checkAddNearest(int p, float fdist2) {
             if (fdist2 < dist2[0]) {
                 if (found < max) {
                     found++;
@@ -285,7 +369,7 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
                     int parent;
                     if (!gotHeap) {
                         float dst2;
-                        Photon phot;
+                        int phot;
                         int halfFound = found >> 1;
                         for (int k = halfFound; k >= 1; k--) {
                             parent = k;
@@ -326,63 +410,6 @@ public final class CausticPhotonMap implements CausticPhotonMapInterface {
         }
     }
 
-    private static class Photon {
-        float x;
-        float y;
-        float z;
-        short dir;
-        int power;
-        int flags;
-
-        static final int SPLIT_X = 0;
-        static final int SPLIT_Y = 1;
-        static final int SPLIT_Z = 2;
-        static final int SPLIT_MASK = 3;
-
-        Photon(Point3 p, Vector3 dir, Color power) {
-            x = p.x;
-            y = p.y;
-            z = p.z;
-            this.dir = dir.encode();
-            this.power = power.toRGBE();
-            flags = SPLIT_X;
-        }
-
-        void setSplitAxis(int axis) {
-            flags &= ~SPLIT_MASK;
-            flags |= axis;
-        }
-
-        float getCoord(int axis) {
-            switch (axis) {
-                case SPLIT_X:
-                    return x;
-                case SPLIT_Y:
-                    return y;
-                default:
-                    return z;
-            }
-        }
-
-        float getDist1(float px, float py, float pz) {
-            switch (flags & SPLIT_MASK) {
-                case SPLIT_X:
-                    return px - x;
-                case SPLIT_Y:
-                    return py - y;
-                default:
-                    return pz - z;
-            }
-        }
-
-        float getDist2(float px, float py, float pz) {
-            float dx = x - px;
-            float dy = y - py;
-            float dz = z - pz;
-            return (dx * dx) + (dy * dy) + (dz * dz);
-        }
-    }
-
     public boolean allowDiffuseBounced() {
         return false;
     }
@@ -1,31 +1,54 @@
 package org.sunflow.core.photonmap;
 
-import java.util.ArrayList;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import org.sunflow.core.CacheablePhotonStore;
 import org.sunflow.core.GlobalPhotonMapInterface;
 import org.sunflow.core.Options;
+import org.sunflow.core.PhotonMapCache;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Memory;
 import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
-    private ArrayList<Photon> photonList;
-    private Photon[] photons;
+public final class GlobalPhotonMap implements GlobalPhotonMapInterface, CacheablePhotonStore {
+    private PhotonBuffer.ThreadBuffers photonBuffers;
+    private float[] positions;
+    private byte[] axes;
+    private short[] dirs;
+    private short[] normals;
+    private int[] powers;
+    private int[] data;
     private int storedPhotons;
     private int halfStoredPhotons;
     private int log2n;
     private int numGather;
     private float gatherRadius;
+    // gather settings as requested, the ones above are adjusted during init
+    private int requestedGather;
+    private float requestedRadius;
     private BoundingBox bounds;
     private boolean hasRadiance;
     private float maxPower;
     private float maxRadius;
     private int numEmit;
+    private int numThreads;
+    private int freeBalanceThreads;
+    private int nextPrecomputePhoton;
+
+    private static final int PARALLEL_BALANCE_THRESHOLD = 16384;
+    private static final int PRECOMPUTE_CHUNK_SIZE = 1024;
+
+    private static final int SPLIT_X = 0;
+    private static final int SPLIT_Y = 1;
+    private static final int SPLIT_Z = 2;
 
     public GlobalPhotonMap() {
         bounds = new BoundingBox();
@@ -39,21 +62,22 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         numEmit = options.getInt("gi.irr-cache.gmap.emit", 100000);
         numGather = options.getInt("gi.irr-cache.gmap.gather", 50);
         gatherRadius = options.getFloat("gi.irr-cache.gmap.radius", 0.5f);
+        requestedGather = numGather;
+        requestedRadius = gatherRadius;
+        numThreads = options.getInt("threads", 0);
+        if (numThreads <= 0)
+            numThreads = Runtime.getRuntime().availableProcessors();
         // init
-        photonList = new ArrayList<Photon>();
-        photonList.add(null);
-        photons = null;
+        photonBuffers = new PhotonBuffer.ThreadBuffers(true);
+        positions = null;
+        axes = null;
+        dirs = normals = null;
+        powers = data = null;
         storedPhotons = halfStoredPhotons = 0;
     }
 
     public void store(ShadingState state, Vector3 dir, Color power, Color diffuse) {
-        Photon p = new Photon(state.getPoint(), state.getNormal(), dir, power, diffuse);
-        synchronized (this) {
-            storedPhotons++;
-            photonList.add(p);
-            bounds.include(new Point3(p.x, p.y, p.z));
-            maxPower = Math.max(maxPower, power.getMax());
-        }
+        photonBuffers.get().add(state.getPoint(), state.getNormal(), dir, power, diffuse);
     }
 
     private void locatePhotons(NearestPhotons np) {
@@ -64,14 +88,14 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         int cameFrom;
         while (true) {
             while (i < halfStoredPhotons) {
-                float dist1d = photons[i].getDist1(np.px, np.py, np.pz);
+                float dist1d = getDist1(i, np.px, np.py, np.pz);
                 dist1d2[level] = dist1d * dist1d;
                 i += i;
                 if (dist1d > 0.0f)
                     i++;
                 chosen[level++] = i;
             }
-            np.checkAddNearest(photons[i]);
+            np.checkAddNearest(i, getDist2(i, np.px, np.py, np.pz));
             do {
                 cameFrom = i;
                 i >>= 1;
@@ -79,24 +103,48 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
                 if (i == 0)
                     return;
             } while ((dist1d2[level] >= np.dist2[0]) || (cameFrom != chosen[level]));
-            np.checkAddNearest(photons[i]);
+            np.checkAddNearest(i, getDist2(i, np.px, np.py, np.pz));
             i = chosen[level++] ^ 1;
         }
     }
 
     private void balance() {
+        PhotonBuffer photons = photonBuffers.merge();
+        photonBuffers = null;
+        storedPhotons = photons.size;
+        bounds = photons.bounds;
+        maxPower = photons.maxPower;
         if (storedPhotons == 0)
             return;
-        photons = photonList.toArray(new Photon[photonList.size()]);
-        photonList = null;
-        Photon[] temp = new Photon[storedPhotons + 1];
-        balanceSegment(temp, 1, 1, storedPhotons);
-        photons = temp;
+        // balance a list of photon indices, the photons are only copied
+        // into tree order at the end
+        int[] order = new int[storedPhotons];
+        for (int i = 0; i < storedPhotons; i++)
+            order[i] = i;
+        int[] temp = new int[storedPhotons + 1];
+        axes = new byte[storedPhotons + 1];
+        freeBalanceThreads = numThreads - 1;
+        balanceSegment(photons.positions, order, temp, 1, 0, storedPhotons - 1, bounds);
+        positions = new float[3 * (storedPhotons + 1)];
+        dirs = new short[storedPhotons + 1];
+        normals = new short[storedPhotons + 1];
+        powers = new int[storedPhotons + 1];
+        data = new int[storedPhotons + 1];
+        for (int i = 1; i <= storedPhotons; i++) {
+            int j = temp[i];
+            positions[3 * i + 0] = photons.positions[3 * j + 0];
+            positions[3 * i + 1] = photons.positions[3 * j + 1];
+            positions[3 * i + 2] = photons.positions[3 * j + 2];
+            dirs[i] = photons.dirs[j];
+            normals[i] = photons.normals[j];
+            powers[i] = photons.powers[j];
+            data[i] = photons.data[j];
+        }
         halfStoredPhotons = storedPhotons / 2;
         log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
     }
 
-    private void balanceSegment(Photon[] temp, int index, int start, int end) {
+    private void balanceSegment(float[] coords, int[] photons, int[] temp, int index, int start, int end, BoundingBox bounds) {
         int median = 1;
         while ((4 * median) <= (end - start + 1))
             median += median;
@@ -105,55 +153,57 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
             median += (start - 1);
         } else
             median = end - median + 1;
-        int axis = Photon.SPLIT_Z;
+        int axis = SPLIT_Z;
         Vector3 extents = bounds.getExtents();
         if ((extents.x > extents.y) && (extents.x > extents.z))
-            axis = Photon.SPLIT_X;
+            axis = SPLIT_X;
         else if (extents.y > extents.z)
-            axis = Photon.SPLIT_Y;
+            axis = SPLIT_Y;
         int left = start;
         int right = end;
         while (right > left) {
-            double v = photons[right].getCoord(axis);
+            double v = coords[3 * photons[right] + axis];
             int i = left - 1;
             int j = right;
             while (true) {
-                while (photons[++i].getCoord(axis) < v) {
+                while (coords[3 * photons[++i] + axis] < v) {
                 }
-                while ((photons[--j].getCoord(axis) > v) && (j > left)) {
+                while ((coords[3 * photons[--j] + axis] > v) && (j > left)) {
                 }
                 if (i >= j)
                     break;
-                swap(i, j);
+                swap(photons, i, j);
             }
-            swap(i, right);
+            swap(photons, i, right);
             if (i >= median)
                 right = i - 1;
             if (i <= median)
                 left = i + 1;
         }
         temp[index] = photons[median];
-        temp[index].setSplitAxis(axis);
+        axes[index] = (byte) axis;
+        float split = coords[3 * photons[median] + axis];
+        SegmentBalancer leftBalancer = null;
         if (median > start) {
             if (start < (median - 1)) {
                 float tmp;
                 switch (axis) {
-                    case Photon.SPLIT_X:
+                    case SPLIT_X:
                         tmp = bounds.getMaximum().x;
-                        bounds.getMaximum().x = temp[index].x;
-                        balanceSegment(temp, 2 * index, start, median - 1);
+                        bounds.getMaximum().x = split;
+                        leftBalancer = balanceChild(coords, photons, temp, 2 * index, start, median - 1, bounds);
                         bounds.getMaximum().x = tmp;
                         break;
-                    case Photon.SPLIT_Y:
+                    case SPLIT_Y:
                         tmp = bounds.getMaximum().y;
-                        bounds.getMaximum().y = temp[index].y;
-                        balanceSegment(temp, 2 * index, start, median - 1);
+                        bounds.getMaximum().y = split;
+                        leftBalancer = balanceChild(coords, photons, temp, 2 * index, start, median - 1, bounds);
                         bounds.getMaximum().y = tmp;
                         break;
                     default:
                         tmp = bounds.getMaximum().z;
-                        bounds.getMaximum().z = temp[index].z;
-                        balanceSegment(temp, 2 * index, start, median - 1);
+                        bounds.getMaximum().z = split;
+                        leftBalancer = balanceChild(coords, photons, temp, 2 * index, start, median - 1, bounds);
                         bounds.getMaximum().z = tmp;
                 }
             } else
@@ -163,96 +213,115 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
             if ((median + 1) < end) {
                 float tmp;
                 switch (axis) {
-                    case Photon.SPLIT_X:
+                    case SPLIT_X:
                         tmp = bounds.getMinimum().x;
-                        bounds.getMinimum().x = temp[index].x;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
+                        bounds.getMinimum().x = split;
+                        balanceSegment(coords, photons, temp, (2 * index) + 1, median + 1, end, bounds);
                         bounds.getMinimum().x = tmp;
                         break;
-                    case Photon.SPLIT_Y:
+                    case SPLIT_Y:
                         tmp = bounds.getMinimum().y;
-                        bounds.getMinimum().y = temp[index].y;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
+                        bounds.getMinimum().y = split;
+                        balanceSegment(coords, photons, temp, (2 * index) + 1, median + 1, end, bounds);
                         bounds.getMinimum().y = tmp;
                         break;
                     default:
                         tmp = bounds.getMinimum().z;
-                        bounds.getMinimum().z = temp[index].z;
-                        balanceSegment(temp, (2 * index) + 1, median + 1, end);
+                        bounds.getMinimum().z = split;
+                        balanceSegment(coords, photons, temp, (2 * index) + 1, median + 1, end, bounds);
                         bounds.getMinimum().z = tmp;
                 }
             } else
                 temp[(2 * index) + 1] = photons[end];
         }
+        if (leftBalancer != null)
+            leftBalancer.finish();
     }
 
-    private void swap(int i, int j) {
-        Photon tmp = photons[i];
-        photons[i] = photons[j];
-        photons[j] = tmp;
+    /**
+     * Balance the specified segment on a separate thread if it is big enough
+     * and a thread is available, otherwise balance it right away. Segments
+     * cover disjoint ranges of the photon list and of the balanced tree, so
+     * only the bounds need to be copied.
+     * 
+     * @return the thread balancing the segment, or <code>null</code> if the
+     *         segment is already balanced
+     */
+    private SegmentBalancer balanceChild(float[] coords, int[] photons, int[] temp, int index, int start, int end, BoundingBox bounds) {
+        if (end - start >= PARALLEL_BALANCE_THRESHOLD) {
+            synchronized (this) {
+                if (freeBalanceThreads > 0) {
+                    freeBalanceThreads--;
+                    SegmentBalancer balancer = new SegmentBalancer(coords, photons, temp, index, start, end, new BoundingBox(bounds));
+                    balancer.start();
+                    return balancer;
+                }
+            }
+        }
+        balanceSegment(coords, photons, temp, index, start, end, bounds);
+        return null;
     }
 
-    static class Photon {
-        float x;
-        float y;
-        float z;
-        short dir;
-        short normal;
-        int data;
-        int power;
-        int flags;
-
-        static final int SPLIT_X = 0;
-        static final int SPLIT_Y = 1;
-        static final int SPLIT_Z = 2;
-        static final int SPLIT_MASK = 3;
-
-        Photon(Point3 p, Vector3 n, Vector3 dir, Color power, Color diffuse) {
-            x = p.x;
-            y = p.y;
-            z = p.z;
-            this.dir = dir.encode();
-            this.power = power.toRGBE();
-            flags = 0;
-            normal = n.encode();
-            data = diffuse.toRGB();
-        }
+    private synchronized void releaseBalanceThread() {
+        freeBalanceThreads++;
+    }
 
-        void setSplitAxis(int axis) {
-            flags &= ~SPLIT_MASK;
-            flags |= axis;
+    private final class SegmentBalancer extends Thread {
+        private final float[] coords;
+        private final int[] photons;
+        private final int[] temp;
+        private final int index, start, end;
+        private final BoundingBox bounds;
+
+        SegmentBalancer(float[] coords, int[] photons, int[] temp, int index, int start, int end, BoundingBox bounds) {
+            this.coords = coords;
+            this.photons = photons;
+            this.temp = temp;
+            this.index = index;
+            this.start = start;
+            this.end = end;
+            this.bounds = bounds;
         }
 
-        float getCoord(int axis) {
-            switch (axis) {
-                case SPLIT_X:
-                    return x;
-                case SPLIT_Y:
-                    return y;
-                default:
-                    return z;
-            }
+        @Override
+        public void run() {
+            balanceSegment(coords, photons, temp, index, start, end, bounds);
+            releaseBalanceThread();
         }
 
-        float getDist1(float px, float py, float pz) {
-            switch (flags & SPLIT_MASK) {
-                case SPLIT_X:
-                    return px - x;
-                case SPLIT_Y:
-                    return py - y;
-                default:
-                    return pz - z;
+        void finish() {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.LIGHT, "Photon map balancing thread was interrupted");
             }
         }
+    }
 
-        float getDist2(float px, float py, float pz) {
-            float dx = x - px;
-            float dy = y - py;
-            float dz = z - pz;
-            return (dx * dx) + (dy * dy) + (dz * dz);
+    private static void swap(int[] photons, int i, int j) {
+        int tmp = photons[i];
+        photons[i] = photons[j];
+        photons[j] = tmp;
+    }
+
+    private float getDist1(int i, float px, float py, float pz) {
+        switch (axes[i]) {
+            case SPLIT_X:
+                return px - positions[3 * i + 0];
+            case SPLIT_Y:
+                return py - positions[3 * i + 1];
+            default:
+                return pz - positions[3 * i + 2];
         }
     }
 
+    private float getDist2(int i, float px, float py, float pz) {
+        float dx = positions[3 * i + 0] - px;
+        float dy = positions[3 * i + 1] - py;
+        float dz = positions[3 * i + 2] - pz;
+        return (dx * dx) + (dy * dy) + (dz * dz);
+    }
+
     public void init() {
         UI.printInfo(Module.LIGHT, "Balancing global photon map ...");
         UI.taskStart("Balancing global photon map", 0, 1);
@@ -267,6 +336,8 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         UI.printInfo(Module.LIGHT, "  * Estimate radius:  %.3f", gatherRadius);
         maxRadius = 1.4f * (float) Math.sqrt(maxPower * numGather);
         UI.printInfo(Module.LIGHT, "  * Maximum radius:   %.3f", maxRadius);
+        UI.printInfo(Module.LIGHT, "  * Photon memory:    %s", Memory.bytesToString(25L * storedPhotons));
+        UI.printInfo(Module.LIGHT, "  * Threads:          %d", numThreads);
         UI.printInfo(Module.LIGHT, "  * Balancing time:   %s", t.toString());
         if (gatherRadius > maxRadius)
             gatherRadius = maxRadius;
@@ -284,49 +355,22 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         // precompute the radiance for all photons that are neither
         // leaves nor parents of leaves in the tree.
         int quadStoredPhotons = halfStoredPhotons / 2;
-        Point3 p = new Point3();
-        Vector3 n = new Vector3();
-        Point3 ppos = new Point3();
-        Vector3 pdir = new Vector3();
-        Vector3 pvec = new Vector3();
-        Color irr = new Color();
-        Color pow = new Color();
-        float maxDist2 = gatherRadius * gatherRadius;
-        NearestPhotons np = new NearestPhotons(p, numGather, maxDist2);
-        Photon[] temp = new Photon[quadStoredPhotons + 1];
+        nextPrecomputePhoton = 1;
         UI.taskStart("Precomputing radiance", 1, quadStoredPhotons);
-        for (int i = 1; i <= quadStoredPhotons; i++) {
-            UI.taskUpdate(i);
-            Photon curr = photons[i];
-            p.set(curr.x, curr.y, curr.z);
-            Vector3.decode(curr.normal, n);
-            irr.set(Color.BLACK);
-            np.reset(p, maxDist2);
-            locatePhotons(np);
-            if (np.found < 8) {
-                curr.data = 0;
-                temp[i] = curr;
-                continue;
-            }
-            float invArea = 1.0f / ((float) Math.PI * np.dist2[0]);
-            float maxNDist = np.dist2[0] * 0.05f;
-            for (int j = 1; j <= np.found; j++) {
-                Photon phot = np.index[j];
-                Vector3.decode(phot.dir, pdir);
-                float cos = -Vector3.dot(pdir, n);
-                if (cos > 0.01f) {
-                    ppos.set(phot.x, phot.y, phot.z);
-                    Point3.sub(ppos, p, pvec);
-                    float pcos = Vector3.dot(pvec, n);
-                    if ((pcos < maxNDist) && (pcos > -maxNDist))
-                        irr.add(pow.setRGBE(phot.power));
-                }
+        // photons are handed out in chunks since the cost of a lookup varies
+        // a lot with the local photon density
+        int n = Math.max(1, Math.min(numThreads, quadStoredPhotons / PRECOMPUTE_CHUNK_SIZE));
+        Thread[] threads = new Thread[n];
+        for (int i = 0; i < n; i++) {
+            threads[i] = new RadianceThread(quadStoredPhotons);
+            threads[i].start();
+        }
+        for (int i = 0; i < n; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.LIGHT, "Radiance precomputation thread %d of %d was interrupted", i + 1, n);
             }
-            irr.mul(invArea);
-            // compute radiance
-            irr.mul(new Color(curr.data)).mul(1.0f / (float) Math.PI);
-            curr.data = irr.toRGBE();
-            temp[i] = curr;
         }
         UI.taskStop();
 
@@ -338,10 +382,157 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         storedPhotons = quadStoredPhotons;
         halfStoredPhotons = storedPhotons / 2;
         log2n = (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0));
-        photons = temp;
+        positions = trim(positions, 3 * (storedPhotons + 1));
+        axes = trim(axes, storedPhotons + 1);
+        normals = trim(normals, storedPhotons + 1);
+        data = trim(data, storedPhotons + 1);
+        // directions and powers are not needed for radiance lookups
+        dirs = null;
+        powers = null;
         hasRadiance = true;
     }
 
+    public void save(DataOutputStream out) throws IOException {
+        out.writeInt(requestedGather);
+        out.writeFloat(requestedRadius);
+        out.writeInt(numGather);
+        out.writeFloat(gatherRadius);
+        out.writeFloat(maxPower);
+        out.writeFloat(maxRadius);
+        out.writeInt(storedPhotons);
+        out.writeBoolean(hasRadiance);
+        PhotonMapCache.writeArray(out, positions);
+        PhotonMapCache.writeArray(out, axes);
+        PhotonMapCache.writeArray(out, normals);
+        PhotonMapCache.writeArray(out, data);
+    }
+
+    public boolean load(ByteBuffer in) {
+        // the precomputed radiance depends on the gather settings
+        if (in.getInt() != requestedGather || in.getFloat() != requestedRadius)
+            return false;
+        int gather = in.getInt();
+        float radius = in.getFloat();
+        float power = in.getFloat();
+        float radiusLimit = in.getFloat();
+        int n = in.getInt();
+        boolean radiance = in.get() != 0;
+        float[] p = PhotonMapCache.readFloatArray(in);
+        byte[] a = PhotonMapCache.readByteArray(in);
+        short[] nrm = PhotonMapCache.readShortArray(in);
+        int[] d = PhotonMapCache.readIntArray(in);
+        if (n > 0 && (p.length != 3 * (n + 1) || a.length != n + 1 || nrm.length != n + 1 || d.length != n + 1))
+            throw new IllegalStateException("invalid photon count");
+        numGather = gather;
+        gatherRadius = radius;
+        maxPower = power;
+        maxRadius = radiusLimit;
+        storedPhotons = n;
+        hasRadiance = radiance;
+        positions = p;
+        axes = a;
+        normals = nrm;
+        data = d;
+        dirs = null;
+        powers = null;
+        halfStoredPhotons = storedPhotons / 2;
+        log2n = storedPhotons > 0 ? (int) Math.ceil(Math.log(storedPhotons) / Math.log(2.0)) : 0;
+        UI.printInfo(Module.LIGHT, "Global photon map:");
+        UI.printInfo(Module.LIGHT, "  * Radiance photons: %d", storedPhotons);
+        UI.printInfo(Module.LIGHT, "  * Search radius:    %.3f", gatherRadius);
+        return true;
+    }
+
+    private static float[] trim(float[] array, int n) {
+        float[] trimmed = new float[n];
+        System.arraycopy(array, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private static byte[] trim(byte[] array, int n) {
+        byte[] trimmed = new byte[n];
+        System.arraycopy(array, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private static short[] trim(short[] array, int n) {
+        short[] trimmed = new short[n];
+        System.arraycopy(array, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private static int[] trim(int[] array, int n) {
+        int[] trimmed = new int[n];
+        System.arraycopy(array, 0, trimmed, 0, n);
+        return trimmed;
+    }
+
+    private synchronized int getNextPrecomputePhoton() {
+        int first = nextPrecomputePhoton;
+        nextPrecomputePhoton += PRECOMPUTE_CHUNK_SIZE;
+        UI.taskUpdate(first);
+        return first;
+    }
+
+    /**
+     * Computes the radiance of chunks of photons until all photons up to the
+     * specified index are done. Each thread uses its own photon lookup. The
+     * radiance replaces the diffuse color of the photon, which is not needed
+     * for any of the neighbouring lookups.
+     */
+    private final class RadianceThread extends Thread {
+        private final int last;
+
+        RadianceThread(int last) {
+            this.last = last;
+        }
+
+        @Override
+        public void run() {
+            Point3 p = new Point3();
+            Vector3 n = new Vector3();
+            Point3 ppos = new Point3();
+            Vector3 pdir = new Vector3();
+            Vector3 pvec = new Vector3();
+            Color irr = new Color();
+            Color pow = new Color();
+            float maxDist2 = gatherRadius * gatherRadius;
+            NearestPhotons np = new NearestPhotons(p, numGather, maxDist2);
+            for (int first = getNextPrecomputePhoton(); first <= last; first = getNextPrecomputePhoton()) {
+                int end = Math.min(first + PRECOMPUTE_CHUNK_SIZE - 1, last);
+                for (int i = first; i <= end; i++) {
+                    p.set(positions[3 * i + 0], positions[3 * i + 1], positions[3 * i + 2]);
+                    Vector3.decode(normals[i], n);
+                    irr.set(Color.BLACK);
+                    np.reset(p, maxDist2);
+                    locatePhotons(np);
+                    if (np.found < 8) {
+                        data[i] = 0;
+                        continue;
+                    }
+                    float invArea = 1.0f / ((float) Math.PI * np.dist2[0]);
+                    float maxNDist = np.dist2[0] * 0.05f;
+                    for (int j = 1; j <= np.found; j++) {
+                        int phot = np.index[j];
+                        Vector3.decode(dirs[phot], pdir);
+                        float cos = -Vector3.dot(pdir, n);
+                        if (cos > 0.01f) {
+                            ppos.set(positions[3 * phot + 0], positions[3 * phot + 1], positions[3 * phot + 2]);
+                            Point3.sub(ppos, p, pvec);
+                            float pcos = Vector3.dot(pvec, n);
+                            if ((pcos < maxNDist) && (pcos > -maxNDist))
+                                irr.add(pow.setRGBE(powers[phot]));
+                        }
+                    }
+                    irr.mul(invArea);
+                    // compute radiance
+                    irr.mul(new Color(data[i])).mul(1.0f / (float) Math.PI);
+                    data[i] = irr.toRGBE();
+                }
+            }
+        }
+    }
+
     public Color getRadiance(Point3 p, Vector3 n) {
         if (!hasRadiance || (storedPhotons == 0))
             return Color.BLACK;
@@ -353,27 +544,25 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         int cameFrom;
         float dist2;
         float maxDist2 = gatherRadius * gatherRadius;
-        Photon nearest = null;
-        Photon curr;
+        int nearest = 0;
         Vector3 photN = new Vector3();
         float[] dist1d2 = new float[log2n];
         int[] chosen = new int[log2n];
         while (true) {
             while (i < halfStoredPhotons) {
-                float dist1d = photons[i].getDist1(px, py, pz);
+                float dist1d = getDist1(i, px, py, pz);
                 dist1d2[level] = dist1d * dist1d;
                 i += i;
                 if (dist1d > 0)
                     i++;
                 chosen[level++] = i;
             }
-            curr = photons[i];
-            dist2 = curr.getDist2(px, py, pz);
+            dist2 = getDist2(i, px, py, pz);
             if (dist2 < maxDist2) {
-                Vector3.decode(curr.normal, photN);
+                Vector3.decode(normals[i], photN);
                 float currentDotN = Vector3.dot(photN, n);
                 if (currentDotN > 0.9f) {
-                    nearest = curr;
+                    nearest = i;
                     maxDist2 = dist2;
                 }
             }
@@ -382,15 +571,14 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
                 i >>= 1;
                 level--;
                 if (i == 0)
-                    return (nearest == null) ? Color.BLACK : new Color().setRGBE(nearest.data);
+                    return (nearest == 0) ? Color.BLACK : new Color().setRGBE(data[nearest]);
             } while ((dist1d2[level] >= maxDist2) || (cameFrom != chosen[level]));
-            curr = photons[i];
-            dist2 = curr.getDist2(px, py, pz);
+            dist2 = getDist2(i, px, py, pz);
             if (dist2 < maxDist2) {
-                Vector3.decode(curr.normal, photN);
+                Vector3.decode(normals[i], photN);
                 float currentDotN = Vector3.dot(photN, n);
                 if (currentDotN > 0.9f) {
-                    nearest = curr;
+                    nearest = i;
                     maxDist2 = dist2;
                 }
             }
@@ -404,7 +592,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
         private int max;
         private boolean gotHeap;
         protected float[] dist2;
-        protected Photon[] index;
+        protected int[] index;
 
         NearestPhotons(Point3 p, int n, float maxDist2) {
             max = n;
@@ -414,7 +602,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
             py = p.y;
             pz = p.z;
             dist2 = new float[n + 1];
-            index = new Photon[n + 1];
+            index = new int[n + 1];
             dist2[0] = maxDist2;
         }
 
@@ -427,8 +615,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
             dist2[0] = maxDist2;
         }
 
-        void checkAddNearest(Photon p) {
-            float fdist2 = p.getDist2(px, py, pz);
+        void checkAddNearest(int p, float fdist2) {
             if (fdist2 < dist2[0]) {
                 if (found < max) {
                     found++;
@@ -439,7 +626,7 @@ public final class GlobalPhotonMap implements GlobalPhotonMapInterface {
                     int parent;
                     if (!gotHeap) {
                         float dst2;
-                        Photon phot;
+                        int phot;
                         int halfFound = found >> 1;
                         for (int k = halfFound; k >= 1; k--) {
                             parent = k;
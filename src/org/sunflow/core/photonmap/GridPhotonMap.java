@@ -1,40 +1,58 @@
 package org.sunflow.core.photonmap;
 
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import org.sunflow.core.CacheablePhotonStore;
 import org.sunflow.core.GlobalPhotonMapInterface;
 import org.sunflow.core.Options;
+import org.sunflow.core.PhotonMapCache;
 import org.sunflow.core.ShadingState;
 import org.sunflow.image.Color;
 import org.sunflow.math.BoundingBox;
 import org.sunflow.math.MathUtils;
 import org.sunflow.math.Point3;
 import org.sunflow.math.Vector3;
+import org.sunflow.system.Timer;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
+import org.sunflow.util.FloatArray;
+import org.sunflow.util.IntArray;
 
-public class GridPhotonMap implements GlobalPhotonMapInterface {
+/**
+ * Photon map which groups photons by grid cell and surface orientation.
+ * Photons are staged in per-thread buffers while they are traced. Once tracing
+ * is done they are counting-sorted into hash buckets and merged into groups by
+ * several threads. The finished map is never modified, so lookups need no
+ * locking.
+ */
+public class GridPhotonMap implements GlobalPhotonMapInterface, CacheablePhotonStore {
     private int numGather;
     private float gatherRadius;
     private int numStoredPhotons;
     private int nx, ny, nz;
     private BoundingBox bounds;
-    private PhotonGroup[] cellHash;
-    private int hashSize;
-    private int hashPrime;
-    private ReentrantReadWriteLock rwl;
+    private PhotonBuffer.ThreadBuffers photonBuffers;
     private int numEmit;
+    private int numThreads;
+    private boolean precompute;
+
+    // photon groups, sorted by hash bucket
+    private int hashMask;
+    private int[] bucketStart;
+    private int numGroups;
+    private int[] groupCell;
+    private float[] groupNormal;
+    private int[] groupCount;
+    private float[] groupFlux;
+    private float[] groupDiffuse;
+    private float[] groupRadiance;
 
     private static final float NORMAL_THRESHOLD = (float) Math.cos(10.0 * Math.PI / 180.0);
-    private static final int[] PRIMES = { 11, 19, 37, 109, 163, 251, 367, 557,
-            823, 1237, 1861, 2777, 4177, 6247, 9371, 21089, 31627, 47431,
-            71143, 106721, 160073, 240101, 360163, 540217, 810343, 1215497,
-            1823231, 2734867, 4102283, 6153409, 9230113, 13845163 };
 
     public GridPhotonMap() {
         numStoredPhotons = 0;
-        hashSize = 0; // number of unique IDs in the hash
-        rwl = new ReentrantReadWriteLock();
         numEmit = 100000;
     }
 
@@ -43,6 +61,10 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
         numEmit = options.getInt("gi.irr-cache.gmap.emit", 100000);
         numGather = options.getInt("gi.irr-cache.gmap.gather", 50);
         gatherRadius = options.getFloat("gi.irr-cache.gmap.radius", 0.5f);
+        precompute = options.getBoolean("gi.irr-cache.gmap.precompute", true);
+        numThreads = options.getInt("threads", 0);
+        if (numThreads <= 0)
+            numThreads = Runtime.getRuntime().availableProcessors();
 
         bounds = new BoundingBox(sceneBounds);
         bounds.enlargeUlps();
@@ -54,11 +76,11 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
         UI.printInfo(Module.LIGHT, "Initializing grid photon map:");
         UI.printInfo(Module.LIGHT, "  * Resolution:  %dx%dx%d", nx, ny, nz);
         UI.printInfo(Module.LIGHT, "  * Total cells: %d", numCells);
-        for (hashPrime = 0; hashPrime < PRIMES.length; hashPrime++)
-            if (PRIMES[hashPrime] > (numCells / 5))
-                break;
-        cellHash = new PhotonGroup[PRIMES[hashPrime]];
-        UI.printInfo(Module.LIGHT, "  * Initial hash size: %d", cellHash.length);
+        photonBuffers = new PhotonBuffer.ThreadBuffers(true);
+        numStoredPhotons = 0;
+        numGroups = 0;
+        bucketStart = null;
+        groupRadiance = null;
     }
 
     public int size() {
@@ -73,92 +95,235 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
         // outside grid bounds ?
         if (!bounds.contains(pt))
             return;
+        photonBuffers.get().add(pt, state.getNormal(), dir, power, diffuse);
+    }
+
+    private int getCell(float x, float y, float z) {
         Vector3 ext = bounds.getExtents();
-        int ix = (int) (((pt.x - bounds.getMinimum().x) * nx) / ext.x);
-        int iy = (int) (((pt.y - bounds.getMinimum().y) * ny) / ext.y);
-        int iz = (int) (((pt.z - bounds.getMinimum().z) * nz) / ext.z);
+        int ix = (int) (((x - bounds.getMinimum().x) * nx) / ext.x);
+        int iy = (int) (((y - bounds.getMinimum().y) * ny) / ext.y);
+        int iz = (int) (((z - bounds.getMinimum().z) * nz) / ext.z);
         ix = MathUtils.clamp(ix, 0, nx - 1);
         iy = MathUtils.clamp(iy, 0, ny - 1);
         iz = MathUtils.clamp(iz, 0, nz - 1);
-        int id = ix + iy * nx + iz * nx * ny;
-        synchronized (this) {
-            int hid = id % cellHash.length;
-            PhotonGroup g = cellHash[hid];
-            PhotonGroup last = null;
-            boolean hasID = false;
-            while (g != null) {
-                if (g.id == id) {
-                    hasID = true;
-                    if (Vector3.dot(state.getNormal(), g.normal) > NORMAL_THRESHOLD)
-                        break;
-                }
-                last = g;
-                g = g.next;
-            }
-            if (g == null) {
-                g = new PhotonGroup(id, state.getNormal());
-                if (last == null)
-                    cellHash[hid] = g;
-                else
-                    last.next = g;
-                if (!hasID) {
-                    hashSize++; // we have not seen this ID before
-                    // resize hash if we have grown too large
-                    if (hashSize > cellHash.length)
-                        growPhotonHash();
-                }
-            }
-            g.count++;
-            g.flux.add(power);
-            g.diffuse.add(diffuse);
-            numStoredPhotons++;
-        }
+        return ix + iy * nx + iz * nx * ny;
     }
 
     public void init() {
         UI.printInfo(Module.LIGHT, "Initializing photon grid ...");
+        Timer t = new Timer();
+        t.start();
+        PhotonBuffer photons = photonBuffers.merge();
+        photonBuffers = null;
+        numStoredPhotons = photons.size;
+        int hashSize = 16;
+        while (hashSize < numStoredPhotons / 4)
+            hashSize <<= 1;
+        hashMask = hashSize - 1;
+        int[] cells = new int[numStoredPhotons];
+        int[] order = new int[numStoredPhotons];
+        int[] photonStart = sortPhotons(photons, cells, order);
+        groupPhotons(photons, cells, order, photonStart);
+        t.end();
         UI.printInfo(Module.LIGHT, "  * Photon hits:      %d", numStoredPhotons);
-        UI.printInfo(Module.LIGHT, "  * Final hash size:  %d", cellHash.length);
-        int cells = 0;
-        for (int i = 0; i < cellHash.length; i++) {
-            for (PhotonGroup g = cellHash[i]; g != null; g = g.next) {
-                g.diffuse.mul(1.0f / g.count);
-                cells++;
-            }
+        UI.printInfo(Module.LIGHT, "  * Final hash size:  %d", hashSize);
+        UI.printInfo(Module.LIGHT, "  * Num photon cells: %d", numGroups);
+        UI.printInfo(Module.LIGHT, "  * Build threads:    %d", numThreads);
+        UI.printInfo(Module.LIGHT, "  * Build time:       %s", t.toString());
+        if (precompute) {
+            t.start();
+            precomputeRadiance();
+            t.end();
+            UI.printInfo(Module.LIGHT, "  * Precompute time:  %s", t.toString());
         }
-        UI.printInfo(Module.LIGHT, "  * Num photon cells: %d", cells);
     }
 
-    public void precomputeRadiance(boolean includeDirect, boolean includeCaustics) {
+    public void save(DataOutputStream out) throws IOException {
+        out.writeInt(nx);
+        out.writeInt(ny);
+        out.writeInt(nz);
+        out.writeInt(numGather);
+        out.writeInt(numStoredPhotons);
+        out.writeInt(hashMask);
+        PhotonMapCache.writeArray(out, bucketStart);
+        PhotonMapCache.writeArray(out, groupCell);
+        PhotonMapCache.writeArray(out, groupNormal);
+        PhotonMapCache.writeArray(out, groupCount);
+        PhotonMapCache.writeArray(out, groupFlux);
+        PhotonMapCache.writeArray(out, groupDiffuse);
+        PhotonMapCache.writeArray(out, groupRadiance);
     }
 
-    private void growPhotonHash() {
-        // enlarge the hash size:
-        if (hashPrime >= PRIMES.length - 1)
-            return;
-        PhotonGroup[] temp = new PhotonGroup[PRIMES[++hashPrime]];
-        for (int i = 0; i < cellHash.length; i++) {
-            PhotonGroup g = cellHash[i];
-            while (g != null) {
-                // re-hash into the new table
-                int hid = g.id % temp.length;
-                PhotonGroup last = null;
-                for (PhotonGroup gn = temp[hid]; gn != null; gn = gn.next)
-                    last = gn;
-                if (last == null)
-                    temp[hid] = g;
-                else
-                    last.next = g;
-                PhotonGroup next = g.next;
-                g.next = null;
-                g = next;
+    public boolean load(ByteBuffer in) {
+        // the cells depend on the gather radius, and the precomputed radiance
+        // on the number of photons to gather
+        if (in.getInt() != nx || in.getInt() != ny || in.getInt() != nz || in.getInt() != numGather)
+            return false;
+        int n = in.getInt();
+        int mask = in.getInt();
+        int[] start = PhotonMapCache.readIntArray(in);
+        int[] cell = PhotonMapCache.readIntArray(in);
+        float[] normal = PhotonMapCache.readFloatArray(in);
+        int[] count = PhotonMapCache.readIntArray(in);
+        float[] flux = PhotonMapCache.readFloatArray(in);
+        float[] diffuse = PhotonMapCache.readFloatArray(in);
+        float[] radiance = PhotonMapCache.readFloatArray(in);
+        int groups = cell.length;
+        if (start.length != mask + 2 || start[mask + 1] != groups || normal.length != 3 * groups || count.length != groups || flux.length != 3 * groups || diffuse.length != 3 * groups)
+            throw new IllegalStateException("invalid group count");
+        numStoredPhotons = n;
+        hashMask = mask;
+        bucketStart = start;
+        numGroups = groups;
+        groupCell = cell;
+        groupNormal = normal;
+        groupCount = count;
+        groupFlux = flux;
+        groupDiffuse = diffuse;
+        groupRadiance = precompute && radiance.length == 3 * groups ? radiance : null;
+        UI.printInfo(Module.LIGHT, "  * Photon hits:      %d", numStoredPhotons);
+        UI.printInfo(Module.LIGHT, "  * Num photon cells: %d", numGroups);
+        if (precompute && groupRadiance == null) {
+            Timer t = new Timer();
+            t.start();
+            precomputeRadiance();
+            t.end();
+            UI.printInfo(Module.LIGHT, "  * Precompute time:  %s", t.toString());
+        }
+        return true;
+    }
+
+    /**
+     * Counting sort of the photons into hash buckets. Each thread counts the
+     * photons of its own range, the counts are turned into per-thread offsets
+     * and the threads then scatter their photons without any further
+     * synchronization.
+     * 
+     * @return index of the first photon of each bucket in the sorted order
+     */
+    private int[] sortPhotons(final PhotonBuffer photons, final int[] cells, final int[] order) {
+        final int n = photons.size;
+        final int numBuckets = hashMask + 1;
+        int numRanges = Math.max(1, Math.min(numThreads, n / 4096));
+        final int[][] counts = new int[numRanges][numBuckets];
+        runRanges(numRanges, n, new RangeTask() {
+            public void run(int range, int start, int end) {
+                int[] count = counts[range];
+                for (int i = start; i < end; i++) {
+                    cells[i] = getCell(photons.positions[3 * i + 0], photons.positions[3 * i + 1], photons.positions[3 * i + 2]);
+                    count[cells[i] & hashMask]++;
+                }
+            }
+        });
+        int[] photonStart = new int[numBuckets + 1];
+        int offset = 0;
+        for (int b = 0; b < numBuckets; b++) {
+            photonStart[b] = offset;
+            for (int r = 0; r < numRanges; r++) {
+                int c = counts[r][b];
+                counts[r][b] = offset;
+                offset += c;
+            }
+        }
+        photonStart[numBuckets] = offset;
+        runRanges(numRanges, n, new RangeTask() {
+            public void run(int range, int start, int end) {
+                int[] offsets = counts[range];
+                for (int i = start; i < end; i++)
+                    order[offsets[cells[i] & hashMask]++] = i;
+            }
+        });
+        return photonStart;
+    }
+
+    /**
+     * Merge the photons of each bucket into groups of photons sharing the
+     * same cell and orientation. Threads work on disjoint ranges of buckets
+     * and their results are concatenated in bucket order.
+     */
+    private void groupPhotons(final PhotonBuffer photons, final int[] cells, final int[] order, final int[] photonStart) {
+        final int numBuckets = hashMask + 1;
+        int numRanges = Math.max(1, Math.min(numThreads, photons.size / 4096));
+        final GroupList[] lists = new GroupList[numRanges];
+        bucketStart = new int[numBuckets + 1];
+        runRanges(numRanges, numBuckets, new RangeTask() {
+            public void run(int range, int start, int end) {
+                GroupList list = new GroupList();
+                Vector3 n = new Vector3();
+                Color c = new Color();
+                for (int b = start; b < end; b++) {
+                    int first = list.size();
+                    // remember the local offset, relocated after the merge
+                    bucketStart[b] = first;
+                    for (int j = photonStart[b]; j < photonStart[b + 1]; j++) {
+                        int i = order[j];
+                        Vector3.decode(photons.normals[i], n);
+                        int g = list.find(first, cells[i], n);
+                        if (g < 0)
+                            g = list.add(cells[i], n);
+                        list.addPhoton(g, c.setRGBE(photons.powers[i]), photons.data[i]);
+                    }
+                }
+                lists[range] = list;
             }
+        });
+        // concatenate the per-thread lists
+        numGroups = 0;
+        for (GroupList list : lists)
+            numGroups += list.size();
+        groupCell = new int[numGroups];
+        groupNormal = new float[3 * numGroups];
+        groupCount = new int[numGroups];
+        groupFlux = new float[3 * numGroups];
+        groupDiffuse = new float[3 * numGroups];
+        int offset = 0;
+        int bucket = 0;
+        for (int r = 0; r < numRanges; r++) {
+            GroupList list = lists[r];
+            int end = (int) (((long) numBuckets * (r + 1)) / numRanges);
+            for (; bucket < end; bucket++)
+                bucketStart[bucket] += offset;
+            int size = list.size();
+            System.arraycopy(list.cell.trim(), 0, groupCell, offset, size);
+            System.arraycopy(list.normal.trim(), 0, groupNormal, 3 * offset, 3 * size);
+            System.arraycopy(list.count.trim(), 0, groupCount, offset, size);
+            System.arraycopy(list.flux.trim(), 0, groupFlux, 3 * offset, 3 * size);
+            float[] diffuse = list.diffuse.trim();
+            for (int i = 0; i < size; i++) {
+                float s = 1.0f / list.count.get(i);
+                for (int k = 0; k < 3; k++)
+                    groupDiffuse[3 * (offset + i) + k] = diffuse[3 * i + k] * s;
+            }
+            offset += size;
         }
-        cellHash = temp;
+        bucketStart[numBuckets] = numGroups;
     }
 
-    public synchronized Color getRadiance(Point3 p, Vector3 n) {
-        if (!bounds.contains(p))
+    /**
+     * Compute the radiance of every photon group ahead of time, so lookups
+     * only need to find the right group.
+     */
+    private void precomputeRadiance() {
+        final float[] radiance = new float[3 * numGroups];
+        int numRanges = Math.max(1, Math.min(numThreads, numGroups / 1024));
+        runRanges(numRanges, numGroups, new RangeTask() {
+            public void run(int range, int start, int end) {
+                Vector3 n = new Vector3();
+                for (int g = start; g < end; g++) {
+                    int id = groupCell[g];
+                    n.set(groupNormal[3 * g + 0], groupNormal[3 * g + 1], groupNormal[3 * g + 2]);
+                    Color r = computeRadiance(id % nx, (id / nx) % ny, id / (nx * ny), n, g);
+                    radiance[3 * g + 0] = r.getR();
+                    radiance[3 * g + 1] = r.getG();
+                    radiance[3 * g + 2] = r.getB();
+                }
+            }
+        });
+        groupRadiance = radiance;
+    }
+
+    public Color getRadiance(Point3 p, Vector3 n) {
+        if (bucketStart == null || !bounds.contains(p))
             return Color.BLACK;
         Vector3 ext = bounds.getExtents();
         int ix = (int) (((p.x - bounds.getMinimum().x) * nx) / ext.x);
@@ -167,40 +332,37 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
         ix = MathUtils.clamp(ix, 0, nx - 1);
         iy = MathUtils.clamp(iy, 0, ny - 1);
         iz = MathUtils.clamp(iz, 0, nz - 1);
-        int id = ix + iy * nx + iz * nx * ny;
-        rwl.readLock().lock();
-        PhotonGroup center = null;
-        for (PhotonGroup g = get(ix, iy, iz); g != null; g = g.next) {
-            if (g.id == id && Vector3.dot(n, g.normal) > NORMAL_THRESHOLD) {
-                if (g.radiance == null) {
-                    center = g;
-                    break;
-                }
-                Color r = g.radiance.copy();
-                rwl.readLock().unlock();
-                return r;
-            }
-        }
+        int center = findGroup(ix, iy, iz, n);
+        if (center >= 0 && groupRadiance != null)
+            return new Color(groupRadiance[3 * center + 0], groupRadiance[3 * center + 1], groupRadiance[3 * center + 2]);
+        return computeRadiance(ix, iy, iz, n, center);
+    }
+
+    /**
+     * Estimate the radiance leaving the specified cell by growing a box of
+     * cells around it until enough photons are found.
+     * 
+     * @param center group holding the diffuse color of the cell, or -1 to
+     *            average the colors of the surrounding groups
+     */
+    private Color computeRadiance(int ix, int iy, int iz, Vector3 n, int center) {
+        Vector3 ext = bounds.getExtents();
         int vol = 1;
         while (true) {
             int numPhotons = 0;
             int ndiff = 0;
             Color irr = Color.black();
-            Color diff = (center == null) ? Color.black() : null;
+            Color diff = Color.black();
             for (int z = iz - (vol - 1); z <= iz + (vol - 1); z++) {
                 for (int y = iy - (vol - 1); y <= iy + (vol - 1); y++) {
                     for (int x = ix - (vol - 1); x <= ix + (vol - 1); x++) {
-                        int vid = x + y * nx + z * nx * ny;
-                        for (PhotonGroup g = get(x, y, z); g != null; g = g.next) {
-                            if (g.id == vid && Vector3.dot(n, g.normal) > NORMAL_THRESHOLD) {
-                                numPhotons += g.count;
-                                irr.add(g.flux);
-                                if (diff != null) {
-                                    diff.add(g.diffuse);
-                                    ndiff++;
-                                }
-                                break; // only one valid group can be found,
-                                // skip the others
+                        int g = findGroup(x, y, z, n);
+                        if (g >= 0) {
+                            numPhotons += groupCount[g];
+                            irr.add(new Color(groupFlux[3 * g + 0], groupFlux[3 * g + 1], groupFlux[3 * g + 2]));
+                            if (center < 0) {
+                                diff.add(new Color(groupDiffuse[3 * g + 0], groupDiffuse[3 * g + 1], groupDiffuse[3 * g + 2]));
+                                ndiff++;
                             }
                         }
                     }
@@ -208,59 +370,122 @@ public class GridPhotonMap implements GlobalPhotonMapInterface {
             }
             if (numPhotons >= numGather || vol >= 3) {
                 // we have found enough photons
-                // cache irradiance and return
                 float area = (2 * vol - 1) / 3.0f * ((ext.x / nx) + (ext.y / ny) + (ext.z / nz));
                 area *= area;
                 area *= Math.PI;
                 irr.mul(1.0f / area);
-                // upgrade lock manually
-                rwl.readLock().unlock();
-                rwl.writeLock().lock();
-                if (center == null) {
-                    if (ndiff > 0)
-                        diff.mul(1.0f / ndiff);
-                    center = new PhotonGroup(id, n);
-                    center.diffuse.set(diff);
-                    center.next = cellHash[id % cellHash.length];
-                    cellHash[id % cellHash.length] = center;
-                }
-                irr.mul(center.diffuse);
-                center.radiance = irr.copy();
-                rwl.writeLock().unlock(); // unlock write - done
-                return irr;
+                if (center >= 0)
+                    diff.set(new Color(groupDiffuse[3 * center + 0], groupDiffuse[3 * center + 1], groupDiffuse[3 * center + 2]));
+                else if (ndiff > 0)
+                    diff.mul(1.0f / ndiff);
+                return irr.mul(diff);
             }
             vol++;
         }
     }
 
-    private PhotonGroup get(int x, int y, int z) {
-        // returns the list associated with the specified location
+    /**
+     * Find the photon group of the specified cell facing the specified
+     * direction.
+     * 
+     * @return group index, or -1 if there is no such group
+     */
+    private int findGroup(int x, int y, int z, Vector3 n) {
         if (x < 0 || x >= nx)
-            return null;
+            return -1;
         if (y < 0 || y >= ny)
-            return null;
+            return -1;
         if (z < 0 || z >= nz)
-            return null;
-        return cellHash[(x + y * nx + z * nx * ny) % cellHash.length];
+            return -1;
+        int id = x + y * nx + z * nx * ny;
+        int b = id & hashMask;
+        for (int g = bucketStart[b]; g < bucketStart[b + 1]; g++) {
+            if (groupCell[g] == id && n.x * groupNormal[3 * g + 0] + n.y * groupNormal[3 * g + 1] + n.z * groupNormal[3 * g + 2] > NORMAL_THRESHOLD)
+                return g;
+        }
+        return -1;
     }
 
-    private class PhotonGroup {
-        int id;
-        int count;
-        Vector3 normal;
-        Color flux;
-        Color radiance;
-        Color diffuse;
-        PhotonGroup next;
+    /**
+     * Runs a task over a range of items split evenly among threads. The last
+     * range is processed by the calling thread.
+     */
+    private static void runRanges(int numRanges, int n, final RangeTask task) {
+        Thread[] threads = new Thread[numRanges - 1];
+        for (int i = 0; i < numRanges; i++) {
+            final int range = i;
+            final int start = (int) (((long) n * i) / numRanges);
+            final int end = (int) (((long) n * (i + 1)) / numRanges);
+            if (i == numRanges - 1)
+                task.run(range, start, end);
+            else {
+                threads[i] = new Thread() {
+                    @Override
+                    public void run() {
+                        task.run(range, start, end);
+                    }
+                };
+                threads[i].start();
+            }
+        }
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                threads[i].join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.LIGHT, "Photon grid thread %d of %d was interrupted", i + 1, numRanges);
+            }
+        }
+    }
+
+    private interface RangeTask {
+        void run(int range, int start, int end);
+    }
+
+    /**
+     * Growable list of photon groups built by a single thread.
+     */
+    private static final class GroupList {
+        final IntArray cell = new IntArray();
+        final FloatArray normal = new FloatArray();
+        final IntArray count = new IntArray();
+        final FloatArray flux = new FloatArray();
+        final FloatArray diffuse = new FloatArray();
+        private final Color rgb = new Color();
+
+        int size() {
+            return cell.getSize();
+        }
+
+        int find(int first, int id, Vector3 n) {
+            for (int g = first; g < size(); g++) {
+                if (cell.get(g) == id && n.x * normal.get(3 * g + 0) + n.y * normal.get(3 * g + 1) + n.z * normal.get(3 * g + 2) > NORMAL_THRESHOLD)
+                    return g;
+            }
+            return -1;
+        }
+
+        int add(int id, Vector3 n) {
+            cell.add(id);
+            normal.add(n.x);
+            normal.add(n.y);
+            normal.add(n.z);
+            count.add(0);
+            for (int k = 0; k < 3; k++) {
+                flux.add(0);
+                diffuse.add(0);
+            }
+            return size() - 1;
+        }
 
-        PhotonGroup(int id, Vector3 n) {
-            normal = new Vector3(n);
-            flux = Color.black();
-            diffuse = Color.black();
-            radiance = null;
-            count = 0;
-            this.id = id;
-            next = null;
+        void addPhoton(int g, Color power, int diffuseRGB) {
+            count.set(g, count.get(g) + 1);
+            flux.set(3 * g + 0, flux.get(3 * g + 0) + power.getR());
+            flux.set(3 * g + 1, flux.get(3 * g + 1) + power.getG());
+            flux.set(3 * g + 2, flux.get(3 * g + 2) + power.getB());
+            rgb.setRGB(diffuseRGB);
+            diffuse.set(3 * g + 0, diffuse.get(3 * g + 0) + rgb.getR());
+            diffuse.set(3 * g + 1, diffuse.get(3 * g + 1) + rgb.getG());
+            diffuse.set(3 * g + 2, diffuse.get(3 * g + 2) + rgb.getB());
         }
     }
 
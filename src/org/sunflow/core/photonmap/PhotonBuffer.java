@@ -0,0 +1,130 @@
+package org.sunflow.core.photonmap;
+
+import java.util.ArrayList;
+
+import org.sunflow.image.Color;
+import org.sunflow.math.BoundingBox;
+import org.sunflow.math.Point3;
+import org.sunflow.math.Vector3;
+
+/**
+ * Packed storage for photons as they are traced. Positions are stored as
+ * consecutive x, y, z triplets, directions and normals as encoded shorts and
+ * colors as packed ints. Normals and diffuse colors are only kept if the map
+ * needs them.
+ */
+final class PhotonBuffer {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    float[] positions;
+    short[] dirs;
+    short[] normals;
+    int[] powers;
+    int[] data;
+    int size;
+    final BoundingBox bounds;
+    float maxPower;
+
+    PhotonBuffer(int capacity, boolean surfaceData) {
+        positions = new float[3 * capacity];
+        dirs = new short[capacity];
+        powers = new int[capacity];
+        if (surfaceData) {
+            normals = new short[capacity];
+            data = new int[capacity];
+        }
+        size = 0;
+        bounds = new BoundingBox();
+        maxPower = 0;
+    }
+
+    void add(Point3 p, Vector3 n, Vector3 dir, Color power, Color diffuse) {
+        if (size == powers.length)
+            resize((size * 3) / 2 + 1);
+        positions[3 * size + 0] = p.x;
+        positions[3 * size + 1] = p.y;
+        positions[3 * size + 2] = p.z;
+        dirs[size] = dir.encode();
+        powers[size] = power.toRGBE();
+        if (normals != null) {
+            normals[size] = n.encode();
+            data[size] = diffuse.toRGB();
+        }
+        bounds.include(p);
+        maxPower = Math.max(maxPower, power.getMax());
+        size++;
+    }
+
+    private void resize(int capacity) {
+        float[] oldPositions = positions;
+        positions = new float[3 * capacity];
+        System.arraycopy(oldPositions, 0, positions, 0, 3 * size);
+        short[] oldDirs = dirs;
+        dirs = new short[capacity];
+        System.arraycopy(oldDirs, 0, dirs, 0, size);
+        int[] oldPowers = powers;
+        powers = new int[capacity];
+        System.arraycopy(oldPowers, 0, powers, 0, size);
+        if (normals != null) {
+            short[] oldNormals = normals;
+            normals = new short[capacity];
+            System.arraycopy(oldNormals, 0, normals, 0, size);
+            int[] oldData = data;
+            data = new int[capacity];
+            System.arraycopy(oldData, 0, data, 0, size);
+        }
+    }
+
+    /**
+     * Hands out a separate buffer to every thread storing photons, so storing
+     * a photon never needs a lock. The buffers are concatenated once all
+     * photons have been traced.
+     */
+    static final class ThreadBuffers extends ThreadLocal<PhotonBuffer> {
+        private final boolean surfaceData;
+        private final ArrayList<PhotonBuffer> buffers;
+
+        ThreadBuffers(boolean surfaceData) {
+            this.surfaceData = surfaceData;
+            buffers = new ArrayList<PhotonBuffer>();
+        }
+
+        @Override
+        protected PhotonBuffer initialValue() {
+            PhotonBuffer buffer = new PhotonBuffer(INITIAL_CAPACITY, surfaceData);
+            synchronized (buffers) {
+                buffers.add(buffer);
+            }
+            return buffer;
+        }
+
+        /**
+         * Concatenate the buffers of all threads into a single buffer. This
+         * must only be called once all threads are done storing photons.
+         * 
+         * @return a buffer holding all stored photons
+         */
+        PhotonBuffer merge() {
+            synchronized (buffers) {
+                int total = 0;
+                for (PhotonBuffer b : buffers)
+                    total += b.size;
+                PhotonBuffer merged = new PhotonBuffer(total, surfaceData);
+                for (PhotonBuffer b : buffers) {
+                    System.arraycopy(b.positions, 0, merged.positions, 3 * merged.size, 3 * b.size);
+                    System.arraycopy(b.dirs, 0, merged.dirs, merged.size, b.size);
+                    System.arraycopy(b.powers, 0, merged.powers, merged.size, b.size);
+                    if (surfaceData) {
+                        System.arraycopy(b.normals, 0, merged.normals, merged.size, b.size);
+                        System.arraycopy(b.data, 0, merged.data, merged.size, b.size);
+                    }
+                    merged.bounds.include(b.bounds);
+                    merged.maxPower = Math.max(merged.maxPower, b.maxPower);
+                    merged.size += b.size;
+                }
+                buffers.clear();
+                return merged;
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -11,6 +11,7 @@ import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.Shader;
 import org.sunflow.core.ShadingState;
+import org.sunflow.core.ShadowPrimitiveList;
 import org.sunflow.core.ParameterList.FloatParameter;
 import org.sunflow.core.ParameterList.InterpolationType;
 import org.sunflow.image.Color;
@@ -21,7 +22,7 @@ import org.sunflow.math.Vector3;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public class Hair implements PrimitiveList, Shader {
+public class Hair implements ShadowPrimitiveList, Shader {
     private int numSegments;
     private float[] points;
     private FloatParameter widths;
@@ -104,6 +105,16 @@ public class Hair implements PrimitiveList, Shader {
     }
 
     public void intersectPrimitive(Ray r, int primID, IntersectionState state) {
+        intersectSegment(r, primID, state);
+    }
+
+    public boolean intersectPrimitiveShadow(Ray r, int primID, IntersectionState state) {
+        return intersectSegment(r, primID, null);
+    }
+
+    // the hit is only recorded when given an intersection state, without one
+    // the segment simply reports whether it blocks the ray
+    private boolean intersectSegment(Ray r, int primID, IntersectionState state) {
         int hair = primID / numSegments;
         int line = primID % numSegments;
         int vRoot = hair * 3 * (numSegments + 1);
@@ -133,15 +144,18 @@ public class Hair implements PrimitiveList, Shader {
             if (q <= 0) {
                 // don't included rounded tip at root
                 if (line == 0)
-                    return;
+                    return false;
                 float dx = points[v0 + 0] - px;
                 float dy = points[v0 + 1] - py;
                 float dz = points[v0 + 2] - pz;
                 float d2 = dx * dx + dy * dy + dz * dz;
                 float width = getWidth(vn);
                 if (d2 < (width * width * 0.25f)) {
-                    r.setMax(t);
-                    state.setIntersection(primID, 0, 0);
+                    if (state != null) {
+                        r.setMax(t);
+                        state.setIntersection(primID, 0, 0);
+                    }
+                    return true;
                 }
             } else if (q >= 1) {
                 float dx = points[v1 + 0] - px;
@@ -150,8 +164,11 @@ public class Hair implements PrimitiveList, Shader {
                 float d2 = dx * dx + dy * dy + dz * dz;
                 float width = getWidth(vn + 1);
                 if (d2 < (width * width * 0.25f)) {
-                    r.setMax(t);
-                    state.setIntersection(primID, 0, 1);
+                    if (state != null) {
+                        r.setMax(t);
+                        state.setIntersection(primID, 0, 1);
+                    }
+                    return true;
                 }
             } else {
                 float dx = points[v0 + 0] + q * vx - px;
@@ -160,11 +177,15 @@ public class Hair implements PrimitiveList, Shader {
                 float d2 = dx * dx + dy * dy + dz * dz;
                 float width = (1 - q) * getWidth(vn) + q * getWidth(vn + 1);
                 if (d2 < (width * width * 0.25f)) {
-                    r.setMax(t);
-                    state.setIntersection(primID, 0, q);
+                    if (state != null) {
+                        r.setMax(t);
+                        state.setIntersection(primID, 0, q);
+                    }
+                    return true;
                 }
             }
         }
+        return false;
     }
 
     public void prepareShadingState(ShadingState state) {
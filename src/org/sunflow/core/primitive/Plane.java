@@ -19,6 +19,7 @@ public class Plane implements PrimitiveList {
     int k;
     private float bnu, bnv, bnd;
     private float cnu, cnv, cnd;
+    private Vector3 dpdu, dpdv;
 
     public Plane() {
         center = new Point3(0, 0, 0);
@@ -80,11 +81,15 @@ public class Plane implements PrimitiveList {
             cnu = cy / det;
             cnv = -cx / det;
             cnd = (cx * ay - cy * ax) / det;
+            // the texture coordinates of point1 and point2 are (1,0) and (0,1)
+            dpdu = Point3.sub(v1, v0, new Vector3());
+            dpdv = Point3.sub(v2, v0, new Vector3());
         } else {
             normal = pl.getVector("normal", normal);
             k = 3;
             bnu = bnv = bnd = 0;
             cnu = cnv = cnd = 0;
+            dpdu = dpdv = null;
         }
         return true;
     }
@@ -121,6 +126,8 @@ public class Plane implements PrimitiveList {
         }
         state.getUV().x = hu * bnu + hv * bnv + bnd;
         state.getUV().y = hu * cnu + hv * cnv + cnd;
+        if (dpdu != null)
+            state.setSurfaceDerivatives(state.transformVectorObjectToWorld(dpdu), state.transformVectorObjectToWorld(dpdv));
         state.setBasis(OrthoNormalBasis.makeFromW(normal));
     }
 
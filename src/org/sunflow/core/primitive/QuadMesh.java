@@ -11,6 +11,7 @@ import org.sunflow.core.ParameterList;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.ShadingState;
+import org.sunflow.core.ShadowPrimitiveList;
 import org.sunflow.core.ParameterList.FloatParameter;
 import org.sunflow.core.ParameterList.InterpolationType;
 import org.sunflow.math.BoundingBox;
@@ -22,7 +23,7 @@ import org.sunflow.math.Vector3;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public class QuadMesh implements PrimitiveList {
+public class QuadMesh implements ShadowPrimitiveList {
     protected float[] points;
     protected int[] quads;
     private FloatParameter normals;
@@ -133,6 +134,16 @@ public class QuadMesh implements PrimitiveList {
     }
 
     public void intersectPrimitive(Ray r, int primID, IntersectionState state) {
+        intersectQuad(r, primID, state);
+    }
+
+    public boolean intersectPrimitiveShadow(Ray r, int primID, IntersectionState state) {
+        return intersectQuad(r, primID, null);
+    }
+
+    // the hit is only recorded when given an intersection state, without one
+    // the first intersection found is reported as blocking the ray
+    private boolean intersectQuad(Ray r, int primID, IntersectionState state) {
         // ray/bilinear patch intersection adapted from "Production Rendering:
         // Design and Implementation" by Ian Stephenson (Ed.)
         int quad = 4 * primID;
@@ -193,6 +204,8 @@ public class QuadMesh implements PrimitiveList {
                 if (v >= 0 && v <= 1) {
                     float t = (B[X] * u + C[X] * v - R[X]) / Q[X];
                     if (r.isInside(t)) {
+                        if (state == null)
+                            return true;
                         r.setMax(t);
                         state.setIntersection(primID, u, v);
                     }
@@ -205,7 +218,7 @@ public class QuadMesh implements PrimitiveList {
             float discrim = b * b - 4 * a * c;
             // reject trivial cases
             if (c * (a + b + c) > 0 && (discrim < 0 || a * c < 0 || b / a > 0 || b / a < -2))
-                return;
+                return false;
             // solve quadratic
             float q = b > 0 ? -0.5f * (b + (float) Math.sqrt(discrim)) : -0.5f * (b - (float) Math.sqrt(discrim));
             // check first solution
@@ -217,6 +230,8 @@ public class QuadMesh implements PrimitiveList {
                 if (v >= 0 && v <= 1) {
                     float t = (A[X] * u * v + B[X] * u + C[X] * v - R[X]) / Q[X];
                     if (r.isInside(t)) {
+                        if (state == null)
+                            return true;
                         r.setMax(t);
                         state.setIntersection(primID, u, v);
                     }
@@ -229,12 +244,15 @@ public class QuadMesh implements PrimitiveList {
                 if (v >= 0 && v <= 1) {
                     float t = (A[X] * u * v + B[X] * u + C[X] * v - R[X]) / Q[X];
                     if (r.isInside(t)) {
+                        if (state == null)
+                            return true;
                         r.setMax(t);
                         state.setIntersection(primID, u, v);
                     }
                 }
             }
         }
+        return false;
     }
 
     public int getNumPrimitives() {
@@ -362,15 +380,17 @@ public class QuadMesh implements PrimitiveList {
                 state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
             } else {
                 float invdet = 1.f / determinant;
-                // Vector3 dpdu = new Vector3();
-                // dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
-                // dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
-                // dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
+                Vector3 dpdu = new Vector3();
+                dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
+                dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
+                dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
                 Vector3 dpdv = new Vector3();
                 dpdv.x = (-du2 * dp1.x + du1 * dp2.x) * invdet;
                 dpdv.y = (-du2 * dp1.y + du1 * dp2.y) * invdet;
                 dpdv.z = (-du2 * dp1.z + du1 * dp2.z) * invdet;
+                dpdu = state.transformVectorObjectToWorld(dpdu);
                 dpdv = state.transformVectorObjectToWorld(dpdv);
+                state.setSurfaceDerivatives(dpdu, dpdv);
                 // create basis in world space
                 state.setBasis(OrthoNormalBasis.makeFromWV(state.getNormal(), dpdv));
             }
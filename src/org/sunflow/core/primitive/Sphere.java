@@ -54,9 +54,18 @@ public class Sphere implements PrimitiveList {
         v.z = 0;
         state.setShader(parent.getShader(0));
         state.setModifier(parent.getModifier(0));
+        // derivative along theta, undefined at the poles
+        float sinTheta = (float) Math.sqrt(state.getNormal().x * state.getNormal().x + state.getNormal().y * state.getNormal().y);
+        Vector3 dpdv = null;
+        if (sinTheta > 1e-6f) {
+            float s = (float) Math.PI * state.getNormal().z / sinTheta;
+            dpdv = new Vector3(s * state.getNormal().x, s * state.getNormal().y, -(float) Math.PI * sinTheta);
+        }
         // into world space
         Vector3 worldNormal = state.transformNormalObjectToWorld(state.getNormal());
         v = state.transformVectorObjectToWorld(v);
+        if (dpdv != null)
+            state.setSurfaceDerivatives(v, state.transformVectorObjectToWorld(dpdv));
         state.getNormal().set(worldNormal);
         state.getNormal().normalize();
         state.getGeoNormal().set(state.getNormal());
@@ -11,6 +11,7 @@ import org.sunflow.core.ParameterList;
 import org.sunflow.core.PrimitiveList;
 import org.sunflow.core.Ray;
 import org.sunflow.core.ShadingState;
+import org.sunflow.core.ShadowPrimitiveList;
 import org.sunflow.core.ParameterList.FloatParameter;
 import org.sunflow.core.ParameterList.InterpolationType;
 import org.sunflow.math.BoundingBox;
@@ -22,7 +23,7 @@ import org.sunflow.math.Vector3;
 import org.sunflow.system.UI;
 import org.sunflow.system.UI.Module;
 
-public class TriangleMesh implements PrimitiveList {
+public class TriangleMesh implements ShadowPrimitiveList {
     private static boolean smallTriangles = false;
     protected float[] points;
     protected int[] triangles;
@@ -148,7 +149,9 @@ public class TriangleMesh implements PrimitiveList {
         return bounds;
     }
 
-    private final void intersectTriangleKensler(Ray r, int primID, IntersectionState state) {
+    // the triangle tests below only record the hit when given an intersection
+    // state, without one they simply report whether the ray is blocked
+    private final boolean intersectTriangleKensler(Ray r, int primID, IntersectionState state) {
         int tri = 3 * primID;
         int a = 3 * triangles[tri + 0];
         int b = 3 * triangles[tri + 1];
@@ -170,22 +173,25 @@ public class TriangleMesh implements PrimitiveList {
         float va = nx * edge2x + ny * edge2y + nz * edge2z;
         float t = iv * va;
         if (!r.isInside(t))
-            return;
+            return false;
         float ix = edge2y * r.dz - edge2z * r.dy;
         float iy = edge2z * r.dx - edge2x * r.dz;
         float iz = edge2x * r.dy - edge2y * r.dx;
         float v1 = ix * edge1x + iy * edge1y + iz * edge1z;
         float beta = iv * v1;
         if (beta < 0)
-            return;
+            return false;
         float v2 = ix * edge0x + iy * edge0y + iz * edge0z;
         if ((v1 + v2) * v > v * v)
-            return;
+            return false;
         float gamma = iv * v2;
         if (gamma < 0)
-            return;
-        r.setMax(t);
-        state.setIntersection(primID, beta, gamma);
+            return false;
+        if (state != null) {
+            r.setMax(t);
+            state.setIntersection(primID, beta, gamma);
+        }
+        return true;
     }
 
     public void intersectPrimitive(Ray r, int primID, IntersectionState state) {
@@ -200,6 +206,12 @@ public class TriangleMesh implements PrimitiveList {
         intersectTriangleKensler(r, primID, state);
     }
 
+    public boolean intersectPrimitiveShadow(Ray r, int primID, IntersectionState state) {
+        if (triaccel != null)
+            return triaccel[primID].intersect(r, primID, null);
+        return intersectTriangleKensler(r, primID, null);
+    }
+
     public int getNumPrimitives() {
         return triangles.length / 3;
     }
@@ -300,15 +312,17 @@ public class TriangleMesh implements PrimitiveList {
                 state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
             } else {
                 float invdet = 1.f / determinant;
-                // Vector3 dpdu = new Vector3();
-                // dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
-                // dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
-                // dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
+                Vector3 dpdu = new Vector3();
+                dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
+                dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
+                dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
                 Vector3 dpdv = new Vector3();
                 dpdv.x = (-du2 * dp1.x + du1 * dp2.x) * invdet;
                 dpdv.y = (-du2 * dp1.y + du1 * dp2.y) * invdet;
                 dpdv.z = (-du2 * dp1.z + du1 * dp2.z) * invdet;
+                dpdu = state.transformVectorObjectToWorld(dpdu);
                 dpdv = state.transformVectorObjectToWorld(dpdv);
+                state.setSurfaceDerivatives(dpdu, dpdv);
                 // create basis in world space
                 state.setBasis(OrthoNormalBasis.makeFromWV(state.getNormal(), dpdv));
             }
@@ -415,66 +429,73 @@ public class TriangleMesh implements PrimitiveList {
             cnd = (cx * ay - cy * ax) / det;
         }
 
-        void intersect(Ray r, int primID, IntersectionState state) {
+        boolean intersect(Ray r, int primID, IntersectionState state) {
             switch (k) {
                 case 0: {
                     float det = 1.0f / (r.dx + nu * r.dy + nv * r.dz);
                     float t = (nd - r.ox - nu * r.oy - nv * r.oz) * det;
                     if (!r.isInside(t))
-                        return;
+                        return false;
                     float hu = r.oy + t * r.dy;
                     float hv = r.oz + t * r.dz;
                     float u = hu * bnu + hv * bnv + bnd;
                     if (u < 0.0f)
-                        return;
+                        return false;
                     float v = hu * cnu + hv * cnv + cnd;
                     if (v < 0.0f)
-                        return;
+                        return false;
                     if (u + v > 1.0f)
-                        return;
-                    r.setMax(t);
-                    state.setIntersection(primID, u, v);
-                    return;
+                        return false;
+                    if (state != null) {
+                        r.setMax(t);
+                        state.setIntersection(primID, u, v);
+                    }
+                    return true;
                 }
                 case 1: {
                     float det = 1.0f / (r.dy + nu * r.dz + nv * r.dx);
                     float t = (nd - r.oy - nu * r.oz - nv * r.ox) * det;
                     if (!r.isInside(t))
-                        return;
+                        return false;
                     float hu = r.oz + t * r.dz;
                     float hv = r.ox + t * r.dx;
                     float u = hu * bnu + hv * bnv + bnd;
                     if (u < 0.0f)
-                        return;
+                        return false;
                     float v = hu * cnu + hv * cnv + cnd;
                     if (v < 0.0f)
-                        return;
+                        return false;
                     if (u + v > 1.0f)
-                        return;
-                    r.setMax(t);
-                    state.setIntersection(primID, u, v);
-                    return;
+                        return false;
+                    if (state != null) {
+                        r.setMax(t);
+                        state.setIntersection(primID, u, v);
+                    }
+                    return true;
                 }
                 case 2: {
                     float det = 1.0f / (r.dz + nu * r.dx + nv * r.dy);
                     float t = (nd - r.oz - nu * r.ox - nv * r.oy) * det;
                     if (!r.isInside(t))
-                        return;
+                        return false;
                     float hu = r.ox + t * r.dx;
                     float hv = r.oy + t * r.dy;
                     float u = hu * bnu + hv * bnv + bnd;
                     if (u < 0.0f)
-                        return;
+                        return false;
                     float v = hu * cnu + hv * cnv + cnd;
                     if (v < 0.0f)
-                        return;
+                        return false;
                     if (u + v > 1.0f)
-                        return;
-                    r.setMax(t);
-                    state.setIntersection(primID, u, v);
-                    return;
+                        return false;
+                    if (state != null) {
+                        r.setMax(t);
+                        state.setIntersection(primID, u, v);
+                    }
+                    return true;
                 }
             }
+            return false;
         }
     }
 
@@ -489,7 +510,7 @@ public class TriangleMesh implements PrimitiveList {
         }
     }
 
-    private class BakingSurface implements PrimitiveList {
+    private class BakingSurface implements ShadowPrimitiveList {
         public PrimitiveList getBakingPrimitives() {
             return null;
         }
@@ -568,12 +589,20 @@ public class TriangleMesh implements PrimitiveList {
         }
 
         public void intersectPrimitive(Ray r, int primID, IntersectionState state) {
+            intersectTriangleMoller(r, primID, state);
+        }
+
+        public boolean intersectPrimitiveShadow(Ray r, int primID, IntersectionState state) {
+            return intersectTriangleMoller(r, primID, null);
+        }
+
+        private boolean intersectTriangleMoller(Ray r, int primID, IntersectionState state) {
             float uv00 = 0, uv01 = 0, uv10 = 0, uv11 = 0, uv20 = 0, uv21 = 0;
             switch (uvs.interp) {
                 case NONE:
                 case FACE:
                 default:
-                    return;
+                    return false;
                 case VERTEX: {
                     int tri = 3 * primID;
                     int index0 = triangles[tri + 0];
@@ -621,34 +650,37 @@ public class TriangleMesh implements PrimitiveList {
                 double tvecz = r.oz;
                 u = (tvecx * pvecx + tvecy * pvecy + tvecz * pvecz);
                 if (u < 0.0 || u > det)
-                    return;
+                    return false;
                 qvecx = tvecy * 0 - tvecz * edge1y;
                 qvecy = tvecz * edge1x - tvecx * 0;
                 qvecz = tvecx * edge1y - tvecy * edge1x;
                 v = (r.dx * qvecx + r.dy * qvecy + r.dz * qvecz);
                 if (v < 0.0 || u + v > det)
-                    return;
+                    return false;
             } else if (det < 0) {
                 double tvecx = r.ox - uv00;
                 double tvecy = r.oy - uv01;
                 double tvecz = r.oz;
                 u = (tvecx * pvecx + tvecy * pvecy + tvecz * pvecz);
                 if (u > 0.0 || u < det)
-                    return;
+                    return false;
                 qvecx = tvecy * 0 - tvecz * edge1y;
                 qvecy = tvecz * edge1x - tvecx * 0;
                 qvecz = tvecx * edge1y - tvecy * edge1x;
                 v = (r.dx * qvecx + r.dy * qvecy + r.dz * qvecz);
                 if (v > 0.0 || u + v < det)
-                    return;
+                    return false;
             } else
-                return;
+                return false;
             double inv_det = 1.0 / det;
             float t = (float) ((edge2x * qvecx + edge2y * qvecy + 0 * qvecz) * inv_det);
-            if (r.isInside(t)) {
+            if (!r.isInside(t))
+                return false;
+            if (state != null) {
                 r.setMax(t);
                 state.setIntersection(primID, (float) (u * inv_det), (float) (v * inv_det));
             }
+            return true;
         }
 
         public void prepareShadingState(ShadingState state) {
@@ -758,16 +790,19 @@ public class TriangleMesh implements PrimitiveList {
                     state.setBasis(OrthoNormalBasis.makeFromW(state.getNormal()));
                 } else {
                     float invdet = 1.f / determinant;
-                    // Vector3 dpdu = new Vector3();
-                    // dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
-                    // dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
-                    // dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
+                    Vector3 dpdu = new Vector3();
+                    dpdu.x = (dv2 * dp1.x - dv1 * dp2.x) * invdet;
+                    dpdu.y = (dv2 * dp1.y - dv1 * dp2.y) * invdet;
+                    dpdu.z = (dv2 * dp1.z - dv1 * dp2.z) * invdet;
                     Vector3 dpdv = new Vector3();
                     dpdv.x = (-du2 * dp1.x + du1 * dp2.x) * invdet;
                     dpdv.y = (-du2 * dp1.y + du1 * dp2.y) * invdet;
                     dpdv.z = (-du2 * dp1.z + du1 * dp2.z) * invdet;
-                    if (parent != null)
+                    if (parent != null) {
+                        dpdu = state.transformVectorObjectToWorld(dpdu);
                         dpdv = state.transformVectorObjectToWorld(dpdv);
+                    }
+                    state.setSurfaceDerivatives(dpdu, dpdv);
                     // create basis in world space
                     state.setBasis(OrthoNormalBasis.makeFromWV(state.getNormal(), dpdv));
                 }
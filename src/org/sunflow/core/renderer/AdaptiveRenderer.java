@@ -0,0 +1,381 @@
+package org.sunflow.core.renderer;
+
+import org.sunflow.core.BucketOrder;
+import org.sunflow.core.Display;
+import org.sunflow.core.ImageSampler;
+import org.sunflow.core.IntersectionState;
+import org.sunflow.core.Options;
+import org.sunflow.core.Scene;
+import org.sunflow.core.ShadingCache;
+import org.sunflow.core.ShadingState;
+import org.sunflow.core.bucket.BucketOrderFactory;
+import org.sunflow.image.Color;
+import org.sunflow.math.MathUtils;
+import org.sunflow.math.QMC;
+import org.sunflow.system.Timer;
+import org.sunflow.system.UI;
+import org.sunflow.system.UI.Module;
+
+/**
+ * Renders the image in passes and only spends further samples on pixels which
+ * are still noisy. The mean and variance of the luminance of every pixel are
+ * tracked as samples come in. After each pass, pixels whose estimated error is
+ * above a threshold are scheduled for more samples, in proportion to how far
+ * they are from the threshold. Rendering stops once no pixel needs more
+ * samples, the average error over the image reaches the optional target or the
+ * optional time budget runs out.
+ */
+public class AdaptiveRenderer implements ImageSampler {
+    private Scene scene;
+    private Display display;
+    // resolution
+    private int imageWidth;
+    private int imageHeight;
+    // bucketing
+    private String bucketOrderName;
+    private int bucketSize;
+    private int bucketCounter;
+    private int[] bucketCoords;
+
+    // sampling
+    private int numSamples;
+    private int maxSamples;
+    private float threshold;
+    private float errorTarget;
+    private float timeLimit;
+    private boolean shadingCache;
+
+    // per pixel statistics
+    private float[] colorSum;
+    private float[] alphaSum;
+    private float[] lumMean;
+    private float[] lumM2;
+    private int[] count;
+    private int[] passSamples;
+    private float[] pixelError;
+
+    // render progress
+    private int pass;
+    private long startTime;
+    private boolean timeUp;
+
+    // keeps pixels close to black from being treated as noisy forever
+    private static final float ERROR_BIAS = 0.01f;
+
+    public AdaptiveRenderer() {
+        bucketSize = 32;
+        bucketOrderName = "hilbert";
+        numSamples = 8;
+        maxSamples = 1024;
+        threshold = 0.02f;
+        errorTarget = 0;
+        timeLimit = 0;
+        shadingCache = false;
+    }
+
+    public boolean prepare(Options options, Scene scene, int w, int h) {
+        this.scene = scene;
+        imageWidth = w;
+        imageHeight = h;
+
+        // fetch options
+        bucketSize = options.getInt("bucket.size", bucketSize);
+        bucketOrderName = options.getString("bucket.order", bucketOrderName);
+        numSamples = options.getInt("aa.samples", numSamples);
+        maxSamples = options.getInt("aa.maxsamples", maxSamples);
+        threshold = options.getFloat("aa.threshold", threshold);
+        errorTarget = options.getFloat("aa.error", errorTarget);
+        timeLimit = options.getFloat("aa.time", timeLimit);
+        shadingCache = options.getBoolean("aa.cache", shadingCache);
+
+        // limit bucket size and compute number of buckets in each direction
+        bucketSize = MathUtils.clamp(bucketSize, 16, 512);
+        int numBucketsX = (imageWidth + bucketSize - 1) / bucketSize;
+        int numBucketsY = (imageHeight + bucketSize - 1) / bucketSize;
+        BucketOrder bucketOrder = BucketOrderFactory.create(bucketOrderName);
+        bucketCoords = bucketOrder.getBucketSequence(numBucketsX, numBucketsY);
+        // validate sampling options, variance needs at least two samples
+        numSamples = Math.max(2, numSamples);
+        maxSamples = Math.max(numSamples, maxSamples);
+        threshold = Math.max(0, threshold);
+        errorTarget = Math.max(0, errorTarget);
+        timeLimit = Math.max(0, timeLimit);
+        // every pixel gets at least the first pass
+        scene.setSamplesPerPixel(numSamples);
+        UI.printInfo(Module.BCKT, "Adaptive renderer settings:");
+        UI.printInfo(Module.BCKT, "  * Resolution:         %dx%d", imageWidth, imageHeight);
+        UI.printInfo(Module.BCKT, "  * Bucket size:        %d", bucketSize);
+        UI.printInfo(Module.BCKT, "  * Number of buckets:  %dx%d", numBucketsX, numBucketsY);
+        UI.printInfo(Module.BCKT, "  * Samples / pass:     %d", numSamples);
+        UI.printInfo(Module.BCKT, "  * Max samples:        %d", maxSamples);
+        UI.printInfo(Module.BCKT, "  * Pixel threshold:    %.4f", threshold);
+        if (errorTarget > 0)
+            UI.printInfo(Module.BCKT, "  * Error target:       %.4f", errorTarget);
+        else
+            UI.printInfo(Module.BCKT, "  * Error target:       none");
+        if (timeLimit > 0)
+            UI.printInfo(Module.BCKT, "  * Time budget:        %.1fs", timeLimit);
+        else
+            UI.printInfo(Module.BCKT, "  * Time budget:        none");
+        UI.printInfo(Module.BCKT, "  * Shading cache:      %s", shadingCache ? "enabled" : "disabled");
+        return true;
+    }
+
+    public void render(Display display) {
+        this.display = display;
+        display.imageBegin(imageWidth, imageHeight, bucketSize);
+        int numPixels = imageWidth * imageHeight;
+        colorSum = new float[3 * numPixels];
+        alphaSum = new float[numPixels];
+        lumMean = new float[numPixels];
+        lumM2 = new float[numPixels];
+        count = new int[numPixels];
+        passSamples = new int[numPixels];
+        pixelError = new float[numPixels];
+        // every pixel gets the same number of samples in the first pass
+        for (int i = 0; i < numPixels; i++)
+            passSamples[i] = numSamples;
+        Timer timer = new Timer();
+        timer.start();
+        startTime = System.nanoTime();
+        timeUp = false;
+        pass = 0;
+        float error = Float.POSITIVE_INFINITY;
+        int active = numPixels;
+        while (true) {
+            pass++;
+            UI.printDetailed(Module.BCKT, "Pass %d: sampling %d pixels ...", pass, active);
+            if (!renderPass())
+                break;
+            // plan the next pass
+            double errorSum = 0;
+            for (int i = 0; i < numPixels; i++) {
+                pixelError[i] = getError(i);
+                errorSum += pixelError[i];
+            }
+            active = 0;
+            for (int i = 0; i < numPixels; i++) {
+                float e = getNeighborhoodError(i % imageWidth, i / imageWidth);
+                passSamples[i] = 0;
+                if (e > threshold && count[i] < maxSamples) {
+                    // standard error falls with the square root of the number
+                    // of samples, estimate how many are still needed but never
+                    // more than double the pixel's samples in a single pass
+                    float ratio = e / threshold;
+                    int needed = (int) Math.ceil(count[i] * ratio * ratio) - count[i];
+                    passSamples[i] = Math.min(MathUtils.clamp(needed, numSamples, count[i]), maxSamples - count[i]);
+                    active++;
+                }
+            }
+            error = (float) (errorSum / numPixels);
+            UI.printDetailed(Module.BCKT, "Pass %d: average error %.5f, %d pixels above threshold", pass, error, active);
+            if (active == 0 || error <= errorTarget || timeUp)
+                break;
+        }
+        timer.end();
+        long totalSamples = 0;
+        for (int i = 0; i < numPixels; i++)
+            totalSamples += count[i];
+        UI.printInfo(Module.BCKT, "Adaptive render stats:");
+        UI.printInfo(Module.BCKT, "  * Passes:             %d", pass);
+        UI.printInfo(Module.BCKT, "  * Samples / pixel:    %.2f", (double) totalSamples / numPixels);
+        UI.printInfo(Module.BCKT, "  * Average error:      %.5f", error);
+        UI.printInfo(Module.BCKT, "  * Unconverged pixels: %d", active);
+        if (timeUp)
+            UI.printInfo(Module.BCKT, "  * Stopped by time budget");
+        UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
+        colorSum = alphaSum = lumMean = lumM2 = null;
+        count = passSamples = null;
+        pixelError = null;
+        display.imageEnd();
+    }
+
+    /**
+     * Render one pass over all buckets with pixels that need samples.
+     * 
+     * @return <code>false</code> if rendering was canceled
+     */
+    private boolean renderPass() {
+        bucketCounter = 0;
+        UI.taskStart("Rendering pass " + pass, 0, bucketCoords.length);
+        BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
+        for (int i = 0; i < renderThreads.length; i++) {
+            renderThreads[i] = new BucketThread(i);
+            renderThreads[i].setPriority(scene.getThreadPriority());
+            renderThreads[i].start();
+        }
+        for (int i = 0; i < renderThreads.length; i++) {
+            try {
+                renderThreads[i].join();
+            } catch (InterruptedException e) {
+                UI.printError(Module.BCKT, "Bucket processing thread %d of %d was interrupted", i + 1, renderThreads.length);
+            } finally {
+                renderThreads[i].updateStats();
+            }
+        }
+        boolean canceled = UI.taskCanceled();
+        UI.taskStop();
+        return !canceled;
+    }
+
+    private class BucketThread extends Thread {
+        private final int threadID;
+        private final IntersectionState istate;
+        private final ShadingCache cache;
+
+        BucketThread(int threadID) {
+            this.threadID = threadID;
+            istate = new IntersectionState();
+            cache = shadingCache ? new ShadingCache() : null;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                int bx, by;
+                synchronized (AdaptiveRenderer.this) {
+                    // the first pass always completes so the whole image is
+                    // covered
+                    if (bucketCounter >= bucketCoords.length || (timeUp && pass > 1) || UI.taskCanceled())
+                        return;
+                    UI.taskUpdate(bucketCounter);
+                    bx = bucketCoords[bucketCounter + 0];
+                    by = bucketCoords[bucketCounter + 1];
+                    bucketCounter += 2;
+                }
+                renderBucket(bx, by, threadID, istate, cache);
+                checkTime();
+            }
+        }
+
+        void updateStats() {
+            scene.accumulateStats(istate);
+            if (shadingCache)
+                scene.accumulateStats(cache);
+        }
+    }
+
+    private synchronized void checkTime() {
+        if (timeLimit > 0 && (System.nanoTime() - startTime) * 1e-9 >= timeLimit)
+            timeUp = true;
+    }
+
+    private void renderBucket(int bx, int by, int threadID, IntersectionState istate, ShadingCache cache) {
+        // pixel sized extents
+        int x0 = bx * bucketSize;
+        int y0 = by * bucketSize;
+        int bw = Math.min(bucketSize, imageWidth - x0);
+        int bh = Math.min(bucketSize, imageHeight - y0);
+
+        // skip buckets which are already converged
+        boolean needsSamples = false;
+        for (int y = y0; y < y0 + bh && !needsSamples; y++)
+            for (int x = x0; x < x0 + bw && !needsSamples; x++)
+                needsSamples = passSamples[x + y * imageWidth] > 0;
+        if (!needsSamples)
+            return;
+
+        // prepare bucket
+        display.imagePrepare(x0, y0, bw, bh, threadID);
+
+        Color[] bucketRGB = new Color[bw * bh];
+        float[] bucketAlpha = new float[bw * bh];
+
+        for (int y = 0, i = 0, cy = imageHeight - 1 - y0; y < bh; y++, cy--) {
+            for (int x = 0, cx = x0; x < bw; x++, i++, cx++) {
+                int p = cx + (y0 + y) * imageWidth;
+                int n = passSamples[p];
+                if (n > 0) {
+                    // sample pixel, continuing the sequence of the previous
+                    // passes
+                    int instance = ((cx & ((1 << QMC.MAX_SIGMA_ORDER) - 1)) << QMC.MAX_SIGMA_ORDER) + QMC.sigma(cy & ((1 << QMC.MAX_SIGMA_ORDER) - 1), QMC.MAX_SIGMA_ORDER);
+                    double jitterX = QMC.halton(0, instance);
+                    double jitterY = QMC.halton(1, instance);
+                    double jitterT = QMC.halton(2, instance);
+                    double jitterU = QMC.halton(3, instance);
+                    double jitterV = QMC.halton(4, instance);
+                    for (int s = count[p], end = count[p] + n; s < end; s++) {
+                        float rx = cx + 0.5f + (float) MultipassRenderer.warpCubic(QMC.mod1(jitterX + QMC.halton(0, s)));
+                        float ry = cy + 0.5f + (float) MultipassRenderer.warpCubic(QMC.mod1(jitterY + QMC.halton(1, s)));
+                        double time = QMC.mod1(jitterT + QMC.halton(2, s));
+                        double lensU = QMC.mod1(jitterU + QMC.halton(3, s));
+                        double lensV = QMC.mod1(jitterV + QMC.halton(4, s));
+                        ShadingState state = scene.getRadiance(istate, rx, ry, lensU, lensV, time, instance + s, 5, cache);
+                        float lum = 0;
+                        if (state != null) {
+                            Color c = state.getResult();
+                            colorSum[3 * p + 0] += c.getR();
+                            colorSum[3 * p + 1] += c.getG();
+                            colorSum[3 * p + 2] += c.getB();
+                            alphaSum[p]++;
+                            lum = c.getLuminance();
+                        }
+                        // running mean and variance (Welford)
+                        int k = ++count[p];
+                        float delta = lum - lumMean[p];
+                        lumMean[p] += delta / k;
+                        lumM2[p] += delta * (lum - lumMean[p]);
+                    }
+                    if (cache != null)
+                        cache.reset();
+                }
+                float inv = 1.0f / count[p];
+                bucketRGB[i] = new Color(colorSum[3 * p + 0] * inv, colorSum[3 * p + 1] * inv, colorSum[3 * p + 2] * inv);
+                bucketAlpha[i] = alphaSum[p] * inv;
+            }
+        }
+        // update pixels
+        display.imageUpdate(x0, y0, bw, bh, bucketRGB, bucketAlpha);
+    }
+
+    /**
+     * Estimate the visible error of a pixel from the variance of its
+     * luminance samples. The standard error is taken relative to the square
+     * root of the mean, which roughly follows how a gamma encoded display
+     * spreads out dark values.
+     * 
+     * @param i pixel index
+     * @return estimated error of the pixel
+     */
+    private float getError(int i) {
+        return estimateError(lumMean[i], lumM2[i], count[i]);
+    }
+
+    /**
+     * Estimate the visible error of a pixel from the running statistics of
+     * its luminance samples.
+     * 
+     * @param mean mean luminance
+     * @param m2 sum of squared differences from the mean
+     * @param n number of samples
+     * @return estimated error, infinite if there are less than two samples
+     */
+    static float estimateError(float mean, float m2, int n) {
+        if (n < 2)
+            return Float.POSITIVE_INFINITY;
+        float variance = m2 / (n - 1);
+        return (float) Math.sqrt(variance / n / (Math.abs(mean) + ERROR_BIAS));
+    }
+
+    /**
+     * Get the error used to decide if a pixel needs more samples. A pixel
+     * whose first few samples all missed a rare light path looks converged
+     * on its own, so the average error of its neighbors is taken into
+     * account as well.
+     * 
+     * @param x pixel column
+     * @param y pixel row
+     * @return the larger of the pixel's error and its neighborhood average
+     */
+    private float getNeighborhoodError(int x, int y) {
+        float sum = 0;
+        int n = 0;
+        for (int j = Math.max(0, y - 1); j <= Math.min(imageHeight - 1, y + 1); j++) {
+            for (int i = Math.max(0, x - 1); i <= Math.min(imageWidth - 1, x + 1); i++) {
+                sum += pixelError[i + j * imageWidth];
+                n++;
+            }
+        }
+        return Math.max(pixelError[x + y * imageWidth], sum / n);
+    }
+}
\ No newline at end of file
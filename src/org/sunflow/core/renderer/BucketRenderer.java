@@ -1,5 +1,7 @@
 package org.sunflow.core.renderer;
 
+import java.util.HashMap;
+
 import org.sunflow.PluginRegistry;
 import org.sunflow.core.BucketOrder;
 import org.sunflow.core.Display;
@@ -35,6 +37,11 @@ public class BucketRenderer implements ImageSampler {
     private int[] bucketCoords;
     private boolean dumpBuckets;
 
+    // tail splitting and work stealing
+    private int splitSize;
+    private int numSplitBuckets;
+    private TileQueue[] tileQueues;
+
     // anti-aliasing
     private int minAADepth;
     private int maxAADepth;
@@ -103,6 +110,7 @@ public class BucketRenderer implements ImageSampler {
         else
             maxStepSize = minAADepth > 0 ? 1 << minAADepth : subPixelSize << (-minAADepth);
         useJitter = jitter && maxAADepth > 0;
+        scene.setSamplesPerPixel(subPixelSize * subPixelSize * superSampling);
         // compute anti-aliasing contrast thresholds
         contrastThreshold = MathUtils.clamp(contrastThreshold, 0, 1);
         thresh = contrastThreshold * (float) Math.pow(2.0f, minAADepth);
@@ -117,6 +125,12 @@ public class BucketRenderer implements ImageSampler {
         }
         fhs = filter.getSize() * 0.5f;
         fs = (int) Math.ceil(subPixelSize * (fhs - 0.5f));
+        // buckets can only be split along the coarsest sampling grid, this
+        // keeps the adaptive refinement consistent with unsplit buckets
+        int splitAlign = Math.max(1, maxStepSize / subPixelSize);
+        splitSize = ((bucketSize / 2) / splitAlign) * splitAlign;
+        if (splitSize < 8)
+            splitSize = 0;
 
         // prepare QMC sampling
         sigmaOrder = Math.min(QMC.MAX_SIGMA_ORDER, Math.max(0, maxAADepth) + 13); // FIXME: how big should the table be?
@@ -125,6 +139,10 @@ public class BucketRenderer implements ImageSampler {
         UI.printInfo(Module.BCKT, "  * Resolution:         %dx%d", imageWidth, imageHeight);
         UI.printInfo(Module.BCKT, "  * Bucket size:        %d", bucketSize);
         UI.printInfo(Module.BCKT, "  * Number of buckets:  %dx%d", numBucketsX, numBucketsY);
+        if (splitSize > 0)
+            UI.printInfo(Module.BCKT, "  * Tail split size:    %d", splitSize);
+        else
+            UI.printInfo(Module.BCKT, "  * Tail split size:    off");
         if (minAADepth != maxAADepth)
             UI.printInfo(Module.BCKT, "  * Anti-aliasing:      %s -> %s (adaptive)", aaDepthToString(minAADepth), aaDepthToString(maxAADepth));
         else
@@ -147,11 +165,15 @@ public class BucketRenderer implements ImageSampler {
         display.imageBegin(imageWidth, imageHeight, bucketSize);
         // set members variables
         bucketCounter = 0;
+        numSplitBuckets = 0;
         // start task
         UI.taskStart("Rendering", 0, bucketCoords.length);
         Timer timer = new Timer();
         timer.start();
         BucketThread[] renderThreads = new BucketThread[scene.getThreads()];
+        tileQueues = new TileQueue[renderThreads.length];
+        for (int i = 0; i < tileQueues.length; i++)
+            tileQueues[i] = new TileQueue();
         for (int i = 0; i < renderThreads.length; i++) {
             renderThreads[i] = new BucketThread(i);
             renderThreads[i].setPriority(scene.getThreadPriority());
@@ -168,32 +190,93 @@ public class BucketRenderer implements ImageSampler {
         }
         UI.taskStop();
         timer.end();
+        tileQueues = null;
         UI.printInfo(Module.BCKT, "Render time: %s", timer.toString());
+        UI.printDetailed(Module.BCKT, "Bucket scheduling:");
+        UI.printDetailed(Module.BCKT, "  * Split buckets:      %d", numSplitBuckets);
+        long maxIdle = 0;
+        for (int i = 0; i < renderThreads.length; i++) {
+            long idle = Math.max(0, timer.nanos() - renderThreads[i].busyTime);
+            maxIdle = Math.max(maxIdle, idle);
+            UI.printDetailed(Module.BCKT, "  * Thread %-3d          %d tiles, idle %s (%.2f%%)", i + 1, renderThreads[i].numTiles, Timer.toString(idle), 100.0 * idle / timer.nanos());
+        }
+        UI.printDetailed(Module.BCKT, "  * Max idle time:      %s", Timer.toString(maxIdle));
         display.imageEnd();
     }
 
+    /**
+     * Fetch the next region of the image to be rendered by the specified
+     * thread. Buckets are handed out in the order given by the
+     * {@link BucketOrder}. Once fewer buckets remain than there are threads,
+     * each bucket is split into smaller tiles which are queued on the thread
+     * that fetched it, where idle threads can steal them from.
+     * 
+     * @param threadID thread asking for work
+     * @param tile array receiving the x, y, width and height of the tile
+     * @return <code>true</code> if a tile was found, <code>false</code> if
+     *         the image is complete
+     */
+    private boolean getNextTile(int threadID, int[] tile) {
+        // finish split tiles from our own bucket first
+        if (tileQueues[threadID].pollFirst(tile))
+            return true;
+        synchronized (this) {
+            if (bucketCounter < bucketCoords.length) {
+                UI.taskUpdate(bucketCounter);
+                int x0 = bucketCoords[bucketCounter + 0] * bucketSize;
+                int y0 = bucketCoords[bucketCounter + 1] * bucketSize;
+                int bw = Math.min(bucketSize, imageWidth - x0);
+                int bh = Math.min(bucketSize, imageHeight - y0);
+                bucketCounter += 2;
+                int remaining = (bucketCoords.length - bucketCounter) / 2;
+                if (splitSize > 0 && remaining < tileQueues.length && (bw > splitSize || bh > splitSize)) {
+                    // the queue is draining - split the bucket so that idle
+                    // threads can help out with the expensive tail
+                    for (int y = 0; y < bh; y += splitSize)
+                        for (int x = 0; x < bw; x += splitSize)
+                            tileQueues[threadID].add(x0 + x, y0 + y, Math.min(splitSize, bw - x), Math.min(splitSize, bh - y));
+                    numSplitBuckets++;
+                    return tileQueues[threadID].pollFirst(tile);
+                }
+                tile[0] = x0;
+                tile[1] = y0;
+                tile[2] = bw;
+                tile[3] = bh;
+                return true;
+            }
+        }
+        // no more buckets, steal work from the other threads
+        for (int i = 1; i < tileQueues.length; i++)
+            if (tileQueues[(threadID + i) % tileQueues.length].pollLast(tile))
+                return true;
+        return false;
+    }
+
     private class BucketThread extends Thread {
         private final int threadID;
         private final IntersectionState istate;
+        private final int[] tile;
+        private final SampleBuffer samples;
+        private long busyTime;
+        private int numTiles;
 
         BucketThread(int threadID) {
             this.threadID = threadID;
             istate = new IntersectionState();
+            tile = new int[4];
+            int extent = getSubPixelExtent(bucketSize);
+            samples = new SampleBuffer(extent * extent);
+            busyTime = 0;
+            numTiles = 0;
         }
 
         @Override
         public void run() {
-            while (true) {
-                int bx, by;
-                synchronized (BucketRenderer.this) {
-                    if (bucketCounter >= bucketCoords.length)
-                        return;
-                    UI.taskUpdate(bucketCounter);
-                    bx = bucketCoords[bucketCounter + 0];
-                    by = bucketCoords[bucketCounter + 1];
-                    bucketCounter += 2;
-                }
-                renderBucket(display, bx, by, threadID, istate);
+            while (getNextTile(threadID, tile)) {
+                long start = System.nanoTime();
+                renderBucket(display, tile[0], tile[1], tile[2], tile[3], threadID, istate, samples);
+                busyTime += System.nanoTime() - start;
+                numTiles++;
                 if (UI.taskCanceled())
                     return;
             }
@@ -204,36 +287,30 @@ public class BucketRenderer implements ImageSampler {
         }
     }
 
-    private void renderBucket(Display display, int bx, int by, int threadID, IntersectionState istate) {
-        // pixel sized extents
-        int x0 = bx * bucketSize;
-        int y0 = by * bucketSize;
-        int bw = Math.min(bucketSize, imageWidth - x0);
-        int bh = Math.min(bucketSize, imageHeight - y0);
+    private int getSubPixelExtent(int size) {
+        int extent = size * subPixelSize + fs * 2;
+        // round up to align with maximum step size
+        extent = (extent + (maxStepSize - 1)) & (~(maxStepSize - 1));
+        // extra padding as needed
+        if (maxStepSize > 1)
+            extent++;
+        return extent;
+    }
 
+    private void renderBucket(Display display, int x0, int y0, int bw, int bh, int threadID, IntersectionState istate, SampleBuffer samples) {
         // prepare bucket
         display.imagePrepare(x0, y0, bw, bh, threadID);
 
-        Color[] bucketRGB = new Color[bw * bh];
-        float[] bucketAlpha = new float[bw * bh];
-
         // subpixel extents
         int sx0 = x0 * subPixelSize - fs;
         int sy0 = y0 * subPixelSize - fs;
-        int sbw = bw * subPixelSize + fs * 2;
-        int sbh = bh * subPixelSize + fs * 2;
+        int sbw = getSubPixelExtent(bw);
+        int sbh = getSubPixelExtent(bh);
 
-        // round up to align with maximum step size
-        sbw = (sbw + (maxStepSize - 1)) & (~(maxStepSize - 1));
-        sbh = (sbh + (maxStepSize - 1)) & (~(maxStepSize - 1));
-        // extra padding as needed
-        if (maxStepSize > 1) {
-            sbw++;
-            sbh++;
-        }
-        // allocate bucket memory
-        ImageSample[] samples = new ImageSample[sbw * sbh];
-        // allocate samples and compute jitter offsets
+        // reuse the per-thread bucket memory
+        Color[] bucketRGB = samples.getPixelRGB(bw * bh);
+        float[] bucketAlpha = samples.getPixelAlpha(bw * bh);
+        // initialize samples and compute jitter offsets
         float invSubPixelSize = 1.0f / subPixelSize;
         for (int y = 0, index = 0; y < sbh; y++) {
             for (int x = 0; x < sbw; x++, index++) {
@@ -247,19 +324,19 @@ public class BucketRenderer implements ImageSampler {
                 float rx = (sx + dx) * invSubPixelSize;
                 float ry = (sy + dy) * invSubPixelSize;
                 ry = imageHeight - ry;
-                samples[index] = new ImageSample(rx, ry, i);
+                samples.init(index, rx, ry, i);
             }
         }
         for (int x = 0; x < sbw - 1; x += maxStepSize)
             for (int y = 0; y < sbh - 1; y += maxStepSize)
                 refineSamples(samples, sbw, x, y, maxStepSize, thresh, istate);
         if (dumpBuckets) {
-            UI.printInfo(Module.BCKT, "Dumping bucket [%d, %d] to file ...", bx, by);
+            UI.printInfo(Module.BCKT, "Dumping bucket [%d, %d] to file ...", x0, y0);
             GenericBitmap bitmap = new GenericBitmap(sbw, sbh);
             for (int y = sbh - 1, index = 0; y >= 0; y--)
                 for (int x = 0; x < sbw; x++, index++)
-                    bitmap.writePixel(x, y, samples[index].c, samples[index].alpha);
-            bitmap.save(String.format("bucket_%04d_%04d.png", bx, by));
+                    bitmap.writePixel(x, y, new Color(samples.r[index], samples.g[index], samples.b[index]), samples.alpha[index]);
+            bitmap.save(String.format("bucket_%04d_%04d.png", x0, y0));
         }
         if (displayAA) {
             // color coded image of what is visible
@@ -272,10 +349,11 @@ public class BucketRenderer implements ImageSampler {
                             int sx = x * subPixelSize + fs + i;
                             int sy = y * subPixelSize + fs + j;
                             int s = sx + sy * sbw;
-                            sampled += samples[s].sampled() ? 1 : 0;
+                            sampled += samples.sampled(s) ? 1 : 0;
                         }
                     }
-                    bucketRGB[index] = new Color(sampled * invArea);
+                    float v = sampled * invArea;
+                    bucketRGB[index].set(v, v, v);
                     bucketAlpha[index] = 1.0f;
                 }
             }
@@ -285,29 +363,29 @@ public class BucketRenderer implements ImageSampler {
             for (int y = 0, index = 0; y < bh; y++, cy--) {
                 float cx = x0 + 0.5f;
                 for (int x = 0; x < bw; x++, index++, cx++) {
-                    Color c = Color.black();
+                    float cr = 0, cg = 0, cb = 0;
                     float a = 0;
                     float weight = 0.0f;
                     for (int j = -fs, sy = y * subPixelSize; j <= fs; j++, sy++) {
                         for (int i = -fs, sx = x * subPixelSize, s = sx + sy * sbw; i <= fs; i++, sx++, s++) {
-                            float dx = samples[s].rx - cx;
+                            float dx = samples.rx[s] - cx;
                             if (Math.abs(dx) > fhs)
                                 continue;
-                            float dy = samples[s].ry - cy;
+                            float dy = samples.ry[s] - cy;
                             if (Math.abs(dy) > fhs)
                                 continue;
                             float f = filter.get(dx, dy);
-                            c.madd(f, samples[s].c);
-                            a += f * samples[s].alpha;
+                            cr += f * samples.r[s];
+                            cg += f * samples.g[s];
+                            cb += f * samples.b[s];
+                            a += f * samples.alpha[s];
                             weight += f;
 
                         }
                     }
                     float invWeight = 1.0f / weight;
-                    c.mul(invWeight);
-                    a *= invWeight;
-                    bucketRGB[index] = c;
-                    bucketAlpha[index] = a;
+                    bucketRGB[index].set(cr * invWeight, cg * invWeight, cb * invWeight);
+                    bucketAlpha[index] = a * invWeight;
                 }
             }
         }
@@ -315,46 +393,46 @@ public class BucketRenderer implements ImageSampler {
         display.imageUpdate(x0, y0, bw, bh, bucketRGB, bucketAlpha);
     }
 
-    private void computeSubPixel(ImageSample sample, IntersectionState istate) {
-        float x = sample.rx;
-        float y = sample.ry;
-        double q0 = QMC.halton(1, sample.i);
-        double q1 = QMC.halton(2, sample.i);
-        double q2 = QMC.halton(3, sample.i);
+    private void computeSubPixel(SampleBuffer samples, int s, IntersectionState istate) {
+        float x = samples.rx[s];
+        float y = samples.ry[s];
+        int instance = samples.i[s];
+        double q0 = QMC.halton(1, instance);
+        double q1 = QMC.halton(2, instance);
+        double q2 = QMC.halton(3, instance);
         if (superSampling > 1) {
             // multiple sampling
-            sample.add(scene.getRadiance(istate, x, y, q1, q2, q0, sample.i, 4, null));
+            samples.add(s, scene.getRadiance(istate, x, y, q1, q2, q0, instance, 4, null));
             for (int i = 1; i < superSampling; i++) {
                 double time = QMC.mod1(q0 + i * invSuperSampling);
                 double lensU = QMC.mod1(q1 + QMC.halton(0, i));
                 double lensV = QMC.mod1(q2 + QMC.halton(1, i));
-                sample.add(scene.getRadiance(istate, x, y, lensU, lensV, time, sample.i + i, 4, null));
+                samples.add(s, scene.getRadiance(istate, x, y, lensU, lensV, time, instance + i, 4, null));
             }
-            sample.scale((float) invSuperSampling);
+            samples.scale(s, (float) invSuperSampling);
         } else {
             // single sample
-            sample.set(scene.getRadiance(istate, x, y, q1, q2, q0, sample.i, 4, null));
+            samples.set(s, scene.getRadiance(istate, x, y, q1, q2, q0, instance, 4, null));
         }
     }
 
-    private void refineSamples(ImageSample[] samples, int sbw, int x, int y, int stepSize, float thresh, IntersectionState istate) {
+    private void refineSamples(SampleBuffer samples, int sbw, int x, int y, int stepSize, float thresh, IntersectionState istate) {
         int dx = stepSize;
         int dy = stepSize * sbw;
-        int i00 = x + y * sbw;
-        ImageSample s00 = samples[i00];
-        ImageSample s01 = samples[i00 + dy];
-        ImageSample s10 = samples[i00 + dx];
-        ImageSample s11 = samples[i00 + dx + dy];
-        if (!s00.sampled())
-            computeSubPixel(s00, istate);
-        if (!s01.sampled())
-            computeSubPixel(s01, istate);
-        if (!s10.sampled())
-            computeSubPixel(s10, istate);
-        if (!s11.sampled())
-            computeSubPixel(s11, istate);
+        int s00 = x + y * sbw;
+        int s01 = s00 + dy;
+        int s10 = s00 + dx;
+        int s11 = s00 + dx + dy;
+        if (!samples.sampled(s00))
+            computeSubPixel(samples, s00, istate);
+        if (!samples.sampled(s01))
+            computeSubPixel(samples, s01, istate);
+        if (!samples.sampled(s10))
+            computeSubPixel(samples, s10, istate);
+        if (!samples.sampled(s11))
+            computeSubPixel(samples, s11, istate);
         if (stepSize > minStepSize) {
-            if (s00.isDifferent(s01, thresh) || s00.isDifferent(s10, thresh) || s00.isDifferent(s11, thresh) || s01.isDifferent(s11, thresh) || s10.isDifferent(s11, thresh) || s01.isDifferent(s10, thresh)) {
+            if (samples.isDifferent(s00, s01, thresh) || samples.isDifferent(s00, s10, thresh) || samples.isDifferent(s00, s11, thresh) || samples.isDifferent(s01, s11, thresh) || samples.isDifferent(s10, s11, thresh) || samples.isDifferent(s01, s10, thresh)) {
                 stepSize >>= 1;
                 thresh *= 2;
                 refineSamples(samples, sbw, x, y, stepSize, thresh, istate);
@@ -369,101 +447,224 @@ public class BucketRenderer implements ImageSampler {
         float ds = 1.0f / stepSize;
         for (int i = 0; i <= stepSize; i++)
             for (int j = 0; j <= stepSize; j++)
-                if (!samples[x + i + (y + j) * sbw].processed())
-                    ImageSample.bilerp(samples[x + i + (y + j) * sbw], s00, s01, s10, s11, i * ds, j * ds);
+                if (!samples.processed(x + i + (y + j) * sbw))
+                    samples.bilerp(x + i + (y + j) * sbw, s00, s01, s10, s11, i * ds, j * ds);
     }
 
-    private static final class ImageSample {
-        float rx, ry;
-        int i, n;
-        Color c;
-        float alpha;
-        Instance instance;
-        Shader shader;
-        float nx, ny, nz;
-
-        ImageSample(float rx, float ry, int i) {
-            this.rx = rx;
-            this.ry = ry;
-            this.i = i;
-            n = 0;
-            c = null;
-            alpha = 0;
-            instance = null;
-            shader = null;
-            nx = ny = nz = 1;
+    /**
+     * Double ended queue of image tiles. The owning thread takes tiles from
+     * the front while other threads steal from the back.
+     */
+    private static final class TileQueue {
+        private int[] tiles;
+        private int head;
+        private int tail;
+
+        TileQueue() {
+            tiles = new int[4 * 16];
+            head = tail = 0;
         }
 
-        final void set(ShadingState state) {
+        synchronized void add(int x, int y, int w, int h) {
+            if (head == tail)
+                head = tail = 0;
+            if (tail + 4 > tiles.length) {
+                int[] oldTiles = tiles;
+                tiles = new int[tiles.length * 2];
+                System.arraycopy(oldTiles, 0, tiles, 0, tail);
+            }
+            tiles[tail + 0] = x;
+            tiles[tail + 1] = y;
+            tiles[tail + 2] = w;
+            tiles[tail + 3] = h;
+            tail += 4;
+        }
+
+        synchronized boolean pollFirst(int[] tile) {
+            if (head == tail)
+                return false;
+            System.arraycopy(tiles, head, tile, 0, 4);
+            head += 4;
+            return true;
+        }
+
+        synchronized boolean pollLast(int[] tile) {
+            if (head == tail)
+                return false;
+            tail -= 4;
+            System.arraycopy(tiles, tail, tile, 0, 4);
+            return true;
+        }
+    }
+
+    /**
+     * Per-thread storage for the subpixel samples of a bucket and the filtered
+     * pixels sent to the display. Samples are kept as parallel arrays and the
+     * memory is reused from one bucket to the next, so rendering a bucket does
+     * not create any garbage of its own.
+     */
+    private static final class SampleBuffer {
+        float[] rx, ry;
+        int[] i, n;
+        boolean[] processed;
+        float[] r, g, b;
+        float[] alpha;
+        Instance[] instance;
+        Shader[] shader;
+        float[] nx, ny, nz;
+        // filtered pixels, kept per tile size since displays expect arrays
+        // matching the tile exactly
+        private final HashMap<Integer, Color[]> pixelRGB;
+        private final HashMap<Integer, float[]> pixelAlpha;
+
+        /**
+         * Allocate room for the samples of the largest bucket once, so that
+         * smaller tiles can reuse the same memory.
+         * 
+         * @param numSamples number of subpixel samples in the largest bucket
+         */
+        SampleBuffer(int numSamples) {
+            rx = new float[numSamples];
+            ry = new float[numSamples];
+            i = new int[numSamples];
+            n = new int[numSamples];
+            processed = new boolean[numSamples];
+            r = new float[numSamples];
+            g = new float[numSamples];
+            b = new float[numSamples];
+            alpha = new float[numSamples];
+            instance = new Instance[numSamples];
+            shader = new Shader[numSamples];
+            nx = new float[numSamples];
+            ny = new float[numSamples];
+            nz = new float[numSamples];
+            pixelRGB = new HashMap<Integer, Color[]>();
+            pixelAlpha = new HashMap<Integer, float[]>();
+        }
+
+        Color[] getPixelRGB(int numPixels) {
+            Color[] rgb = pixelRGB.get(numPixels);
+            if (rgb == null) {
+                rgb = new Color[numPixels];
+                for (int p = 0; p < numPixels; p++)
+                    rgb[p] = new Color();
+                pixelRGB.put(numPixels, rgb);
+            }
+            return rgb;
+        }
+
+        float[] getPixelAlpha(int numPixels) {
+            float[] a = pixelAlpha.get(numPixels);
+            if (a == null) {
+                a = new float[numPixels];
+                pixelAlpha.put(numPixels, a);
+            }
+            return a;
+        }
+
+        final void init(int s, float rx, float ry, int i) {
+            this.rx[s] = rx;
+            this.ry[s] = ry;
+            this.i[s] = i;
+            n[s] = 0;
+            processed[s] = false;
+            r[s] = g[s] = b[s] = 0;
+            alpha[s] = 0;
+            instance[s] = null;
+            shader[s] = null;
+            nx[s] = ny[s] = nz[s] = 1;
+        }
+
+        final void set(int s, ShadingState state) {
             if (state == null)
-                c = Color.BLACK;
+                r[s] = g[s] = b[s] = 0;
             else {
-                c = state.getResult();
-                shader = state.getShader();
-                instance = state.getInstance();
+                Color c = state.getResult();
+                r[s] = c.getR();
+                g[s] = c.getG();
+                b[s] = c.getB();
+                shader[s] = state.getShader();
+                instance[s] = state.getInstance();
                 if (state.getNormal() != null) {
-                    nx = state.getNormal().x;
-                    ny = state.getNormal().y;
-                    nz = state.getNormal().z;
+                    nx[s] = state.getNormal().x;
+                    ny[s] = state.getNormal().y;
+                    nz[s] = state.getNormal().z;
                 }
-                alpha = state.getInstance() == null ? 0 : 1;
+                alpha[s] = state.getInstance() == null ? 0 : 1;
             }
-            n = 1;
+            n[s] = 1;
+            processed[s] = true;
         }
 
-        final void add(ShadingState state) {
-            if (n == 0)
-                c = Color.black();
+        final void add(int s, ShadingState state) {
+            if (n[s] == 0)
+                r[s] = g[s] = b[s] = 0;
             if (state != null) {
-                c.add(state.getResult());
-                alpha += state.getInstance() == null ? 0 : 1;
+                Color c = state.getResult();
+                r[s] += c.getR();
+                g[s] += c.getG();
+                b[s] += c.getB();
+                alpha[s] += state.getInstance() == null ? 0 : 1;
             }
-            n++;
+            n[s]++;
+            processed[s] = true;
         }
 
-        final void scale(float s) {
-            c.mul(s);
-            alpha *= s;
+        final void scale(int s, float f) {
+            r[s] *= f;
+            g[s] *= f;
+            b[s] *= f;
+            alpha[s] *= f;
         }
 
-        final boolean processed() {
-            return c != null;
+        final boolean processed(int s) {
+            return processed[s];
         }
 
-        final boolean sampled() {
-            return n > 0;
+        final boolean sampled(int s) {
+            return n[s] > 0;
         }
 
-        final boolean isDifferent(ImageSample sample, float thresh) {
-            if (instance != sample.instance)
+        final boolean isDifferent(int s0, int s1, float thresh) {
+            if (instance[s0] != instance[s1])
+                return true;
+            if (shader[s0] != shader[s1])
+                return true;
+            if (Math.abs(r[s0] - r[s1]) / (r[s0] + r[s1]) > thresh)
                 return true;
-            if (shader != sample.shader)
+            if (Math.abs(g[s0] - g[s1]) / (g[s0] + g[s1]) > thresh)
                 return true;
-            if (Color.hasContrast(c, sample.c, thresh))
+            if (Math.abs(b[s0] - b[s1]) / (b[s0] + b[s1]) > thresh)
                 return true;
-            if (Math.abs(alpha - sample.alpha) / (alpha + sample.alpha) > thresh)
+            if (Math.abs(alpha[s0] - alpha[s1]) / (alpha[s0] + alpha[s1]) > thresh)
                 return true;
             // only compare normals if this pixel has not been averaged
-            float dot = (nx * sample.nx + ny * sample.ny + nz * sample.nz);
+            float dot = (nx[s0] * nx[s1] + ny[s0] * ny[s1] + nz[s0] * nz[s1]);
             return dot < 0.9f;
         }
 
-        static final ImageSample bilerp(ImageSample result, ImageSample i00, ImageSample i01, ImageSample i10, ImageSample i11, float dx, float dy) {
+        final void bilerp(int s, int s00, int s01, int s10, int s11, float dx, float dy) {
             float k00 = (1.0f - dx) * (1.0f - dy);
             float k01 = (1.0f - dx) * dy;
             float k10 = dx * (1.0f - dy);
             float k11 = dx * dy;
-            Color c00 = i00.c;
-            Color c01 = i01.c;
-            Color c10 = i10.c;
-            Color c11 = i11.c;
-            Color c = Color.mul(k00, c00);
-            c.madd(k01, c01);
-            c.madd(k10, c10);
-            c.madd(k11, c11);
-            result.c = c;
-            result.alpha = k00 * i00.alpha + k01 * i01.alpha + k10 * i10.alpha + k11 * i11.alpha;
-            return result;
+            float cr = k00 * r[s00];
+            float cg = k00 * g[s00];
+            float cb = k00 * b[s00];
+            cr += k01 * r[s01];
+            cg += k01 * g[s01];
+            cb += k01 * b[s01];
+            cr += k10 * r[s10];
+            cg += k10 * g[s10];
+            cb += k10 * b[s10];
+            cr += k11 * r[s11];
+            cg += k11 * g[s11];
+            cb += k11 * b[s11];
+            r[s] = cr;
+            g[s] = cg;
+            b[s] = cb;
+            alpha[s] = k00 * alpha[s00] + k01 * alpha[s01] + k10 * alpha[s10] + k11 * alpha[s11];
+            processed[s] = true;
         }
     }
 }
\ No newline at end of file
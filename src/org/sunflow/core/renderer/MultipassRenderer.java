@@ -61,6 +61,7 @@ public class MultipassRenderer implements ImageSampler {
         // validate AA options
         numSamples = Math.max(1, numSamples);
         invNumSamples = 1.0f / numSamples;
+        scene.setSamplesPerPixel(numSamples);
         // prepare QMC sampling
         UI.printInfo(Module.BCKT, "Multipass renderer settings:");
         UI.printInfo(Module.BCKT, "  * Resolution:         %dx%d", imageWidth, imageHeight);
@@ -203,7 +204,7 @@ public class MultipassRenderer implements ImageSampler {
      * @param x samples in the [0,1) range
      * @return warped sample in the [-2,+2) range
      */
-    private static final double warpCubic(double x) {
+    static final double warpCubic(double x) {
         if (x < (1.0 / 24))
             return qpow(24 * x) - 2;
         if (x < 0.5f)
@@ -21,6 +21,23 @@ public class ProgressiveRenderer implements ImageSampler {
     private Display display;
     private int counter, counterMax;
 
+    // refinement after the first pass
+    private float timeLimit;
+    private float threshold;
+    private int maxSamples;
+    private float[] colorSum;
+    private float[] alphaSum;
+    private float[] lumMean;
+    private float[] lumM2;
+    private int[] count;
+    private int rowCounter;
+    private long startTime;
+    private boolean timeUp;
+
+    // minimum delay between two refreshes of the display, in milliseconds
+    private static final long DISPLAY_INTERVAL = 250;
+    private static final int TASK_ROWS = 8;
+
     public ProgressiveRenderer() {
         imageWidth = 640;
         imageHeight = 480;
@@ -31,7 +48,18 @@ public class ProgressiveRenderer implements ImageSampler {
         this.scene = scene;
         imageWidth = w;
         imageHeight = h;
-        // prepare table used by deterministic anti-aliasing
+        timeLimit = Math.max(0, options.getFloat("aa.time", 0));
+        threshold = Math.max(0, options.getFloat("aa.threshold", 0));
+        // without a budget or a threshold only the first pass is rendered
+        maxSamples = options.getInt("aa.maxsamples", timeLimit > 0 || threshold > 0 ? Integer.MAX_VALUE : 1);
+        maxSamples = Math.max(1, maxSamples);
+        scene.setSamplesPerPixel(maxSamples);
+        if (maxSamples > 1) {
+            UI.printInfo(Module.IPR, "Progressive renderer settings:");
+            UI.printInfo(Module.IPR, "  * Time budget:   %s", timeLimit > 0 ? String.format("%.1fs", timeLimit) : "none");
+            UI.printInfo(Module.IPR, "  * Threshold:     %s", threshold > 0 ? String.format("%.4f", threshold) : "none");
+            UI.printInfo(Module.IPR, "  * Max samples:   %s", maxSamples < Integer.MAX_VALUE ? String.valueOf(maxSamples) : "none");
+        }
         return true;
     }
 
@@ -50,8 +78,16 @@ public class ProgressiveRenderer implements ImageSampler {
         UI.taskStart("Progressive Render", 0, imageWidth * imageHeight);
         Timer t = new Timer();
         t.start();
+        startTime = System.nanoTime();
+        timeUp = false;
         counter = 0;
         counterMax = imageWidth * imageHeight;
+        int numPixels = imageWidth * imageHeight;
+        colorSum = new float[3 * numPixels];
+        alphaSum = new float[numPixels];
+        lumMean = new float[numPixels];
+        lumM2 = new float[numPixels];
+        count = new int[numPixels];
 
         SmallBucketThread[] renderThreads = new SmallBucketThread[scene.getThreads()];
         for (int i = 0; i < renderThreads.length; i++) {
@@ -67,12 +103,152 @@ public class ProgressiveRenderer implements ImageSampler {
                 renderThreads[i].updateStats();
             }
         }
+        boolean canceled = UI.taskCanceled();
         UI.taskStop();
+        if (!canceled && maxSamples > 1)
+            refine();
         t.end();
         UI.printInfo(Module.IPR, "Rendering time: %s", t.toString());
+        colorSum = alphaSum = lumMean = lumM2 = null;
+        count = null;
         display.imageEnd();
     }
 
+    /**
+     * Keep adding one sample per pixel and pass into the accumulation buffers
+     * until the time budget runs out, the image has converged or the maximum
+     * number of samples is reached. The display is refreshed at most every
+     * {@link #DISPLAY_INTERVAL} milliseconds.
+     */
+    private void refine() {
+        int numPixels = imageWidth * imageHeight;
+        long lastDisplay = System.nanoTime();
+        float error = Float.POSITIVE_INFINITY;
+        int pass = 1;
+        while (pass < maxSamples && !timeUp) {
+            pass++;
+            rowCounter = 0;
+            UI.taskStart("Refining pass " + pass, 0, imageHeight);
+            RefineThread[] renderThreads = new RefineThread[scene.getThreads()];
+            for (int i = 0; i < renderThreads.length; i++) {
+                renderThreads[i] = new RefineThread();
+                renderThreads[i].start();
+            }
+            for (int i = 0; i < renderThreads.length; i++) {
+                try {
+                    renderThreads[i].join();
+                } catch (InterruptedException e) {
+                    UI.printError(Module.IPR, "Thread %d of %d was interrupted", i + 1, renderThreads.length);
+                } finally {
+                    renderThreads[i].updateStats();
+                }
+            }
+            boolean canceled = UI.taskCanceled();
+            UI.taskStop();
+            if (canceled)
+                break;
+            if (threshold > 0) {
+                double errorSum = 0;
+                for (int i = 0; i < numPixels; i++)
+                    errorSum += AdaptiveRenderer.estimateError(lumMean[i], lumM2[i], count[i]);
+                error = (float) (errorSum / numPixels);
+                if (error <= threshold)
+                    break;
+            }
+            long now = System.nanoTime();
+            if (now - lastDisplay >= DISPLAY_INTERVAL * 1000000L) {
+                updateDisplay();
+                lastDisplay = now;
+            }
+        }
+        updateDisplay();
+        long samples = 0;
+        for (int i = 0; i < numPixels; i++)
+            samples += count[i];
+        UI.printInfo(Module.IPR, "Progressive render stats:");
+        UI.printInfo(Module.IPR, "  * Passes:          %d", pass);
+        UI.printInfo(Module.IPR, "  * Samples / pixel: %.2f", (double) samples / numPixels);
+        if (threshold > 0)
+            UI.printInfo(Module.IPR, "  * Average error:   %.5f", error);
+        if (timeUp)
+            UI.printInfo(Module.IPR, "  * Stopped by time budget");
+    }
+
+    private void updateDisplay() {
+        int numPixels = imageWidth * imageHeight;
+        Color[] rgb = new Color[numPixels];
+        float[] alpha = new float[numPixels];
+        for (int i = 0; i < numPixels; i++) {
+            float inv = count[i] > 0 ? 1.0f / count[i] : 0;
+            rgb[i] = new Color(colorSum[3 * i + 0] * inv, colorSum[3 * i + 1] * inv, colorSum[3 * i + 2] * inv);
+            alpha[i] = alphaSum[i] * inv;
+        }
+        display.imageUpdate(0, 0, imageWidth, imageHeight, rgb, alpha);
+    }
+
+    private class RefineThread extends Thread {
+        private final IntersectionState istate = new IntersectionState();
+
+        @Override
+        public void run() {
+            while (true) {
+                int y0;
+                synchronized (ProgressiveRenderer.this) {
+                    if (rowCounter >= imageHeight || timeUp || UI.taskCanceled())
+                        return;
+                    UI.taskUpdate(rowCounter);
+                    y0 = rowCounter;
+                    rowCounter += TASK_ROWS;
+                }
+                for (int y = y0; y < Math.min(y0 + TASK_ROWS, imageHeight); y++)
+                    for (int x = 0; x < imageWidth; x++)
+                        addSample(x, y, istate);
+                checkTime();
+            }
+        }
+
+        void updateStats() {
+            scene.accumulateStats(istate);
+        }
+    }
+
+    private synchronized void checkTime() {
+        if (timeLimit > 0 && (System.nanoTime() - startTime) * 1e-9 >= timeLimit)
+            timeUp = true;
+    }
+
+    /**
+     * Trace the next sample of the specified pixel and add it to the
+     * accumulation buffers. The first sample of every pixel is the one traced
+     * by the initial pass.
+     */
+    private ShadingState addSample(int x, int y, IntersectionState istate) {
+        int p = x + y * imageWidth;
+        int s = count[p];
+        int instance = ((x & ((1 << QMC.MAX_SIGMA_ORDER) - 1)) << QMC.MAX_SIGMA_ORDER) + QMC.sigma(y & ((1 << QMC.MAX_SIGMA_ORDER) - 1), QMC.MAX_SIGMA_ORDER);
+        float rx = x + (float) QMC.halton(0, s);
+        float ry = imageHeight - 1 - y + (float) QMC.halton(1, s);
+        double time = QMC.mod1(QMC.halton(1, instance) + QMC.halton(2, s));
+        double lensU = QMC.mod1(QMC.halton(2, instance) + QMC.halton(3, s));
+        double lensV = QMC.mod1(QMC.halton(3, instance) + QMC.halton(4, s));
+        ShadingState state = scene.getRadiance(istate, rx, ry, lensU, lensV, time, instance + s, 4, null);
+        float lum = 0;
+        if (state != null) {
+            Color c = state.getResult();
+            colorSum[3 * p + 0] += c.getR();
+            colorSum[3 * p + 1] += c.getG();
+            colorSum[3 * p + 2] += c.getB();
+            alphaSum[p]++;
+            lum = c.getLuminance();
+        }
+        // running mean and variance (Welford)
+        int n = ++count[p];
+        float delta = lum - lumMean[p];
+        lumMean[p] += delta / n;
+        lumM2[p] += delta * (lum - lumMean[p]);
+        return state;
+    }
+
     private class SmallBucketThread extends Thread {
         private final IntersectionState istate = new IntersectionState();
 
@@ -110,11 +286,7 @@ public class ProgressiveRenderer implements ImageSampler {
                 // check to see if this is a pixel from a higher level tile
                 if (useMask && (x & mask) == 0 && (y & mask) == 0)
                     continue;
-                int instance = ((x & ((1 << QMC.MAX_SIGMA_ORDER) - 1)) << QMC.MAX_SIGMA_ORDER) + QMC.sigma(y & ((1 << QMC.MAX_SIGMA_ORDER) - 1), QMC.MAX_SIGMA_ORDER);
-                double time = QMC.halton(1, instance);
-                double lensU = QMC.halton(2, instance);
-                double lensV = QMC.halton(3, instance);
-                ShadingState state = scene.getRadiance(istate, x, imageHeight - 1 - y, lensU, lensV, time, instance, 4, null);
+                ShadingState state = addSample(x, y, istate);
                 Color c = state != null ? state.getResult() : Color.BLACK;
                 pixels++;
                 // fill region
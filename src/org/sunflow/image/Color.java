@@ -136,6 +136,18 @@ public final class Color {
         return new float[] { r, g, b };
     }
 
+    public final float getR() {
+        return r;
+    }
+
+    public final float getG() {
+        return g;
+    }
+
+    public final float getB() {
+        return b;
+    }
+
     public final int toRGB() {
         int ir = (int) (r * 255 + 0.5);
         int ig = (int) (g * 255 + 0.5);
@@ -0,0 +1,234 @@
+package org.sunflow.image.formats;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.Color;
+import org.sunflow.system.ByteUtil;
+
+/**
+ * A mip-mapped bitmap made of square tiles of linear rgb texels, stored in
+ * single or half precision. Each mip level is read from its own buffer,
+ * usually a memory mapped region of a file written by
+ * {@link #save(Bitmap, String, boolean)}, so only the tiles which are actually
+ * accessed get paged in.
+ */
+public class BitmapTiled extends Bitmap {
+    public static final int MAGIC = 0x53465458; // "SFTX"
+    public static final int VERSION = 1;
+    public static final int TILE_SIZE = 64;
+    public static final int FLAG_HALF = 1;
+
+    private final int[] width;
+    private final int[] height;
+    private final boolean half;
+    private final ByteBuffer[] levels;
+
+    /**
+     * Creates a bitmap from the texel data of each mip level.
+     * 
+     * @param width width of each level
+     * @param height height of each level
+     * @param half are the texels stored as half floats?
+     * @param levels texel data of each level
+     */
+    public BitmapTiled(int[] width, int[] height, boolean half, ByteBuffer[] levels) {
+        this.width = width;
+        this.height = height;
+        this.half = half;
+        this.levels = levels;
+    }
+
+    /**
+     * Gets the number of bytes used to store the specified mip level. Partial
+     * tiles along the right and top edges are padded to the full tile size.
+     * 
+     * @param w width of the level
+     * @param h height of the level
+     * @param half are the texels stored as half floats?
+     * @return size of the level in bytes
+     */
+    public static long getLevelSize(int w, int h, boolean half) {
+        long tilesX = (w + TILE_SIZE - 1) / TILE_SIZE;
+        long tilesY = (h + TILE_SIZE - 1) / TILE_SIZE;
+        return tilesX * tilesY * TILE_SIZE * TILE_SIZE * 3 * (half ? 2 : 4);
+    }
+
+    @Override
+    public int getWidth() {
+        return width[0];
+    }
+
+    @Override
+    public int getHeight() {
+        return height[0];
+    }
+
+    public int getNumLevels() {
+        return levels.length;
+    }
+
+    /**
+     * @return <code>true</code> if the texels are stored as half floats,
+     *         <code>false</code> if they are stored as floats
+     */
+    public boolean isHalf() {
+        return half;
+    }
+
+    public int getWidth(int level) {
+        return width[level];
+    }
+
+    public int getHeight(int level) {
+        return height[level];
+    }
+
+    @Override
+    public Color readColor(int x, int y) {
+        float[] rgb = new float[3];
+        readTexels(0, x, y, 1, 1, rgb);
+        return new Color(rgb[0], rgb[1], rgb[2]);
+    }
+
+    @Override
+    public float readAlpha(int x, int y) {
+        return 1;
+    }
+
+    /**
+     * Reads a block of texels from the specified mip level into consecutive
+     * rgb triplets.
+     * 
+     * @param level mip level to read from
+     * @param x0 left edge of the block
+     * @param y0 bottom edge of the block
+     * @param w width of the block
+     * @param h height of the block
+     * @param rgb array receiving 3 * w * h floats
+     */
+    public void readTexels(int level, int x0, int y0, int w, int h, float[] rgb) {
+        ByteBuffer data = levels[level];
+        int tilesX = (width[level] + TILE_SIZE - 1) / TILE_SIZE;
+        for (int y = y0, i = 0; y < y0 + h; y++) {
+            for (int x = x0; x < x0 + w; x++, i += 3) {
+                int tile = (y / TILE_SIZE) * tilesX + (x / TILE_SIZE);
+                int index = 3 * (tile * TILE_SIZE * TILE_SIZE + (y % TILE_SIZE) * TILE_SIZE + (x % TILE_SIZE));
+                if (half) {
+                    rgb[i + 0] = ByteUtil.halfToFloat(data.getShort(2 * index + 0));
+                    rgb[i + 1] = ByteUtil.halfToFloat(data.getShort(2 * index + 2));
+                    rgb[i + 2] = ByteUtil.halfToFloat(data.getShort(2 * index + 4));
+                } else {
+                    rgb[i + 0] = data.getFloat(4 * index + 0);
+                    rgb[i + 1] = data.getFloat(4 * index + 4);
+                    rgb[i + 2] = data.getFloat(4 * index + 8);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the specified bitmap as a tiled, mip-mapped texture file. Each
+     * level is box filtered from the one above it, down to a single pixel.
+     * 
+     * @param b bitmap to convert, its colors are stored as is
+     * @param filename file to write
+     * @param half store texels as half floats instead of floats?
+     * @throws IOException if the file could not be written
+     */
+    public static void save(Bitmap b, String filename, boolean half) throws IOException {
+        int w = b.getWidth();
+        int h = b.getHeight();
+        int numLevels = 1;
+        while ((w >> numLevels) > 0 || (h >> numLevels) > 0)
+            numLevels++;
+        File file = new File(filename);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        try {
+            // header
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(half ? FLAG_HALF : 0);
+            out.writeInt(TILE_SIZE);
+            out.writeInt(numLevels);
+            long offset = 20 + 16 * numLevels;
+            for (int i = 0; i < numLevels; i++) {
+                int lw = Math.max(1, w >> i);
+                int lh = Math.max(1, h >> i);
+                out.writeInt(lw);
+                out.writeInt(lh);
+                out.writeLong(offset);
+                offset += getLevelSize(lw, lh, half);
+            }
+            // texels
+            float[] rgb = new float[3 * w * h];
+            for (int y = 0, i = 0; y < h; y++) {
+                for (int x = 0; x < w; x++, i += 3) {
+                    Color c = b.readColor(x, y);
+                    rgb[i + 0] = c.getR();
+                    rgb[i + 1] = c.getG();
+                    rgb[i + 2] = c.getB();
+                }
+            }
+            for (int i = 0; i < numLevels; i++) {
+                if (i > 0) {
+                    int lw = Math.max(1, w >> 1);
+                    int lh = Math.max(1, h >> 1);
+                    rgb = downsample(rgb, w, h, lw, lh);
+                    w = lw;
+                    h = lh;
+                }
+                writeLevel(out, rgb, w, h, half);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static float[] downsample(float[] rgb, int w, int h, int lw, int lh) {
+        // box filter, clamping at the edges
+        float[] result = new float[3 * lw * lh];
+        for (int y = 0, i = 0; y < lh; y++) {
+            int y0 = Math.min(2 * y, h - 1);
+            int y1 = Math.min(y0 + 1, h - 1);
+            for (int x = 0; x < lw; x++, i += 3) {
+                int x0 = Math.min(2 * x, w - 1);
+                int x1 = Math.min(x0 + 1, w - 1);
+                int i00 = 3 * (y0 * w + x0);
+                int i10 = 3 * (y0 * w + x1);
+                int i01 = 3 * (y1 * w + x0);
+                int i11 = 3 * (y1 * w + x1);
+                for (int c = 0; c < 3; c++)
+                    result[i + c] = 0.25f * rgb[i00 + c] + 0.25f * rgb[i10 + c] + 0.25f * rgb[i01 + c] + 0.25f * rgb[i11 + c];
+            }
+        }
+        return result;
+    }
+
+    private static void writeLevel(DataOutputStream out, float[] rgb, int w, int h, boolean half) throws IOException {
+        int tilesX = (w + TILE_SIZE - 1) / TILE_SIZE;
+        int tilesY = (h + TILE_SIZE - 1) / TILE_SIZE;
+        for (int ty = 0; ty < tilesY; ty++) {
+            for (int tx = 0; tx < tilesX; tx++) {
+                for (int y = ty * TILE_SIZE; y < (ty + 1) * TILE_SIZE; y++) {
+                    for (int x = tx * TILE_SIZE; x < (tx + 1) * TILE_SIZE; x++) {
+                        int i = 3 * (y * w + x);
+                        boolean inside = x < w && y < h;
+                        for (int c = 0; c < 3; c++) {
+                            float f = inside ? rgb[i + c] : 0;
+                            if (half)
+                                out.writeShort(ByteUtil.floatToHalf(f));
+                            else
+                                out.writeFloat(f);
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package org.sunflow.image.readers;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.sunflow.image.Bitmap;
+import org.sunflow.image.BitmapReader;
+import org.sunflow.image.formats.BitmapTiled;
+
+/**
+ * Reads tiled, mip-mapped texture files. The texels are not decoded here:
+ * each mip level is memory mapped and texels are read on demand. The data is
+ * always linear, the gamma of the source image was removed when the file was
+ * created.
+ */
+public class STXBitmapReader implements BitmapReader {
+    public Bitmap load(String filename, boolean isLinear) throws IOException, BitmapFormatException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            if (channel.size() < 20)
+                throw new BitmapFormatException("file is too short");
+            ByteBuffer header = channel.map(MapMode.READ_ONLY, 0, 20);
+            if (header.getInt() != BitmapTiled.MAGIC)
+                throw new BitmapFormatException("not a tiled texture file");
+            int version = header.getInt();
+            if (version != BitmapTiled.VERSION)
+                throw new BitmapFormatException(String.format("unsupported version %d", version));
+            boolean half = (header.getInt() & BitmapTiled.FLAG_HALF) != 0;
+            int tileSize = header.getInt();
+            if (tileSize != BitmapTiled.TILE_SIZE)
+                throw new BitmapFormatException(String.format("unsupported tile size %d", tileSize));
+            int numLevels = header.getInt();
+            if (numLevels < 1 || numLevels > 32)
+                throw new BitmapFormatException(String.format("invalid number of levels %d", numLevels));
+            ByteBuffer index = channel.map(MapMode.READ_ONLY, 20, 16 * numLevels);
+            int[] width = new int[numLevels];
+            int[] height = new int[numLevels];
+            ByteBuffer[] levels = new ByteBuffer[numLevels];
+            for (int i = 0; i < numLevels; i++) {
+                width[i] = index.getInt();
+                height[i] = index.getInt();
+                long offset = index.getLong();
+                if (width[i] < 1 || height[i] < 1)
+                    throw new BitmapFormatException(String.format("invalid size of level %d", i));
+                long size = BitmapTiled.getLevelSize(width[i], height[i], half);
+                if (size > Integer.MAX_VALUE || offset < 0 || offset + size > channel.size())
+                    throw new BitmapFormatException(String.format("invalid data for level %d", i));
+                levels[i] = channel.map(MapMode.READ_ONLY, offset, size);
+            }
+            return new BitmapTiled(width, height, half, levels);
+        } finally {
+            file.close();
+        }
+    }
+}
\ No newline at end of file
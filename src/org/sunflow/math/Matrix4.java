@@ -541,7 +541,21 @@ public final class Matrix4 {
     }
 
     public final static Matrix4 blend(Matrix4 m0, Matrix4 m1, float t) {
-        Matrix4 m = new Matrix4();
+        return blend(m0, m1, t, new Matrix4());
+    }
+
+    /**
+     * Linearly interpolates between two matrices, storing the result into the
+     * specified matrix. This is only meant for short lived matrices which are
+     * never shared, as matrices are otherwise treated as immutable.
+     * 
+     * @param m0 matrix at t=0
+     * @param m1 matrix at t=1
+     * @param t interpolation parameter
+     * @param m matrix receiving the result
+     * @return <code>m</code>
+     */
+    public final static Matrix4 blend(Matrix4 m0, Matrix4 m1, float t, Matrix4 m) {
         m.m00 = (1 - t) * m0.m00 + t * m1.m00;
         m.m01 = (1 - t) * m0.m01 + t * m1.m01;
         m.m02 = (1 - t) * m0.m02 + t * m1.m02;
@@ -103,13 +103,30 @@ public final class MovingMatrix4 {
     }
 
     public Matrix4 sample(float time) {
+        return sample(time, null);
+    }
+
+    /**
+     * Get the matrix at the specified time, blending into the specified matrix
+     * if the transform is moving. Static transforms return their only matrix
+     * and leave <code>dest</code> untouched.
+     * 
+     * @param time time to sample the transform at
+     * @param dest matrix receiving the blended result, or <code>null</code> to
+     *            create a new one
+     * @return the matrix at the specified time
+     */
+    public Matrix4 sample(float time, Matrix4 dest) {
         if (transforms.length == 1 || t0 >= t1)
             return transforms[0];
         else {
             float nt = (MathUtils.clamp(time, t0, t1) - t0) * inv;
             int idx0 = (int) nt;
             int idx1 = Math.min(idx0 + 1, transforms.length - 1);
-            return Matrix4.blend(transforms[idx0], transforms[idx1], (float) (nt - idx0));
+            float t = nt - idx0;
+            if (dest == null)
+                return Matrix4.blend(transforms[idx0], transforms[idx1], t);
+            return Matrix4.blend(transforms[idx0], transforms[idx1], t, dest);
         }
     }
 }
\ No newline at end of file
@@ -9,8 +9,24 @@ import org.sunflow.system.UI.Module;
 public class BenchmarkFramework {
     private Timer[] timers;
     private int timeLimit; // time limit in seconds
+    private int warmup; // untimed iterations
+    private double average;
 
     public BenchmarkFramework(int iterations, int timeLimit) {
+        this(0, iterations, timeLimit);
+    }
+
+    /**
+     * Creates a framework which first runs the kernel the specified number of
+     * times without timing it. This gives the JIT compiler a chance to
+     * compile the kernel before the measurements start.
+     * 
+     * @param warmup number of untimed iterations
+     * @param iterations maximum number of timed iterations
+     * @param timeLimit time limit for the timed iterations in seconds
+     */
+    public BenchmarkFramework(int warmup, int iterations, int timeLimit) {
+        this.warmup = warmup;
         this.timeLimit = timeLimit;
         timers = new Timer[iterations];
     }
@@ -19,6 +35,13 @@ public class BenchmarkFramework {
         // clear previous results
         for (int i = 0; i < timers.length; i++)
             timers[i] = null;
+        average = 0;
+        for (int i = 0; i < warmup; i++) {
+            UI.printInfo(Module.BENCH, "Running warmup iteration %d", (i + 1));
+            test.kernelBegin();
+            test.kernelMain();
+            test.kernelEnd();
+        }
         // loop for the specified number of iterations or until the time limit
         long startTime = System.nanoTime();
         for (int i = 0; i < timers.length && ((System.nanoTime() - startTime) / 1000000000) < timeLimit; i++) {
@@ -47,6 +70,7 @@ public class BenchmarkFramework {
         if (n == 0)
             return;
         avg /= n;
+        average = avg;
         double stdDev = 0;
         for (Timer t : timers) {
             if (t == null)
@@ -64,4 +88,14 @@ public class BenchmarkFramework {
         for (int i = 0; i < timers.length && timers[i] != null; i++)
             UI.printDetailed(Module.BENCH, "  * Iteration %d: %s", i + 1, timers[i]);
     }
+
+    /**
+     * Gets the average time of the timed iterations of the last call to
+     * {@link #execute(BenchmarkTest)}.
+     * 
+     * @return average time in seconds, or 0 if nothing was run
+     */
+    public double getAverage() {
+        return average;
+    }
 }
\ No newline at end of file